@@ -14,10 +14,18 @@
 
 package com.google.devtools.build.buildjar;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.buildjar.javac.JavacOptions;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * The JavaBuilder main called by bazel.
@@ -26,20 +34,101 @@ public abstract class BazelJavaBuilder {
 
   private static final String CMDNAME = "BazelJavaBuilder";
 
+  /**
+   * Flag that makes the builder act as a persistent worker, see {@link #runPersistentWorker}.
+   */
+  private static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+  /**
+   * Performs a single build described by {@code args}, writing its diagnostics to {@code err},
+   * and returns its exit code.
+   */
+  @VisibleForTesting
+  interface RequestProcessor {
+    int processRequest(List<String> args, PrintStream err) throws Exception;
+  }
+
+  /** Processes requests with {@link #processRequest}. */
+  @VisibleForTesting
+  static final RequestProcessor JAVA_BUILDER = new RequestProcessor() {
+    @Override
+    public int processRequest(List<String> args, PrintStream err) {
+      return BazelJavaBuilder.processRequest(args, err);
+    }
+  };
+
   /**
    * The main method of the BazelJavaBuilder.
    */
   public static void main(String[] args) {
+    if (args.length == 1 && args[0].equals(PERSISTENT_WORKER_FLAG)) {
+      // Stray writes to stdout would corrupt the protocol stream, so send them to stderr instead.
+      PrintStream protocolOut = System.out;
+      System.setOut(System.err);
+      System.exit(runPersistentWorker(System.in, protocolOut, JAVA_BUILDER));
+    }
+    int exitCode = processRequest(Arrays.asList(args), System.err);
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Reads {@link WorkRequest}s from {@code in} and answers each of them with a {@link
+   * WorkResponse} on {@code out} until {@code in} is closed. All messages are length-delimited.
+   *
+   * <p>A request whose build throws is answered with exit code 1 and the stack trace as output,
+   * so that one failing compilation does not take down the worker. Returns the exit code of the
+   * worker, which is only non-zero if the protocol streams failed.
+   */
+  @VisibleForTesting
+  static int runPersistentWorker(InputStream in, PrintStream out, RequestProcessor processor) {
+    while (true) {
+      try {
+        WorkRequest request = WorkRequest.parseDelimitedFrom(in);
+        if (request == null) {
+          return 0;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int exitCode;
+        try (PrintStream err = new PrintStream(buffer, true, StandardCharsets.UTF_8.name())) {
+          try {
+            exitCode = processor.processRequest(request.getArgumentsList(), err);
+          } catch (Throwable t) {
+            t.printStackTrace(err);
+            exitCode = 1;
+          }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        WorkResponse.newBuilder()
+            .setExitCode(exitCode)
+            .setOutput(buffer.toString(StandardCharsets.UTF_8.name()))
+            .setHeapUsedBytes(runtime.totalMemory() - runtime.freeMemory())
+            .build()
+            .writeDelimitedTo(out);
+        out.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+        return 1;
+      }
+    }
+  }
+
+  /**
+   * Performs a single build described by {@code args} and returns its exit code.
+   */
+  private static int processRequest(List<String> args, PrintStream err) {
     try {
-      JavaLibraryBuildRequest build = new JavaLibraryBuildRequest(Arrays.asList(args));
+      JavaLibraryBuildRequest build = new JavaLibraryBuildRequest(args);
       build.setJavacOpts(JavacOptions.normalizeOptions(build.getJavacOpts()));
       AbstractJavaBuilder builder = build.getDependencyModule().reduceClasspath()
           ? new ReducedClasspathJavaLibraryBuilder()
           : new SimpleJavaLibraryBuilder();
-      builder.run(build, System.err);
+      builder.run(build, err);
+      return 0;
     } catch (IOException | InvalidCommandLineException e) {
-      System.err.println(CMDNAME + " threw exception : " + e.getMessage());
-      System.exit(1);
+      err.println(CMDNAME + " threw exception : " + e.getMessage());
+      return 1;
     }
   }
 }
@@ -0,0 +1,113 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.buildjar;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the persistent worker mode of {@link BazelJavaBuilder}.
+ */
+@RunWith(JUnit4.class)
+public class BazelJavaBuilderTest {
+
+  /** Answers requests for "ok" with exit code 0 and throws for everything else. */
+  private static final BazelJavaBuilder.RequestProcessor FAKE_BUILDER =
+      new BazelJavaBuilder.RequestProcessor() {
+        @Override
+        public int processRequest(List<String> args, PrintStream err) {
+          if (args.equals(ImmutableList.of("ok"))) {
+            err.print("compiled");
+            return 0;
+          }
+          throw new IllegalStateException("processor crashed on " + args);
+        }
+      };
+
+  private static InputStream requests(List<String>... argumentLists) throws Exception {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    for (List<String> arguments : argumentLists) {
+      WorkRequest.newBuilder().addAllArguments(arguments).build().writeDelimitedTo(requests);
+    }
+    return new ByteArrayInputStream(requests.toByteArray());
+  }
+
+  private static List<WorkResponse> runWorker(InputStream requests,
+      BazelJavaBuilder.RequestProcessor processor) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(0, BazelJavaBuilder.runPersistentWorker(requests, new PrintStream(out),
+        processor));
+    InputStream in = new ByteArrayInputStream(out.toByteArray());
+    List<WorkResponse> responses = new ArrayList<>();
+    for (WorkResponse response = WorkResponse.parseDelimitedFrom(in); response != null;
+        response = WorkResponse.parseDelimitedFrom(in)) {
+      responses.add(response);
+    }
+    return responses;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void everyRequestIsAnswered() throws Exception {
+    List<WorkResponse> responses = runWorker(
+        requests(ImmutableList.of("ok"), ImmutableList.of("ok")), FAKE_BUILDER);
+    assertThat(responses).hasSize(2);
+    for (WorkResponse response : responses) {
+      assertEquals(0, response.getExitCode());
+      assertEquals("compiled", response.getOutput());
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void crashingRequestDoesNotStopTheWorker() throws Exception {
+    List<WorkResponse> responses = runWorker(
+        requests(ImmutableList.of("crash"), ImmutableList.of("ok")), FAKE_BUILDER);
+    assertThat(responses).hasSize(2);
+    assertEquals(1, responses.get(0).getExitCode());
+    assertThat(responses.get(0).getOutput()).contains("IllegalStateException");
+    assertThat(responses.get(0).getOutput()).contains("processor crashed on [crash]");
+    assertEquals(0, responses.get(1).getExitCode());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void invalidCommandLineIsReported() throws Exception {
+    List<WorkResponse> responses = runWorker(
+        requests(ImmutableList.of("--no_such_option")), BazelJavaBuilder.JAVA_BUILDER);
+    assertThat(responses).hasSize(1);
+    assertEquals(1, responses.get(0).getExitCode());
+    assertThat(responses.get(0).getOutput()).contains("unknown option : '--no_such_option'");
+  }
+
+  @Test
+  public void closedInputEndsTheWorker() throws Exception {
+    assertThat(runWorker(new ByteArrayInputStream(new byte[0]), FAKE_BUILDER)).isEmpty();
+  }
+}
@@ -318,6 +318,13 @@ static vector<string> GetArgumentArray() {
   if (globals->options.watchfs) {
     result.push_back("--watchfs");
   }
+  if (globals->options.mapped_action_cache) {
+    result.push_back("--experimental_mapped_action_cache");
+  }
+  if (!globals->options.host_hash_function.empty()) {
+    result.push_back("--host_hash_function=" +
+                     globals->options.host_hash_function);
+  }
   if (globals->options.fatal_event_bus_exceptions) {
     result.push_back("--fatal_event_bus_exceptions");
   } else {
@@ -1105,20 +1112,23 @@ static void handler(int signum) {
 }
 
 
-// Reads a single char from the specified stream.
-static char read_server_char(FILE *fp) {
-  int c = getc(fp);
-  if (c == EOF) {
-    // e.g. external SIGKILL of server, misplaced System.exit() in the server,
-    // or a JVM crash. Print out the jvm.out file in case there's something
-    // useful.
-    fprintf(stderr, "Error: unexpected EOF from %s server.\n"
-            "Contents of '%s':\n", globals->options.GetProductName().c_str(),
-            globals->jvm_log_file.c_str());
-    WriteFileToStreamOrDie(stderr, globals->jvm_log_file.c_str());
-    exit(blaze_exit_code::INTERNAL_ERROR);
-  }
-  return static_cast<char>(c);
+// Dies after an unexpected EOF from the server.
+static void die_server_eof() {
+  // e.g. external SIGKILL of server, misplaced System.exit() in the server,
+  // or a JVM crash. Print out the jvm.out file in case there's something
+  // useful.
+  fprintf(stderr, "Error: unexpected EOF from %s server.\n"
+          "Contents of '%s':\n", globals->options.GetProductName().c_str(),
+          globals->jvm_log_file.c_str());
+  WriteFileToStreamOrDie(stderr, globals->jvm_log_file.c_str());
+  exit(blaze_exit_code::INTERNAL_ERROR);
+}
+
+// Reads exactly size bytes from the specified stream.
+static void read_server_bytes(FILE *fp, unsigned char *buf, size_t size) {
+  if (fread(buf, 1, size, fp) != size) {
+    die_server_eof();
+  }
 }
 
 // Constructs the command line for a server request,
@@ -1231,47 +1241,45 @@ static void SendServerRequest(void) {
     }
   }
 
-  // Read and demux the response. This protocol is awful.
+  // Read and demux the response. It is a sequence of frames, each of which is
+  // a stream tag ('1' for stdout, '2' for stderr, '3' for control), the length
+  // of the payload as a four-byte big-endian integer, and the payload. The
+  // payload of the control frame is the exit code, and ends the response.
+  string control;
   for (;;) {
-    // Read one line:
-    char at = read_server_char(fp);
-    assert(at == '@');
-    (void) at;  // avoid warning about unused variable
-    char tag = read_server_char(fp);
+    unsigned char header[5];
+    read_server_bytes(fp, header, sizeof header);
+    char tag = header[0];
     assert(tag == '1' || tag == '2' || tag == '3');
-    char at_or_newline = read_server_char(fp);
-    bool second_at = at_or_newline == '@';
-    if (second_at) {
-      at_or_newline = read_server_char(fp);
-    }
-    assert(at_or_newline == '\n');
+    size_t remaining = (static_cast<size_t>(header[1]) << 24) |
+                       (static_cast<size_t>(header[2]) << 16) |
+                       (static_cast<size_t>(header[3]) << 8) |
+                       static_cast<size_t>(header[4]);
 
-    if (tag == '3') {
-      // In this (totally bizarre) protocol, this is the
-      // server's way of saying "um, that's the end of the response".
-      break;
-    }
     FILE *stream = tag == '1' ? stdout : stderr;
-    for (;;) {
-      char c = read_server_char(fp);
-      if (c == '\n') {
-        if (!second_at) fputc(c, stream);
-        fflush(stream);
-        break;
+    unsigned char buf[65536];
+    while (remaining > 0) {
+      size_t chunk = std::min(remaining, sizeof buf);
+      read_server_bytes(fp, buf, chunk);
+      if (tag == '3') {
+        control.append(reinterpret_cast<char *>(buf), chunk);
       } else {
-        fputc(c, stream);
+        fwrite(buf, 1, chunk, stream);
       }
+      remaining -= chunk;
+    }
+    if (tag == '3') {
+      break;
     }
+    fflush(stream);
   }
 
-  char line[255];
-  if (fgets(line, sizeof line, fp) == NULL ||
-      !isdigit(line[0])) {
+  if (control.empty() || !isdigit(control[0])) {
     die(blaze_exit_code::INTERNAL_ERROR,
         "Error: can't read exit code from server.");
   }
   int exit_code;
-  blaze_util::safe_strto32(line, &exit_code);
+  blaze_util::safe_strto32(control, &exit_code);
 
   close(socket);  // might fail EINTR, just ignore.
 
@@ -51,6 +51,8 @@ BlazeStartupOptions::BlazeStartupOptions(const BlazeStartupOptions &rhs)
       max_idle_secs(rhs.max_idle_secs),
       skyframe(rhs.skyframe),
       watchfs(rhs.watchfs),
+      mapped_action_cache(rhs.mapped_action_cache),
+      host_hash_function(rhs.host_hash_function),
       allow_configurable_attributes(rhs.allow_configurable_attributes),
       option_sources(rhs.option_sources),
       webstatus_port(rhs.webstatus_port),
@@ -151,6 +151,12 @@ class BlazeStartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // If true, the action cache is kept in a memory-mapped log file.
+  bool mapped_action_cache;
+
+  // The function used to compute file digests, or empty for the default.
+  string host_hash_function;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
@@ -46,6 +46,7 @@ void BlazeStartupOptions::Init() {
   max_idle_secs = testing ? 5 : (3 * 3600);
   webstatus_port = 0;
   watchfs = false;
+  mapped_action_cache = false;
 }
 
 string BlazeStartupOptions::GetHostJavabase() {
@@ -75,6 +76,8 @@ void BlazeStartupOptions::Copy(
   lhs->skyframe = rhs.skyframe;
   lhs->webstatus_port = rhs.webstatus_port;
   lhs->watchfs = rhs.watchfs;
+  lhs->mapped_action_cache = rhs.mapped_action_cache;
+  lhs->host_hash_function = rhs.host_hash_function;
   lhs->allow_configurable_attributes = rhs.allow_configurable_attributes;
   lhs->fatal_event_bus_exceptions = rhs.fatal_event_bus_exceptions;
   lhs->option_sources = rhs.option_sources;
@@ -194,6 +197,13 @@ blaze_exit_code::ExitCode BlazeStartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--watchfs")) {
     watchfs = true;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_mapped_action_cache")) {
+    mapped_action_cache = true;
+    option_sources["experimental_mapped_action_cache"] = rcfile;
+  } else if ((value = GetUnaryOption(arg, next_arg,
+                                     "--host_hash_function")) != NULL) {
+    host_hash_function = value;
+    option_sources["host_hash_function"] = rcfile;
   } else if ((value = GetUnaryOption(
       arg, next_arg, "--use_webstatusserver")) != NULL) {
     if (!blaze_util::safe_strto32(value, &webstatus_port) ||
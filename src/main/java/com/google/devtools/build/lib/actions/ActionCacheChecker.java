@@ -20,11 +20,14 @@ import com.google.devtools.build.lib.actions.Action.MiddlemanType;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.ActionCache.Entry;
 import com.google.devtools.build.lib.actions.cache.Digest;
+import com.google.devtools.build.lib.actions.cache.DiskOutputCache;
 import com.google.devtools.build.lib.actions.cache.Metadata;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.io.IOException;
@@ -32,6 +35,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
@@ -49,7 +53,10 @@ import javax.annotation.Nullable;
  * otherwise lightweight, and should be constructed anew and discarded for each build request.
  */
 public class ActionCacheChecker {
+  private static final Logger LOG = Logger.getLogger(ActionCacheChecker.class.getName());
+
   private final ActionCache actionCache;
+  @Nullable private final DiskOutputCache outputCache;
   private final Predicate<? super Action> executionFilter;
   private final ArtifactResolver artifactResolver;
   // True iff --verbose_explanations flag is set.
@@ -57,7 +64,14 @@ public class ActionCacheChecker {
 
   public ActionCacheChecker(ActionCache actionCache, ArtifactResolver artifactResolver,
       Predicate<? super Action> executionFilter, boolean verboseExplanations) {
+    this(actionCache, null, artifactResolver, executionFilter, verboseExplanations);
+  }
+
+  public ActionCacheChecker(ActionCache actionCache, @Nullable DiskOutputCache outputCache,
+      ArtifactResolver artifactResolver, Predicate<? super Action> executionFilter,
+      boolean verboseExplanations) {
     this.actionCache = actionCache;
+    this.outputCache = outputCache;
     this.executionFilter = executionFilter;
     this.artifactResolver = artifactResolver;
     this.verboseExplanations = verboseExplanations;
@@ -228,6 +242,93 @@ public class ActionCacheChecker {
     actionCache.put(key, entry);
   }
 
+  /**
+   * Returns the key under which the outputs of {@code action} are kept in the output cache, or
+   * null if there is no output cache or the outputs of the action can't be cached. Must be called
+   * before the action is executed.
+   */
+  @Nullable
+  public String getOutputCacheKey(Action action, MetadataHandler metadataHandler) {
+    if (outputCache == null || action.discoversInputs() || action.isVolatile()
+        || action.getOutputs().isEmpty()) {
+      return null;
+    }
+    Map<String, Metadata> inputMetadata = new HashMap<>();
+    for (Artifact input : action.getInputs()) {
+      Metadata metadata = metadataHandler.getMetadataMaybe(input);
+      if (metadata != null && metadata.digest == null && metadata != Metadata.CONSTANT_METADATA
+          && isEmptyFile(input.getPath())) {
+        metadata = new Metadata(DiskOutputCache.getEmptyFileDigest(input.getPath()));
+      }
+      inputMetadata.put(input.getExecPathString(), metadata);
+    }
+    return DiskOutputCache.computeKey(action.getKey(), inputMetadata);
+  }
+
+  /**
+   * Tries to restore the outputs of {@code action} from the output cache instead of executing it.
+   * Returns true on success, in which case the action must be completed as if it had been
+   * executed.
+   */
+  public boolean restoreOutputs(Action action, String outputCacheKey) {
+    Preconditions.checkNotNull(outputCache);
+    try {
+      return outputCache.get(outputCacheKey, getOutputPaths(action));
+    } catch (IOException e) {
+      LOG.warning("Failed to restore outputs of " + action.prettyPrint() + " from the output "
+          + "cache: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Stores the outputs of the successfully executed {@code action} in the output cache. The copy
+   * happens in the background. Failures are not fatal, they only cause a later cache miss.
+   */
+  public void storeOutputs(Action action, String outputCacheKey, MetadataHandler metadataHandler) {
+    Preconditions.checkNotNull(outputCache);
+    Map<String, byte[]> digests = new HashMap<>();
+    try {
+      for (Artifact output : action.getOutputs()) {
+        if (metadataHandler.artifactOmitted(output)) {
+          return;
+        }
+        Metadata metadata = metadataHandler.getMetadata(output);
+        byte[] digest = metadata == null ? null : metadata.digest;
+        if (digest == null && metadata != null && isEmptyFile(output.getPath())) {
+          digest = DiskOutputCache.getEmptyFileDigest(output.getPath());
+        }
+        if (digest == null) {
+          // Only regular files are stored by content.
+          return;
+        }
+        digests.put(output.getExecPathString(), digest);
+      }
+      outputCache.putInBackground(outputCacheKey, getOutputPaths(action), digests);
+    } catch (IOException e) {
+      LOG.warning("Failed to store outputs of " + action.prettyPrint() + " in the output cache: "
+          + e.getMessage());
+    }
+  }
+
+  /** Empty files have an mtime instead of a digest in their metadata, like directories. */
+  private static boolean isEmptyFile(Path path) {
+    try {
+      FileStatus stat = path.statIfFound();
+      return stat != null && stat.isFile() && stat.getSize() == 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static Map<String, Path> getOutputPaths(Action action) {
+    Map<String, Path> outputs = new HashMap<>();
+    for (Artifact output : action.getOutputs()) {
+      outputs.put(output.getExecPathString(), output.getPath());
+    }
+    return outputs;
+  }
+
   private Iterable<Artifact> resolveCachedActionInputs(Action action, ActionCache.Entry entry,
       PackageRootResolver resolver) {
     Preconditions.checkNotNull(entry, action);
@@ -21,8 +21,8 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.LoggingUtil;
-import com.google.devtools.build.lib.util.Pair;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -63,6 +63,12 @@ import java.util.logging.Logger;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Two optional mechanisms refine this scheme. With a {@link ResourceUsageHistory}, the static
+ * estimates of actions are replaced by the resources their spawns were measured to consume (see
+ * {@link #estimateResources}). With fair queueing, a waiting request that keeps being overtaken by
+ * smaller requests eventually stops all later requests from being admitted until it fits, so that
+ * large actions are not starved by a steady stream of small ones.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -104,9 +110,30 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // With fair queueing, a waiting request may be overtaken by at most this many later requests.
+  @VisibleForTesting static final int MAX_OVERTAKEN_COUNT = 8;
+
+  /**
+   * A blocked resource request.
+   */
+  private static final class Request {
+    final ResourceSet resources;
+    // Always initialized to 1 during creation in the acquire() method.
+    final CountDownLatch latch = new CountDownLatch(1);
+    // Number of requests admitted while this one was waiting.
+    int overtakenCount = 0;
+
+    Request(ResourceSet resources) {
+      this.resources = resources;
+    }
+  }
+
+  // List of blocked threads, in the order of their requests.
+  private final List<Request> requestList;
+
+  private boolean fairQueueing = false;
+
+  private ResourceUsageHistory resourceUsageHistory = null;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -158,9 +185,9 @@ public class ResourceManager {
     usedRam = 0;
     usedIo = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
+    for (Request request : requestList) {
       // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+      request.latch.countDown();
     }
     requestList.clear();
   }
@@ -189,6 +216,44 @@ public class ResourceManager {
     ramUtilizationPercentage = percentage;
   }
 
+  /**
+   * Enables or disables fair queueing of blocked requests. Without it, a blocked request is
+   * admitted only once it fits, regardless of how many later requests were admitted meanwhile.
+   */
+  public synchronized void setFairQueueing(boolean enable) {
+    fairQueueing = enable;
+  }
+
+  /**
+   * Sets the history used by {@link #estimateResources}, or disables feedback-based estimates if
+   * null.
+   */
+  public synchronized void setResourceUsageHistory(ResourceUsageHistory history) {
+    resourceUsageHistory = history;
+  }
+
+  /**
+   * Returns the history of measured resource usage, or null if feedback-based estimates are
+   * disabled.
+   */
+  public synchronized ResourceUsageHistory getResourceUsageHistory() {
+    return resourceUsageHistory;
+  }
+
+  /**
+   * Returns the resources that should be acquired for the given action, whose own estimate is
+   * {@code staticEstimate}. Unless feedback-based estimates are enabled, this is the static
+   * estimate itself. The returned set must be used for both {@link #acquireResources} and
+   * {@link #releaseResources}.
+   */
+  public ResourceSet estimateResources(ActionMetadata owner, ResourceSet staticEstimate) {
+    ResourceUsageHistory history = getResourceUsageHistory();
+    if (history == null || staticEstimate == null || staticEstimate == ResourceSet.ZERO) {
+      return staticEstimate;
+    }
+    return history.estimate(owner.getMnemonic(), staticEstimate);
+  }
+
   /**
    * Enables or disables secondary resource allocation algorithm that will
    * periodically (when needed but at most once per 3 seconds) checks real
@@ -252,8 +317,9 @@ public class ResourceManager {
   public boolean tryAcquire(ActionMetadata owner, ResourceSet resources) {
     boolean acquired = false;
     synchronized (this) {
-      if (areResourcesAvailable(resources)) {
+      if (canOvertakeWaitingRequests() && areResourcesAvailable(resources)) {
         incrementResources(resources);
+        overtakeWaitingRequests();
         acquired = true;
       }
     }
@@ -335,12 +401,12 @@ public class ResourceManager {
   }
 
   private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
+    if (canOvertakeWaitingRequests() && areResourcesAvailable(resources)) {
       incrementResources(resources);
+      overtakeWaitingRequests();
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
+    Request request = new Request(resources);
     requestList.add(request);
 
     // If we use auto sensing and there has not been an update within last
@@ -353,7 +419,26 @@ public class ResourceManager {
           + "auto-sensing is disabled");
       setAutoSensing(false);
     }
-    return request.second;
+    return request.latch;
+  }
+
+  // Returns false iff fair queueing is enabled and a waiting request has been overtaken too often.
+  private boolean canOvertakeWaitingRequests() {
+    if (fairQueueing) {
+      for (Request request : requestList) {
+        if (request.overtakenCount >= MAX_OVERTAKEN_COUNT) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Called when a request was admitted ahead of all the waiting ones.
+  private void overtakeWaitingRequests() {
+    for (Request request : requestList) {
+      request.overtakenCount++;
+    }
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -386,13 +471,27 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    List<Request> skipped = new ArrayList<>();
+    Iterator<Request> iterator = requestList.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (areResourcesAvailable(request.first)) {
-        incrementResources(request.first);
-        request.second.countDown();
+      Request request = iterator.next();
+      if (areResourcesAvailable(request.resources)) {
+        incrementResources(request.resources);
+        request.latch.countDown();
         iterator.remove();
+        boolean starved = false;
+        for (Request earlier : skipped) {
+          earlier.overtakenCount++;
+          starved |= earlier.overtakenCount >= MAX_OVERTAKEN_COUNT;
+        }
+        if (fairQueueing && starved) {
+          return;
+        }
+      } else if (fairQueueing && request.overtakenCount >= MAX_OVERTAKEN_COUNT) {
+        // Keep the remaining resources for this request.
+        return;
+      } else {
+        skipped.add(request);
       }
     }
   }
@@ -0,0 +1,187 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the resources actually consumed by locally executed spawns, per action mnemonic,
+ * and derives resource estimates from them for the {@link ResourceManager}.
+ *
+ * <p>Observations are folded into exponential moving averages of the CPU usage (in cores) and of
+ * the peak resident memory (in MB) of the spawns of each mnemonic. Once a mnemonic has been
+ * observed often enough, its estimate replaces the static {@link ResourceSet} the action
+ * declared. The history is persisted in the output base so that it survives server restarts.
+ */
+@ThreadSafe
+public final class ResourceUsageHistory {
+
+  private static final Logger LOG = Logger.getLogger(ResourceUsageHistory.class.getName());
+
+  // Header of the persisted file; bump the version when changing the format.
+  private static final String HEADER = "resource_usage_history v1";
+
+  // Weight of a new observation in the moving averages.
+  private static final double DECAY = 0.25;
+
+  // Number of observations needed before the measured usage replaces the static estimate.
+  @VisibleForTesting static final int MIN_SAMPLES = 3;
+
+  // The peak memory of a spawn varies with its inputs, so the estimate keeps some headroom.
+  @VisibleForTesting static final double MEMORY_HEADROOM = 1.25;
+
+  // Spawns that mostly wait (e.g. on I/O) still occupy a job slot.
+  private static final double MIN_CPU = 0.1;
+
+  // Skylark rules can choose their own mnemonics, so only the most recently used ones are kept.
+  @VisibleForTesting static final int MAX_MNEMONICS = 1000;
+
+  private static final Splitter LINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ');
+
+  /**
+   * Moving averages of the resource usage of one mnemonic.
+   */
+  private static final class Usage {
+    double cpu;
+    double memoryMb;
+    int samples;
+
+    Usage(double cpu, double memoryMb, int samples) {
+      this.cpu = cpu;
+      this.memoryMb = memoryMb;
+      this.samples = samples;
+    }
+
+    void add(double cpu, double memoryMb) {
+      if (samples == 0) {
+        this.cpu = cpu;
+        this.memoryMb = memoryMb;
+      } else {
+        this.cpu += (cpu - this.cpu) * DECAY;
+        // Memory overcommit is what kills the machine, so react to peaks immediately.
+        this.memoryMb = Math.max(memoryMb, this.memoryMb + (memoryMb - this.memoryMb) * DECAY);
+      }
+      samples++;
+    }
+  }
+
+  private final Path file;
+  // In access order, so that the least recently used mnemonic is evicted first. It is also saved
+  // and loaded in that order.
+  private final Map<String, Usage> usageByMnemonic =
+      new LinkedHashMap<String, Usage>(16, 0.75f, /*accessOrder=*/true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Usage> eldest) {
+          return size() > MAX_MNEMONICS;
+        }
+      };
+
+  private ResourceUsageHistory(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Loads the history stored in the given file. Returns an empty history if the file does not
+   * exist or cannot be parsed.
+   */
+  public static ResourceUsageHistory load(Path file) {
+    ResourceUsageHistory history = new ResourceUsageHistory(file);
+    if (!file.exists()) {
+      return history;
+    }
+    try {
+      List<String> lines = LINE_SPLITTER.splitToList(
+          new String(FileSystemUtils.readContent(file), UTF_8));
+      if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+        LOG.warning("Ignoring resource usage history " + file + " in an unknown format");
+        return history;
+      }
+      for (String line : lines.subList(1, lines.size())) {
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() != 4) {
+          throw new NumberFormatException("malformed line '" + line + "'");
+        }
+        history.usageByMnemonic.put(fields.get(0), new Usage(Double.parseDouble(fields.get(1)),
+            Double.parseDouble(fields.get(2)), Integer.parseInt(fields.get(3))));
+      }
+    } catch (IOException | NumberFormatException e) {
+      LOG.warning("Failed to load resource usage history " + file + ": " + e.getMessage());
+      history.usageByMnemonic.clear();
+    }
+    return history;
+  }
+
+  /**
+   * Writes the history to the file it was loaded from.
+   */
+  public synchronized void save() throws IOException {
+    List<String> lines = new ArrayList<>(usageByMnemonic.size() + 1);
+    lines.add(HEADER);
+    for (Map.Entry<String, Usage> entry : usageByMnemonic.entrySet()) {
+      Usage usage = entry.getValue();
+      lines.add(entry.getKey() + " " + usage.cpu + " " + usage.memoryMb + " " + usage.samples);
+    }
+    FileSystemUtils.writeLinesAs(file, UTF_8, lines);
+  }
+
+  /**
+   * Records the resources consumed by a finished spawn.
+   *
+   * @param mnemonic the mnemonic of the action that ran the spawn
+   * @param cpuUsage the average number of cores the spawn used while it ran
+   * @param memoryMb the peak resident memory of the spawn in MB
+   */
+  public synchronized void record(String mnemonic, double cpuUsage, double memoryMb) {
+    Preconditions.checkArgument(mnemonic.indexOf(' ') < 0 && mnemonic.indexOf('\n') < 0,
+        "Invalid mnemonic '%s'", mnemonic);
+    if (cpuUsage < 0 || memoryMb < 0) {
+      return;
+    }
+    Usage usage = usageByMnemonic.get(mnemonic);
+    if (usage == null) {
+      usage = new Usage(0, 0, 0);
+      usageByMnemonic.put(mnemonic, usage);
+    }
+    usage.add(cpuUsage, memoryMb);
+  }
+
+  /**
+   * Returns the resources an action with the given mnemonic is expected to consume: the measured
+   * usage if the mnemonic was observed often enough, and the static estimate otherwise. The I/O
+   * and local test components are always taken from the static estimate.
+   */
+  public synchronized ResourceSet estimate(String mnemonic, ResourceSet staticEstimate) {
+    Usage usage = usageByMnemonic.get(mnemonic);
+    if (usage == null || usage.samples < MIN_SAMPLES) {
+      return staticEstimate;
+    }
+    return ResourceSet.create(usage.memoryMb * MEMORY_HEADROOM, Math.max(MIN_CPU, usage.cpu),
+        staticEstimate.getIoUsage(), staticEstimate.getLocalTestCount());
+  }
+}
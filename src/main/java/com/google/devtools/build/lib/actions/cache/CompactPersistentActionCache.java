@@ -56,7 +56,7 @@ public class CompactPersistentActionCache implements ActionCache {
   // cache records.
   private static final int VALIDATION_KEY = -10;
 
-  private static final int VERSION = 10;
+  static final int VERSION = 10;
 
   private final class ActionMap extends PersistentMap<Integer, byte[]> {
     private final Clock clock;
@@ -174,7 +174,7 @@ public class CompactPersistentActionCache implements ActionCache {
    * Rename corrupted files so they could be analyzed later. This would also ensure
    * that next initialization attempt will create empty cache.
    */
-  private static void renameCorruptedFiles(Path cacheRoot) {
+  static void renameCorruptedFiles(Path cacheRoot) {
     try {
       for (Path path : UnixGlob.forPath(cacheRoot).addPattern("action_*_v" + VERSION + ".*")
           .glob()) {
@@ -193,24 +193,32 @@ public class CompactPersistentActionCache implements ActionCache {
    * @return false iff indexer contains no data or integrity check has failed.
    */
   private static String validateIntegrity(int indexerSize, byte[] validationRecord) {
-    if (indexerSize == 0) {
-      return "empty index";
-    }
     if (validationRecord == null) {
-      return "no validation record";
+      return indexerSize == 0 ? "empty index" : "no validation record";
     }
     try {
-      int validationSize = ByteBuffer.wrap(validationRecord).asIntBuffer().get();
-      if (validationSize <= indexerSize) {
-        return null;
-      } else {
-        return String.format("Validation mismatch: validation entry %d is too large " +
-                             "compared to index size %d", validationSize, indexerSize);
-      }
+      return validateIntegrity(indexerSize, ByteBuffer.wrap(validationRecord).asIntBuffer().get());
     } catch (BufferUnderflowException e) {
       return e.getMessage();
     }
+  }
 
+  /**
+   * Checks that an indexer of the given size contains every index that existed when
+   * {@code validationSize} was recorded.
+   *
+   * @return null if the check passed, or a description of the failure.
+   */
+  static String validateIntegrity(int indexerSize, int validationSize) {
+    if (indexerSize == 0) {
+      return "empty index";
+    }
+    if (validationSize <= indexerSize) {
+      return null;
+    } else {
+      return String.format("Validation mismatch: validation entry %d is too large " +
+                           "compared to index size %d", validationSize, indexerSize);
+    }
   }
 
   public static Path cacheFile(Path cacheRoot) {
@@ -327,7 +335,7 @@ public class CompactPersistentActionCache implements ActionCache {
   /**
    * @return action data encoded as a byte[] array.
    */
-  private static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
+  static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
     Preconditions.checkState(!entry.isCorrupted());
 
     try {
@@ -366,9 +374,15 @@ public class CompactPersistentActionCache implements ActionCache {
    * dependency checker.
    */
   private static ActionCache.Entry decode(StringIndexer indexer, byte[] data) throws IOException {
-    try {
-      ByteBuffer source = ByteBuffer.wrap(data);
+    return decode(indexer, ByteBuffer.wrap(data));
+  }
 
+  /**
+   * Same as {@link #decode(StringIndexer, byte[])}, but reads the encoded entry from the
+   * remaining bytes of {@code source}.
+   */
+  static ActionCache.Entry decode(StringIndexer indexer, ByteBuffer source) throws IOException {
+    try {
       byte[] actionKeyBytes = new byte[VarInt.getVarInt(source)];
       source.get(actionKeyBytes);
       String actionKey = new String(actionKeyBytes, ISO_8859_1);
@@ -24,20 +24,58 @@ import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
 
 /**
- * Utility class for getting md5 digests of files.
+ * Utility class for getting digests of files.
  */
 public class DigestUtils {
-  // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
+  // Files up to this size are digested without taking part of the budget below, since they
+  // are not likely to introduce significant delays (at worst they will result in two extra
+  // disk seeks by interrupting other reads).
+  private static final long SMALL_FILE_SIZE = 4096;
+
+  // The budget for concurrent digests of larger files is counted in units of this many bytes.
+  private static final long BUDGET_UNIT = 1 << 20;
+  private static final int DEFAULT_BUDGET_UNITS_PER_PROCESSOR = 64;
+  // Even on machines with many processors, the disks only sustain so many concurrent reads.
+  private static final int MAX_DEFAULT_BUDGET_UNITS = 512;
+
+  // Bounds the total size of the files whose digests are being computed at the same time. A
+  // digest takes as many units as its file has, up to the whole budget, so many medium-sized
+  // files can be digested in parallel while a huge one is read alone. The semaphore is fair so
+  // that large files are not starved by a stream of small ones.
+  private static volatile Semaphore digestBudget;
+  private static volatile int digestBudgetUnits;
+
+  static {
+    setDigestBudget(Math.min(MAX_DEFAULT_BUDGET_UNITS,
+        Runtime.getRuntime().availableProcessors() * DEFAULT_BUDGET_UNITS_PER_PROCESSOR)
+        * BUDGET_UNIT);
+  }
 
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
+  /**
+   * Sets the total size of the files whose digests may be computed concurrently when the file
+   * system cannot provide them cheaply. Digests that are already running are not affected.
+   */
+  public static synchronized void setDigestBudget(long bytes) {
+    Preconditions.checkArgument(bytes > 0, bytes);
+    int units = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / BUDGET_UNIT));
+    digestBudget = new Semaphore(units, /*fair=*/true);
+    digestBudgetUnits = units;
+  }
+
+  /** Returns the budget set by {@link #setDigestBudget}, rounded to whole units. */
+  public static long getDigestBudget() {
+    return digestBudgetUnits * BUDGET_UNIT;
+  }
+
   /**
    * Returns true iff using MD5 digests is appropriate for an artifact.
    *
@@ -51,78 +89,79 @@ public class DigestUtils {
   }
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
-   * calculations and underlying file system cannot provide it via extended
-   * attribute.
+   * Obtain file's digest after taking its share of the digest budget, ensuring that the system
+   * is not overloaded in case when multiple threads are requesting digest calculations and
+   * underlying file system cannot provide them via extended attribute.
    */
-  private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
+  private static byte[] getDigestWithinBudget(Path path, long fileSize) throws IOException {
+    Semaphore budget = digestBudget;
+    int units = (int) Math.min(digestBudgetUnits, (fileSize + BUDGET_UNIT - 1) / BUDGET_UNIT);
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    budget.acquireUninterruptibly(units);
+    try {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
       return getDigestInternal(path);
+    } finally {
+      budget.release(units);
     }
   }
 
   private static byte[] getDigestInternal(Path path) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    byte[] md5bin = path.getMD5Digest();
+    byte[] digest = path.getDigest();
 
     long millis = (BlazeClock.nanoTime() - startTime) / 1000000;
     if (millis > 5000L) {
       System.err.println("Slow read: a " + path.getFileSize() + "-byte read from " + path
           + " took " +  millis + "ms.");
     }
-    return md5bin;
+    return digest;
   }
 
-  private static boolean binaryDigestWellFormed(byte[] digest) {
+  private static boolean binaryDigestWellFormed(Path path, byte[] digest) {
     Preconditions.checkNotNull(digest);
-    return digest.length == 16;
+    return digest.length == path.getFileSystem().getDigestFunction().getDigestLength();
   }
 
   /**
-   * Returns the the fast md5 digest of the file, or null if not available.
+   * Returns the fast digest of the file, or null if not available or not computed with the
+   * digest function of its file system.
    */
   @Nullable
   public static byte[] getFastDigest(Path path) throws IOException {
-    return path.getFastDigestFunctionType().equals("MD5") ? path.getFastDigest() : null;
+    return Objects.equals(path.getFastDigestFunctionType(),
+        path.getFileSystem().getDigestFunction().getName()) ? path.getFastDigest() : null;
   }
 
   /**
-   * Get the md5 digest of {@code path}, using a constant-time xattr call if the filesystem supports
-   * it, and calculating the digest manually otherwise.
+   * Get the digest of {@code path}, using a constant-time xattr call if the filesystem supports
+   * it, and calculating the digest manually otherwise. The digest is computed with the digest
+   * function of the file system of {@code path}.
    *
    * @param path Path of the file.
-   * @param fileSize size of the file. Used to determine if digest calculation should be done
-   * serially or in parallel. Files larger than a certain threshold will be read serially, in order
-   * to avoid excessive disk seeks.
+   * @param fileSize size of the file. Used to determine how much of the digest budget the
+   * calculation takes. Files larger than the whole budget will be read alone, in order to avoid
+   * excessive disk seeks.
    */
   public static byte[] getDigestOrFail(Path path, long fileSize) throws IOException {
     // TODO(bazel-team): the action cache currently only works with md5 digests but it ought to
     // work with any opaque digest.
-    byte[] md5bin = null;
-    if (Objects.equals(path.getFastDigestFunctionType(), "MD5")) {
-      md5bin = getFastDigest(path);
-    }
-    if (md5bin != null && !binaryDigestWellFormed(md5bin)) {
-      // Fail-soft in cases where md5bin is non-null, but not a valid digest.
+    byte[] digest = getFastDigest(path);
+    if (digest != null && !binaryDigestWellFormed(path, digest)) {
+      // Fail-soft in cases where digest is non-null, but not a valid digest.
       String msg = String.format("Malformed digest '%s' for file %s",
-                                 BaseEncoding.base16().lowerCase().encode(md5bin),
+                                 BaseEncoding.base16().lowerCase().encode(digest),
                                  path);
       LoggingUtil.logToRemote(Level.SEVERE, msg, new IllegalStateException(msg));
-      md5bin = null;
+      digest = null;
     }
-    if (md5bin != null) {
-      return md5bin;
-    } else if (fileSize > 4096) {
+    if (digest != null) {
+      return digest;
+    } else if (fileSize > SMALL_FILE_SIZE) {
       // We'll have to read file content in order to calculate the digest. In that case
-      // it would be beneficial to serialize those calculations since there is a high
-      // probability that MD5 will be requested for multiple output files simultaneously.
-      // Exception is made for small (<=4K) files since they will not likely to introduce
-      // significant delays (at worst they will result in two extra disk seeks by
-      // interrupting other reads).
-      return getDigestInExclusiveMode(path);
+      // it would be beneficial to bound those calculations since there is a high
+      // probability that digests will be requested for multiple output files simultaneously.
+      return getDigestWithinBudget(path, fileSize);
     } else {
       return getDigestInternal(path);
     }
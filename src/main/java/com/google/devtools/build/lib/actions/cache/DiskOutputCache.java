@@ -0,0 +1,315 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Ordering;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressable on-disk cache of action outputs.
+ *
+ * <p>Output files are stored as blobs named after their digest in the {@code cas} directory.
+ * For every cached action, a small entry in the {@code ac} directory maps the exec paths of the
+ * action's outputs to their digests. Entries are keyed by a fingerprint of the action key and the
+ * digests of all inputs (see {@link #computeKey}), so unlike the {@link ActionCache} the cache does
+ * not depend on the state of a particular output tree and can be shared between output bases.
+ *
+ * <p>All files are written to a temporary name and renamed into place, so several Blaze servers
+ * can use the same cache directory concurrently. The cache is bounded in size; the least recently
+ * used entries, as recorded by the modification times of their entry files, are evicted first,
+ * together with the blobs no remaining entry refers to.
+ *
+ * <p>Outputs are copied in and out of the cache rather than hard-linked. A link would share the
+ * inode of the blob with the output, so a later chmod or in-place write of the output would
+ * silently change the cached contents for every other user of the blob.
+ */
+@ThreadSafe
+public final class DiskOutputCache {
+  /** After eviction the cache is shrunk to this fraction of its maximum size. */
+  private static final double EVICTION_TARGET = 0.9;
+  private static final String TEMP_INFIX = ".tmp.";
+  /** Stores beyond this many waiting ones are dropped, which only causes later cache misses. */
+  private static final int MAX_PENDING_STORES = 1000;
+
+  private static final Logger LOG = Logger.getLogger(DiskOutputCache.class.getName());
+
+  private final Path casDir;
+  private final Path acDir;
+  private final long maxSizeBytes;
+  private final AtomicLong bytesAddedSinceEviction = new AtomicLong(0);
+  private final AtomicInteger tempFileCounter = new AtomicInteger(0);
+  private final ListeningExecutorService storePool;
+
+  public DiskOutputCache(Path cacheRoot, long maxSizeBytes) throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0);
+    this.casDir = cacheRoot.getChild("cas");
+    this.acDir = cacheRoot.getChild("ac");
+    this.maxSizeBytes = maxSizeBytes;
+    FileSystemUtils.createDirectoryAndParents(casDir);
+    FileSystemUtils.createDirectoryAndParents(acDir);
+    // Copying into the cache is I/O bound, so a couple of threads keep up with many actions. The
+    // threads time out when idle, so caches of past builds do not keep them alive.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 3L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_PENDING_STORES),
+        new ThreadFactoryBuilder().setNameFormat("DiskOutputCache store %d").setDaemon(true)
+            .build(),
+        new ThreadPoolExecutor.DiscardPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    this.storePool = MoreExecutors.listeningDecorator(pool);
+  }
+
+  /**
+   * Computes the cache key of an action from its action key and the metadata of its inputs,
+   * indexed by exec path. Returns null if one of the inputs is not identified by its contents
+   * (e.g. a directory, whose metadata is its mtime), because such actions can't be cached by
+   * content. Empty files, which also only carry an mtime, must be passed as a {@link Metadata}
+   * holding {@link #getEmptyFileDigest}.
+   */
+  @Nullable
+  public static String computeKey(String actionKey, Map<String, Metadata> inputMetadata) {
+    Fingerprint fp = new Fingerprint();
+    fp.addString(actionKey);
+    for (Map.Entry<String, Metadata> input : new TreeMap<>(inputMetadata).entrySet()) {
+      Metadata metadata = input.getValue();
+      fp.addString(input.getKey());
+      if (metadata == Metadata.CONSTANT_METADATA) {
+        fp.addInt(0);
+      } else if (metadata != null && metadata.digest != null) {
+        fp.addBytes(metadata.digest);
+      } else {
+        return null;
+      }
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  /**
+   * Returns the digest of an empty file on the file system of {@code path}. The metadata of
+   * empty files does not include a digest, so callers use this one instead.
+   */
+  public static byte[] getEmptyFileDigest(Path path) {
+    return path.getFileSystem().getDigestFunction().getEmptyDigest();
+  }
+
+  /**
+   * Restores the outputs stored under {@code key} to the given paths, indexed by exec path, by
+   * copying the cached blobs.
+   *
+   * @return true iff the cache had an entry for {@code key} with exactly these outputs and all of
+   *     them were restored
+   */
+  public boolean get(String key, Map<String, Path> outputs) throws IOException {
+    Path entryFile = acDir.getChild(key);
+    if (!entryFile.exists()) {
+      return false;
+    }
+    Map<String, String> digests = readEntry(entryFile);
+    if (!digests.keySet().equals(outputs.keySet())) {
+      return false;
+    }
+    List<Pair<Path, Path>> toRestore = new ArrayList<>();
+    for (Map.Entry<String, Path> output : outputs.entrySet()) {
+      Path blob = casDir.getChild(digests.get(output.getKey()));
+      if (!blob.isFile(Symlinks.NOFOLLOW)) {
+        // Evicted in the meantime.
+        return false;
+      }
+      toRestore.add(Pair.of(blob, output.getValue()));
+    }
+    for (Pair<Path, Path> restore : toRestore) {
+      FileSystemUtils.copyFile(restore.first, restore.second);
+    }
+    // Mark the entry, and with it its blobs, as recently used.
+    entryFile.setLastModifiedTime(-1L);
+    return true;
+  }
+
+  /**
+   * Like {@link #put}, but stores the outputs on a background thread so that the caller does not
+   * wait for the copy. Failures are logged and only cause later cache misses. If too many stores
+   * are pending, this one is dropped and the returned future never completes.
+   */
+  public ListenableFuture<?> putInBackground(final String key, final Map<String, Path> outputs,
+      final Map<String, byte[]> digests) {
+    return storePool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        try {
+          put(key, outputs, digests);
+        } catch (IOException e) {
+          LOG.warning("Failed to store outputs in the output cache: " + e.getMessage());
+          throw e;
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Stores the given outputs, indexed by exec path, under {@code key}. {@code digests} must
+   * contain the digest of every output, computed with the digest function of its file system.
+   * An output whose contents no longer match its digest is not stored, and neither is the entry.
+   */
+  public void put(String key, Map<String, Path> outputs, Map<String, byte[]> digests)
+      throws IOException {
+    Preconditions.checkArgument(outputs.keySet().equals(digests.keySet()));
+    StringBuilder entry = new StringBuilder();
+    for (Map.Entry<String, Path> output : new TreeMap<>(outputs).entrySet()) {
+      byte[] expectedDigest = digests.get(output.getKey());
+      String digest = BaseEncoding.base16().lowerCase().encode(expectedDigest);
+      Path blob = casDir.getChild(digest);
+      if (!blob.exists()) {
+        Path temp = tempFile(blob);
+        FileSystemUtils.copyFile(output.getValue(), temp);
+        // The output may have been rewritten since its digest was taken, e.g. by the next build.
+        if (!Arrays.equals(expectedDigest, temp.getDigest())) {
+          temp.delete();
+          throw new IOException(output.getValue() + " changed while it was being stored");
+        }
+        temp.renameTo(blob);
+        bytesAddedSinceEviction.addAndGet(blob.getFileSize());
+      }
+      entry.append(output.getKey()).append('\t').append(digest).append('\n');
+    }
+    Path entryFile = acDir.getChild(key);
+    Path temp = tempFile(entryFile);
+    FileSystemUtils.writeContentAsLatin1(temp, entry.toString());
+    temp.renameTo(entryFile);
+
+    if (bytesAddedSinceEviction.get() > maxSizeBytes * (1 - EVICTION_TARGET)) {
+      evict();
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries, and the blobs that only they referred to, until the
+   * cache is below its target size. Blobs that no entry refers to are deleted first.
+   */
+  @VisibleForTesting
+  synchronized void evict() throws IOException {
+    bytesAddedSinceEviction.set(0);
+    long totalSize = 0;
+    Map<String, Long> blobSizes = new HashMap<>();
+    for (Path blob : casDir.getDirectoryEntries()) {
+      if (blob.getBaseName().contains(TEMP_INFIX)) {
+        // Possibly still being written.
+        continue;
+      }
+      long size = blob.getFileSize(Symlinks.NOFOLLOW);
+      blobSizes.put(blob.getBaseName(), size);
+      totalSize += size;
+    }
+    List<Pair<Long, Path>> entries = new ArrayList<>();
+    Multiset<String> references = HashMultiset.create();
+    Map<Path, Collection<String>> entryDigests = new HashMap<>();
+    for (Path entryFile : acDir.getDirectoryEntries()) {
+      if (entryFile.getBaseName().contains(TEMP_INFIX)) {
+        continue;
+      }
+      totalSize += entryFile.getFileSize(Symlinks.NOFOLLOW);
+      entries.add(Pair.of(entryFile.getLastModifiedTime(Symlinks.NOFOLLOW), entryFile));
+      Collection<String> digests;
+      try {
+        digests = readEntry(entryFile).values();
+      } catch (IOException e) {
+        // Corrupt or deleted concurrently; evict it first.
+        digests = ImmutableList.of();
+        entries.set(entries.size() - 1, Pair.of(Long.MIN_VALUE, entryFile));
+      }
+      references.addAll(digests);
+      entryDigests.put(entryFile, digests);
+    }
+    if (totalSize <= maxSizeBytes) {
+      return;
+    }
+    long targetSize = (long) (maxSizeBytes * EVICTION_TARGET);
+    for (Map.Entry<String, Long> blob : blobSizes.entrySet()) {
+      if (totalSize <= targetSize) {
+        return;
+      }
+      if (!references.contains(blob.getKey()) && casDir.getChild(blob.getKey()).delete()) {
+        totalSize -= blob.getValue();
+      }
+    }
+    for (Pair<Long, Path> entry : Ordering.<Long>natural()
+        .onResultOf(Pair.<Long, Path>firstFunction()).sortedCopy(entries)) {
+      if (totalSize <= targetSize) {
+        return;
+      }
+      long size = entry.second.getFileSize(Symlinks.NOFOLLOW);
+      if (!entry.second.delete()) {
+        continue;
+      }
+      totalSize -= size;
+      for (String digest : entryDigests.get(entry.second)) {
+        if (references.remove(digest, 1) == 1 && blobSizes.containsKey(digest)
+            && casDir.getChild(digest).delete()) {
+          totalSize -= blobSizes.get(digest);
+        }
+      }
+    }
+  }
+
+  private Path tempFile(Path file) {
+    return file.getParentDirectory().getChild(
+        file.getBaseName() + TEMP_INFIX + Thread.currentThread().getId() + "."
+            + tempFileCounter.incrementAndGet());
+  }
+
+  private static Map<String, String> readEntry(Path entryFile) throws IOException {
+    ImmutableMap.Builder<String, String> digests = ImmutableMap.builder();
+    for (String line : FileSystemUtils.iterateLinesAsLatin1(entryFile)) {
+      int tab = line.indexOf('\t');
+      if (tab < 0) {
+        throw new IOException("Corrupt output cache entry " + entryFile);
+      }
+      digests.put(line.substring(0, tab), line.substring(tab + 1));
+    }
+    return digests.build();
+  }
+}
@@ -0,0 +1,493 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An implementation of the ActionCache interface that keeps its entries in a memory-mapped,
+ * append-only log file. It uses the same entry encoding as
+ * {@link CompactPersistentActionCache}, and a {@link MappedStringIndexer} for file names.
+ *
+ * <p>Entries stay in the encoded form in the mapped file and are decoded on each lookup, so
+ * neither the entries nor the file names count against the Java heap. Puts and removals append
+ * a record to the log; the position of the live record for each action is kept in an off-heap
+ * table indexed by the action key's index in the string indexer. Once more than half of the log
+ * is overwritten or removed records, it is compacted on a background thread.
+ *
+ * <p>The log starts with a fixed-size header holding the length of the log and the size of the
+ * string indexer as of the last {@link #save}; records past that length are ignored on load.
+ * Each record is the action key index and the length of the encoded entry, followed by the
+ * entry itself. A length of {@link #REMOVED} marks a removal.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different cache root
+public class MappedActionCache implements ActionCache {
+  private static final Logger LOG = Logger.getLogger(MappedActionCache.class.getName());
+
+  private static final int MAGIC = 0x41434c47; // "ACLG"
+  private static final int VERSION = CompactPersistentActionCache.VERSION;
+
+  // Header: magic, version, log length and indexer size at the last save.
+  private static final int LENGTH_OFFSET = 8;
+  private static final int VALIDATION_OFFSET = 12;
+  private static final int HEADER_SIZE = 16;
+
+  // Each record starts with the action key index and the length of the encoded entry.
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int REMOVED = -1;
+
+  private static final int INITIAL_MAPPING_SIZE = 4 << 20;
+  private static final int INITIAL_INDEX_SIZE = 1024;
+  private static final int MIN_COMPACTION_GARBAGE = 1 << 20;
+
+  private final Path logFile;
+  private final MappedStringIndexer indexer;
+
+  // The mapping of logFile; it is replaced when it has to grow and after compaction. Readers
+  // only ever read records before "end", which never change once written, so they may keep
+  // using a buffer after it was replaced.
+  private MappedByteBuffer log;
+  private int end;
+  // Off-heap table from action key index to the offset of its record in the log, or 0 if
+  // there is none.
+  private IntBuffer offsets;
+  // Total size of the records referenced from offsets.
+  private long liveBytes;
+  private boolean compactionPending;
+
+  public MappedActionCache(Path cacheRoot) throws IOException {
+    this.logFile = logFile(cacheRoot);
+    try {
+      indexer = MappedStringIndexer.newMappedStringIndexer(
+          cacheRoot.getChild("filename_strings_v" + VERSION + ".blaze"),
+          cacheRoot.getChild("filename_table_v" + VERSION + ".blaze"));
+    } catch (IOException e) {
+      CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+
+    offsets = ByteBuffer.allocateDirect(INITIAL_INDEX_SIZE * 4).asIntBuffer();
+    try {
+      load();
+    } catch (IOException e) {
+      CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+
+    // Validate referential integrity between the log and the indexer.
+    if (liveBytes > 0) {
+      String integrityError = CompactPersistentActionCache.validateIntegrity(
+          indexer.size(), log.getInt(VALIDATION_OFFSET));
+      if (integrityError != null) {
+        CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+        throw new IOException("Failed action cache referential integrity check: " + integrityError);
+      }
+    }
+  }
+
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  /**
+   * Maps the log file and rebuilds the offset table from the records it contains.
+   */
+  private void load() throws IOException {
+    if (!logFile.exists()) {
+      FileSystemUtils.createDirectoryAndParents(logFile.getParentDirectory());
+      log = map(logFile, INITIAL_MAPPING_SIZE);
+      log.putInt(0, MAGIC);
+      log.putInt(4, VERSION);
+      end = HEADER_SIZE;
+      writeHeader();
+      return;
+    }
+
+    long fileSize = logFile.getFileSize();
+    if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+      throw new IOException("invalid log file size " + fileSize);
+    }
+    log = map(logFile, Math.max((int) fileSize, INITIAL_MAPPING_SIZE));
+    if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION) {
+      throw new IOException("incompatible log file header");
+    }
+    int length = log.getInt(LENGTH_OFFSET);
+    if (length < HEADER_SIZE || length > fileSize) {
+      throw new IOException("invalid log length " + length);
+    }
+
+    end = HEADER_SIZE;
+    while (end < length) {
+      if (length - end < RECORD_HEADER_SIZE) {
+        throw new IOException("truncated record at offset " + end);
+      }
+      int index = log.getInt(end);
+      int size = log.getInt(end + 4);
+      if (index < 0 || size < REMOVED || size > length - end - RECORD_HEADER_SIZE) {
+        throw new IOException("invalid record at offset " + end);
+      }
+      if (size == REMOVED) {
+        setOffset(index, 0);
+        end += RECORD_HEADER_SIZE;
+      } else {
+        setOffset(index, end);
+        end += RECORD_HEADER_SIZE + size;
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    // The mapping stays valid after the file is closed.
+    try (RandomAccessFile raf = new RandomAccessFile(file.getPathFile(), "rw")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private void writeHeader() {
+    log.putInt(LENGTH_OFFSET, end);
+    log.putInt(VALIDATION_OFFSET, indexer.size());
+  }
+
+  private int recordSize(int offset) {
+    int size = log.getInt(offset + 4);
+    return RECORD_HEADER_SIZE + (size == REMOVED ? 0 : size);
+  }
+
+  private int getOffset(int index) {
+    return index >= 0 && index < offsets.capacity() ? offsets.get(index) : 0;
+  }
+
+  /**
+   * Points the given action key index to the record at {@code offset}, or to no record if
+   * {@code offset} is 0, and keeps {@link #liveBytes} up to date.
+   */
+  private void setOffset(int index, int offset) {
+    if (index >= offsets.capacity()) {
+      if (offset == 0) {
+        return;
+      }
+      IntBuffer newOffsets = ByteBuffer.allocateDirect(
+          Math.max(index + 1, offsets.capacity() * 2) * 4).asIntBuffer();
+      offsets.rewind();
+      newOffsets.put(offsets);
+      offsets = newOffsets;
+    }
+    int oldOffset = offsets.get(index);
+    if (oldOffset != 0) {
+      liveBytes -= recordSize(oldOffset);
+    }
+    offsets.put(index, offset);
+    if (offset != 0) {
+      liveBytes += recordSize(offset);
+    }
+  }
+
+  /**
+   * Appends a record to the log, growing the mapping as needed.
+   *
+   * @return the offset of the new record, or 0 if the log has reached its maximum size.
+   */
+  private int append(int index, byte[] content) throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + (content == null ? 0 : content.length);
+    if (end > Integer.MAX_VALUE - recordSize) {
+      return 0;
+    }
+    if (end + recordSize > log.capacity()) {
+      long newCapacity = Math.max((long) log.capacity() * 2, (long) end + recordSize);
+      log = map(logFile, (int) Math.min(newCapacity, Integer.MAX_VALUE));
+    }
+    int offset = end;
+    log.putInt(offset, index);
+    log.putInt(offset + 4, content == null ? REMOVED : content.length);
+    if (content != null) {
+      ByteBuffer target = log.duplicate();
+      target.position(offset + RECORD_HEADER_SIZE);
+      target.put(content);
+    }
+    end += recordSize;
+    return offset;
+  }
+
+  @Override
+  public ActionCache.Entry createEntry(String key) {
+    return new ActionCache.Entry(key);
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return null;
+    }
+    ByteBuffer record;
+    synchronized (this) {
+      int offset = getOffset(index);
+      if (offset == 0) {
+        return null;
+      }
+      record = log.duplicate();
+      record.position(offset + RECORD_HEADER_SIZE);
+      record.limit(offset + recordSize(offset));
+    }
+    try {
+      return CompactPersistentActionCache.decode(indexer, record);
+    } catch (IOException e) {
+      // return entry marked as corrupted.
+      return CompactPersistentActionCache.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int index = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+    synchronized (this) {
+      int offset;
+      try {
+        offset = append(index, content);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to grow action cache log", e);
+        offset = 0;
+      }
+      if (offset == 0) {
+        // The entry cannot be stored, so at least make sure an older one is not returned.
+        setOffset(index, 0);
+        return;
+      }
+      setOffset(index, offset);
+      maybeScheduleCompaction();
+    }
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    int index = indexer.getIndex(key);
+    if (getOffset(index) == 0) {
+      return;
+    }
+    try {
+      append(index, null);
+    } catch (IOException e) {
+      // The removal is still effective until the server restarts.
+      LOG.log(Level.WARNING, "Failed to grow action cache log", e);
+    }
+    setOffset(index, 0);
+    maybeScheduleCompaction();
+  }
+
+  @Override
+  public synchronized long save() throws IOException {
+    // The indexer must be on disk before the records that refer to it.
+    long indexSize = indexer.save();
+    writeHeader();
+    log.force();
+    return indexSize + end;
+  }
+
+  private void maybeScheduleCompaction() {
+    long garbage = end - HEADER_SIZE - liveBytes;
+    if (compactionPending || garbage < MIN_COMPACTION_GARBAGE || garbage < liveBytes) {
+      return;
+    }
+    compactionPending = true;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to compact action cache log", e);
+        }
+      }
+    }, "action-cache-compaction");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Rewrites the log so that it only contains live records. Most of the copying happens
+   * without holding the lock; records added or removed meanwhile are reconciled at the end.
+   */
+  @VisibleForTesting
+  void compact() throws IOException {
+    MappedByteBuffer oldLog;
+    int[] oldOffsets;
+    synchronized (this) {
+      compactionPending = true;
+      oldLog = log;
+      oldOffsets = new int[offsets.capacity()];
+      offsets.rewind();
+      offsets.get(oldOffsets);
+    }
+
+    Path tmpFile = logFile.getParentDirectory().getChild(logFile.getBaseName() + ".tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile.getPathFile(), "rw");
+        FileChannel channel = raf.getChannel()) {
+      raf.setLength(0);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION);
+      header.rewind();
+      channel.write(header, 0);
+
+      long newEnd = HEADER_SIZE;
+      int[] newOffsets = new int[oldOffsets.length];
+      for (int index = 0; index < oldOffsets.length; index++) {
+        if (oldOffsets[index] != 0) {
+          newOffsets[index] = (int) newEnd;
+          newEnd += copyRecord(oldLog, oldOffsets[index], channel, newEnd);
+        }
+      }
+
+      synchronized (this) {
+        // Pick up whatever changed while the lock was released.
+        IntBuffer currentOffsets = ByteBuffer.allocateDirect(offsets.capacity() * 4).asIntBuffer();
+        long currentLiveBytes = 0;
+        for (int index = 0; index < offsets.capacity(); index++) {
+          int offset = offsets.get(index);
+          if (offset == 0) {
+            continue;
+          }
+          if (index >= oldOffsets.length || offset != oldOffsets[index]) {
+            newOffsets = ensureLength(newOffsets, index + 1);
+            newOffsets[index] = (int) newEnd;
+            newEnd += copyRecord(log, offset, channel, newEnd);
+          }
+          if (newEnd > Integer.MAX_VALUE) {
+            throw new IOException("compacted log is too large");
+          }
+          currentOffsets.put(index, newOffsets[index]);
+          currentLiveBytes += recordSize(offset);
+        }
+        // The compacted log becomes the saved state, so as in save() the indexer must be on disk
+        // before the header that records its size.
+        indexer.save();
+        header.clear();
+        header.putInt((int) newEnd).putInt(indexer.size());
+        header.flip();
+        channel.write(header, LENGTH_OFFSET);
+        channel.force(false);
+
+        tmpFile.renameTo(logFile);
+        log = map(logFile, (int) Math.min(Math.max(newEnd * 2, INITIAL_MAPPING_SIZE),
+            Integer.MAX_VALUE));
+        end = (int) newEnd;
+        offsets = currentOffsets;
+        liveBytes = currentLiveBytes;
+      }
+    } finally {
+      synchronized (this) {
+        compactionPending = false;
+      }
+      tmpFile.delete();
+    }
+  }
+
+  private int copyRecord(ByteBuffer source, int offset, FileChannel target, long position)
+      throws IOException {
+    int size = RECORD_HEADER_SIZE + source.getInt(offset + 4);
+    ByteBuffer record = source.duplicate();
+    record.position(offset);
+    record.limit(offset + size);
+    while (record.hasRemaining()) {
+      position += target.write(record, position);
+    }
+    return size;
+  }
+
+  private static int[] ensureLength(int[] array, int length) {
+    if (array.length >= length) {
+      return array;
+    }
+    int[] result = new int[Math.max(length, array.length * 2)];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  @VisibleForTesting
+  synchronized long getLogSize() {
+    return end;
+  }
+
+  private int size() {
+    int count = 0;
+    for (int index = 0; index < offsets.capacity(); index++) {
+      if (offsets.get(index) != 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private String describe(int index) {
+    int offset = offsets.get(index);
+    ByteBuffer record = log.duplicate();
+    record.position(offset + RECORD_HEADER_SIZE);
+    record.limit(offset + recordSize(offset));
+    String content;
+    try {
+      content = CompactPersistentActionCache.decode(indexer, record).toString();
+    } catch (IOException e) {
+      content = e + "\n";
+    }
+    return content + "  packed_len = " + (recordSize(offset) - RECORD_HEADER_SIZE) + "\n";
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    int size = size();
+    builder.append("Action cache (" + size + " records):\n");
+    int limit = size > 1000 ? 10 : size;
+    int ct = 0;
+    for (int index = 0; index < offsets.capacity(); index++) {
+      if (offsets.get(index) == 0) { continue; }
+      builder.append("-> ").append(indexer.getStringForIndex(index)).append("\n")
+          .append(describe(index));
+      if (++ct > limit) {
+        builder.append("...");
+        break;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Dumps action cache content.
+   */
+  @Override
+  public synchronized void dump(PrintStream out) {
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    out.println("Action cache (" + size() + " records):\n");
+    for (int index = 0; index < offsets.capacity(); index++) {
+      if (offsets.get(index) == 0) { continue; }
+      out.println(index + ", " + indexer.getStringForIndex(index) + ":\n" + describe(index));
+    }
+  }
+}
@@ -0,0 +1,378 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.util.StringIndexer;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A persistent {@link StringIndexer} whose data lives in two memory-mapped files, so that
+ * loading it costs no more than mapping the files and its strings are not on the Java heap.
+ *
+ * <p>The string file holds the UTF-8 bytes of each string, prefixed by their length, in index
+ * order. The index file holds an open-addressing hash table from string hash to index + 1, and
+ * the offset of each string in the string file. The table is at most half full; when it gets
+ * fuller the index file is rebuilt with twice the capacity.
+ *
+ * <p>Lookups take a shared lock and additions an exclusive one. Unlike
+ * {@link PersistentStringIndexer}, no mappings are created for prefixes of added strings.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different data files.
+final class MappedStringIndexer implements StringIndexer {
+  private static final int STRINGS_MAGIC = 0x53545253; // "STRS"
+  private static final int INDEX_MAGIC = 0x53494458; // "SIDX"
+  private static final int VERSION = 1;
+
+  // String file header: magic, version, end of the string data.
+  private static final int STRINGS_END_OFFSET = 8;
+  private static final int STRINGS_HEADER_SIZE = 12;
+
+  // Index file header: magic, version, number of strings, hash table capacity.
+  private static final int COUNT_OFFSET = 8;
+  private static final int CAPACITY_OFFSET = 12;
+  private static final int INDEX_HEADER_SIZE = 16;
+
+  private static final int INITIAL_STRINGS_SIZE = 1 << 20;
+  private static final int INITIAL_CAPACITY = 1 << 14;
+
+  private final Path stringsFile;
+  private final Path indexFile;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private MappedByteBuffer strings;
+  private MappedByteBuffer index;
+  // Always a power of two. The table is followed by capacity / 2 string offsets.
+  private int capacity;
+  private volatile int count;
+
+  private MappedStringIndexer(Path stringsFile, Path indexFile) {
+    this.stringsFile = stringsFile;
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Maps the given files, creating them if needed.
+   *
+   * @throws IOException if the files cannot be mapped or are inconsistent.
+   */
+  static MappedStringIndexer newMappedStringIndexer(Path stringsFile, Path indexFile)
+      throws IOException {
+    MappedStringIndexer indexer = new MappedStringIndexer(stringsFile, indexFile);
+    if (stringsFile.exists() && indexFile.exists()) {
+      indexer.load();
+    } else {
+      FileSystemUtils.createDirectoryAndParents(stringsFile.getParentDirectory());
+      indexer.create();
+    }
+    return indexer;
+  }
+
+  private void load() throws IOException {
+    long stringsSize = stringsFile.getFileSize();
+    long indexSize = indexFile.getFileSize();
+    if (stringsSize < STRINGS_HEADER_SIZE || stringsSize > Integer.MAX_VALUE
+        || indexSize < INDEX_HEADER_SIZE || indexSize > Integer.MAX_VALUE) {
+      throw new IOException("invalid string index file size");
+    }
+    strings = map(stringsFile, (int) stringsSize);
+    index = map(indexFile, (int) indexSize);
+    if (strings.getInt(0) != STRINGS_MAGIC || strings.getInt(4) != VERSION
+        || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+      throw new IOException("incompatible string index file header");
+    }
+    capacity = index.getInt(CAPACITY_OFFSET);
+    count = index.getInt(COUNT_OFFSET);
+    if (capacity < INITIAL_CAPACITY || Integer.bitCount(capacity) != 1
+        || indexSize < indexFileSize(capacity) || count < 0 || count > capacity / 2) {
+      throw new IOException("invalid string index header");
+    }
+    int end = strings.getInt(STRINGS_END_OFFSET);
+    if (end < STRINGS_HEADER_SIZE || end > stringsSize) {
+      throw new IOException("invalid string data length " + end);
+    }
+    // The last string must be within the string data. Offsets only grow, so this covers
+    // all of them.
+    if (count > 0) {
+      int offset = getStringOffset(count - 1);
+      if (offset < STRINGS_HEADER_SIZE || offset > end - 4
+          || strings.getInt(offset) < 0 || strings.getInt(offset) > end - offset - 4) {
+        throw new IOException("string index refers past the end of the string data");
+      }
+    }
+  }
+
+  private void create() throws IOException {
+    strings = map(stringsFile, INITIAL_STRINGS_SIZE);
+    strings.putInt(0, STRINGS_MAGIC);
+    strings.putInt(4, VERSION);
+    strings.putInt(STRINGS_END_OFFSET, STRINGS_HEADER_SIZE);
+    capacity = INITIAL_CAPACITY;
+    count = 0;
+    index = newIndexFile(indexFile, capacity);
+  }
+
+  private static int indexFileSize(int capacity) {
+    return INDEX_HEADER_SIZE + capacity * 4 + (capacity / 2) * 4;
+  }
+
+  private static MappedByteBuffer newIndexFile(Path file, int capacity) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file.getPathFile(), "rw")) {
+      raf.setLength(0);
+      MappedByteBuffer buffer =
+          raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFileSize(capacity));
+      buffer.putInt(0, INDEX_MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(COUNT_OFFSET, 0);
+      buffer.putInt(CAPACITY_OFFSET, capacity);
+      return buffer;
+    }
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    // The mapping stays valid after the file is closed.
+    try (RandomAccessFile raf = new RandomAccessFile(file.getPathFile(), "rw")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static int hash(byte[] bytes) {
+    // FNV-1a, followed by a final mix so that the low bits depend on all of the input.
+    int h = 0x811c9dc5;
+    for (byte b : bytes) {
+      h = (h ^ (b & 0xff)) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    return h * 0x85ebca6b;
+  }
+
+  private int getSlot(int slot) {
+    return index.getInt(INDEX_HEADER_SIZE + slot * 4);
+  }
+
+  private int getStringOffset(int i) {
+    return index.getInt(INDEX_HEADER_SIZE + capacity * 4 + i * 4);
+  }
+
+  private byte[] readString(int offset) {
+    byte[] bytes = new byte[strings.getInt(offset)];
+    ByteBuffer source = strings.duplicate();
+    source.position(offset + 4);
+    source.get(bytes);
+    return bytes;
+  }
+
+  private boolean stringEquals(int offset, byte[] bytes) {
+    if (strings.getInt(offset) != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (strings.get(offset + 4 + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the hash table slot that holds the given string, or the empty slot where it
+   * would be inserted, encoded as {@code -slot - 1}. Must be called with the lock held.
+   */
+  private int findSlot(byte[] bytes, int hash) {
+    int mask = capacity - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = getSlot(slot);
+      if (entry == 0) {
+        return -slot - 1;
+      }
+      if (stringEquals(getStringOffset(entry - 1), bytes)) {
+        return slot;
+      }
+    }
+  }
+
+  private int lookup(byte[] bytes) {
+    lock.readLock().lock();
+    try {
+      int slot = findSlot(bytes, hash(bytes));
+      return slot >= 0 ? getSlot(slot) - 1 : -1;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Adds the given string if it is not present yet.
+   *
+   * @return the index of the string, or {@code -index - 1} if it was already present.
+   */
+  private int add(byte[] bytes) {
+    lock.writeLock().lock();
+    try {
+      int hash = hash(bytes);
+      int slot = findSlot(bytes, hash);
+      if (slot >= 0) {
+        return -getSlot(slot);
+      }
+      if (count + 1 > capacity / 2) {
+        rehash(capacity * 2);
+        slot = findSlot(bytes, hash);
+      }
+      int offset = appendString(bytes);
+      int i = count;
+      index.putInt(INDEX_HEADER_SIZE + capacity * 4 + i * 4, offset);
+      index.putInt(INDEX_HEADER_SIZE + (-slot - 1) * 4, i + 1);
+      count = i + 1;
+      index.putInt(COUNT_OFFSET, count);
+      return i;
+    } catch (IOException e) {
+      // There is no way to report this through the StringIndexer interface.
+      throw new IllegalStateException("Failed to grow string index files", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int appendString(byte[] bytes) throws IOException {
+    int offset = strings.getInt(STRINGS_END_OFFSET);
+    int newEnd = offset + 4 + bytes.length;
+    if (newEnd > strings.capacity()) {
+      strings = map(stringsFile,
+          (int) Math.min(Math.max((long) strings.capacity() * 2, newEnd), Integer.MAX_VALUE));
+    }
+    strings.putInt(offset, bytes.length);
+    ByteBuffer target = strings.duplicate();
+    target.position(offset + 4);
+    target.put(bytes);
+    strings.putInt(STRINGS_END_OFFSET, newEnd);
+    return offset;
+  }
+
+  /**
+   * Rebuilds the index file with the given capacity. Must be called with the write lock held.
+   */
+  private void rehash(int newCapacity) throws IOException {
+    Path tmpFile = indexFile.getParentDirectory().getChild(indexFile.getBaseName() + ".tmp");
+    MappedByteBuffer newIndex = newIndexFile(tmpFile, newCapacity);
+    int mask = newCapacity - 1;
+    for (int i = 0; i < count; i++) {
+      int offset = getStringOffset(i);
+      int slot = hash(readString(offset)) & mask;
+      while (newIndex.getInt(INDEX_HEADER_SIZE + slot * 4) != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newIndex.putInt(INDEX_HEADER_SIZE + slot * 4, i + 1);
+      newIndex.putInt(INDEX_HEADER_SIZE + newCapacity * 4 + i * 4, offset);
+    }
+    newIndex.putInt(COUNT_OFFSET, count);
+    newIndex.force();
+    tmpFile.renameTo(indexFile);
+    index = newIndex;
+    capacity = newCapacity;
+  }
+
+  @Override
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      strings.putInt(STRINGS_END_OFFSET, STRINGS_HEADER_SIZE);
+      capacity = INITIAL_CAPACITY;
+      count = 0;
+      index = newIndexFile(indexFile, capacity);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to clear string index files", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public int getOrCreateIndex(String s) {
+    byte[] bytes = s.getBytes(UTF_8);
+    int i = lookup(bytes);
+    if (i >= 0) {
+      return i;
+    }
+    i = add(bytes);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  @Override
+  public int getIndex(String s) {
+    return lookup(s.getBytes(UTF_8));
+  }
+
+  @Override
+  public boolean addString(String s) {
+    byte[] bytes = s.getBytes(UTF_8);
+    return lookup(bytes) < 0 && add(bytes) >= 0;
+  }
+
+  @Override
+  public String getStringForIndex(int i) {
+    if (i < 0 || i >= count) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      return new String(readString(getStringOffset(i)), UTF_8);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Forces both files to disk.
+   *
+   * @return the number of bytes of string data.
+   */
+  long save() {
+    lock.readLock().lock();
+    try {
+      // The strings must be on disk before the index that refers to them.
+      strings.force();
+      index.force();
+      return strings.getInt(STRINGS_END_OFFSET);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("size = ").append(size()).append("\n");
+    for (int i = 0; i < size(); i++) {
+      builder.append(getStringForIndex(i)).append(" <==> ").append(i).append("\n");
+    }
+    return builder.toString();
+  }
+}
@@ -262,6 +262,13 @@ public class BuildRequest implements OptionsClassProvider {
             help = "Check for modifications made to the output files of a build. Consider setting "
                 + "this flag to false to see the effect on incremental build times.")
     public boolean checkOutputFiles;
+
+    @Option(name = "experimental_parallel_nested_set_expansion",
+            defaultValue = "false",
+            category = "undocumented",
+            help = "If enabled, very large stable and compile order nested sets are flattened on "
+                + "several threads the first time, on machines with at least four cores.")
+    public boolean parallelNestedSetExpansion;
   }
 
   /**
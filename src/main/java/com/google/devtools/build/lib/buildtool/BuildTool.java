@@ -52,6 +52,7 @@ import com.google.devtools.build.lib.buildtool.buildevent.BuildInterruptedEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.TestFilteringCompleteEvent;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.collect.nestedset.MemoizedUniquefierNestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -142,6 +143,8 @@ public class BuildTool {
              TargetParsingException, LoadingFailedException, ExecutorInitException,
              AbruptExitException, InvalidConfigurationException, TestExecException {
     validateOptions(request);
+    MemoizedUniquefierNestedSet.setParallelExpansion(
+        request.getBuildOptions().parallelNestedSetExpansion);
     BuildOptions buildOptions = runtime.createBuildOptions(request);
     // Sync the package manager before sending the BuildStartingEvent in runLoadingPhase()
     runtime.setupPackageCache(request.getPackageCacheOptions(),
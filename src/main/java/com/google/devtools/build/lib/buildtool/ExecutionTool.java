@@ -43,9 +43,11 @@ import com.google.devtools.build.lib.actions.ExecutorInitException;
 import com.google.devtools.build.lib.actions.LocalHostCapacity;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.ResourceUsageHistory;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.DiskOutputCache;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -168,6 +170,9 @@ public class ExecutionTool {
 
   static final Logger LOG = Logger.getLogger(ExecutionTool.class.getName());
 
+  // Name of the file in the output base that holds the measured resource usage of actions.
+  private static final String RESOURCE_HISTORY_FILE = "action_resource_usage";
+
   private final BlazeRuntime runtime;
   private final BuildRequest request;
   private BlazeExecutor executor;
@@ -419,6 +424,7 @@ public class ExecutionTool {
 
       // Disable system load polling (noop if it was not enabled).
       ResourceManager.instance().setAutoSensing(false);
+      saveResourceUsageHistory();
       executor.executionPhaseEnding();
       for (ActionContextProvider actionContextProvider : actionContextProviders) {
         actionContextProvider.executionPhaseEnding();
@@ -747,12 +753,31 @@ public class ExecutionTool {
     fileCache = createBuildSingleFileCache(executor.getExecRoot());
     skyframeExecutor.setActionOutputRoot(actionOutputRoot);
     return new SkyframeBuilder(skyframeExecutor,
-        new ActionCacheChecker(actionCache, getView().getArtifactFactory(), executionFilter,
-            verboseExplanations),
+        new ActionCacheChecker(actionCache, createOutputCache(request),
+            getView().getArtifactFactory(), executionFilter, verboseExplanations),
         keepGoing, actualJobs, options.checkOutputFiles, fileCache,
         request.getBuildOptions().progressReportInterval);
   }
 
+  /**
+   * Returns the local output cache requested by --experimental_local_output_cache, or null if
+   * there is none or it can't be used.
+   */
+  private DiskOutputCache createOutputCache(BuildRequest request) {
+    ExecutionOptions options = request.getOptions(ExecutionOptions.class);
+    if (options.localOutputCache == null) {
+      return null;
+    }
+    Path cacheRoot = runtime.getWorkingDirectory().getRelative(options.localOutputCache);
+    try {
+      return new DiskOutputCache(cacheRoot, options.localOutputCacheSizeMb * 1024 * 1024);
+    } catch (IOException | IllegalArgumentException e) {
+      getReporter().handle(Event.warn(String.format(
+          "Not using the local output cache in '%s': %s", cacheRoot, e.getMessage())));
+      return null;
+    }
+  }
+
   private void configureResourceManager(BuildRequest request) {
     ResourceManager resourceMgr = ResourceManager.instance();
     ExecutionOptions options = request.getOptions(ExecutionOptions.class);
@@ -777,6 +802,29 @@ public class ExecutionTool {
         request.getExecutionOptions().usingLocalTestJobs()
             ? request.getExecutionOptions().localTestJobs : Integer.MAX_VALUE
     ));
+
+    resourceMgr.setFairQueueing(options.fairResourceQueueing);
+    resourceMgr.setResourceUsageHistory(options.resourceFeedback
+        ? ResourceUsageHistory.load(runtime.getOutputBase().getRelative(RESOURCE_HISTORY_FILE))
+        : null);
+  }
+
+  /**
+   * Persists the resource usage measured during this build, if resource feedback is enabled.
+   */
+  private void saveResourceUsageHistory() {
+    ResourceManager resourceMgr = ResourceManager.instance();
+    ResourceUsageHistory history = resourceMgr.getResourceUsageHistory();
+    if (history == null) {
+      return;
+    }
+    resourceMgr.setResourceUsageHistory(null);
+    try {
+      history.save();
+    } catch (IOException e) {
+      getReporter().handle(Event.warn(
+          "Failed to save the resource usage of this build: " + e.getMessage()));
+    }
   }
 
   /**
@@ -13,6 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -26,23 +30,114 @@ import java.util.Set;
  * <p>This class does not keep the memoized object itself so that we can take advantage of the
  * memory field alignment (Memory alignment does not put in the same structure the fields of a
  * class and its extensions).
+ *
+ * <p>Large flattened lists are additionally kept in a process-wide cache, because the same set
+ * (a transitive classpath, the inputs of a link, a runfiles tree) is usually flattened by several
+ * consumers in a row.
  */
 public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
 
+  /**
+   * Sets whose flattened form is smaller than this are not cached; expanding them again with the
+   * memoized uniqueifier is cheaper than the cache entry.
+   */
+  @VisibleForTesting
+  static final int MIN_CACHED_SIZE = 64;
+
+  /** The maximum total number of elements in all cached lists. */
+  private static final long MAX_CACHED_ELEMENTS = 4 * 1024 * 1024;
+
+  /**
+   * Flattened lists keyed by the identity of their set. Keys are weak so that an entry never
+   * keeps a set alive, and values are soft so that the cache gives way under memory pressure.
+   */
+  private static final Cache<NestedSet<?>, ImmutableList<?>> flattenCache =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .softValues()
+          .maximumWeight(MAX_CACHED_ELEMENTS)
+          .weigher(new Weigher<NestedSet<?>, ImmutableList<?>>() {
+            @Override
+            public int weigh(NestedSet<?> key, ImmutableList<?> value) {
+              return value.size();
+            }
+          })
+          .build();
+
+  /**
+   * Whether the first flattening of very large stable and compile order sets is done on several
+   * threads. Off by default, because it has only paid off on machines with many cores.
+   */
+  private static volatile boolean parallelExpansion = false;
+
+  /** Sets whether very large sets are flattened in parallel; see {@link #toList}. */
+  public static void setParallelExpansion(boolean enabled) {
+    parallelExpansion = enabled;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If parallel expansion is enabled, the first flattening of a very large stable or compile
+   * order set is done by {@link ParallelCompileOrderExpander}, which also records the memo.
+   */
   @Override
   public List<E> toList() {
-    ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
-    memoizedFill(builder);
-    return builder.build();
+    ImmutableList<E> cached = getCachedList();
+    if (cached != null) {
+      return cached;
+    }
+    boolean memoized;
+    synchronized (this) {
+      memoized = getMemo() != null;
+    }
+    ImmutableList<E> result = null;
+    if (parallelExpansion && !memoized
+        && (getOrder() == Order.STABLE_ORDER || getOrder() == Order.COMPILE_ORDER)) {
+      ParallelCompileOrderExpander.Result<E> expanded =
+          ParallelCompileOrderExpander.expandIfLarge(this);
+      if (expanded != null) {
+        result = expanded.elements;
+        synchronized (this) {
+          if (getMemo() == null) {
+            setMemo(expanded.memo);
+          }
+        }
+      }
+    }
+    if (result == null) {
+      ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
+      memoizedFill(builder);
+      result = builder.build();
+    }
+    if (result.size() >= MIN_CACHED_SIZE) {
+      flattenCache.put(this, result);
+    }
+    return result;
   }
 
   @Override
   public Set<E> toSet() {
+    ImmutableList<E> cached = getCachedList();
+    if (cached != null) {
+      return ImmutableSet.copyOf(cached);
+    }
     ImmutableSet.Builder<E> builder = new ImmutableSet.Builder<>();
     memoizedFill(builder);
     return builder.build();
   }
 
+  // The cache only ever maps a set to its own flattened elements.
+  @SuppressWarnings("unchecked")
+  private ImmutableList<E> getCachedList() {
+    return (ImmutableList<E>) flattenCache.getIfPresent(this);
+  }
+
+  @VisibleForTesting
+  static void clearFlattenCache() {
+    flattenCache.invalidateAll();
+  }
+
   /**
    * It does not make sense to have a {@code MemoizedUniquefierNestedSet} if it is empty.
    */
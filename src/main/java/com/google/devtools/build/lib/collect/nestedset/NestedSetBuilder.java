@@ -19,7 +19,13 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * A builder for nested sets.
@@ -151,7 +157,12 @@ public final class NestedSetBuilder<E> {
         return candidate;
       }
     }
-    int transitiveSize = transitiveSets.size();
+    // Deduplicate only now: returning a subset itself instead of a node wrapping it could turn it
+    // into an identical duplicate in an enclosing set, which changes the link order expansion.
+    if (transitiveSetsCast.size() > 1) {
+      transitiveSetsCast = withoutShallowDuplicates(order, transitiveSetsCast);
+    }
+    int transitiveSize = transitiveSetsCast.size();
     int directSize = items.size();
 
     switch (transitiveSize) {
@@ -190,6 +201,66 @@ public final class NestedSetBuilder<E> {
     }
   }
 
+  /**
+   * Returns {@code subsets} without the sets that are shallowly equal to another one of them.
+   *
+   * <p>Shallowly equal sets have the same elements in the same order, so the expanders get
+   * nothing out of the second copy; dropping it saves a reference in the new node and an entry in
+   * its memoized uniqueifier. Link order expands subsets from last to first, so for it the last
+   * copy is kept, which leaves the expansion of the set unchanged for every order.
+   *
+   * <p>This runs on every build(), so only sets that have subsets of their own are compared, and
+   * they are hashed by the identity of those subsets and their number of direct members. Direct
+   * members are only compared for sets that agree on both, which are usually duplicates.
+   */
+  private static <E> LinkedHashSet<NestedSet<E>> withoutShallowDuplicates(
+      Order order, LinkedHashSet<NestedSet<E>> subsets) {
+    List<NestedSet<E>> candidates = new ArrayList<>(subsets);
+    boolean keepLast = order == Order.LINK_ORDER;
+    if (keepLast) {
+      Collections.reverse(candidates);
+    }
+    Set<ShallowKey> seen = new HashSet<>();
+    List<NestedSet<E>> kept = new ArrayList<>(candidates.size());
+    for (NestedSet<E> subset : candidates) {
+      if (subset.transitiveSets().length == 0 || seen.add(new ShallowKey(subset))) {
+        kept.add(subset);
+      }
+    }
+    if (kept.size() == candidates.size()) {
+      return subsets;
+    }
+    if (keepLast) {
+      Collections.reverse(kept);
+    }
+    return new LinkedHashSet<>(kept);
+  }
+
+  /**
+   * Wraps a nested set so that it can be compared using {@link NestedSet#shallowEquals}, without
+   * hashing its direct members like {@link NestedSet#shallowHashCode} does.
+   */
+  private static final class ShallowKey {
+    private final NestedSet<?> set;
+
+    private ShallowKey(NestedSet<?> set) {
+      this.set = set;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof ShallowKey
+          && ((NestedSet<Object>) set).shallowEquals(((ShallowKey) other).set);
+    }
+
+    @Override
+    public int hashCode() {
+      // Subsets are compared by identity, so this is consistent with shallowEquals.
+      return 31 * Arrays.hashCode(set.transitiveSets()) + set.directMembers().length;
+    }
+  }
+
   /**
    * Creates a nested set from a given list of items.
    *
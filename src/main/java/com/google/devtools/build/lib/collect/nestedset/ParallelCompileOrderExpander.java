@@ -0,0 +1,314 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Flattens very large stable and compile order nested sets on several threads.
+ *
+ * <p>The result is exactly the one {@link CompileOrderExpander} produces. The expansion is done in
+ * three steps:
+ * <ol>
+ * <li>The DAG is walked sequentially, without recursion, to find the nodes in the order the
+ *     expander visits them. This only touches nodes, not elements.
+ * <li>In parallel, for every element, the first chunk of the concatenated direct members that
+ *     contains it is recorded.
+ * <li>In parallel, every chunk keeps the first occurrence of the elements recorded for it.
+ * </ol>
+ * The kept elements of the chunks, in chunk order, are the flattened set. The memo that a
+ * {@link RecordingUniqueifier} would have recorded is rebuilt from the walk and the kept
+ * elements, so that later expansions of the set replay it like after a sequential expansion.
+ *
+ * <p>Sets with fewer direct members in total than the threshold are left to the sequential
+ * expander, which is faster for them. To tell them apart without walking the whole DAG, the
+ * direct members are first counted once per path, which stops as soon as the threshold is
+ * reached.
+ */
+final class ParallelCompileOrderExpander {
+
+  /** The flattened elements of a set and the memo of the uniqueifier for it. */
+  static final class Result<E> {
+    final ImmutableList<E> elements;
+    final Object memo;
+
+    private Result(ImmutableList<E> elements, Object memo) {
+      this.elements = elements;
+      this.memo = memo;
+    }
+  }
+
+  /** The minimum total number of direct members for which the parallel path is used. */
+  private static final int MIN_PARALLEL_SIZE = 1 << 17;
+
+  /**
+   * The parallel path does about twice the hashing of the sequential one, so it only pays off
+   * with several cores.
+   */
+  private static final int MIN_PARALLELISM = 4;
+
+  /** The number of direct members each parallel task handles. */
+  private static final int CHUNK_SIZE = 1 << 14;
+
+  // Entries of the walk, besides the positive lengths of the direct members of a node.
+  private static final int DUPLICATE_SUBSET = 0;
+  private static final int UNIQUE_SUBSET = -1;
+
+  private static final ForkJoinPool POOL = new ForkJoinPool();
+
+  private ParallelCompileOrderExpander() {}
+
+  /**
+   * Returns the flattened {@code set}, or null if the set is too small, or the machine has too
+   * few cores, for it to be worth expanding in parallel. {@code set} must be in stable or compile
+   * order.
+   */
+  @Nullable
+  static <E> Result<E> expandIfLarge(NestedSet<E> set) {
+    if (POOL.getParallelism() < MIN_PARALLELISM) {
+      return null;
+    }
+    return expand(set, MIN_PARALLEL_SIZE, CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  @Nullable
+  static <E> Result<E> expand(NestedSet<E> set, int minParallelSize, int chunkSize) {
+    if (!mayHaveAtLeast(set, minParallelSize)) {
+      return null;
+    }
+    List<Object[]> directs = new ArrayList<>();
+    Walk walk = new Walk();
+    int size = collectDirectMembers(set, directs, walk);
+    if (size < minParallelSize) {
+      return null;
+    }
+    if (size == 0) {
+      return new Result<>(ImmutableList.<E>of(), walk.toMemo(new boolean[0]));
+    }
+    Object[] elements = new Object[size];
+    int pos = 0;
+    for (Object[] d : directs) {
+      System.arraycopy(d, 0, elements, pos, d.length);
+      pos += d.length;
+    }
+
+    int numChunks = (size + chunkSize - 1) / chunkSize;
+    // One boxed id per chunk, so that recording an element does not allocate.
+    Integer[] chunkIds = new Integer[numChunks];
+    for (int i = 0; i < numChunks; i++) {
+      chunkIds[i] = i;
+    }
+    ConcurrentHashMap<Object, Integer> firstChunk = new ConcurrentHashMap<>(size);
+    Object[][] kept = new Object[numChunks][];
+    // Chunks write disjoint ranges of it.
+    boolean[] isKept = new boolean[size];
+    POOL.invoke(
+        new ChunkTask(elements, chunkSize, chunkIds, firstChunk, null, null, 0, numChunks));
+    POOL.invoke(
+        new ChunkTask(elements, chunkSize, chunkIds, firstChunk, kept, isKept, 0, numChunks));
+
+    ImmutableList.Builder<E> builder = ImmutableList.builder();
+    for (Object[] chunk : kept) {
+      builder.add(castArray(chunk));
+    }
+    return new Result<>(builder.build(), walk.toMemo(isKept));
+  }
+
+  // The elements of a NestedSet<E> are Es.
+  @SuppressWarnings("unchecked")
+  private static <E> E[] castArray(Object[] array) {
+    return (E[]) array;
+  }
+
+  /**
+   * Returns false if the direct members of the nodes of {@code set}, counted once per path to
+   * them, add up to less than {@code minSize}, in which case the set is smaller than that. The
+   * walk stops as soon as the count, or the number of nodes visited, reaches {@code minSize}.
+   */
+  private static boolean mayHaveAtLeast(NestedSet<?> set, int minSize) {
+    Deque<NestedSet<?>> stack = new ArrayDeque<>();
+    stack.push(set);
+    long count = 0;
+    int visited = 0;
+    while (!stack.isEmpty()) {
+      NestedSet<?> node = stack.pop();
+      count += node.directMembers().length;
+      if (count >= minSize || ++visited >= minSize) {
+        return true;
+      }
+      for (NestedSet<?> child : node.transitiveSets()) {
+        stack.push(child);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends the direct members of the unique non-empty nodes of {@code set} to {@code result} in
+   * postorder, that is, in the order of {@link CompileOrderExpander}, and returns their total
+   * number. The subsets and direct members the expander would pass to its uniqueifier are
+   * recorded in {@code walk}.
+   */
+  private static int collectDirectMembers(NestedSet<?> set, List<Object[]> result, Walk walk) {
+    Set<NestedSet<?>> seen = Sets.newIdentityHashSet();
+    NestedSet<?>[] nodes = new NestedSet<?>[16];
+    int[] nextChild = new int[16];
+    int depth = 0;
+    nodes[0] = set;
+    int size = 0;
+    while (depth >= 0) {
+      NestedSet<?> node = nodes[depth];
+      NestedSet<?>[] children = node.transitiveSets();
+      if (nextChild[depth] < children.length) {
+        NestedSet<?> child = children[nextChild[depth]++];
+        if (!child.isEmpty()) {
+          if (!seen.add(child)) {
+            walk.add(DUPLICATE_SUBSET);
+            continue;
+          }
+          walk.add(UNIQUE_SUBSET);
+          depth++;
+          if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            nextChild = Arrays.copyOf(nextChild, depth * 2);
+          }
+          nodes[depth] = child;
+          nextChild[depth] = 0;
+        }
+      } else {
+        Object[] d = node.directMembers();
+        if (d.length > 0) {
+          result.add(d);
+          walk.add(d.length);
+          size += d.length;
+        }
+        nodes[depth] = null;
+        depth--;
+      }
+    }
+    return size;
+  }
+
+  /** The calls the sequential expander makes to its uniqueifier, in order. */
+  private static final class Walk {
+    private int[] entries = new int[64];
+    private int length = 0;
+
+    void add(int entry) {
+      if (length == entries.length) {
+        entries = Arrays.copyOf(entries, length * 2);
+      }
+      entries[length++] = entry;
+    }
+
+    /** Returns the memo of the walk, given which of the direct members were kept. */
+    Object toMemo(boolean[] isKept) {
+      BitSet memo = new BitSet();
+      int bit = 0;
+      int element = 0;
+      for (int i = 0; i < length; i++) {
+        int entry = entries[i];
+        if (entry <= 0) {
+          memo.set(bit++, entry == UNIQUE_SUBSET);
+        } else {
+          for (int end = element + entry; element < end; element++) {
+            memo.set(bit++, isKept[element]);
+          }
+        }
+      }
+      return RecordingUniqueifier.toMemo(memo);
+    }
+  }
+
+  /**
+   * Handles a range of chunks, splitting it until a single chunk is left. Without an output array
+   * it records the first chunk of each element; with one it collects the elements whose first
+   * occurrence is in the chunk.
+   */
+  private static final class ChunkTask extends RecursiveAction {
+    private final Object[] elements;
+    private final int chunkSize;
+    private final Integer[] chunkIds;
+    private final ConcurrentHashMap<Object, Integer> firstChunk;
+    @Nullable private final Object[][] kept;
+    @Nullable private final boolean[] isKept;
+    private final int from;
+    private final int to;
+
+    ChunkTask(Object[] elements, int chunkSize, Integer[] chunkIds,
+        ConcurrentHashMap<Object, Integer> firstChunk, @Nullable Object[][] kept,
+        @Nullable boolean[] isKept, int from, int to) {
+      this.elements = elements;
+      this.chunkSize = chunkSize;
+      this.chunkIds = chunkIds;
+      this.firstChunk = firstChunk;
+      this.kept = kept;
+      this.isKept = isKept;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        invokeAll(
+            new ChunkTask(elements, chunkSize, chunkIds, firstChunk, kept, isKept, from, mid),
+            new ChunkTask(elements, chunkSize, chunkIds, firstChunk, kept, isKept, mid, to));
+        return;
+      }
+      int start = from * chunkSize;
+      int end = Math.min(start + chunkSize, elements.length);
+      Integer id = chunkIds[from];
+      if (kept == null) {
+        for (int i = start; i < end; i++) {
+          record(elements[i], id);
+        }
+      } else {
+        List<Object> result = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+          // Only the first occurrence in the first chunk containing the element succeeds.
+          if (firstChunk.remove(elements[i], id)) {
+            result.add(elements[i]);
+            isKept[i] = true;
+          }
+        }
+        kept[from] = result.toArray();
+      }
+    }
+
+    private void record(Object element, Integer id) {
+      Integer previous = firstChunk.putIfAbsent(element, id);
+      while (previous != null && previous > id && !firstChunk.replace(element, previous, id)) {
+        previous = firstChunk.get(element);
+      }
+    }
+  }
+}
@@ -95,7 +95,14 @@ class RecordingUniqueifier implements Uniqueifier {
    */
   Object getMemo() {
     this.idx = -1; // will cause failures if isUnique is called after getMemo.
+    return toMemo(memo);
+  }
 
+  /**
+   * Returns the memo for the given transcript, in which bit i is set if the i-th call to isUnique
+   * returned true.
+   */
+  static Object toMemo(BitSet memo) {
     // If the bitset is just a contiguous block of ones, use a length memo
     int length = memo.length();
     if (memo.cardinality() == length) {
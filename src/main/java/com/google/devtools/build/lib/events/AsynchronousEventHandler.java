@@ -0,0 +1,261 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.events;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.io.OutErr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event handler that passes events on to another handler on a dedicated thread, so that the
+ * threads reporting events do not wait for a slow handler, e.g. one writing to a slow terminal.
+ *
+ * <p>Events are published into a pre-allocated ring buffer and delivered in order. When the
+ * buffer is full, reporting threads wait for the consumer to catch up. Progress events are the
+ * exception: while the consumer is more than half a buffer behind, they are coalesced, and only
+ * the latest one is delivered, once every event reported so far has been delivered. So a
+ * coalesced progress event comes after the events that were reported after it while the buffer
+ * was draining. It is dropped if a newer progress event is queued before it was delivered.
+ *
+ * <p>Output written directly to the streams of the delegate, rather than reported as an event,
+ * is not ordered with the queued events; write it through {@link #orderedOutErr}, or call
+ * {@link #flush} before writing it.
+ *
+ * <p>Unchecked exceptions thrown by the delegate are rethrown by {@link #flush} and
+ * {@link #close}. {@link #handle} must not be called concurrently with, or after, {@link #close}.
+ */
+@ThreadSafe
+public final class AsynchronousEventHandler implements EventHandler {
+
+  private static final int DEFAULT_CAPACITY = 4096;
+  private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final EventHandler delegate;
+  private final Event[] ring;
+  // The sequence number of the event last published into each slot, or -1.
+  private final AtomicLongArray published;
+  private final int mask;
+
+  // The sequence number of the next event to publish.
+  private final AtomicLong nextSequence = new AtomicLong();
+  // The number of events delivered so far; also the sequence number of the next one.
+  private volatile long consumedSequence = 0;
+  private final AtomicReference<Event> pendingProgress = new AtomicReference<>();
+
+  private final Thread consumer;
+  private volatile boolean consumerWaiting = false;
+  private volatile boolean closed = false;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /**
+   * Creates a handler that delivers events to {@code delegate} on a new thread, buffering up to
+   * {@code capacity} events, which must be a power of two.
+   */
+  public AsynchronousEventHandler(EventHandler delegate, int capacity) {
+    Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of two: %s", capacity);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.ring = new Event[capacity];
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+    this.mask = capacity - 1;
+    this.consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        consume();
+      }
+    }, "AsynchronousEventHandler");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  public AsynchronousEventHandler(EventHandler delegate) {
+    this(delegate, DEFAULT_CAPACITY);
+  }
+
+  @Override
+  public void handle(Event event) {
+    if (Thread.currentThread() == consumer) {
+      // The delegate reported an event itself; queueing it would deadlock if the buffer is full.
+      deliver(event);
+      return;
+    }
+    if (event.getKind() == EventKind.PROGRESS
+        && nextSequence.get() - consumedSequence > ring.length / 2) {
+      pendingProgress.set(event);
+      wakeConsumer();
+      return;
+    }
+    if (event.getKind() == EventKind.PROGRESS) {
+      // A coalesced progress event would be delivered after this newer one.
+      pendingProgress.set(null);
+    }
+    event = event.withCopiedMessageBytes();
+    long sequence = nextSequence.getAndIncrement();
+    while (sequence - consumedSequence >= ring.length) {
+      // Back-pressure: wait for the consumer to free the slot.
+      wakeConsumer();
+      LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+    }
+    int slot = (int) sequence & mask;
+    ring[slot] = event;
+    // A volatile write, so that it cannot be reordered with the read of consumerWaiting.
+    published.set(slot, sequence);
+    wakeConsumer();
+  }
+
+  /**
+   * Waits until all events handled so far have been delivered.
+   */
+  public void flush() {
+    awaitDelivery();
+    rethrowFailure();
+  }
+
+  /**
+   * Returns an {@link OutErr} that writes to {@code outErr} only after all events handled so far
+   * have been delivered, so that output written to it directly comes after those events. Unlike
+   * {@link #flush}, writing does not rethrow failures of the delegate, and it is still possible
+   * after {@link #close}.
+   */
+  public OutErr orderedOutErr(OutErr outErr) {
+    return OutErr.create(new OrderedOutputStream(outErr.getOutputStream()),
+        new OrderedOutputStream(outErr.getErrorStream()));
+  }
+
+  private void awaitDelivery() {
+    if (Thread.currentThread() != consumer) {
+      long target = nextSequence.get();
+      while (consumedSequence < target || pendingProgress.get() != null) {
+        LockSupport.unpark(consumer);
+        LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Delivers all pending events and stops the consumer thread. After this returns, the delegate
+   * is not called anymore.
+   */
+  public void close() {
+    try {
+      flush();
+    } finally {
+      closed = true;
+      LockSupport.unpark(consumer);
+      Uninterruptibles.joinUninterruptibly(consumer);
+    }
+    rethrowFailure();
+  }
+
+  private void wakeConsumer() {
+    if (consumerWaiting) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private void rethrowFailure() {
+    Throwable t = failure.get();
+    if (t != null) {
+      Throwables.propagateIfPossible(t);
+      throw new IllegalStateException(t);
+    }
+  }
+
+  private void deliver(Event event) {
+    try {
+      delegate.handle(event);
+    } catch (RuntimeException | Error e) {
+      // Keep consuming, so that the reporting threads are not blocked forever.
+      failure.compareAndSet(null, e);
+    }
+  }
+
+  private void consume() {
+    long sequence = 0;
+    while (true) {
+      int slot = (int) sequence & mask;
+      if (published.get(slot) == sequence) {
+        Event event = ring[slot];
+        ring[slot] = null;
+        deliver(event);
+        consumedSequence = ++sequence;
+        continue;
+      }
+      // Only once the buffer has drained, i.e. no event has been claimed but not yet published.
+      Event progress = nextSequence.get() == sequence ? pendingProgress.get() : null;
+      if (progress != null) {
+        deliver(progress);
+        // Unless a newer one arrived in the meantime.
+        pendingProgress.compareAndSet(progress, null);
+        continue;
+      }
+      if (closed) {
+        return;
+      }
+      consumerWaiting = true;
+      if (published.get(slot) != sequence
+          && (nextSequence.get() != sequence || pendingProgress.get() == null) && !closed) {
+        LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+      }
+      consumerWaiting = false;
+    }
+  }
+
+  /** Delivers the queued events before every write to the wrapped stream. */
+  private final class OrderedOutputStream extends OutputStream {
+    private final OutputStream out;
+
+    private OrderedOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      awaitDelivery();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      awaitDelivery();
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      awaitDelivery();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      awaitDelivery();
+      out.close();
+    }
+  }
+}
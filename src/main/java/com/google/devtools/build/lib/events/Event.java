@@ -85,6 +85,14 @@ public final class Event implements Serializable {
     return messageBytes != null ? messageBytes : message.getBytes(ISO_8859_1);
   }
 
+  /**
+   * Returns this event, or a copy of it if its message is a byte array, so that the event can be
+   * handled after its creator has reused that array.
+   */
+  Event withCopiedMessageBytes() {
+    return messageBytes == null ? this : new Event(kind, location, messageBytes.clone(), tag);
+  }
+
   public EventKind getKind() {
     return kind;
   }
@@ -180,6 +180,22 @@ public class ExecutionOptions extends OptionsBase {
       )
   public int ramUtilizationPercentage;
 
+  @Option(name = "experimental_resource_feedback",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, Blaze measures the CPU and memory used by locally executed actions, "
+      + "remembers them per mnemonic in the output base, and schedules later actions based on "
+      + "these measurements instead of on their static estimates.")
+  public boolean resourceFeedback;
+
+  @Option(name = "experimental_fair_resource_queueing",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, a locally executed action that waits for resources and keeps being "
+      + "overtaken by smaller actions eventually blocks later actions until it fits, so that "
+      + "large actions such as links are not starved.")
+  public boolean fairResourceQueueing;
+
   @Option(name = "local_resources",
       defaultValue = "null",
       category = "strategy",
@@ -202,6 +218,23 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int localTestJobs;
 
+  @Option(name = "experimental_local_output_cache",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "If set, outputs of executed actions are stored in a content-addressable cache in "
+          + "this directory and restored from there when an action with the same command and "
+          + "input contents is executed again, e.g. after 'blaze clean' or in another workspace. "
+          + "Relative paths are resolved against the working directory.")
+  public PathFragment localOutputCache;
+
+  @Option(name = "experimental_local_output_cache_size_mb",
+      defaultValue = "10240",
+      category = "strategy",
+      help = "The maximum size of the --experimental_local_output_cache directory in MB. The "
+          + "least recently used outputs are evicted when it grows larger.")
+  public long localOutputCacheSizeMb;
+
   public boolean usingLocalTestJobs() {
     return localTestJobs != 0;
   }
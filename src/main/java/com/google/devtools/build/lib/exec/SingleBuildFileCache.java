@@ -24,6 +24,7 @@ import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.DigestOfDirectoryException;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
@@ -71,10 +72,11 @@ public class SingleBuildFileCache implements ActionInputFileCache {
           try {
             path = fs.getPath(fullPath(input));
             BaseEncoding hex = BaseEncoding.base16().lowerCase();
+            long size = path.getFileSize();
             ByteString digest = ByteString.copyFrom(
-                hex.encode(path.getMD5Digest())
+                hex.encode(DigestUtils.getDigestOrFail(path, size))
                    .getBytes(US_ASCII));
-            pathToBytes.put(input, path.getFileSize());
+            pathToBytes.put(input, size);
             // Inject reverse mapping. Doing this unconditionally in getDigest() showed up
             // as a hotspot in CPU profiling.
             digestToPath.put(digest, input);
@@ -203,6 +203,37 @@ public class GlobCache {
    */
   @VisibleForTesting
   Future<List<Path>> safeGlob(String pattern, boolean excludeDirs) throws BadGlobException {
+    checkPattern(pattern);
+    return UnixGlob.forPath(packageDirectory)
+        .addPattern(pattern)
+        .setExcludeDirectories(excludeDirs)
+        .setDirectoryFilter(childDirectoryPredicate)
+        .setThreadPool(globExecutor)
+        .setFilesystemCalls(syscalls)
+        .globAsync(true);
+  }
+
+  /**
+   * Executes several globs in a single traversal of the filesystem, so that each directory is
+   * only read and matched once, however many of the patterns reach it.
+   *
+   * @return the future result of each distinct pattern
+   */
+  private Map<String, Future<List<Path>>> safeGlobs(Collection<String> patterns,
+      boolean excludeDirs) throws BadGlobException {
+    for (String pattern : patterns) {
+      checkPattern(pattern);
+    }
+    return UnixGlob.forPath(packageDirectory)
+        .addPatterns(patterns)
+        .setExcludeDirectories(excludeDirs)
+        .setDirectoryFilter(childDirectoryPredicate)
+        .setThreadPool(globExecutor)
+        .setFilesystemCalls(syscalls)
+        .globAsyncByPattern(true);
+  }
+
+  private static void checkPattern(String pattern) throws BadGlobException {
     // Forbidden patterns:
     if (pattern.indexOf('?') != -1) {
       throw new BadGlobException("glob pattern '" + pattern + "' contains forbidden '?' wildcard");
@@ -212,13 +243,6 @@ public class GlobCache {
     if (error != null) {
       throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
     }
-    return UnixGlob.forPath(packageDirectory)
-        .addPattern(pattern)
-        .setExcludeDirectories(excludeDirs)
-        .setDirectoryFilter(childDirectoryPredicate)
-        .setThreadPool(globExecutor)
-        .setFilesystemCalls(syscalls)
-        .globAsync(true);
   }
 
   /**
@@ -247,10 +271,22 @@ public class GlobCache {
     // Start all globs in parallel.
     Map<Pair<String, Boolean>, Future<List<Path>>> newGlobs = new HashMap<>();
     try {
-      for (Map.Entry<Pair<String, Boolean>, Future<List<Path>>> entry : globCache.entrySet()) {
-        Pair<String, Boolean> key = entry.getKey();
+      // One traversal re-evaluates all the globs that agree on excludeDirs.
+      for (boolean excludeDirs : new boolean[] {false, true}) {
+        List<String> patterns = new ArrayList<>();
+        for (Pair<String, Boolean> key : globCache.keySet()) {
+          if (key.second == excludeDirs) {
+            patterns.add(key.first);
+          }
+        }
+        if (patterns.isEmpty()) {
+          continue;
+        }
         try {
-          newGlobs.put(key, safeGlob(key.first, key.second));
+          for (Map.Entry<String, Future<List<Path>>> entry
+              : safeGlobs(patterns, excludeDirs).entrySet()) {
+            newGlobs.put(Pair.of(entry.getKey(), excludeDirs), entry.getValue());
+          }
         } catch (BadGlobException e) {
           return false;
         }
@@ -283,11 +319,20 @@ public class GlobCache {
    */
   public List<String> glob(List<String> includes, List<String> excludes, boolean excludeDirs)
       throws IOException, BadGlobException, InterruptedException {
-    // Start globbing all patterns in parallel. The getGlob() calls below will
-    // block on an individual pattern's results, but the other globs can
-    // continue in the background.
+    // Start globbing all patterns that are not cached yet, in a single traversal.
+    // The patterns share the traversal, so the first getGlob() call below blocks
+    // until all of them have been matched.
+    List<String> newPatterns = new ArrayList<>();
     for (String pattern : Iterables.concat(includes, excludes)) {
-      getGlobAsync(pattern, excludeDirs);
+      if (!globCache.containsKey(Pair.of(pattern, excludeDirs))) {
+        newPatterns.add(pattern);
+      }
+    }
+    if (!newPatterns.isEmpty()) {
+      for (Map.Entry<String, Future<List<Path>>> entry
+          : safeGlobs(newPatterns, excludeDirs).entrySet()) {
+        setGlobPaths(entry.getKey(), excludeDirs, entry.getValue());
+      }
     }
 
     Set<String> results = new LinkedHashSet<>();
@@ -794,16 +794,44 @@ public class ProfileInfo {
   }
 
   /**
-   * Loads and parses Blaze profile file.
+   * Receives the task records of a profile file, in the order in which they were written by the
+   * {@link Profiler}. Since the profiler saves tasks when they complete, subtasks are always
+   * visited before their parent task.
+   */
+  public interface TaskVisitor {
+    /**
+     * Called once, before any task, with the comment stored in the profile header.
+     */
+    void visitComment(String comment);
+
+    /**
+     * Called for every task record.
+     *
+     * @param descIndex sequential index of the description string; a value equal to the number of
+     *     descriptions seen so far means that the description occurs for the first time
+     * @param stats compact aggregated stats of the task (see {@link CompactStatistics}) or null
+     */
+    void visitTask(long threadId, int id, int parentId, long startTime, long duration,
+        ProfilerTask type, int descIndex, String description, byte[] stats);
+  }
+
+  /**
+   * Reads the profile file record by record and passes each task to the visitor without keeping
+   * it in memory. Only the description strings are retained, because records refer to them by
+   * index.
    *
-   * @param profileFile profile file path
+   * <p>The profile may be incomplete: the profiler completes a compressed chunk each time it
+   * saves its queued tasks, so the file of a running build (or of a crashed one) can be read up
+   * to its last complete chunk.
    *
-   * @return ProfileInfo object with some fields populated (call calculateStats()
-   *         and analyzeRelationships() to populate the remaining fields)
+   * @param profileFile profile file path
+   * @param visitor receives the header comment and the task records
+   * @return true if the whole profile up to its end marker was read, false if the file was
+   *     truncated or corrupted
    * @throws UnsupportedEncodingException if the file format is invalid
    * @throws IOException if the file can't be read
    */
-  public static ProfileInfo loadProfile(Path profileFile)
+  public static boolean processProfile(Path profileFile, TaskVisitor visitor)
       throws IOException {
     // It is extremely important to wrap InflaterInputStream using
     // BufferedInputStream because majority of reads would be done using
@@ -814,84 +842,118 @@ public class ProfileInfo {
         new BufferedInputStream(new InflaterInputStream(
         profileFile.getInputStream(), new Inflater(false), 65536), 1024 * 1024));
 
-    if (in.readInt() != Profiler.MAGIC) {
-      in.close();
-      throw new UnsupportedEncodingException("Invalid profile datafile format");
-    }
-    if (in.readInt() != Profiler.VERSION) {
-      in.close();
-      throw new UnsupportedEncodingException("Incompatible profile datafile version");
-    }
-    String fileComment = in.readUTF();
-
-    // Read list of used record types
-    int typeCount = in.readInt();
-    boolean hasUnknownTypes = false;
-    Set<String> supportedTasks = new HashSet<>();
-    for (ProfilerTask task : ProfilerTask.values()) {
-      supportedTasks.add(task.toString());
-    }
-    List<ProfilerTask> typeList = new ArrayList<>();
-    for (int i = 0; i < typeCount; i++) {
-      String name = in.readUTF();
-      if (supportedTasks.contains(name)) {
-        typeList.add(ProfilerTask.valueOf(name));
-      } else {
-        hasUnknownTypes = true;
-        typeList.add(ProfilerTask.UNKNOWN);
-      }
-    }
-
-    ProfileInfo info = new ProfileInfo(fileComment);
-
-    // Read record until we encounter end marker (-1).
-    // TODO(bazel-team): Maybe this still should handle corrupted(truncated) files.
     try {
-      int size;
-      while ((size = in.readInt()) != Profiler.EOF_MARKER) {
-        byte[] backingArray = new byte[size];
-        in.readFully(backingArray);
-        ByteBuffer buffer = ByteBuffer.wrap(backingArray);
-        long threadId = VarInt.getVarLong(buffer);
-        int id = VarInt.getVarInt(buffer);
-        int parentId = VarInt.getVarInt(buffer);
-        long startTime = VarInt.getVarLong(buffer);
-        long duration = VarInt.getVarLong(buffer);
-        int descIndex = VarInt.getVarInt(buffer) - 1;
-        if (descIndex == -1) {
-          String desc = in.readUTF();
-          descIndex = info.descriptionList.size();
-          info.descriptionList.add(desc);
+      if (in.readInt() != Profiler.MAGIC) {
+        throw new UnsupportedEncodingException("Invalid profile datafile format");
+      }
+      if (in.readInt() != Profiler.VERSION) {
+        throw new UnsupportedEncodingException("Incompatible profile datafile version");
+      }
+      visitor.visitComment(in.readUTF());
+
+      // Read list of used record types
+      int typeCount = in.readInt();
+      boolean hasUnknownTypes = false;
+      Set<String> supportedTasks = new HashSet<>();
+      for (ProfilerTask task : ProfilerTask.values()) {
+        supportedTasks.add(task.toString());
+      }
+      List<ProfilerTask> typeList = new ArrayList<>();
+      for (int i = 0; i < typeCount; i++) {
+        String name = in.readUTF();
+        if (supportedTasks.contains(name)) {
+          typeList.add(ProfilerTask.valueOf(name));
+        } else {
+          hasUnknownTypes = true;
+          typeList.add(ProfilerTask.UNKNOWN);
         }
-        ProfilerTask type = typeList.get(buffer.get());
-        byte[] stats = null;
-        if (buffer.hasRemaining()) {
-          // Copy aggregated stats.
-          int offset = buffer.position();
-          stats = Arrays.copyOfRange(backingArray, offset, size);
-          if (hasUnknownTypes) {
-            while (buffer.hasRemaining()) {
-              byte attrType = buffer.get();
-              if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
-                // We're dealing with unknown aggregated type - update stats array to
-                // use ProfilerTask.UNKNOWN.ordinal() value.
-                stats[buffer.position() - 1 - offset] = (byte) ProfilerTask.UNKNOWN.ordinal();
+      }
+
+      List<String> descriptionList = Lists.newArrayListWithExpectedSize(10000);
+      // Read record until we encounter end marker (-1). A truncated file ends with an
+      // IOException, all records read up to that point have already been visited.
+      try {
+        int size;
+        while ((size = in.readInt()) != Profiler.EOF_MARKER) {
+          byte[] backingArray = new byte[size];
+          in.readFully(backingArray);
+          ByteBuffer buffer = ByteBuffer.wrap(backingArray);
+          long threadId = VarInt.getVarLong(buffer);
+          int id = VarInt.getVarInt(buffer);
+          int parentId = VarInt.getVarInt(buffer);
+          long startTime = VarInt.getVarLong(buffer);
+          long duration = VarInt.getVarLong(buffer);
+          int descIndex = VarInt.getVarInt(buffer) - 1;
+          if (descIndex == -1) {
+            String desc = in.readUTF();
+            descIndex = descriptionList.size();
+            descriptionList.add(desc);
+          }
+          ProfilerTask type = typeList.get(buffer.get());
+          byte[] stats = null;
+          if (buffer.hasRemaining()) {
+            // Copy aggregated stats.
+            int offset = buffer.position();
+            stats = Arrays.copyOfRange(backingArray, offset, size);
+            if (hasUnknownTypes) {
+              while (buffer.hasRemaining()) {
+                byte attrType = buffer.get();
+                if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
+                  // We're dealing with unknown aggregated type - update stats array to
+                  // use ProfilerTask.UNKNOWN.ordinal() value.
+                  stats[buffer.position() - 1 - offset] = (byte) ProfilerTask.UNKNOWN.ordinal();
+                }
+                VarInt.getVarInt(buffer);
+                VarInt.getVarLong(buffer);
               }
-              VarInt.getVarInt(buffer);
-              VarInt.getVarLong(buffer);
             }
           }
+          visitor.visitTask(threadId, id, parentId, startTime, duration, type, descIndex,
+              descriptionList.get(descIndex), stats);
         }
-        ProfileInfo.Task task =  info.new Task(threadId, id, parentId, startTime, duration, type,
-            descIndex, new CompactStatistics(stats));
-        info.addTask(task);
+      } catch (IOException e) {
+        return false;
       }
-    } catch (IOException e) {
-      info.corruptedOrIncomplete = true;
+      return true;
     } finally {
       in.close();
     }
+  }
+
+  /**
+   * Loads and parses Blaze profile file.
+   *
+   * @param profileFile profile file path
+   *
+   * @return ProfileInfo object with some fields populated (call calculateStats()
+   *         and analyzeRelationships() to populate the remaining fields)
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ProfileInfo loadProfile(Path profileFile)
+      throws IOException {
+    final ProfileInfo[] result = new ProfileInfo[1];
+    boolean complete = processProfile(profileFile, new TaskVisitor() {
+      private ProfileInfo info;
 
+      @Override
+      public void visitComment(String comment) {
+        info = new ProfileInfo(comment);
+        result[0] = info;
+      }
+
+      @Override
+      public void visitTask(long threadId, int id, int parentId, long startTime, long duration,
+          ProfilerTask type, int descIndex, String description, byte[] stats) {
+        if (descIndex == info.descriptionList.size()) {
+          info.descriptionList.add(description);
+        }
+        info.addTask(info.new Task(threadId, id, parentId, startTime, duration, type, descIndex,
+            new CompactStatistics(stats)));
+      }
+    });
+    ProfileInfo info = result[0];
+    info.corruptedOrIncomplete = !complete;
     return info;
   }
 
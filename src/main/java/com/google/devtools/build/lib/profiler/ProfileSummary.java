@@ -0,0 +1,307 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.ProfileInfo.AggregateAttr;
+import com.google.devtools.build.lib.profiler.ProfileInfo.CompactStatistics;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Phase statistics and critical path of a profile, computed in a single pass over the task
+ * records by {@link ProfileInfo#processProfile}.
+ *
+ * <p>Unlike {@link ProfileInfo}, no tasks are kept in memory: every task is folded into the
+ * statistics of the phase in which it started as soon as it is read. The only retained records
+ * are the components of the critical path, which the profiler writes right before the
+ * critical path task itself. This makes it possible to summarize profiles of arbitrarily long
+ * builds, as well as the partial profile of a build that is still running.
+ */
+public final class ProfileSummary implements ProfileInfo.TaskVisitor {
+
+  /**
+   * Statistics of a single build phase.
+   */
+  public static final class PhaseSummary {
+    public final ProfilePhase phase;
+    public final long threadId;
+    public final long startTime;
+    private long duration = -1;
+    // Total duration of the root tasks of this phase running outside of the phase thread.
+    private long otherThreadsDuration;
+    private final int[] counts = new int[TASK_COUNT];
+    private final long[] durations = new long[TASK_COUNT];
+
+    PhaseSummary(ProfilePhase phase, long threadId, long startTime) {
+      this.phase = phase;
+      this.threadId = threadId;
+      this.startTime = startTime;
+    }
+
+    /**
+     * Returns the duration of the phase in ns: the time until the next phase started or, for the
+     * last phase, until the last root task ended.
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * Returns the time spent in the phase across all threads, in ns.
+     */
+    public long getTotalDuration() {
+      return duration + otherThreadsDuration;
+    }
+
+    /**
+     * Returns the cumulative time attributed to the given task type within this phase. Matches
+     * {@link ProfileInfo#getStatsForType} for the root tasks of the phase.
+     */
+    public AggregateAttr getStatsForType(ProfilerTask type) {
+      return new AggregateAttr(counts[type.ordinal()], durations[type.ordinal()]);
+    }
+
+    private void addStats(CompactStatistics stats) {
+      if (stats.isEmpty()) {
+        return;
+      }
+      AggregateAttr[] attrs = stats.toArray();
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (attrs[i] != null) {
+          counts[i] += attrs[i].count;
+          durations[i] += attrs[i].totalTime;
+        }
+      }
+    }
+  }
+
+  /**
+   * A single action on the critical path, as recorded by the build.
+   */
+  public static final class CriticalPathComponent {
+    public final int id;
+    public final long duration;
+    public final String description;
+
+    CriticalPathComponent(int id, long duration, String description) {
+      this.id = id;
+      this.duration = duration;
+      this.description = description;
+    }
+  }
+
+  /**
+   * A critical path component whose parent task has not been read yet.
+   */
+  private static final class PendingComponent {
+    final CriticalPathComponent component;
+    final int parentId;
+    final CompactStatistics stats;
+
+    PendingComponent(CriticalPathComponent component, int parentId, CompactStatistics stats) {
+      this.component = component;
+      this.parentId = parentId;
+      this.stats = stats;
+    }
+  }
+
+  private String comment;
+  private boolean corruptedOrIncomplete;
+  private int taskCount;
+  private final List<PhaseSummary> phases = new ArrayList<>();
+  private int lastRootTaskId = -1;
+  private long lastRootTaskEndTime;
+  private final List<PendingComponent> pendingComponents = new ArrayList<>();
+  private List<CriticalPathComponent> criticalPath = ImmutableList.of();
+
+  private ProfileSummary() {}
+
+  /**
+   * Reads the given profile file in a single pass and summarizes it. The file may be
+   * incomplete, in which case the summary covers the tasks saved so far.
+   *
+   * @throws IOException if the file can't be read or has an invalid header
+   */
+  public static ProfileSummary summarize(Path profileFile) throws IOException {
+    ProfileSummary summary = new ProfileSummary();
+    summary.corruptedOrIncomplete = !ProfileInfo.processProfile(profileFile, summary);
+    summary.finish();
+    return summary;
+  }
+
+  @Override
+  public void visitComment(String comment) {
+    this.comment = comment;
+  }
+
+  @Override
+  public void visitTask(long threadId, int id, int parentId, long startTime, long duration,
+      ProfilerTask type, int descIndex, String description, byte[] stats) {
+    taskCount++;
+    CompactStatistics compactStats = new CompactStatistics(stats);
+    if (parentId == 0) {
+      if (id > lastRootTaskId) {
+        lastRootTaskId = id;
+        lastRootTaskEndTime = startTime + duration;
+      }
+      if (type == ProfilerTask.PHASE) {
+        ProfilePhase phase = phaseForDescription(description);
+        if (phase != null) {
+          phases.add(new PhaseSummary(phase, threadId, startTime));
+        }
+      }
+    }
+    if (type == ProfilerTask.CRITICAL_PATH_COMPONENT) {
+      // The start time of the components is not related to the profile start, so they are
+      // attributed to the phase of their parent once it is read.
+      pendingComponents.add(new PendingComponent(
+          new CriticalPathComponent(id, duration, description), parentId, compactStats));
+      return;
+    }
+    PhaseSummary phase = getPhaseForTime(startTime);
+    if (type == ProfilerTask.CRITICAL_PATH && parentId == 0) {
+      ImmutableList.Builder<CriticalPathComponent> path = ImmutableList.builder();
+      for (PendingComponent pending : pendingComponents) {
+        if (pending.parentId == id) {
+          path.add(pending.component);
+          if (phase != null) {
+            addTask(phase, threadId, pending.parentId, pending.component.duration,
+                ProfilerTask.CRITICAL_PATH_COMPONENT, pending.stats);
+          }
+        }
+      }
+      criticalPath = path.build();
+      pendingComponents.clear();
+    }
+    if (phase != null) {
+      addTask(phase, threadId, parentId, duration, type, compactStats);
+    }
+  }
+
+  /**
+   * Folds a task into the phase statistics, following the same rules as the root statistics
+   * computed by {@link ProfileInfo#calculateStats}.
+   */
+  private static void addTask(PhaseSummary phase, long threadId, int parentId, long duration,
+      ProfilerTask type, CompactStatistics stats) {
+    long inheritedDuration = stats.getTotalTime();
+    phase.addStats(stats);
+    if (parentId != 0) {
+      // Parent task already accounted for this task total duration.
+      phase.durations[type.ordinal()] -= inheritedDuration;
+    } else {
+      phase.counts[type.ordinal()]++;
+      phase.durations[type.ordinal()] += duration - inheritedDuration;
+      if (threadId != phase.threadId) {
+        phase.otherThreadsDuration += duration;
+      }
+    }
+  }
+
+  private PhaseSummary getPhaseForTime(long startTime) {
+    // Phase markers are saved as soon as they are logged, so all phases that started before
+    // the task have already been read.
+    for (int i = phases.size() - 1; i >= 0; i--) {
+      if (phases.get(i).startTime <= startTime) {
+        return phases.get(i);
+      }
+    }
+    return null;
+  }
+
+  private static ProfilePhase phaseForDescription(String description) {
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      if (phase.description.equals(description)) {
+        return phase;
+      }
+    }
+    return null;
+  }
+
+  private void finish() {
+    for (int i = 0; i < phases.size(); i++) {
+      PhaseSummary phase = phases.get(i);
+      long endTime = i + 1 < phases.size() ? phases.get(i + 1).startTime : lastRootTaskEndTime;
+      phase.duration = Math.max(0, endTime - phase.startTime);
+    }
+  }
+
+  /**
+   * Returns the comment stored in the profile header.
+   */
+  public String getComment() {
+    return comment;
+  }
+
+  /**
+   * Returns true if profile datafile was corrupted or incomplete, e.g. because the build is
+   * still running.
+   */
+  public boolean isCorruptedOrIncomplete() {
+    return corruptedOrIncomplete;
+  }
+
+  /**
+   * Returns the number of task records read.
+   */
+  public int getTaskCount() {
+    return taskCount;
+  }
+
+  /**
+   * Returns the phases found in the profile, in the order in which they started.
+   */
+  public List<PhaseSummary> getPhases() {
+    return phases;
+  }
+
+  /**
+   * Returns the summary of the given phase or null if the profile does not contain it.
+   */
+  public PhaseSummary getPhase(ProfilePhase phase) {
+    Preconditions.checkNotNull(phase);
+    for (PhaseSummary summary : phases) {
+      if (summary.phase == phase) {
+        return summary;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the critical path recorded by the build in execution order, or an empty list if the
+   * profile does not contain one.
+   */
+  public List<CriticalPathComponent> getCriticalPath() {
+    return criticalPath;
+  }
+
+  /**
+   * Returns the total duration of the recorded critical path in ns.
+   */
+  public long getCriticalPathDuration() {
+    long duration = 0;
+    for (CriticalPathComponent component : criticalPath) {
+      duration += component.duration;
+    }
+    return duration;
+  }
+}
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.util.Clock;
@@ -106,6 +107,11 @@ import java.util.zip.DeflaterOutputStream;
  *   int64: -1 - please note that this corresponds to the thread id in the
  *               TASK_RECORD which is always > 0
  * </pre>
+ * <p>
+ * Task records are written in chunks: every SAVE_DELAY ms the profiler encodes all tasks
+ * completed since the previous save and sync-flushes the deflater. Each chunk therefore ends on
+ * a byte boundary of the compressed stream, which lets ProfileInfo read the profile of a build
+ * that is still running (or that crashed) up to its last complete chunk.
  *
  * @see ProfilerTask enum for recognized task types.
  */
@@ -516,9 +522,10 @@ public final class Profiler {
       // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
       // the save() method. Values for buffer sizes were chosen by running small amount of tests
       // and identifying point of diminishing returns - but I have not really tried to optimize
-      // them.
+      // them. The deflater is sync-flushed on each save() so that every saved chunk of task
+      // records can be decompressed while the profile is still being written.
       this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
-          stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
+          stream, new Deflater(Deflater.BEST_SPEED, false), 65536, true), 262144));
 
       this.out.writeInt(MAGIC); // magic
       this.out.writeInt(VERSION); // protocol_version
@@ -599,11 +606,12 @@ public final class Profiler {
   }
 
   /**
-   * Saves all gathered information from taskQueue queue to the file.
-   * Method is invoked internally by the Timer-based thread and at the end of
-   * profiling session.
+   * Saves all gathered information from taskQueue queue to the file and
+   * flushes it as a complete chunk. Method is invoked internally by the
+   * Timer-based thread and at the end of profiling session.
    */
-  private synchronized void save() {
+  @VisibleForTesting
+  synchronized void save() {
     if (out == null) {
       return;
     }
@@ -820,25 +820,42 @@ public final class CppCompilationContext implements TransitiveInfoProvider {
 
     /**
      * Adds a header that has been declared in the {@code src} or {@code headers attribute}. The
-     * header will also be added to the compilation prerequisites.
+     * header will also be added to the compilation prerequisites, unless includes are scanned
+     * locally.
      */
     public Builder addDeclaredIncludeSrc(Artifact header) {
       declaredIncludeSrcs.add(header);
-      compilationPrerequisites.add(header);
+      if (declaredIncludeSrcsArePrerequisites()) {
+        compilationPrerequisites.add(header);
+      }
       headerModuleSrcs.add(header);
       return this;
     }
 
     /**
      * Adds multiple headers that have been declared in the {@code src} or {@code headers
-     * attribute}. The headers will also be added to the compilation prerequisites.
+     * attribute}. The headers will also be added to the compilation prerequisites, unless
+     * includes are scanned locally.
      */
     public Builder addDeclaredIncludeSrcs(Iterable<Artifact> declaredIncludeSrcs) {
       this.declaredIncludeSrcs.addAll(declaredIncludeSrcs);
       this.headerModuleSrcs.addAll(declaredIncludeSrcs);
+      if (!declaredIncludeSrcsArePrerequisites()) {
+        return this;
+      }
       return addCompilationPrerequisites(declaredIncludeSrcs);
     }
 
+    /**
+     * With local include scanning, compiles depend on the headers found by the scanner instead
+     * of on all declared headers; see {@link LocalGccStrategy#findAdditionalInputs}.
+     */
+    private boolean declaredIncludeSrcsArePrerequisites() {
+      CppConfiguration cppConfiguration =
+          ruleContext.getConfiguration().getFragment(CppConfiguration.class);
+      return cppConfiguration == null || !cppConfiguration.shouldScanIncludesLocally();
+    }
+
     /**
      * Add a map of generated source or header Artifact to an output Artifact after grepping
      * the file for include statements.
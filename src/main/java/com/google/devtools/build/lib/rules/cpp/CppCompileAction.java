@@ -292,6 +292,10 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
     return cppConfiguration.shouldScanIncludes();
   }
 
+  public boolean shouldScanIncludesLocally() {
+    return cppConfiguration.shouldScanIncludesLocally();
+  }
+
   @Override
   public List<PathFragment> getBuiltInIncludeDirectories() {
     return cppConfiguration.getBuiltInIncludeDirectories();
@@ -841,7 +845,7 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
 
       // Check inclusions.
       IncludeProblems problems = new IncludeProblems();
-      Map<PathFragment, Artifact> allowedDerivedInputsMap = getAllowedDerivedInputsMap();
+      Map<PathFragment, Artifact> declaredInputsMap = getDeclaredInputsMap(true);
       for (PathFragment execPath : depSet.getDependencies()) {
         if (execPath.isAbsolute()) {
           // Absolute includes from system paths are ignored.
@@ -859,7 +863,7 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
             continue;
           }
         }
-        Artifact artifact = allowedDerivedInputsMap.get(execPath);
+        Artifact artifact = declaredInputsMap.get(execPath);
         if (artifact == null) {
           artifact = artifactResolver.resolveSourceArtifact(execPath);
         }
@@ -931,20 +935,31 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
   }
 
   private Map<PathFragment, Artifact> getAllowedDerivedInputsMap() {
-    Map<PathFragment, Artifact> allowedDerivedInputMap = new HashMap<>();
-    addToMap(allowedDerivedInputMap, mandatoryInputs);
-    addToMap(allowedDerivedInputMap, context.getDeclaredIncludeSrcs());
-    addToMap(allowedDerivedInputMap, context.getCompilationPrerequisites());
+    return getDeclaredInputsMap(false);
+  }
+
+  /**
+   * Returns the declared inputs of this action by exec path. Derived inputs are always included;
+   * source inputs only if {@code includeSources} is set. A source artifact found here is the one
+   * the artifact resolver would return, so looking headers up here first saves a call to the
+   * resolver, which is shared by all actions and synchronized, for most of them.
+   */
+  private Map<PathFragment, Artifact> getDeclaredInputsMap(boolean includeSources) {
+    Map<PathFragment, Artifact> declaredInputMap = new HashMap<>();
+    addToMap(declaredInputMap, mandatoryInputs, includeSources);
+    addToMap(declaredInputMap, context.getDeclaredIncludeSrcs(), includeSources);
+    addToMap(declaredInputMap, context.getCompilationPrerequisites(), includeSources);
     Artifact artifact = getSourceFile();
-    if (!artifact.isSourceArtifact()) {
-      allowedDerivedInputMap.put(artifact.getExecPath(), artifact);
+    if (includeSources || !artifact.isSourceArtifact()) {
+      declaredInputMap.put(artifact.getExecPath(), artifact);
     }
-    return allowedDerivedInputMap;
+    return declaredInputMap;
   }
 
-  private void addToMap(Map<PathFragment, Artifact> map, Iterable<Artifact> artifacts) {
+  private void addToMap(Map<PathFragment, Artifact> map, Iterable<Artifact> artifacts,
+      boolean includeSources) {
     for (Artifact artifact : artifacts) {
-      if (!artifact.isSourceArtifact()) {
+      if (includeSources || !artifact.isSourceArtifact()) {
         map.put(artifact.getExecPath(), artifact);
       }
     }
@@ -1315,6 +1315,14 @@ public class CppConfiguration extends BuildConfiguration.Fragment {
     return cppOptions.scanIncludes;
   }
 
+  /**
+   * Returns whether local compiles find their header inputs with {@link LocalIncludeScanner}
+   * instead of depending on all declared headers.
+   */
+  public boolean shouldScanIncludesLocally() {
+    return cppOptions.scanIncludes && cppOptions.localIncludeScanning;
+  }
+
   /**
    * Returns the currently active LIPO compilation mode.
    */
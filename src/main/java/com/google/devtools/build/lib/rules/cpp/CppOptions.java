@@ -243,6 +243,14 @@ public class CppOptions extends FragmentOptions {
               + "fail.")
   public boolean scanIncludes;
 
+  @Option(name = "experimental_local_include_scanning",
+          defaultValue = "false",
+          category = "undocumented",
+          help = "If enabled, local C++ compiles take only the headers their sources can reach "
+              + "through #include lines as inputs, instead of all transitively declared headers. "
+              + "Has no effect without --cc_include_scanning.")
+  public boolean localIncludeScanning;
+
   @Option(name = "extract_generated_inclusions",
           defaultValue = "true",
           category = "undocumented",
@@ -561,6 +569,7 @@ public class CppOptions extends FragmentOptions {
     host.fdoOptimize = null;
     host.lipoMode = LipoMode.OFF;
     host.scanIncludes = scanIncludes;
+    host.localIncludeScanning = localIncludeScanning;
     host.inmemoryDotdFiles = inmemoryDotdFiles;
 
     return host;
@@ -610,7 +610,7 @@ public class IncludeParser implements SkyValue {
           break;
         } else if (chars[lineEnd] == '\\') {
           lineEnd++;
-          if (chars[lineEnd] == '\n') {
+          if (lineEnd < end && chars[lineEnd] == '\n') {
             lineEnd++;
           }
         } else {
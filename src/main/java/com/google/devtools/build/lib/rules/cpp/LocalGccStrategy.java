@@ -15,11 +15,13 @@ package com.google.devtools.build.lib.rules.cpp;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.BaseSpawn;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.rules.cpp.IncludeScanner.IncludeScanningPreparer;
 import com.google.devtools.common.options.OptionsClassProvider;
 
 import java.util.Collection;
@@ -39,6 +41,13 @@ public class LocalGccStrategy implements CppCompileActionContext {
     }
   };
 
+  /**
+   * Shared by all builds of the server, so that the inclusions of unchanged headers are not
+   * extracted again. There is no INCLUDE_HINTS file for local builds.
+   */
+  private static final LocalIncludeScanner.ScannerSupplier INCLUDE_SCANNER_SUPPLIER =
+      new LocalIncludeScanner.ScannerSupplier(null);
+
   public LocalGccStrategy(OptionsClassProvider options) {
   }
 
@@ -60,8 +69,17 @@ public class LocalGccStrategy implements CppCompileActionContext {
 
   @Override
   public Collection<Artifact> findAdditionalInputs(CppCompileAction action,
-      ActionExecutionContext actionExecutionContext) throws ExecException, InterruptedException {
-    return null;
+      ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException, ActionExecutionException {
+    if (!action.shouldScanIncludesLocally()) {
+      return null;
+    }
+    // With --experimental_local_include_scanning, declared headers are not compilation
+    // prerequisites. Only the headers that the sources can reach are added, which keeps sandboxed
+    // compiles small; all of them are added if a source has a computed include.
+    return IncludeScanningPreparer.scanForIncludedInputs(action,
+        INCLUDE_SCANNER_SUPPLIER.withFallback(action.getDeclaredIncludeSrcs()),
+        actionExecutionContext, action.getSourceFile().getExecPathString());
   }
 
   @Override
@@ -0,0 +1,349 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.cpp;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactResolver;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.rules.cpp.IncludeParser.Hints;
+import com.google.devtools.build.lib.rules.cpp.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.rules.cpp.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.rules.cpp.IncludeScanner.IncludeScannerSupplier;
+import com.google.devtools.build.lib.skyframe.FileContentsProxy;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An {@link IncludeScanner} that reads the headers of a compilation from the local file system.
+ *
+ * <p>Inclusions are extracted with {@link IncludeParser} and resolved the way gcc resolves them:
+ * {@code #include "name"} is looked up next to the including file, then in the quote include
+ * paths, then in the include paths; {@code #include <name>} only in the include paths; and
+ * {@code #include_next} continues the search after the directory in which the including file
+ * was found. Headers that are not found, or are outside of the execution root (such as the
+ * system headers), are skipped.
+ *
+ * <p>Computed includes ({@code #include MACRO}) cannot be resolved without preprocessing. If the
+ * parser has INCLUDE_HINTS rules, those are trusted to cover them; otherwise all fallback headers
+ * of the scanner (see {@link ScannerSupplier#withFallback}) are added instead.
+ *
+ * <p>The result is then a superset of the headers under the execution root that the compiler
+ * will actually read, and is meant to bound the inputs of a compile before it runs; the .d file
+ * still determines the exact inputs afterwards.
+ */
+final class LocalIncludeScanner implements IncludeScanner {
+  /** Returned by {@link #locate} for a header found next to the including file. */
+  private static final int SAME_DIRECTORY = -1;
+  /** Returned by {@link #locate} for a header that is not on any of the searched paths. */
+  private static final int NOT_FOUND = -2;
+
+  private final ScannerSupplier supplier;
+  @Nullable private final Hints hints;
+  /** The headers that are added if a computed include is found. */
+  private final Iterable<Artifact> fallbackHeaders;
+
+  /** The quote include paths followed by the include paths, in search order. */
+  private final ImmutableList<Path> searchPath;
+  /** The index in {@link #searchPath} at which the search for angle includes starts. */
+  private final int angleStart;
+
+  private LocalIncludeScanner(ScannerSupplier supplier, List<Path> quoteIncludePaths,
+      List<Path> includePaths, Iterable<Artifact> fallbackHeaders) {
+    this.supplier = supplier;
+    this.hints = supplier.parser.getHints();
+    this.fallbackHeaders = fallbackHeaders;
+    this.searchPath = ImmutableList.<Path>builder()
+        .addAll(quoteIncludePaths)
+        .addAll(includePaths)
+        .build();
+    this.angleStart = quoteIncludePaths.size();
+  }
+
+  @Override
+  public void process(Artifact mainSource, Collection<Artifact> sources,
+      Map<Artifact, Path> legalOutputPaths, List<String> cmdlineIncludes, Set<Artifact> includes,
+      ActionExecutionContext actionExecutionContext)
+      throws IOException, ExecException, InterruptedException {
+    Executor executor = actionExecutionContext.getExecutor();
+    process(executor.getExecRoot(),
+        executor.getContext(IncludeScanningContext.class).getArtifactResolver(),
+        mainSource, sources, legalOutputPaths, cmdlineIncludes, includes,
+        actionExecutionContext);
+  }
+
+  @VisibleForTesting
+  void process(Path execRoot, ArtifactResolver artifactResolver, Artifact mainSource,
+      Collection<Artifact> sources, Map<Artifact, Path> legalOutputPaths,
+      List<String> cmdlineIncludes, Set<Artifact> includes,
+      @Nullable ActionExecutionContext actionExecutionContext)
+      throws IOException, InterruptedException {
+    Map<Path, Artifact> generatedFiles = new HashMap<>();
+    for (Artifact generated : legalOutputPaths.keySet()) {
+      generatedFiles.put(generated.getPath(), generated);
+    }
+
+    // A header is scanned once for every directory of the search path it was found in, since
+    // that determines where its #include_next lines continue the search.
+    Set<Pair<Artifact, Integer>> visited = new HashSet<>();
+    Deque<Pair<Artifact, Integer>> worklist = new ArrayDeque<>();
+    Map<Pair<PathFragment, Integer>, Integer> located = new HashMap<>();
+    boolean addedFallbackHeaders = false;
+
+    if (hints != null) {
+      for (Path path : searchPath) {
+        addHinted(hints.getPathLevelHintedInclusions(path), worklist);
+      }
+    }
+    for (Artifact source : sources) {
+      worklist.add(Pair.of(source, SAME_DIRECTORY));
+    }
+    Path mainDirectory = mainSource.getPath().getParentDirectory();
+    for (String cmdlineInclude : cmdlineIncludes) {
+      enqueue(new Inclusion(cmdlineInclude, Kind.QUOTE), mainDirectory, SAME_DIRECTORY, located,
+          execRoot, artifactResolver, generatedFiles, worklist);
+    }
+
+    while (!worklist.isEmpty()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      Pair<Artifact, Integer> next = worklist.removeFirst();
+      if (!visited.add(next)) {
+        continue;
+      }
+      Artifact file = next.getFirst();
+      includes.add(file);
+      if (hints != null) {
+        addHinted(hints.getFileLevelHintedInclusions(file), worklist);
+      }
+      Path directory = file.getPath().getParentDirectory();
+      for (Inclusion inclusion : supplier.getInclusions(file,
+          legalOutputPaths.get(file), actionExecutionContext)) {
+        if (inclusion.kind == Kind.OTHER) {
+          if (hints == null && !addedFallbackHeaders) {
+            Iterables.addAll(includes, fallbackHeaders);
+            addedFallbackHeaders = true;
+          }
+          continue;
+        }
+        enqueue(inclusion, directory, next.getSecond(), located, execRoot, artifactResolver,
+            generatedFiles, worklist);
+      }
+    }
+  }
+
+  private static void addHinted(Collection<Artifact> hinted,
+      Deque<Pair<Artifact, Integer>> worklist) {
+    for (Artifact artifact : hinted) {
+      worklist.add(Pair.of(artifact, SAME_DIRECTORY));
+    }
+  }
+
+  /**
+   * Resolves {@code inclusion} and adds the header it refers to to the worklist, unless it
+   * cannot be found or is not a legal input of the compilation.
+   */
+  private void enqueue(Inclusion inclusion, @Nullable Path includingDirectory,
+      int includingIndex, Map<Pair<PathFragment, Integer>, Integer> located, Path execRoot,
+      ArtifactResolver artifactResolver, Map<Path, Artifact> generatedFiles,
+      Deque<Pair<Artifact, Integer>> worklist) {
+    int index = locate(inclusion, includingDirectory, includingIndex, located);
+    if (index == NOT_FOUND) {
+      return;
+    }
+    Path path = index == SAME_DIRECTORY
+        ? includingDirectory.getRelative(inclusion.pathFragment)
+        : searchPath.get(index).getRelative(inclusion.pathFragment);
+    Artifact header = generatedFiles.get(path);
+    if (header == null && path.startsWith(execRoot)) {
+      // Generated files that are not legal outputs resolve to null here, and are ignored.
+      header = artifactResolver.resolveSourceArtifact(path.relativeTo(execRoot));
+    }
+    if (header != null) {
+      worklist.add(Pair.of(header, index));
+    }
+  }
+
+  /**
+   * Returns the index in {@link #searchPath} of the directory that {@code inclusion} is found
+   * in, {@link #SAME_DIRECTORY} if it is found next to the including file, or
+   * {@link #NOT_FOUND}.
+   *
+   * @param includingIndex the index of the directory the including file was found in, or
+   *     {@link #SAME_DIRECTORY} if it was not found on the search path
+   * @param located the results of earlier lookups on the search path, keyed by the included
+   *     name and the index the search started at
+   */
+  private int locate(Inclusion inclusion, @Nullable Path includingDirectory, int includingIndex,
+      Map<Pair<PathFragment, Integer>, Integer> located) {
+    int start;
+    boolean searchIncludingDirectory = false;
+    switch (inclusion.kind) {
+      case QUOTE:
+        start = 0;
+        searchIncludingDirectory = true;
+        break;
+      case ANGLE:
+        start = angleStart;
+        break;
+      case NEXT_QUOTE:
+      case NEXT_ANGLE:
+        // Like gcc, treat #include_next in a file that was not found on the search path as a
+        // plain #include.
+        if (includingIndex >= 0) {
+          start = includingIndex + 1;
+        } else if (inclusion.kind == Kind.NEXT_QUOTE) {
+          start = 0;
+          searchIncludingDirectory = true;
+        } else {
+          start = angleStart;
+        }
+        break;
+      default:
+        return NOT_FOUND;
+    }
+    if (searchIncludingDirectory && includingDirectory != null
+        && includingDirectory.getRelative(inclusion.pathFragment).isFile()) {
+      return SAME_DIRECTORY;
+    }
+    Pair<PathFragment, Integer> key = Pair.of(inclusion.pathFragment, start);
+    Integer index = located.get(key);
+    if (index == null) {
+      index = NOT_FOUND;
+      for (int i = start; i < searchPath.size(); i++) {
+        if (searchPath.get(i).getRelative(inclusion.pathFragment).isFile()) {
+          index = i;
+          break;
+        }
+      }
+      located.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * Supplies {@link LocalIncludeScanner}s that share one {@link IncludeParser} and the
+   * inclusions it extracted. Unlike other users of the parser, it keeps computed includes, so that
+   * the scanners can tell when they need their fallback headers.
+   *
+   * <p>The inclusions of a file are kept across builds, and reused for as long as the file's
+   * fast digest (or, where the file system has none, its mtime and node id, as in {@link
+   * com.google.devtools.build.lib.skyframe.FileStateValue}) is unchanged. Every scan still
+   * stats each header it reaches, but only reads those that changed.
+   */
+  static final class ScannerSupplier implements IncludeScannerSupplier {
+    private final IncludeParser parser;
+    private final Cache<Path, FileInclusions> inclusionCache;
+
+    ScannerSupplier(@Nullable Hints hints) {
+      this.parser = new IncludeParser((RemoteIncludeExtractor) null, hints) {
+        @Override
+        protected boolean isValidInclusionKind(Kind kind) {
+          return true;
+        }
+      };
+      this.inclusionCache = CacheBuilder.newBuilder()
+          .softValues()
+          .build();
+    }
+
+    @Override
+    public IncludeScanner scannerFor(List<Path> quoteIncludePaths, List<Path> includePaths) {
+      return new LocalIncludeScanner(this, quoteIncludePaths, includePaths,
+          ImmutableList.<Artifact>of());
+    }
+
+    /**
+     * Returns a supplier of scanners that share this supplier's cache, and that add {@code
+     * fallbackHeaders} to the result of a scan which finds a computed include.
+     */
+    IncludeScannerSupplier withFallback(final Iterable<Artifact> fallbackHeaders) {
+      return new IncludeScannerSupplier() {
+        @Override
+        public IncludeScanner scannerFor(List<Path> quoteIncludePaths, List<Path> includePaths) {
+          return new LocalIncludeScanner(ScannerSupplier.this, quoteIncludePaths, includePaths,
+              fallbackHeaders);
+        }
+      };
+    }
+
+    /**
+     * Returns the inclusions of {@code file}, or of {@code greppedFile} if the lines of the
+     * former were already extracted there.
+     */
+    private Collection<Inclusion> getInclusions(Artifact file, @Nullable Path greppedFile,
+        @Nullable ActionExecutionContext actionExecutionContext)
+        throws IOException, InterruptedException {
+      Path scanned = greppedFile != null ? greppedFile : file.getPath();
+      if (!file.isSourceArtifact() && !scanned.exists()) {
+        // A generated header that is not a prerequisite of the compilation may not have been
+        // built yet; nothing it includes can be found.
+        return ImmutableList.of();
+      }
+      // Take the key before reading, so that a file modified in between is read again later.
+      Object contentKey = contentKey(scanned);
+      FileInclusions cached = inclusionCache.getIfPresent(scanned);
+      if (cached != null && cached.contentKey.equals(contentKey)) {
+        return cached.inclusions;
+      }
+      Collection<Inclusion> inclusions =
+          parser.extractInclusions(file, greppedFile, actionExecutionContext);
+      inclusionCache.put(scanned, new FileInclusions(contentKey, inclusions));
+      return inclusions;
+    }
+
+    private static Object contentKey(Path path) throws IOException {
+      byte[] digest = DigestUtils.getFastDigest(path);
+      if (digest != null) {
+        return HashCode.fromBytes(digest);
+      }
+      FileStatus stat = path.stat();
+      return FileContentsProxy.create(stat.getLastModifiedTime(), stat.getNodeId());
+    }
+  }
+
+  /** The inclusions extracted from a file, and the key of the contents they were read from. */
+  private static final class FileInclusions {
+    private final Object contentKey;
+    private final Collection<Inclusion> inclusions;
+
+    private FileInclusions(Object contentKey, Collection<Inclusion> inclusions) {
+      this.contentKey = contentKey;
+      this.inclusions = inclusions;
+    }
+  }
+}
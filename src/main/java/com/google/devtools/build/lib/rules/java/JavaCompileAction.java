@@ -79,6 +79,13 @@ public class JavaCompileAction extends AbstractAction {
   private static final ResourceSet LOCAL_RESOURCES =
       ResourceSet.createWithRamCpuIo(750 /*MB*/, 0.5 /*CPU*/, 0.0 /*IO*/);
 
+  /**
+   * JavaBuilder understands the persistent worker protocol, so compiles may be sent to a
+   * long-lived JavaBuilder process instead of starting a new JVM every time.
+   */
+  private static final ImmutableMap<String, String> EXECUTION_INFO =
+      ImmutableMap.of("supports-workers", "1");
+
   private final CommandLine javaCompileCommandLine;
   private final CommandLine commandLine;
 
@@ -356,7 +363,7 @@ public class JavaCompileAction extends AbstractAction {
 
       final ImmutableList<ActionInput> finalOutputs = ImmutableList.copyOf(outputs);
       Spawn spawn = new BaseSpawn(getCommand(), ImmutableMap.<String, String>of(),
-          ImmutableMap.<String, String>of(), this, LOCAL_RESOURCES) {
+          EXECUTION_INFO, this, LOCAL_RESOURCES) {
         @Override
         public Collection<? extends ActionInput> getOutputFiles() {
           return finalOutputs;
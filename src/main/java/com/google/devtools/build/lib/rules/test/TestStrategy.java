@@ -302,8 +302,8 @@ public abstract class TestStrategy implements TestActionContext {
 
     TestTargetExecutionSettings execSettings = testAction.getExecutionSettings();
     try {
-      if (Arrays.equals(runfilesDir.getRelative("MANIFEST").getMD5Digest(),
-          execSettings.getManifest().getPath().getMD5Digest())) {
+      if (Arrays.equals(runfilesDir.getRelative("MANIFEST").getDigest(),
+          execSettings.getManifest().getPath().getDigest())) {
         return;
       }
     } catch (IOException e1) {
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.io.Flushables;
+import com.google.devtools.build.lib.events.AsynchronousEventHandler;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
@@ -373,8 +374,16 @@ public class BlazeCommandDispatcher {
     PrintStream savedErr = System.err;
 
     EventHandler handler = createEventHandler(outErr, eventHandlerOptions);
+    AsynchronousEventHandler asyncHandler = eventHandlerOptions.asyncOutput
+        ? new AsynchronousEventHandler(handler)
+        : null;
+    if (asyncHandler != null) {
+      // The handler writes to the original streams. Everything written to them directly from here
+      // on, e.g. bug reports, must come after the events reported before it.
+      outErr = asyncHandler.orderedOutErr(outErr);
+    }
     Reporter reporter = runtime.getReporter();
-    reporter.addHandler(handler);
+    reporter.addHandler(asyncHandler != null ? asyncHandler : handler);
     try {
       // While a Blaze command is active, direct all errors to the client's
       // event handler (and out/err streams).
@@ -419,13 +428,24 @@ public class BlazeCommandDispatcher {
       throw new ShutdownBlazeServerException(numericExitCode, e);
     } finally {
       runtime.afterCommand(numericExitCode);
+      if (asyncHandler != null) {
+        // Deliver the queued events before the streams are flushed.
+        reporter.removeHandler(asyncHandler);
+        try {
+          asyncHandler.close();
+        } catch (RuntimeException e) {
+          BugReport.printBug(outErr, e);
+        }
+      }
       // Swallow IOException, as we are already in a finally clause
       Flushables.flushQuietly(outErr.getOutputStream());
       Flushables.flushQuietly(outErr.getErrorStream());
 
       System.setOut(savedOut);
       System.setErr(savedErr);
-      reporter.removeHandler(handler);
+      if (asyncHandler == null) {
+        reporter.removeHandler(handler);
+      }
       releaseHandler(handler);
       runtime.getTimestampGranularityMonitor().waitForTimestampGranularity(outErr);
     }
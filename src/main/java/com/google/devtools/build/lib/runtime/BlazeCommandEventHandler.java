@@ -125,6 +125,14 @@ public class BlazeCommandEventHandler implements EventHandler {
             + "Useful to see what blaze is doing when having multiple terminal tabs.")
     public boolean progressInTermTitle;
 
+    @Option(name = "experimental_async_output",
+        defaultValue = "false",
+        category = "undocumented",
+        help = "If true, messages are written to the terminal by a separate thread, so that a slow "
+            + "terminal does not hold up the build. Progress messages may be dropped when the "
+            + "terminal falls behind.")
+    public boolean asyncOutput;
+
     @Option(name = "experimental_external_repositories",
         defaultValue = "false",
         category = "verbosity",
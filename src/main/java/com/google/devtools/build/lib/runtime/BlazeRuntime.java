@@ -35,6 +35,7 @@ import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.PackageRootResolver;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
 import com.google.devtools.build.lib.actions.cache.NullActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
@@ -643,7 +644,7 @@ public final class BlazeRuntime {
       }
       long startTime = Profiler.nanoTimeMaybe();
       try {
-        actionCache = new CompactPersistentActionCache(getCacheDirectory(), clock);
+        actionCache = newPersistentActionCache();
       } catch (IOException e) {
         LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
         LoggingUtil.logToRemote(Level.WARNING, "Failed to load action cache: "
@@ -652,7 +653,7 @@ public final class BlazeRuntime {
             Event.error("Error during action cache initialization: " + e.getMessage()
             + ". Corrupted files were renamed to '" + getCacheDirectory() + "/*.bad'. "
             + "Blaze will now reset action cache data, causing a full rebuild"));
-        actionCache = new CompactPersistentActionCache(getCacheDirectory(), clock);
+        actionCache = newPersistentActionCache();
       } finally {
         Profiler.instance().logSimpleTask(startTime, ProfilerTask.INFO, "Loading action cache");
       }
@@ -660,6 +661,14 @@ public final class BlazeRuntime {
     return actionCache;
   }
 
+  private ActionCache newPersistentActionCache() throws IOException {
+    if (startupOptionsProvider != null && startupOptionsProvider
+        .getOptions(BlazeServerStartupOptions.class).mappedActionCache) {
+      return new MappedActionCache(getCacheDirectory());
+    }
+    return new CompactPersistentActionCache(getCacheDirectory(), clock);
+  }
+
   /**
    * Removes in-memory caches.
    */
@@ -1458,6 +1467,7 @@ public final class BlazeRuntime {
     if (fs == null) {
       fs = fileSystemImplementation();
     }
+    fs.setDigestFunction(startupOptions.hostHashFunction);
     Path.setFileSystemForSerialization(fs);
 
     Path installBasePath = fs.getPath(installBase);
@@ -15,8 +15,10 @@ package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.FileSystem.DigestFunction;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 
@@ -68,6 +70,15 @@ public class BlazeServerStartupOptions extends OptionsBase {
     }
   }
 
+  /**
+   * Converter for the <code>host_hash_function</code> option.
+   */
+  public static class DigestFunctionConverter extends EnumConverter<DigestFunction> {
+    public DigestFunctionConverter() {
+      super(DigestFunction.class, "hash function");
+    }
+  }
+
   /* Passed from the client to the server, specifies the installation
    * location. The location should be of the form:
    * $OUTPUT_BASE/_blaze_${USER}/install/${MD5_OF_INSTALL_MANIFEST}.
@@ -217,6 +228,21 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + "changes instead of scanning every file for a change.")
   public boolean watchFS;
 
+  @Option(name = "experimental_mapped_action_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Blaze keeps the action cache in a memory-mapped log file instead of "
+          + "loading all of it into memory.")
+  public boolean mappedActionCache;
+
+  @Option(name = "host_hash_function",
+      defaultValue = "MD5",
+      category = "server startup",
+      converter = DigestFunctionConverter.class,
+      help = "The function used to compute the digests of files. Valid values are MD5, SHA1 "
+          + "and SHA256.")
+  public DigestFunction hostHashFunction;
+
   @Option(name = "use_webstatusserver",
       defaultValue = "0",
       category = "server startup",
@@ -28,6 +28,9 @@ import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.ProfilePhaseStatistics;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
+import com.google.devtools.build.lib.profiler.ProfileSummary.CriticalPathComponent;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseSummary;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.chart.AggregatingChartCreator;
 import com.google.devtools.build.lib.profiler.chart.Chart;
@@ -109,6 +112,13 @@ public final class ProfileCommand implements BlazeCommand {
             + "to generate an aggregated diagram.")
     public boolean htmlDetails;
 
+    @Option(name = "streaming",
+        defaultValue = "false",
+        help = "If present, each profile is read in a single pass without keeping its tasks in "
+            + "memory and only the phase summary and the critical path recorded by the build are "
+            + "printed. This also works on the profile of a build that is still running.")
+    public boolean streaming;
+
     @Option(name = "vfs_stats",
         defaultValue = "false",
         help = "If present, include VFS path statistics.")
@@ -170,6 +180,10 @@ public final class ProfileCommand implements BlazeCommand {
       for (String name : options.getResidue()) {
         Path profileFile = runtime.getWorkingDirectory().getRelative(name);
         try {
+          if (opts.streaming) {
+            createStreamingText(runtime, profileFile, out);
+            continue;
+          }
           ProfileInfo info = ProfileInfo.loadProfileVerbosely(
               profileFile, getInfoListener(runtime));
           if (opts.dumpMode != null) {
@@ -204,6 +218,62 @@ public final class ProfileCommand implements BlazeCommand {
     }
   }
 
+  private void createStreamingText(BlazeRuntime runtime, Path profileFile, PrintStream out)
+      throws IOException {
+    InfoListener listener = getInfoListener(runtime);
+    listener.info("Reading " + profileFile.getPathString());
+    ProfileSummary summary = ProfileSummary.summarize(profileFile);
+    if (summary.isCorruptedOrIncomplete()) {
+      listener.warn("Profile file is incomplete or corrupted - only the records written so far "
+          + "were summarized");
+    }
+    listener.info(summary.getComment() + ", " + summary.getTaskCount() + " record(s)");
+
+    out.println("\n=== PHASE SUMMARY INFORMATION ===\n");
+    long duration = 0;
+    for (PhaseSummary phase : summary.getPhases()) {
+      duration += phase.getDuration();
+    }
+    for (PhaseSummary phase : summary.getPhases()) {
+      out.printf(THREE_COLUMN_FORMAT, "Total " + phase.phase.nick + " phase time",
+          TimeUtilities.prettyTime(phase.getDuration()),
+          prettyPercentage(phase.getDuration(), duration));
+    }
+    out.printf(THREE_COLUMN_FORMAT, "Total run time", TimeUtilities.prettyTime(duration),
+        "100.00%");
+
+    for (PhaseSummary phase : summary.getPhases()) {
+      boolean headerNeeded = true;
+      for (ProfilerTask type : ProfilerTask.values()) {
+        ProfileInfo.AggregateAttr stats = phase.getStatsForType(type);
+        if (stats.count > 0 && stats.totalTime > 0) {
+          if (headerNeeded) {
+            out.println("\n=== " + phase.phase.nick.toUpperCase() + " PHASE INFORMATION ===\n");
+            out.println("Total time (across all threads) spent on:");
+            out.printf("%18s %8s %8s %11s%n", "Type", "Total", "Count", "Average");
+            headerNeeded = false;
+          }
+          out.printf("%18s %8s %8d %11s%n", type.toString(),
+              prettyPercentage(stats.totalTime, phase.getTotalDuration()), stats.count,
+              TimeUtilities.prettyTime(stats.totalTime / stats.count));
+        }
+      }
+    }
+
+    List<CriticalPathComponent> criticalPath = summary.getCriticalPath();
+    if (!criticalPath.isEmpty()) {
+      long totalPathTime = summary.getCriticalPathDuration();
+      out.printf("\nCritical path (%s):%n", TimeUtilities.prettyTime(totalPathTime));
+      out.println(String.format("%6s %11s %8s   %s", "Id", "Time", "Percentage", "Description"));
+      for (CriticalPathComponent component : criticalPath) {
+        out.printf("%6d %11s %8s   %s%n", component.id,
+            TimeUtilities.prettyTime(component.duration),
+            prettyPercentage(component.duration, totalPathTime),
+            component.description.replace(':', ' '));
+      }
+    }
+  }
+
   private void createHtml(BlazeRuntime runtime, ProfileInfo info, Path profileFile,
       ProfileOptions opts)
       throws IOException {
@@ -27,8 +27,8 @@ import com.google.devtools.build.lib.unix.LocalServerSocket;
 import com.google.devtools.build.lib.unix.LocalSocketAddress;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.ThreadUtils;
+import com.google.devtools.build.lib.util.io.ChunkedStreamMultiplexer;
 import com.google.devtools.build.lib.util.io.OutErr;
-import com.google.devtools.build.lib.util.io.StreamMultiplexer;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
@@ -470,7 +470,7 @@ public final class RPCServer {
       // We encode the response sent to the client with a multiplexer so
       // we can send three streams (out / err / control) over one wire stream
       // (requestOut).
-      StreamMultiplexer multiplexer = new StreamMultiplexer(requestOut);
+      ChunkedStreamMultiplexer multiplexer = new ChunkedStreamMultiplexer(requestOut);
 
       // We'll be writing control messages (exit code + out of date message)
       // to this control channel.
@@ -92,13 +92,21 @@ public class ASTFileLookupFunction implements SkyFunction {
   private final AtomicReference<PathPackageLocator> pkgLocator;
   private final RuleClassProvider ruleClassProvider;
   private final CachingPackageLocator packageManager;
+  private final SkylarkASTCache astCache;
 
   public ASTFileLookupFunction(AtomicReference<PathPackageLocator> pkgLocator,
       CachingPackageLocator packageManager,
       RuleClassProvider ruleClassProvider) {
+    this(pkgLocator, packageManager, ruleClassProvider, new SkylarkASTCache());
+  }
+
+  ASTFileLookupFunction(AtomicReference<PathPackageLocator> pkgLocator,
+      CachingPackageLocator packageManager, RuleClassProvider ruleClassProvider,
+      SkylarkASTCache astCache) {
     this.pkgLocator = pkgLocator;
     this.packageManager = packageManager;
     this.ruleClassProvider = ruleClassProvider;
+    this.astCache = astCache;
   }
 
   @Override
@@ -119,8 +127,8 @@ public class ASTFileLookupFunction implements SkyFunction {
       boolean parseAsSkylark = astFilePathFragment.getPathString().endsWith(".bzl");
       try {
         ast = parseAsSkylark
-            ? BuildFileAST.parseSkylarkFile(path, env.getListener(),
-                packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
+            ? astCache.parseSkylarkFile(path, env.getListener(),
+                packageManager, ruleClassProvider.getSkylarkValidationEnvironment())
             : BuildFileAST.parseBuildFile(path, env.getListener(),
                 packageManager, false);
       } catch (IOException e) {
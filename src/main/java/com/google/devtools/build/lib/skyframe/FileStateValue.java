@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -152,7 +153,7 @@ abstract class FileStateValue implements SkyValue {
       try {
         byte[] digest = stat.getDigest();
         if (digest == null) {
-          digest = path.getFastDigest();
+          digest = DigestUtils.getFastDigest(path);
         }
         if (digest == null) {
           long mtime = stat.getLastModifiedTime();
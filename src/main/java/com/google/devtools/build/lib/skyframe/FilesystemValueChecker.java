@@ -17,23 +17,29 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
-import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Artifact;
-import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
-import com.google.devtools.build.lib.concurrent.Sharder;
-import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunctionName;
@@ -41,6 +47,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -48,9 +55,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,6 +75,12 @@ class FilesystemValueChecker {
   private static final int DIRTINESS_CHECK_THREADS = 50;
   private static final Logger LOG = Logger.getLogger(FilesystemValueChecker.class.getName());
 
+  /**
+   * Pool shared by all checks, so that a check does not have to start and stop its own threads.
+   * Its threads go away when they have been idle for a while.
+   */
+  private static final ThreadPoolExecutor DIRTINESS_CHECK_POOL = createDirtinessCheckPool();
+
   private static final Predicate<SkyKey> FILE_STATE_AND_DIRECTORY_LISTING_STATE_FILTER =
       SkyFunctionName.functionIsIn(ImmutableSet.of(SkyFunctions.FILE_STATE,
           SkyFunctions.DIRECTORY_LISTING_STATE));
@@ -94,6 +110,20 @@ class FilesystemValueChecker {
     });
   }
 
+  private static ThreadPoolExecutor createDirtinessCheckPool() {
+    // The output checks used to run on four threads per processor, the others on a fixed number.
+    int numThreads =
+        Math.max(DIRTINESS_CHECK_THREADS, Runtime.getRuntime().availableProcessors() * 4);
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("FileSystem Value Checker %d")
+            .setDaemon(true)
+            .build());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
   Iterable<SkyKey> getFilesystemSkyKeys() {
     return Iterables.filter(valuesSupplier.get().keySet(),
         FILE_STATE_AND_DIRECTORY_LISTING_STATE_FILTER);
@@ -137,40 +167,73 @@ class FilesystemValueChecker {
     final int numOutputJobs = Runtime.getRuntime().availableProcessors() * 4;
     final Set<SkyKey> actionSkyKeys =
         Sets.filter(valuesSupplier.get().keySet(), ACTION_FILTER);
-    final Sharder<Pair<SkyKey, ActionExecutionValue>> outputShards =
-        new Sharder<>(numOutputJobs, actionSkyKeys.size());
+    Collection<SkyKey> dirtyKeys = Sets.newConcurrentHashSet();
 
+    // Actions are grouped by the root and the directory of their outputs, so that every shard
+    // stats whole directories.
+    Map<Root, ListMultimap<Path, Pair<SkyKey, ActionExecutionValue>>> actionsByRoot =
+        new HashMap<>();
     for (SkyKey key : actionSkyKeys) {
-      outputShards.add(Pair.of(key, (ActionExecutionValue) valuesSupplier.get().get(key)));
+      ActionExecutionValue value = (ActionExecutionValue) valuesSupplier.get().get(key);
+      if (value == null) {
+        dirtyKeys.add(key);
+        continue;
+      }
+      Artifact output = Iterables.getFirst(value.getAllOutputArtifactData().keySet(), null);
+      if (output == null) {
+        continue;
+      }
+      ListMultimap<Path, Pair<SkyKey, ActionExecutionValue>> actionsByDirectory =
+          actionsByRoot.get(output.getRoot());
+      if (actionsByDirectory == null) {
+        actionsByDirectory = ArrayListMultimap.create();
+        actionsByRoot.put(output.getRoot(), actionsByDirectory);
+      }
+      actionsByDirectory.put(output.getPath().getParentDirectory(), Pair.of(key, value));
     }
-    LOG.info("Sharded action values for batching");
-
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numOutputJobs,
-        new ThreadFactoryBuilder().setNameFormat("FileSystem Output File Invalidator %d").build());
-
-    Collection<SkyKey> dirtyKeys = Sets.newConcurrentHashSet();
-    ThrowableRecordingRunnableWrapper wrapper =
-        new ThrowableRecordingRunnableWrapper("FileSystemValueChecker#getDirtyActionValues");
+    LOG.info("Grouped action values by output directory for batching");
 
     modifiedOutputFilesCounter.set(0);
     modifiedOutputFilesIntraBuildCounter.set(0);
-    for (List<Pair<SkyKey, ActionExecutionValue>> shard : outputShards) {
-      Runnable job = (batchStatter == null)
-          ? outputStatJob(dirtyKeys, shard)
-          : batchStatJob(dirtyKeys, shard, batchStatter);
-      executor.submit(wrapper.wrap(job));
+    // The shards of all roots are queued before waiting, so that the roots are checked
+    // concurrently.
+    RootTimes rootTimes = new RootTimes();
+    CheckVisitor visitor = new CheckVisitor();
+    for (Map.Entry<Root, ListMultimap<Path, Pair<SkyKey, ActionExecutionValue>>> entry
+        : actionsByRoot.entrySet()) {
+      ListMultimap<Path, Pair<SkyKey, ActionExecutionValue>> actionsByDirectory = entry.getValue();
+      int shardSize = Math.max(1, actionsByDirectory.size() / numOutputJobs);
+      List<Pair<SkyKey, ActionExecutionValue>> shard = new ArrayList<>();
+      for (Collection<Pair<SkyKey, ActionExecutionValue>> directoryActions
+          : actionsByDirectory.asMap().values()) {
+        shard.addAll(directoryActions);
+        if (shard.size() >= shardSize) {
+          visitor.execute(
+              rootTimes.timed(entry.getKey(), outputCheckJob(dirtyKeys, shard, batchStatter)));
+          shard = new ArrayList<>();
+        }
+      }
+      if (!shard.isEmpty()) {
+        visitor.execute(
+            rootTimes.timed(entry.getKey(), outputCheckJob(dirtyKeys, shard, batchStatter)));
+      }
     }
-
-    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-    LOG.info("Completed output file stat checks");
-    if (interrupted) {
-      throw new InterruptedException();
+    try {
+      visitor.awaitCompletion();
+    } finally {
+      rootTimes.log();
     }
+    LOG.info("Completed output file stat checks");
     return dirtyKeys;
   }
 
+  private Runnable outputCheckJob(Collection<SkyKey> dirtyKeys,
+      List<Pair<SkyKey, ActionExecutionValue>> shard, @Nullable BatchStat batchStatter) {
+    return (batchStatter == null)
+        ? outputStatJob(dirtyKeys, shard)
+        : batchStatJob(dirtyKeys, shard, batchStatter);
+  }
+
   private Runnable batchStatJob(final Collection<SkyKey> dirtyKeys,
                                        final List<Pair<SkyKey, ActionExecutionValue>> shard,
                                        final BatchStat batchStatter) {
@@ -292,16 +355,44 @@ class FilesystemValueChecker {
   private BatchDirtyResult getDirtyValues(Iterable<SkyKey> values,
                                          Predicate<SkyKey> keyFilter,
                                          final DirtyChecker checker) throws InterruptedException {
-    ExecutorService executor = Executors.newFixedThreadPool(DIRTINESS_CHECK_THREADS,
-        new ThreadFactoryBuilder().setNameFormat("FileSystem Value Invalidator %d").build());
+    BatchDirtyResult batchResult = new BatchDirtyResult();
+    // The values of all roots are queued before waiting, so that the roots are checked
+    // concurrently.
+    RootTimes rootTimes = new RootTimes();
+    CheckVisitor visitor = new CheckVisitor();
+    enqueueChecks(values, keyFilter, checker, batchResult, visitor, rootTimes);
+    try {
+      visitor.awaitCompletion();
+    } finally {
+      rootTimes.log();
+    }
+    return batchResult;
+  }
 
-    final BatchDirtyResult batchResult = new BatchDirtyResult();
-    ThrowableRecordingRunnableWrapper wrapper =
-        new ThrowableRecordingRunnableWrapper("FilesystemValueChecker#getDirtyValues");
-    for (final SkyKey key : values) {
+  private void enqueueChecks(Iterable<SkyKey> keys, Predicate<SkyKey> keyFilter,
+      final DirtyChecker checker, final BatchDirtyResult batchResult, CheckVisitor visitor,
+      RootTimes rootTimes) {
+    // File states are checked one directory at a time, so that file systems that can stat several
+    // files in one call need one call per directory.
+    Map<Path, ListMultimap<Path, SkyKey>> fileStateKeysByRoot = new HashMap<>();
+    for (final SkyKey key : keys) {
       Preconditions.checkState(keyFilter.apply(key), key);
+      RootedPath rootedPath = (RootedPath) key.argument();
+      if (key.functionName() == SkyFunctions.FILE_STATE) {
+        Path directory = rootedPath.asPath().getParentDirectory();
+        if (directory != null) {
+          ListMultimap<Path, SkyKey> fileStateKeysByDirectory =
+              fileStateKeysByRoot.get(rootedPath.getRoot());
+          if (fileStateKeysByDirectory == null) {
+            fileStateKeysByDirectory = ArrayListMultimap.create();
+            fileStateKeysByRoot.put(rootedPath.getRoot(), fileStateKeysByDirectory);
+          }
+          fileStateKeysByDirectory.put(directory, key);
+          continue;
+        }
+      }
       final SkyValue value = valuesSupplier.get().get(key);
-      executor.execute(wrapper.wrap(new Runnable() {
+      visitor.execute(rootTimes.timed(rootedPath.getRoot(), new Runnable() {
         @Override
         public void run() {
           if (value == null) {
@@ -317,13 +408,52 @@ class FilesystemValueChecker {
         }
       }));
     }
+    for (Map.Entry<Path, ListMultimap<Path, SkyKey>> rootEntry : fileStateKeysByRoot.entrySet()) {
+      for (final Map.Entry<Path, Collection<SkyKey>> entry
+          : rootEntry.getValue().asMap().entrySet()) {
+        visitor.execute(rootTimes.timed(rootEntry.getKey(), new Runnable() {
+          @Override
+          public void run() {
+            checkFileStateValues(entry.getKey(), (List<SkyKey>) entry.getValue(), batchResult);
+          }
+        }));
+      }
+    }
+  }
 
-    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-    if (interrupted) {
-      throw new InterruptedException();
+  /**
+   * Checks the file state values of some children of {@code directory}, stat()ing all of them at
+   * once.
+   */
+  private void checkFileStateValues(Path directory, List<SkyKey> keys,
+      BatchDirtyResult batchResult) {
+    String[] names = new String[keys.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = ((RootedPath) keys.get(i).argument()).asPath().getBaseName();
+    }
+    FileStatus[] stats;
+    try {
+      stats = directory.statChildrenIfFound(names, Symlinks.NOFOLLOW);
+    } catch (IOException e) {
+      // Fall back on stat()ing the files one by one to find the ones that failed.
+      stats = null;
+    }
+    for (int i = 0; i < names.length; i++) {
+      SkyKey key = keys.get(i);
+      SkyValue value = valuesSupplier.get().get(key);
+      if (value == null) {
+        // value will be null if the value is in error or part of a cycle.
+        batchResult.add(key, /*newValue=*/null);
+        continue;
+      }
+      RootedPath rootedPath = (RootedPath) key.argument();
+      DirtyResult result = (stats == null)
+          ? checkFileStateValue(rootedPath, (FileStateValue) value, tsgm)
+          : checkFileStateValue(rootedPath, stats[i], (FileStateValue) value, tsgm);
+      if (result.isDirty()) {
+        batchResult.add(key, result.getNewValue());
+      }
     }
-    return batchResult;
   }
 
   private static DirtyResult checkFileStateValue(RootedPath rootedPath,
@@ -340,6 +470,21 @@ class FilesystemValueChecker {
     }
   }
 
+  private static DirtyResult checkFileStateValue(RootedPath rootedPath,
+      @Nullable FileStatus statNoFollow, FileStateValue fileStateValue,
+      TimestampGranularityMonitor tsgm) {
+    try {
+      FileStateValue newValue = (statNoFollow == null)
+          ? FileStateValue.NONEXISTENT_FILE_STATE_NODE
+          : FileStateValue.createWithStatNoFollow(rootedPath,
+              FileStatusWithDigestAdapter.adapt(statNoFollow), tsgm);
+      return newValue.equals(fileStateValue)
+          ? DirtyResult.NOT_DIRTY : DirtyResult.dirtyWithNewValue(newValue);
+    } catch (InconsistentFilesystemException | IOException e) {
+      return DirtyResult.DIRTY;
+    }
+  }
+
   private static DirtyResult checkDirectoryListingStateValue(RootedPath dirRootedPath,
       DirectoryListingStateValue directoryListingStateValue) {
     try {
@@ -415,6 +560,66 @@ class FilesystemValueChecker {
     }
   }
 
+  /**
+   * Runs a batch of checks on {@link #DIRTINESS_CHECK_POOL} and waits for them. Unchecked
+   * exceptions thrown by a check are rethrown by {@link #awaitCompletion}.
+   */
+  private static final class CheckVisitor extends AbstractQueueVisitor {
+    private CheckVisitor() {
+      super(DIRTINESS_CHECK_POOL, /*shutdownOnCompletion=*/false, /*failFastOnException=*/true,
+          /*failFastOnInterrupt=*/true);
+    }
+
+    private void execute(Runnable runnable) {
+      enqueue(runnable);
+    }
+
+    private void awaitCompletion() throws InterruptedException {
+      work(/*interruptWorkers=*/true);
+    }
+  }
+
+  /**
+   * Adds up how long the checks of each root take. The roots are checked concurrently, so every
+   * root is logged as one {@link ProfilerTask#FS_DIRTINESS_CHECK} task that starts with the check
+   * and lasts as long as its jobs took together; the tasks of different roots overlap.
+   */
+  private static final class RootTimes {
+    private final long startTime = Profiler.nanoTimeMaybe();
+    private final ConcurrentMap<Object, AtomicLong> durations = new ConcurrentHashMap<>();
+
+    private Runnable timed(Object root, final Runnable job) {
+      AtomicLong rootDuration = durations.get(root);
+      if (rootDuration == null) {
+        durations.putIfAbsent(root, new AtomicLong());
+        rootDuration = durations.get(root);
+      }
+      final AtomicLong duration = rootDuration;
+      return new Runnable() {
+        @Override
+        public void run() {
+          long jobStart = Profiler.nanoTimeMaybe();
+          try {
+            job.run();
+          } finally {
+            duration.addAndGet(Profiler.nanoTimeMaybe() - jobStart);
+          }
+        }
+      };
+    }
+
+    private void log() {
+      if (startTime < 0) {
+        // The profiler was not running when the check started.
+        return;
+      }
+      for (Map.Entry<Object, AtomicLong> entry : durations.entrySet()) {
+        Profiler.instance().logSimpleTaskDuration(startTime, entry.getValue().get(),
+            ProfilerTask.FS_DIRTINESS_CHECK, entry.getKey());
+      }
+    }
+  }
+
   private static interface DirtyChecker {
     DirtyResult check(SkyKey key, SkyValue oldValue, TimestampGranularityMonitor tsgm);
   }
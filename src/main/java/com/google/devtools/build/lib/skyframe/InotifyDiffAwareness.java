@@ -0,0 +1,421 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.unix.Inotify;
+import com.google.devtools.build.lib.unix.InotifyWatchLimitException;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * File system watcher for local Linux filesystems that talks to inotify directly, rather than
+ * through the Java WatchService like {@link LocalDiffAwareness}.
+ *
+ * <p>Every directory under the path entry gets its own watch. Pending events are read in large
+ * batches and folded into a single {@link ModifiedFileSet} per {@link #getCurrentView} call, and
+ * the tree is walked with the native readdir so that initial registration does not stat every
+ * file. If the kernel event queue overflows, the watches are rebuilt from scratch and the diff
+ * for that one call is {@link ModifiedFileSet#EVERYTHING_MODIFIED}, so the caller falls back to
+ * a full scan instead of discarding the watcher.
+ *
+ * <p>If a path entry has more directories than the per-user inotify watch limit allows, it is
+ * not watched again for the lifetime of the server. Its files are then checked for changes on
+ * every build, instead of registering all watches again just to hit the limit again.
+ */
+public class InotifyDiffAwareness implements DiffAwareness {
+
+  /** The inotify calls the watcher makes; tests replace them with a fake event source. */
+  @VisibleForTesting
+  interface EventSource {
+    int init() throws IOException;
+    int addWatch(int fd, String path, int mask) throws IOException;
+    boolean removeWatch(int fd, int wd);
+    int read(int fd, byte[] buffer) throws IOException;
+    void close(int fd);
+  }
+
+  private static final EventSource NATIVE_EVENT_SOURCE = new EventSource() {
+    @Override
+    public int init() throws IOException {
+      return Inotify.init();
+    }
+
+    @Override
+    public int addWatch(int fd, String path, int mask) throws IOException {
+      return Inotify.addWatch(fd, path, mask);
+    }
+
+    @Override
+    public boolean removeWatch(int fd, int wd) {
+      return Inotify.removeWatch(fd, wd);
+    }
+
+    @Override
+    public int read(int fd, byte[] buffer) throws IOException {
+      return Inotify.read(fd, buffer);
+    }
+
+    @Override
+    public void close(int fd) {
+      Inotify.close(fd);
+    }
+  };
+
+  /** Factory for creating {@link InotifyDiffAwareness} instances. */
+  public static class Factory implements DiffAwareness.Factory {
+    private final EventSource eventSource;
+    /** The resolved path entries that exceeded the watch limit. */
+    private final Set<Path> rootsOverWatchLimit = Sets.newConcurrentHashSet();
+
+    public Factory() {
+      this(NATIVE_EVENT_SOURCE);
+    }
+
+    @VisibleForTesting
+    Factory(EventSource eventSource) {
+      this.eventSource = eventSource;
+    }
+
+    @Override
+    public DiffAwareness maybeCreate(Path pathEntry) {
+      if (OS.getCurrent() != OS.LINUX || !(pathEntry.getFileSystem() instanceof UnixFileSystem)) {
+        return null;
+      }
+      Path resolvedPathEntry;
+      try {
+        resolvedPathEntry = pathEntry.resolveSymbolicLinks();
+      } catch (IOException e) {
+        return null;
+      }
+      if (!LocalDiffAwareness.isWatchable(resolvedPathEntry.asFragment())) {
+        return null;
+      }
+      return create(resolvedPathEntry);
+    }
+
+    /** Returns a watcher for the given resolved path entry, or null if inotify is unavailable. */
+    @VisibleForTesting
+    @Nullable
+    DiffAwareness create(Path resolvedPathEntry) {
+      if (rootsOverWatchLimit.contains(resolvedPathEntry)) {
+        return new OverWatchLimitDiffAwareness();
+      }
+      int fd;
+      try {
+        fd = eventSource.init();
+      } catch (IOException | UnsupportedOperationException | UnsatisfiedLinkError e) {
+        return null;
+      }
+      return new InotifyDiffAwareness(resolvedPathEntry, eventSource, fd, rootsOverWatchLimit);
+    }
+  }
+
+  /**
+   * Stands in for the watcher of a path entry that exceeded the watch limit. Every diff is
+   * {@link ModifiedFileSet#EVERYTHING_MODIFIED}, so the caller checks all files for changes.
+   */
+  private static class OverWatchLimitDiffAwareness implements DiffAwareness {
+    private static final View VIEW = new View() {};
+
+    @Override
+    public View getCurrentView() {
+      return VIEW;
+    }
+
+    @Override
+    public ModifiedFileSet getDiff(View oldView, View newView) {
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /** The events of interest for every watched directory. */
+  private static final int WATCH_MASK = Inotify.IN_MODIFY | Inotify.IN_ATTRIB
+      | Inotify.IN_CREATE | Inotify.IN_DELETE | Inotify.IN_MOVED_FROM | Inotify.IN_MOVED_TO
+      | Inotify.IN_DELETE_SELF | Inotify.IN_MOVE_SELF
+      | Inotify.IN_ONLYDIR | Inotify.IN_DONT_FOLLOW | Inotify.IN_EXCL_UNLINK;
+
+  /** Large enough for at least a thousand events with short names per read. */
+  private static final int EVENT_BUFFER_SIZE = 64 * 1024;
+
+  private int numGetCurrentViewCalls = 0;
+
+  /** Root directory to watch. */
+  private final Path watchRoot;
+
+  private final EventSource eventSource;
+
+  /** Shared with the factory, which stops watching the roots added to it. */
+  private final Set<Path> rootsOverWatchLimit;
+
+  /** Bijection from watch descriptor to the watched directory, relative to the root. */
+  private final HashBiMap<Integer, PathFragment> watchedDirectories = HashBiMap.create();
+
+  private final byte[] eventBuffer = new byte[EVENT_BUFFER_SIZE];
+
+  /** The inotify file descriptor, or -1 once closed. */
+  private int fd;
+
+  private InotifyDiffAwareness(Path watchRoot, EventSource eventSource, int fd,
+      Set<Path> rootsOverWatchLimit) {
+    this.watchRoot = watchRoot;
+    this.eventSource = eventSource;
+    this.fd = fd;
+    this.rootsOverWatchLimit = rootsOverWatchLimit;
+  }
+
+  /**
+   * The inotify queue is inherently sequential and side-effectful, so we enforce this by only
+   * supporting {@link #getDiff} calls that happen to be sequential.
+   */
+  private static class SequentialView implements DiffAwareness.View {
+    private final InotifyDiffAwareness owner;
+    private final int position;
+    private final ModifiedFileSet modifiedFileSet;
+
+    private SequentialView(InotifyDiffAwareness owner, int position,
+        ModifiedFileSet modifiedFileSet) {
+      this.owner = owner;
+      this.position = position;
+      this.modifiedFileSet = modifiedFileSet;
+    }
+
+    private static boolean areInSequence(SequentialView oldView, SequentialView newView) {
+      return oldView.owner == newView.owner && (oldView.position + 1) == newView.position;
+    }
+  }
+
+  @Override
+  public SequentialView getCurrentView() throws BrokenDiffAwarenessException {
+    if (fd < 0) {
+      throw new BrokenDiffAwarenessException("inotify watcher for " + watchRoot + " is closed");
+    }
+    ModifiedFileSet modifiedFileSet;
+    try {
+      if (numGetCurrentViewCalls++ == 0) {
+        registerSubDirectories(watchRoot, PathFragment.EMPTY_FRAGMENT, null);
+        checkRootIsWatched();
+        modifiedFileSet = ModifiedFileSet.NOTHING_MODIFIED;
+      } else {
+        modifiedFileSet = collectChanges();
+      }
+    } catch (BrokenDiffAwarenessException e) {
+      close();
+      throw e;
+    } catch (InotifyWatchLimitException e) {
+      close();
+      rootsOverWatchLimit.add(watchRoot);
+      throw new BrokenDiffAwarenessException("Too many directories below " + watchRoot
+          + " to watch them with inotify (see fs.inotify.max_user_watches); it will not be "
+          + "watched again until the server restarts");
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException("Error encountered with inotify watcher " + e);
+    }
+    return new SequentialView(this, numGetCurrentViewCalls, modifiedFileSet);
+  }
+
+  @Override
+  public ModifiedFileSet getDiff(View oldView, View newView)
+      throws IncompatibleViewException, BrokenDiffAwarenessException {
+    SequentialView oldSequentialView;
+    SequentialView newSequentialView;
+    try {
+      oldSequentialView = (SequentialView) oldView;
+      newSequentialView = (SequentialView) newView;
+    } catch (ClassCastException e) {
+      throw new IncompatibleViewException("Given views are not from InotifyDiffAwareness");
+    }
+    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)) {
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+    return newSequentialView.modifiedFileSet;
+  }
+
+  @Override
+  public void close() {
+    if (fd >= 0) {
+      eventSource.close(fd);
+      fd = -1;
+    }
+    watchedDirectories.clear();
+  }
+
+  /** Drains the inotify queue and returns the paths it reports as changed. */
+  private ModifiedFileSet collectChanges() throws BrokenDiffAwarenessException, IOException {
+    Set<PathFragment> changedPaths = new HashSet<>();
+    // Directories that appeared since the last call, in the order in which they did.
+    Set<PathFragment> createdDirectories = new LinkedHashSet<>();
+    boolean overflowed = false;
+    int length;
+    while ((length = eventSource.read(fd, eventBuffer)) > 0) {
+      ByteBuffer events = ByteBuffer.wrap(eventBuffer, 0, length).order(ByteOrder.nativeOrder());
+      while (events.remaining() >= Inotify.EVENT_HEADER_SIZE) {
+        int wd = events.getInt();
+        int mask = events.getInt();
+        events.getInt(); // cookie
+        int nameLength = events.getInt();
+        String name = decodeName(events.position(), nameLength);
+        events.position(events.position() + nameLength);
+
+        if ((mask & Inotify.IN_Q_OVERFLOW) != 0) {
+          overflowed = true;
+          continue;
+        }
+        PathFragment dir = watchedDirectories.get(wd);
+        if (dir == null) {
+          // A late event for a watch we already dropped.
+          continue;
+        }
+        if ((mask & Inotify.IN_IGNORED) != 0) {
+          // The directory was deleted or unmounted; its parent reports the deletion.
+          watchedDirectories.remove(wd);
+          continue;
+        }
+        if (name.isEmpty()) {
+          if (dir.equals(PathFragment.EMPTY_FRAGMENT)
+              && (mask & (Inotify.IN_DELETE_SELF | Inotify.IN_MOVE_SELF)) != 0) {
+            throw new BrokenDiffAwarenessException(
+                "Root directory " + watchRoot + " was deleted or moved");
+          }
+          // Other events on a watched directory itself are reported by its parent, too.
+          continue;
+        }
+        PathFragment path = dir.getChild(name);
+        changedPaths.add(path);
+        if ((mask & Inotify.IN_ISDIR) != 0) {
+          if ((mask & Inotify.IN_MOVED_FROM) != 0) {
+            // The watches below a moved directory follow it, so they would report events
+            // under the wrong path from now on.
+            unwatchSubtree(path);
+            createdDirectories.remove(path);
+          } else if ((mask & (Inotify.IN_CREATE | Inotify.IN_MOVED_TO)) != 0) {
+            createdDirectories.add(path);
+          }
+        }
+      }
+    }
+
+    if (overflowed) {
+      // Events were dropped, so both the diff and our view of the directory tree are
+      // unreliable. Start over with a fresh descriptor and let the caller scan everything.
+      eventSource.close(fd);
+      fd = -1;
+      watchedDirectories.clear();
+      fd = eventSource.init();
+      registerSubDirectories(watchRoot, PathFragment.EMPTY_FRAGMENT, null);
+      checkRootIsWatched();
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+    checkRootIsWatched();
+
+    // Changes to a new directory before its watch was added have not been reported, so we
+    // register it and treat everything below it as changed.
+    for (PathFragment dir : createdDirectories) {
+      Path path = watchRoot.getRelative(dir);
+      if (path.isDirectory(Symlinks.NOFOLLOW)) {
+        registerSubDirectories(path, dir, changedPaths);
+      }
+    }
+    return ModifiedFileSet.builder().modifyAll(changedPaths).build();
+  }
+
+  /** Decodes a NUL-padded event name, consistently with the rest of the native code. */
+  private String decodeName(int offset, int length) {
+    int end = offset;
+    while (end < offset + length && eventBuffer[end] != 0) {
+      end++;
+    }
+    return new String(eventBuffer, offset, end - offset, ISO_8859_1);
+  }
+
+  private void checkRootIsWatched() throws IOException {
+    if (!watchedDirectories.containsValue(PathFragment.EMPTY_FRAGMENT)) {
+      throw new IOException("Root directory " + watchRoot + " became inaccessible.");
+    }
+  }
+
+  /** Removes the watches of the given directory and all directories below it. */
+  private void unwatchSubtree(PathFragment dir) {
+    List<Integer> stale = new ArrayList<>();
+    for (Map.Entry<Integer, PathFragment> entry : watchedDirectories.entrySet()) {
+      if (entry.getValue().startsWith(dir)) {
+        stale.add(entry.getKey());
+      }
+    }
+    for (Integer wd : stale) {
+      eventSource.removeWatch(fd, wd);
+      watchedDirectories.remove(wd);
+    }
+  }
+
+  /**
+   * Watches the given directory and all directories below it, without following symlinks. If
+   * {@code contents} is non-null, the relative paths of all entries below the directory are added
+   * to it.
+   */
+  private void registerSubDirectories(Path dir, PathFragment relativeDir,
+      @Nullable Collection<PathFragment> contents) throws IOException {
+    // It's important that we register the directory before we list it. This way we are
+    // guaranteed to see new files/directories either on this #getDiff or the next one.
+    int wd;
+    Collection<Dirent> dirents;
+    try {
+      wd = eventSource.addWatch(fd, dir.getPathString(), WATCH_MASK);
+      watchedDirectories.forcePut(wd, relativeDir);
+      dirents = dir.readdir(Symlinks.NOFOLLOW);
+    } catch (FileNotFoundException e) {
+      // Deleted in the meantime; its parent reports that.
+      return;
+    }
+    for (Dirent dirent : dirents) {
+      Path child = dir.getChild(dirent.getName());
+      PathFragment relativeChild = relativeDir.getChild(dirent.getName());
+      if (contents != null) {
+        contents.add(relativeChild);
+      }
+      if (dirent.getType() == Dirent.Type.DIRECTORY
+          || (dirent.getType() == Dirent.Type.UNKNOWN && child.isDirectory(Symlinks.NOFOLLOW))) {
+        registerSubDirectories(child, relativeChild, contents);
+      }
+    }
+  }
+}
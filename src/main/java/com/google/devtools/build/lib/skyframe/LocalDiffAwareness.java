@@ -58,12 +58,8 @@ public class LocalDiffAwareness implements DiffAwareness {
         return null;
       }
       PathFragment resolvedPathEntryFragment = resolvedPathEntry.asFragment();
-      // There's no good way to automatically detect network file systems. We rely on a blacklist
-      // for now (and maybe add a command-line option in the future?).
-      for (String prefix : Constants.WATCHFS_BLACKLIST) {
-        if (resolvedPathEntryFragment.startsWith(new PathFragment(prefix))) {
-          return null;
-        }
+      if (!isWatchable(resolvedPathEntryFragment)) {
+        return null;
       }
 
       WatchService watchService;
@@ -77,6 +73,18 @@ public class LocalDiffAwareness implements DiffAwareness {
     }
   }
 
+  /** Returns whether the given resolved path entry may be watched for changes. */
+  static boolean isWatchable(PathFragment resolvedPathEntry) {
+    // There's no good way to automatically detect network file systems. We rely on a blacklist
+    // for now (and maybe add a command-line option in the future?).
+    for (String prefix : Constants.WATCHFS_BLACKLIST) {
+      if (resolvedPathEntry.startsWith(new PathFragment(prefix))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private int numGetCurrentViewCalls = 0;
 
   /**
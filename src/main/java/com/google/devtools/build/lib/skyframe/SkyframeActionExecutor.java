@@ -765,8 +765,22 @@ public final class SkyframeActionExecutor {
     }
 
     postEvent(new ActionStartedEvent(action, actionStartTime));
-    ResourceSet estimate = action.estimateResourceConsumption(executorEngine);
     ActionExecutionStatusReporter statusReporter = statusReporterRef.get();
+    String outputCacheKey =
+        actionCacheChecker.getOutputCacheKey(action, context.getMetadataHandler());
+    if (outputCacheKey != null && actionCacheChecker.restoreOutputs(action, outputCacheKey)) {
+      // The outputs were produced by an identical action before, there's no need to execute it.
+      try {
+        completeAction(action, token, context.getMetadataHandler(), context.getFileOutErr(),
+            /*outputAlreadyDumped=*/false);
+      } finally {
+        statusReporter.remove(action);
+        postEvent(new ActionCompletionEvent(actionStartTime, action));
+      }
+      return;
+    }
+    ResourceSet estimate = resourceManager.estimateResources(
+        action, action.estimateResourceConsumption(executorEngine));
     try {
       if (estimate == null || estimate == ResourceSet.ZERO) {
         statusReporter.setRunningFromBuildData(action);
@@ -778,6 +792,9 @@ public final class SkyframeActionExecutor {
       boolean outputDumped = executeActionTask(action, context);
       completeAction(action, token, context.getMetadataHandler(),
           context.getFileOutErr(), outputDumped);
+      if (outputCacheKey != null) {
+        actionCacheChecker.storeOutputs(action, outputCacheKey, context.getMetadataHandler());
+      }
     } finally {
       if (estimate != null) {
         resourceManager.releaseResources(action, estimate);
@@ -87,6 +87,7 @@ import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileSystemBatchStat;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -163,6 +164,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final ConcurrentMap<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache =
       Maps.newConcurrentMap();
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
+  // Keeps the ASTs of Skylark files across graph resets; see SkylarkASTCache.
+  private final SkylarkASTCache skylarkAstCache = new SkylarkASTCache();
 
   protected SkyframeBuildView skyframeBuildView;
   private EventHandler errorEventListener;
@@ -293,7 +296,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.PACKAGE_LOOKUP, new PackageLookupFunction(deletedPackages));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
     map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(
-        pkgLocator, packageManager, pkgFactory.getRuleClassProvider()));
+        pkgLocator, packageManager, pkgFactory.getRuleClassProvider(), skylarkAstCache));
     map.put(SkyFunctions.SKYLARK_IMPORTS_LOOKUP, new SkylarkImportLookupFunction(
         pkgFactory.getRuleClassProvider(), pkgFactory));
     map.put(SkyFunctions.GLOB, new GlobFunction());
@@ -1432,7 +1435,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       // Detect external modifications in the output tree.
       FilesystemValueChecker fsnc = new FilesystemValueChecker(memoizingEvaluator, tsgm,
           lastExecutionTimeRange);
-      invalidateDirtyActions(fsnc.getDirtyActionValues(batchStatter));
+      invalidateDirtyActions(fsnc.getDirtyActionValues(batchStatter != null
+          ? batchStatter
+          : new FileSystemBatchStat(directories.getExecRoot())));
       modifiedFiles += fsnc.getNumberOfModifiedOutputFiles();
       outputDirtyFiles += fsnc.getNumberOfModifiedOutputFiles();
       modifiedFilesDuringPreviousBuild += fsnc.getNumberOfModifiedOutputFilesDuringPreviousBuild();
@@ -0,0 +1,97 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.ValidationEnvironment;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+
+/**
+ * A cache of parsed and validated Skylark files that outlives the Skyframe graph.
+ *
+ * <p>Entries are keyed by path and checked against the digest of the content of the file, so a
+ * file that was touched but not changed, or whose {@link ASTFileLookupValue} was thrown away with
+ * the graph, costs a digest computation instead of another pass of the lexer, the parser and the
+ * validator. The events reported while parsing are kept with the AST and replayed on every hit.
+ *
+ * <p>Skylark files cannot include other files, so their AST only depends on their own content and
+ * on the validation environment, which is compared by identity. Values are softly referenced, so
+ * the cache gives way under memory pressure.
+ *
+ * <p>A cached AST is shared by all the builds that hit it. The only part of an AST that changes
+ * after parsing is the frame slots of the local variables of functions, which are resolved during
+ * validation, before the AST is cached; validating the same AST again resolves the same slots.
+ */
+@ThreadSafe
+final class SkylarkASTCache {
+
+  private static final class Entry {
+    private final String contentHashCode;
+    private final ValidationEnvironment validationEnvironment;
+    private final BuildFileAST ast;
+    private final ImmutableList<Event> events;
+
+    private Entry(String contentHashCode, ValidationEnvironment validationEnvironment,
+        BuildFileAST ast, ImmutableList<Event> events) {
+      this.contentHashCode = contentHashCode;
+      this.validationEnvironment = validationEnvironment;
+      this.ast = ast;
+      this.events = events;
+    }
+  }
+
+  private final Cache<Path, Entry> cache = CacheBuilder.newBuilder().softValues().build();
+
+  /**
+   * Returns the AST of the Skylark file at path, like {@link BuildFileAST#parseSkylarkFile}.
+   * The file is only parsed and validated if its content or the validation environment differ
+   * from the cached ones.
+   *
+   * @param validationEnvironment the environment to validate the file against; it is cloned
+   *     before use
+   */
+  BuildFileAST parseSkylarkFile(Path path, EventHandler eventHandler,
+      CachingPackageLocator locator, ValidationEnvironment validationEnvironment)
+      throws IOException {
+    String contentHashCode = ParserInputSource.contentHashCode(path);
+    Entry entry = cache.getIfPresent(path);
+    if (entry != null && entry.contentHashCode.equals(contentHashCode)
+        && entry.validationEnvironment == validationEnvironment) {
+      Event.replayEventsOn(eventHandler, entry.events);
+      return entry.ast;
+    }
+
+    StoredEventHandler storedEventHandler = new StoredEventHandler();
+    BuildFileAST ast = BuildFileAST.parseSkylarkFile(path, storedEventHandler, locator,
+        validationEnvironment.clone());
+    storedEventHandler.replayOn(eventHandler);
+    // If the file changed while it was being read, the AST may not match either digest.
+    if (contentHashCode.equals(ast.getContentHashCode())) {
+      cache.put(path, new Entry(contentHashCode, validationEnvironment, ast,
+          storedEventHandler.getEvents()));
+    }
+    return ast;
+  }
+}
@@ -13,31 +13,41 @@
 // limitations under the License.
 package com.google.devtools.build.lib.standalone;
 
+import com.google.common.base.Splitter;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.actions.ResourceUsageHistory;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Strategy that uses subprocessing to execute a process.
  */
 @ExecutionStrategy(name = { "standalone" }, contextType = SpawnActionContext.class)
 public class LocalSpawnStrategy implements SpawnActionContext {
+  private static final Logger LOG = Logger.getLogger(LocalSpawnStrategy.class.getName());
+
   private final boolean verboseFailures;
 
   private final Path processWrapper;
@@ -65,12 +75,22 @@ public class LocalSpawnStrategy implements SpawnActionContext {
     // All actions therefore depend on the process-wrapper file. Since it's embedded,
     // we don't bother with declaring it as an input.
     List<String> args = new ArrayList<>();
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    ResourceUsageHistory history = ResourceManager.instance().getResourceUsageHistory();
+    Path statsFile = null;
     if (OS.getCurrent() != OS.WINDOWS) {
       // TODO(bazel-team): process-wrapper seems to work on Windows, but requires
       // additional setup as it is an msys2 binary, so it needs msys2 DLLs on %PATH%.
       // Disable it for now to make the setup easier and to avoid further PATH hacks.
       // Ideally we should have a native implementation of process-wrapper for Windows.
       args.add(processWrapper.getPathString());
+      if (history != null && outErr.getOutputFile() != null) {
+        // Ask process-wrapper to report the resources used by the spawn.
+        statsFile = outErr.getOutputFile().getParentDirectory().getChild(
+            outErr.getOutputFile().getBaseName() + ".rusage");
+        args.add("--stats");
+        args.add(statsFile.getPathString());
+      }
       args.add("-1"); /* timeout */
       args.add("0");  /* kill delay. */
 
@@ -84,7 +104,7 @@ public class LocalSpawnStrategy implements SpawnActionContext {
     String cwd = executor.getExecRoot().getPathString();
     Command cmd = new Command(args.toArray(new String[]{}), spawn.getEnvironment(), new File(cwd));
 
-    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    long startTime = BlazeClock.instance().nanoTime();
     try {
       cmd.execute(
           /* stdin */ new byte[]{},
@@ -96,6 +116,36 @@ public class LocalSpawnStrategy implements SpawnActionContext {
       String message = CommandFailureUtils.describeCommandFailure(
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
       throw new UserExecException(String.format("%s: %s", message, e));
+    } finally {
+      if (statsFile != null) {
+        recordResourceUsage(history, spawn.getMnemonic(), statsFile,
+            BlazeClock.instance().nanoTime() - startTime);
+      }
+    }
+  }
+
+  /**
+   * Reads the resource usage written by process-wrapper: the user and system CPU time in seconds
+   * and the peak resident memory in KB, separated by spaces.
+   */
+  private static void recordResourceUsage(ResourceUsageHistory history, String mnemonic,
+      Path statsFile, long wallTimeNanos) {
+    try {
+      if (!statsFile.exists()) {
+        return;
+      }
+      List<String> fields = Splitter.on(' ').splitToList(
+          new String(FileSystemUtils.readContentAsLatin1(statsFile)).trim());
+      statsFile.delete();
+      if (fields.size() != 3 || wallTimeNanos <= 0) {
+        return;
+      }
+      double cpuSeconds = Double.parseDouble(fields.get(0)) + Double.parseDouble(fields.get(1));
+      double memoryMb = Long.parseLong(fields.get(2)) / 1024.0;
+      history.record(mnemonic, cpuSeconds * 1e9 / wallTimeNanos, memoryMb);
+    } catch (IOException | NumberFormatException e) {
+      // The measurement is best effort; the spawn itself succeeded or failed independently.
+      LOG.log(Level.WARNING, "Failed to read the resource usage of a " + mnemonic + " spawn", e);
     }
   }
 
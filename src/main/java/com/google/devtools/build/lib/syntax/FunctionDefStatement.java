@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.syntax.SkylarkType.SkylarkFunctionType;
 
 import java.util.ArrayList;
@@ -21,6 +22,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * Syntax node for a function definition.
  */
@@ -29,6 +32,8 @@ public class FunctionDefStatement extends Statement {
   private final Ident ident;
   private final FunctionSignature.WithValues<Expression, Expression> args;
   private final ImmutableList<Statement> statements;
+  // Set once the body has been validated; see LocalVariableResolver.
+  @Nullable private ImmutableMap<String, Integer> frameLayout;
 
   public FunctionDefStatement(Ident ident,
       FunctionSignature.WithValues<Expression, Expression> args,
@@ -53,7 +58,7 @@ public class FunctionDefStatement extends Statement {
     env.update(ident.getName(), new UserDefinedFunction(
         ident, FunctionSignature.WithValues.<Object, SkylarkType>create(
             args.getSignature(), defaultValues, types),
-        statements, (SkylarkEnvironment) env));
+        statements, (SkylarkEnvironment) env, frameLayout));
   }
 
   @Override
@@ -122,6 +127,7 @@ public class FunctionDefStatement extends Statement {
     for (Statement stmts : statements) {
       stmts.validate(localEnv);
     }
+    frameLayout = LocalVariableResolver.resolve(names, statements);
     env.updateFunction(ident.getName(), type, getLocation());
     // Register a dummy return value with an incompatible type if there was no return statement.
     type.setReturnType(SkylarkType.NONE, getLocation());
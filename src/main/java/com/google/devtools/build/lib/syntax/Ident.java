@@ -18,9 +18,6 @@ package com.google.devtools.build.lib.syntax;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Ident again instead of String as keys.
 // (2) Use Ident, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
 /**
  *  Syntax node for an identifier.
  */
@@ -28,6 +25,10 @@ public final class Ident extends Expression {
 
   private final String name;
 
+  // The index of this variable in the frame of the enclosing function, or -1 if it is not a local
+  // variable of a function whose body has been resolved. See LocalVariableResolver.
+  private int slot = -1;
+
   public Ident(String name) {
     this.name = name;
   }
@@ -39,6 +40,14 @@ public final class Ident extends Expression {
     return name;
   }
 
+  int getSlot() {
+    return slot;
+  }
+
+  void setSlot(int slot) {
+    this.slot = slot;
+  }
+
   @Override
   public String toString() {
     return name;
@@ -47,6 +56,9 @@ public final class Ident extends Expression {
   @Override
   Object eval(Environment env) throws EvalException {
     try {
+      if (slot >= 0 && env instanceof SkylarkEnvironment) {
+        return ((SkylarkEnvironment) env).lookupSlot(slot, name);
+      }
       return env.lookup(name);
     } catch (Environment.NoSuchVariableException e) {
       if (name.equals("$error$")) {
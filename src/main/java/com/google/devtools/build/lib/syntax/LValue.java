@@ -91,7 +91,10 @@ public class LValue implements Serializable {
             + "' is referenced before assignment."
             + "The variable is defined in the global scope.");
       }
-      Class<?> variableType = skylarkEnv.getVariableType(ident.getName());
+      int slot = ident.getSlot();
+      Class<?> variableType = slot >= 0
+          ? skylarkEnv.getSlotType(slot, ident.getName())
+          : skylarkEnv.getVariableType(ident.getName());
       Class<?> resultType = EvalUtils.getSkylarkType(result.getClass());
       if (variableType != null && !variableType.equals(resultType)
           && !resultType.equals(Environment.NoneType.class)
@@ -103,6 +106,10 @@ public class LValue implements Serializable {
             ident.getName(),
             EvalUtils.getDataTypeNameFromClass(variableType)));
       }
+      if (slot >= 0) {
+        skylarkEnv.updateSlot(slot, ident.getName(), result);
+        return;
+      }
     }
     env.update(ident.getName(), result);
   }
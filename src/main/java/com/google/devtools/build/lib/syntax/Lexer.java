@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,10 +37,15 @@ import java.util.Stack;
  * for some details.
  * <p>
  * Since BUILD files are small, we just tokenize the entire file a-priori
- * instead of interleaving scanning with parsing.
+ * instead of interleaving scanning with parsing. The tokens are kept packed in
+ * arrays, and {@link Token} objects are only created when the parser asks for
+ * them. Identifiers and simple string literals are interned per file, so that
+ * a name used many times is only allocated once and the AST shares it.
  */
 public final class Lexer {
 
+  private static final TokenKind[] TOKEN_KINDS = TokenKind.values();
+
   private static final Map<Character, TokenKind> EQUAL_TOKENS =
       ImmutableMap.<Character, TokenKind>of(
           '=', TokenKind.EQUALS_EQUALS,
@@ -75,7 +81,16 @@ public final class Lexer {
   // bottom.
   private final Stack<Integer> indentStack = new Stack<>();
 
-  private final List<Token> tokens = new ArrayList<>();
+  // The kind, left and right offsets of each token, and the values of those
+  // tokens that have one, indexed by token number.
+  private byte[] tokenKinds;
+  private int[] tokenOffsets;
+  private Object[] tokenValues;
+  private int tokenCount = 0;
+
+  // Open-addressing hash table of the strings sliced from the buffer; see intern().
+  private String[] internTable = new String[64];
+  private int internCount = 0;
 
   // The number of unclosed open-parens ("(", '{', '[') at the current point in
   // the stream. Whitespace is handled differently when this is nonzero.
@@ -96,6 +111,11 @@ public final class Lexer {
     this.eventHandler = eventHandler;
     this.locationInfo = new LocationInfo(input.getPath(),
         LineNumberTable.create(buffer, input.getPath()));
+    // BUILD files average a token every four to eight characters.
+    int capacity = Math.max(16, buffer.length / 4);
+    this.tokenKinds = new byte[capacity];
+    this.tokenOffsets = new int[2 * capacity];
+    this.tokenValues = new Object[capacity];
 
     indentStack.push(0);
     tokenize();
@@ -123,12 +143,28 @@ public final class Lexer {
   }
 
   /**
-   * Returns the (mutable) list of tokens generated by the Lexer.
+   * Returns a new list of the tokens generated by the Lexer.
    */
   public List<Token> getTokens() {
+    List<Token> tokens = new ArrayList<>(tokenCount);
+    for (int i = 0; i < tokenCount; i++) {
+      tokens.add(getToken(i));
+    }
     return tokens;
   }
 
+  /**
+   * Returns the token with the given number. The last token is always EOF.
+   */
+  Token getToken(int index) {
+    return new Token(getTokenKind(index), tokenOffsets[2 * index], tokenOffsets[2 * index + 1],
+        tokenValues[index]);
+  }
+
+  private TokenKind getTokenKind(int index) {
+    return TOKEN_KINDS[tokenKinds[index]];
+  }
+
   private void popParen() {
     if (openParenStackDepth == 0) {
       error("indentation error");
@@ -178,9 +214,23 @@ public final class Lexer {
     }
   }
 
+  private void addToken(TokenKind kind, int left, int right) {
+    addToken(kind, left, right, null);
+  }
+
   /** invariant: symbol positions are half-open intervals. */
-  private void addToken(Token s) {
-    tokens.add(s);
+  private void addToken(TokenKind kind, int left, int right, Object value) {
+    if (tokenCount == tokenKinds.length) {
+      int capacity = 2 * tokenCount;
+      tokenKinds = Arrays.copyOf(tokenKinds, capacity);
+      tokenOffsets = Arrays.copyOf(tokenOffsets, 2 * capacity);
+      tokenValues = Arrays.copyOf(tokenValues, capacity);
+    }
+    tokenKinds[tokenCount] = (byte) kind.ordinal();
+    tokenOffsets[2 * tokenCount] = left;
+    tokenOffsets[2 * tokenCount + 1] = right;
+    tokenValues[tokenCount] = value;
+    tokenCount++;
   }
 
   /**
@@ -213,7 +263,7 @@ public final class Lexer {
 
   private void newlineOutsideExpression() {
     if (pos > 1) { // skip over newline at start of file
-      addToken(new Token(TokenKind.NEWLINE, pos - 1, pos));
+      addToken(TokenKind.NEWLINE, pos - 1, pos);
     }
 
     // we're in a stmt: suck up space at beginning of next line
@@ -234,7 +284,7 @@ public final class Lexer {
         while (pos < buffer.length && c != '\n') {
           c = buffer[pos++];
         }
-        addToken(new Token(TokenKind.COMMENT, oldPos, pos - 1, bufferSlice(oldPos, pos - 1)));
+        addToken(TokenKind.COMMENT, oldPos, pos - 1, bufferSlice(oldPos, pos - 1));
         indentLen = 0;
       } else { // printing character
         break;
@@ -248,12 +298,12 @@ public final class Lexer {
     int peekedIndent = indentStack.peek();
     if (peekedIndent < indentLen) { // push a level
       indentStack.push(indentLen);
-      addToken(new Token(TokenKind.INDENT, pos - 1, pos));
+      addToken(TokenKind.INDENT, pos - 1, pos);
 
     } else if (peekedIndent > indentLen) { // pop one or more levels
       while (peekedIndent > indentLen) {
         indentStack.pop();
-        addToken(new Token(TokenKind.OUTDENT, pos - 1, pos));
+        addToken(TokenKind.OUTDENT, pos - 1, pos);
         peekedIndent = indentStack.peek();
       }
 
@@ -282,9 +332,9 @@ public final class Lexer {
    * <p>ON ENTRY: 'pos' is 1 + the index of the first delimiter
    * ON EXIT: 'pos' is 1 + the index of the last delimiter.
    *
-   * @return the string-literal token.
+   * <p>Adds the string-literal token.
    */
-  private Token escapedStringLiteral(char quot) {
+  private void escapedStringLiteral(char quot) {
     boolean inTriplequote = skipTripleQuote(quot);
 
     int oldPos = pos - 1;
@@ -300,13 +350,16 @@ public final class Lexer {
             break;
           } else {
             error("unterminated string literal at eol", oldPos, pos);
+            int end = pos;
             newline();
-            return new Token(TokenKind.STRING, oldPos, pos, literal.toString());
+            addToken(TokenKind.STRING, oldPos, end, literal.toString());
+            return;
           }
         case '\\':
           if (pos == buffer.length) {
             error("unterminated string literal at eof", oldPos, pos);
-            return new Token(TokenKind.STRING, oldPos, pos, literal.toString());
+            addToken(TokenKind.STRING, oldPos, pos, literal.toString());
+            return;
           }
           c = buffer[pos];
           pos++;
@@ -371,7 +424,8 @@ public final class Lexer {
             literal.append(c);
           } else {
             // Matching close-delimiter, all done.
-            return new Token(TokenKind.STRING, oldPos, pos, literal.toString());
+            addToken(TokenKind.STRING, oldPos, pos, literal.toString());
+            return;
           }
           break;
         default:
@@ -380,7 +434,7 @@ public final class Lexer {
       }
     }
     error("unterminated string literal at eof", oldPos, pos);
-    return new Token(TokenKind.STRING, oldPos, pos, literal.toString());
+    addToken(TokenKind.STRING, oldPos, pos, literal.toString());
   }
 
   /**
@@ -391,16 +445,18 @@ public final class Lexer {
    * <li> ON EXIT: 'pos' is 1 + the index of the last delimiter.
    * </ul>
    *
+   * <p>Adds the string-literal token.
+   *
    * @param isRaw if true, do not escape the string.
-   * @return the string-literal token.
    */
-  private Token stringLiteral(char quot, boolean isRaw) {
+  private void stringLiteral(char quot, boolean isRaw) {
     int oldPos = pos - 1;
 
     // Don't even attempt to parse triple-quotes here.
     if (skipTripleQuote(quot)) {
       pos -= 2;
-      return escapedStringLiteral(quot);
+      escapedStringLiteral(quot);
+      return;
     }
 
     // first quick optimistic scan for a simple non-escaped string
@@ -409,10 +465,11 @@ public final class Lexer {
       switch (c) {
         case '\n':
           error("unterminated string literal at eol", oldPos, pos);
-          Token t = new Token(TokenKind.STRING, oldPos, pos,
-                              bufferSlice(oldPos + 1, pos - 1));
+          int end = pos;
+          String value = intern(oldPos + 1, pos - 1);
           newline();
-          return t;
+          addToken(TokenKind.STRING, oldPos, end, value);
+          return;
         case '\\':
           if (isRaw) {
             // skip the next character
@@ -421,21 +478,21 @@ public final class Lexer {
           } else {
             // oops, hit an escape, need to start over & build a new string buffer
             pos = oldPos + 1;
-            return escapedStringLiteral(quot);
+            escapedStringLiteral(quot);
+            return;
           }
         case '\'':
         case '"':
           if (c == quot) {
             // close-quote, all done.
-            return new Token(TokenKind.STRING, oldPos, pos,
-                             bufferSlice(oldPos + 1, pos - 1));
+            addToken(TokenKind.STRING, oldPos, pos, intern(oldPos + 1, pos - 1));
+            return;
           }
       }
     }
 
     error("unterminated string literal at eof", oldPos, pos);
-    return new Token(TokenKind.STRING, oldPos, pos,
-                     bufferSlice(oldPos + 1, pos));
+    addToken(TokenKind.STRING, oldPos, pos, intern(oldPos + 1, pos));
   }
 
   private static final Map<String, TokenKind> keywordMap = new HashMap<>();
@@ -498,10 +555,10 @@ public final class Lexer {
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return intern(oldPos, pos);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return intern(oldPos, pos);
   }
 
   /**
@@ -510,14 +567,13 @@ public final class Lexer {
    * <p>ON ENTRY: 'pos' is 1 + the index of the first char in the identifier.
    * ON EXIT: 'pos' is 1 + the index of the last char in the identifier.
    *
-   * @return the identifier or keyword token.
+   * <p>Adds the identifier or keyword token.
    */
-  private Token identifierOrKeyword() {
+  private void identifierOrKeyword() {
     int oldPos = pos - 1;
     String id = scanIdentifier();
     TokenKind kind = getTokenKindForIdentfier(id);
-    return new Token(kind, oldPos, pos,
-        (kind == TokenKind.IDENTIFIER) ? id : null);
+    addToken(kind, oldPos, pos, (kind == TokenKind.IDENTIFIER) ? id : null);
   }
 
   private String scanInteger() {
@@ -556,9 +612,9 @@ public final class Lexer {
    * <p>ON ENTRY: 'pos' is 1 + the index of the first char in the literal.
    * ON EXIT: 'pos' is 1 + the index of the last char in the literal.
    *
-   * @return the integer token.
+   * <p>Adds the integer token.
    */
-  private Token integer() {
+  private void integer() {
     int oldPos = pos - 1;
     String literal = scanInteger();
 
@@ -582,7 +638,7 @@ public final class Lexer {
       error("invalid base-" + radix + " integer constant: " + literal);
     }
 
-    return new Token(TokenKind.INT, oldPos, pos, value);
+    addToken(TokenKind.INT, oldPos, pos, value);
   }
 
   /**
@@ -604,7 +660,7 @@ public final class Lexer {
     if (tok == null) {
       return false;
     } else {
-      addToken(new Token(tok, pos, pos + 2));
+      addToken(tok, pos, pos + 2);
       return true;
     }
   }
@@ -623,77 +679,77 @@ public final class Lexer {
       pos++;
       switch (c) {
       case '{': {
-        addToken(new Token(TokenKind.LBRACE, pos - 1, pos));
+        addToken(TokenKind.LBRACE, pos - 1, pos);
         openParenStackDepth++;
         break;
       }
       case '}': {
-        addToken(new Token(TokenKind.RBRACE, pos - 1, pos));
+        addToken(TokenKind.RBRACE, pos - 1, pos);
         popParen();
         break;
       }
       case '(': {
-        addToken(new Token(TokenKind.LPAREN, pos - 1, pos));
+        addToken(TokenKind.LPAREN, pos - 1, pos);
         openParenStackDepth++;
         break;
       }
       case ')': {
-        addToken(new Token(TokenKind.RPAREN, pos - 1, pos));
+        addToken(TokenKind.RPAREN, pos - 1, pos);
         popParen();
         break;
       }
       case '[': {
-        addToken(new Token(TokenKind.LBRACKET, pos - 1, pos));
+        addToken(TokenKind.LBRACKET, pos - 1, pos);
         openParenStackDepth++;
         break;
       }
       case ']': {
-        addToken(new Token(TokenKind.RBRACKET, pos - 1, pos));
+        addToken(TokenKind.RBRACKET, pos - 1, pos);
         popParen();
         break;
       }
       case '>': {
-        addToken(new Token(TokenKind.GREATER, pos - 1, pos));
+        addToken(TokenKind.GREATER, pos - 1, pos);
         break;
       }
       case '<': {
-        addToken(new Token(TokenKind.LESS, pos - 1, pos));
+        addToken(TokenKind.LESS, pos - 1, pos);
         break;
       }
       case ':': {
-        addToken(new Token(TokenKind.COLON, pos - 1, pos));
+        addToken(TokenKind.COLON, pos - 1, pos);
         break;
       }
       case ',': {
-        addToken(new Token(TokenKind.COMMA, pos - 1, pos));
+        addToken(TokenKind.COMMA, pos - 1, pos);
         break;
       }
       case '+': {
-        addToken(new Token(TokenKind.PLUS, pos - 1, pos));
+        addToken(TokenKind.PLUS, pos - 1, pos);
         break;
       }
       case '-': {
-        addToken(new Token(TokenKind.MINUS, pos - 1, pos));
+        addToken(TokenKind.MINUS, pos - 1, pos);
         break;
       }
       case '=': {
-        addToken(new Token(TokenKind.EQUALS, pos - 1, pos));
+        addToken(TokenKind.EQUALS, pos - 1, pos);
         break;
       }
       case '%': {
-        addToken(new Token(TokenKind.PERCENT, pos - 1, pos));
+        addToken(TokenKind.PERCENT, pos - 1, pos);
         break;
       }
       case ';': {
-        addToken(new Token(TokenKind.SEMI, pos - 1, pos));
+        addToken(TokenKind.SEMI, pos - 1, pos);
         break;
       }
       case '.': {
-        addToken(new Token(TokenKind.DOT, pos - 1, pos));
+        addToken(TokenKind.DOT, pos - 1, pos);
         break;
       }
       case '*': {
-        addToken(new Token(TokenKind.STAR, pos - 1, pos));
+        addToken(TokenKind.STAR, pos - 1, pos);
         break;
       }
       case ' ':
@@ -707,7 +763,7 @@ public final class Lexer {
         if (pos + 1 < buffer.length && buffer[pos] == '\n') {
           pos++; // skip the end of line character
         } else {
-          addToken(new Token(TokenKind.ILLEGAL, pos - 1, pos, Character.toString(c)));
+          addToken(TokenKind.ILLEGAL, pos - 1, pos, Character.toString(c));
         }
         break;
       }
@@ -725,12 +781,12 @@ public final class Lexer {
             pos++;
           }
         }
-        addToken(new Token(TokenKind.COMMENT, oldPos, pos, bufferSlice(oldPos, pos)));
+        addToken(TokenKind.COMMENT, oldPos, pos, bufferSlice(oldPos, pos));
         break;
       }
       case '\'':
       case '\"': {
-        addToken(stringLiteral(c, false));
+        stringLiteral(c, false);
         break;
       }
       default: {
@@ -739,18 +795,18 @@ public final class Lexer {
             && (buffer[pos] == '\'' || buffer[pos] == '\"')) {
           c = buffer[pos];
           pos++;
-          addToken(stringLiteral(c, true));
+          stringLiteral(c, true);
           break;
         }
 
         if (Character.isDigit(c)) {
-          addToken(integer());
+          integer();
         } else if (Character.isJavaIdentifierStart(c) && c != '$') {
-          addToken(identifierOrKeyword());
+          identifierOrKeyword();
         } else {
           // Some characters in Python are not recognized in Blaze syntax (e.g. '!')
           if (parsePython) {
-            addToken(new Token(TokenKind.ILLEGAL, pos - 1, pos, Character.toString(c)));
+            addToken(TokenKind.ILLEGAL, pos - 1, pos, Character.toString(c));
           } else {
             error("invalid character: '" + c + "'");
           }
@@ -761,19 +817,19 @@ public final class Lexer {
     } // while
 
     if (indentStack.size() > 1) { // top of stack is always zero
-      addToken(new Token(TokenKind.NEWLINE, pos - 1, pos));
+      addToken(TokenKind.NEWLINE, pos - 1, pos);
       while (indentStack.size() > 1) {
         indentStack.pop();
-        addToken(new Token(TokenKind.OUTDENT, pos - 1, pos));
+        addToken(TokenKind.OUTDENT, pos - 1, pos);
       }
     }
 
     // Like Python, always end with a NEWLINE token, even if no '\n' in input:
-    if (tokens.isEmpty() || tokens.get(tokens.size() - 1).kind != TokenKind.NEWLINE) {
-      addToken(new Token(TokenKind.NEWLINE, pos - 1, pos));
+    if (tokenCount == 0 || getTokenKind(tokenCount - 1) != TokenKind.NEWLINE) {
+      addToken(TokenKind.NEWLINE, pos - 1, pos);
     }
 
-    addToken(new Token(TokenKind.EOF, pos, pos));
+    addToken(TokenKind.EOF, pos, pos);
   }
 
   /**
@@ -797,6 +853,59 @@ public final class Lexer {
     return bufferSlice(offsets.first, offsets.second);
   }
 
+  /**
+   * Like {@link #bufferSlice}, but returns the same String for every slice
+   * with the same content.
+   */
+  private String intern(int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buffer[i]; // Same as String.hashCode().
+    }
+    int mask = internTable.length - 1;
+    int i = (hash ^ (hash >>> 16)) & mask;
+    for (String s = internTable[i]; s != null; s = internTable[i]) {
+      if (s.hashCode() == hash && contentEquals(s, start, end)) {
+        return s;
+      }
+      i = (i + 1) & mask;
+    }
+    String s = bufferSlice(start, end);
+    internTable[i] = s;
+    if (++internCount * 2 > internTable.length) {
+      rehashInternTable();
+    }
+    return s;
+  }
+
+  private boolean contentEquals(String s, int start, int end) {
+    if (s.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i - start) != buffer[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehashInternTable() {
+    String[] oldTable = internTable;
+    internTable = new String[2 * oldTable.length];
+    int mask = internTable.length - 1;
+    for (String s : oldTable) {
+      if (s != null) {
+        int hash = s.hashCode();
+        int i = (hash ^ (hash >>> 16)) & mask;
+        while (internTable[i] != null) {
+          i = (i + 1) & mask;
+        }
+        internTable[i] = s;
+      }
+    }
+  }
+
   /**
    * Returns parts of the source buffer based on offsets
    *
@@ -0,0 +1,133 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the local variables of a function body to slots in the frame of the
+ * {@link SkylarkEnvironment} the function is called in.
+ *
+ * <p>The parameters and every variable assigned anywhere in the body (by assignments, for loops,
+ * comprehensions and nested function definitions) are local. They get consecutive slots,
+ * parameters first, and every {@link Ident} of the body that refers to one of them is annotated
+ * with its slot, so that evaluating it is an array access instead of a hash lookup. Other
+ * identifiers are looked up by name, as before.
+ *
+ * <p>This runs after validation, so the body is known to be well-formed.
+ */
+final class LocalVariableResolver extends SyntaxTreeVisitor {
+
+  private final Set<String> locals = new LinkedHashSet<>();
+  private final List<Ident> idents = new ArrayList<>();
+
+  private LocalVariableResolver(List<String> parameters) {
+    locals.addAll(parameters);
+  }
+
+  /**
+   * Annotates the identifiers of the body with their slots and returns the slot of every local
+   * variable of the function.
+   */
+  static ImmutableMap<String, Integer> resolve(List<String> parameters, List<Statement> body) {
+    LocalVariableResolver resolver = new LocalVariableResolver(parameters);
+    resolver.visitAll(body);
+
+    ImmutableMap.Builder<String, Integer> layout = ImmutableMap.builder();
+    int slot = 0;
+    for (String name : resolver.locals) {
+      layout.put(name, slot++);
+    }
+    ImmutableMap<String, Integer> result = layout.build();
+    for (Ident ident : resolver.idents) {
+      Integer identSlot = result.get(ident.getName());
+      ident.setSlot(identSlot != null ? identSlot : -1);
+    }
+    return result;
+  }
+
+  private void declare(Expression lvalue) {
+    if (lvalue instanceof Ident) {
+      locals.add(((Ident) lvalue).getName());
+    } else if (lvalue instanceof ListLiteral) {
+      for (Expression element : ((ListLiteral) lvalue).getElements()) {
+        declare(element);
+      }
+    }
+  }
+
+  @Override
+  public void visit(Ident node) {
+    idents.add(node);
+  }
+
+  @Override
+  public void visit(AssignmentStatement node) {
+    declare(node.getLValue().getExpression());
+    super.visit(node);
+  }
+
+  @Override
+  public void visit(ForStatement node) {
+    declare(node.getVariable().getExpression());
+    super.visit(node);
+  }
+
+  @Override
+  public void visit(ListComprehension node) {
+    for (Map.Entry<LValue, Expression> list : node.getLists()) {
+      declare(list.getKey().getExpression());
+    }
+    super.visit(node);
+  }
+
+  @Override
+  public void accept(DictComprehension node) {
+    declare(node.getLoopVar().getExpression());
+    super.accept(node);
+  }
+
+  @Override
+  public void visit(FunctionDefStatement node) {
+    // The name of a nested function is a local variable, but its body has its own frame.
+    locals.add(node.getIdent().getName());
+    List<Expression> defaults = node.getArgs().getDefaultValues();
+    if (defaults != null) {
+      visitAll(defaults);
+    }
+  }
+
+  @Override
+  public void visit(FuncallExpression node) {
+    // The name of a method is not a variable.
+    if (node.getObject() != null) {
+      visit(node.getObject());
+    } else {
+      visit(node.getFunction());
+    }
+    visitAll(node.getArguments());
+  }
+
+  @Override
+  public void visit(DotExpression node) {
+    // Neither is the name of a field.
+    visit(node.getObj());
+  }
+}
@@ -32,7 +32,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -136,7 +135,7 @@ class Parser {
       EnumSet.of(Operator.MINUS, Operator.PLUS),
       EnumSet.of(Operator.MULT, Operator.PERCENT));
 
-  private Iterator<Token> tokens = null;
+  private int nextTokenIndex = 0;
   private int errorsCount;
   private boolean recoveryMode;  // stop reporting errors until next statement
 
@@ -149,7 +148,6 @@ class Parser {
     this.lexer = lexer;
     this.eventHandler = eventHandler;
     this.parsePython = parsePython;
-    this.tokens = lexer.getTokens().iterator();
     this.comments = new ArrayList<>();
     this.locator = locator;
     this.includedFiles = new ArrayList<>();
@@ -330,11 +328,11 @@ class Parser {
       pushedToken = null;
     } else {
       if (token == null || token.kind != TokenKind.EOF) {
-        token = tokens.next();
+        token = lexer.getToken(nextTokenIndex++);
         // transparently handle comment tokens
         while (token.kind == TokenKind.COMMENT) {
           makeComment(token);
-          token = tokens.next();
+          token = lexer.getToken(nextTokenIndex++);
         }
       }
     }
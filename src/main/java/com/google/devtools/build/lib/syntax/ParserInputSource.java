@@ -107,6 +107,14 @@ public abstract class ParserInputSource {
    * Returns a hash code calculated from the string content of this file.
    */
   public String contentHashCode() throws IOException {
-    return HashCode.fromBytes(getPath().getMD5Digest()).toString();
+    return contentHashCode(getPath());
+  }
+
+  /**
+   * Returns a hash code calculated from the current content of the file at path, in the same
+   * form as {@link #contentHashCode()}. It uses the digest function of the file system.
+   */
+  public static String contentHashCode(Path path) throws IOException {
+    return HashCode.fromBytes(path.getDigest()).toString();
   }
 }
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.syntax;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -48,6 +49,16 @@ public class SkylarkEnvironment extends Environment implements Serializable {
 
   @Nullable private String fileContentHashCode;
 
+  /**
+   * Maps the local variables of the function this Environment was created for to their index in
+   * {@link #frame}. Null for global Environments and for functions whose body has not been
+   * resolved, in which case all variables live in the hash map of the Environment. Assigned local
+   * variables shadow disabled global ones.
+   */
+  @Nullable private final ImmutableMap<String, Integer> frameLayout;
+
+  @Nullable private final Object[] frame;
+
   /**
    * Creates a Skylark Environment for function calling, from the global Environment of the
    * caller Environment (which must be a Skylark Environment).
@@ -66,7 +77,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     SkylarkEnvironment childEnv =
         // Always use the caller Environment's EventHandler. We cannot assume that the
         // definition Environment's EventHandler is still working properly.
-        new SkylarkEnvironment(definitionEnv, stackTrace, callerEnv.eventHandler);
+        new SkylarkEnvironment(definitionEnv, stackTrace, callerEnv.eventHandler,
+            function.getFrameLayout());
     try {
       for (String varname : callerEnv.propagatingVariables) {
         childEnv.updateAndPropagate(varname, callerEnv.lookup(varname));
@@ -81,11 +93,13 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   }
 
   private SkylarkEnvironment(SkylarkEnvironment definitionEnv, ImmutableList<String> stackTrace,
-      EventHandler eventHandler) {
+      EventHandler eventHandler, @Nullable ImmutableMap<String, Integer> frameLayout) {
     super(definitionEnv.getGlobalEnvironment());
     this.stackTrace = stackTrace;
     this.eventHandler = Preconditions.checkNotNull(eventHandler,
         "EventHandler cannot be null in an Environment which calls into Skylark");
+    this.frameLayout = frameLayout;
+    this.frame = frameLayout != null ? new Object[frameLayout.size()] : null;
   }
 
   /**
@@ -96,6 +110,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     stackTrace = ImmutableList.of();
     this.eventHandler = eventHandler;
     this.fileContentHashCode = astFileContentHashCode;
+    this.frameLayout = null;
+    this.frame = null;
   }
 
   @VisibleForTesting
@@ -107,6 +123,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     super(globalEnv);
     stackTrace = ImmutableList.of();
     this.eventHandler = globalEnv.eventHandler;
+    this.frameLayout = null;
+    this.frame = null;
   }
 
   @Override
@@ -163,6 +181,10 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    */
   @Override
   public Object lookup(String varname) throws NoSuchVariableException {
+    Integer slot = getSlot(varname);
+    if (slot != null && frame[slot] != null) {
+      return frame[slot];
+    }
     if (disabledVariables.contains(varname)) {
       throw new NoSuchVariableException(varname);
     }
@@ -193,7 +215,42 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   @Override
   public void update(String varname, Object value) {
     Preconditions.checkNotNull(value, "update(value == null)");
-    env.put(varname, value);
+    Integer slot = getSlot(varname);
+    if (slot != null) {
+      frame[slot] = value;
+    } else {
+      env.put(varname, value);
+    }
+  }
+
+  @Override
+  public Object remove(String varname) {
+    Integer slot = getSlot(varname);
+    if (slot != null) {
+      Object value = frame[slot];
+      frame[slot] = null;
+      return value;
+    }
+    return super.remove(varname);
+  }
+
+  @Override
+  protected boolean hasVariable(String varname) {
+    return getLocal(varname) != null;
+  }
+
+  @Override
+  public Set<String> getVariableNames() {
+    if (frameLayout == null) {
+      return super.getVariableNames();
+    }
+    Set<String> vars = new HashSet<>(super.getVariableNames());
+    for (Map.Entry<String, Integer> entry : frameLayout.entrySet()) {
+      if (frame[entry.getValue()] != null) {
+        vars.add(entry.getKey());
+      }
+    }
+    return vars;
   }
 
   /**
@@ -201,7 +258,61 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    * works only in the local Environment, it doesn't check the global Environment.
    */
   public Class<?> getVariableType(String varname) {
-    Object variable = env.get(varname);
+    return getType(getLocal(varname));
+  }
+
+  /**
+   * Like {@link #lookup(String)}, but reads the local variable "varname" from the given slot of
+   * the frame if it has been assigned there. The slot must come from the layout of the function
+   * this Environment was created for.
+   */
+  Object lookupSlot(int slot, String varname) throws NoSuchVariableException {
+    if (hasSlot(slot)) {
+      Object value = frame[slot];
+      if (value != null) {
+        return value;
+      }
+    }
+    return lookup(varname);
+  }
+
+  /**
+   * Like {@link #update(String, Object)}, but writes the local variable "varname" directly to the
+   * given slot of the frame.
+   */
+  void updateSlot(int slot, String varname, Object value) {
+    if (hasSlot(slot)) {
+      frame[slot] = Preconditions.checkNotNull(value, "update(value == null)");
+    } else {
+      update(varname, value);
+    }
+  }
+
+  /**
+   * Like {@link #getVariableType(String)}, but reads the local variable "varname" from the given
+   * slot of the frame.
+   */
+  Class<?> getSlotType(int slot, String varname) {
+    return hasSlot(slot) ? getType(frame[slot]) : getVariableType(varname);
+  }
+
+  private boolean hasSlot(int slot) {
+    return frame != null && slot < frame.length;
+  }
+
+  @Nullable
+  private Integer getSlot(String varname) {
+    return frameLayout != null ? frameLayout.get(varname) : null;
+  }
+
+  @Nullable
+  private Object getLocal(String varname) {
+    Integer slot = getSlot(varname);
+    return slot != null ? frame[slot] : env.get(varname);
+  }
+
+  @Nullable
+  private static Class<?> getType(@Nullable Object variable) {
     return variable != null ? EvalUtils.getSkylarkType(variable.getClass()) : null;
   }
 
@@ -52,6 +52,9 @@ public class SyntaxTreeVisitor {
   }
 
   public void visit(FuncallExpression node) {
+    if (node.getObject() != null) {
+      visit(node.getObject());
+    }
     visit(node.getFunction());
     visitAll(node.getArguments());
   }
@@ -140,6 +143,28 @@ public class SyntaxTreeVisitor {
   public void visit(Comment node) {
   }
 
+  public void visit(ForStatement node) {
+    visit(node.getVariable().getExpression());
+    visit(node.getCollection());
+    visitAll(node.block());
+  }
+
+  public void visit(ReturnStatement node) {
+    visit(node.getReturnExpression());
+  }
+
+  public void visit(LoadStatement node) {
+    visitAll(node.getSymbols());
+  }
+
+  public void visit(DotExpression node) {
+    visit(node.getObj());
+    visit(node.getField());
+  }
+
+  public void visit(Parameter<?, ?> node) {
+  }
+
   public void visit(ConditionalExpression node) {
     visit(node.getThenCase());
     visit(node.getCondition());
@@ -14,8 +14,11 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.Location;
 
+import javax.annotation.Nullable;
+
 /**
  * The actual function registered in the environment. This function is defined in the
  * parsed code using {@link FunctionDefStatement}.
@@ -24,14 +27,17 @@ public class UserDefinedFunction extends BaseFunction {
 
   private final ImmutableList<Statement> statements;
   private final SkylarkEnvironment definitionEnv;
+  @Nullable private final ImmutableMap<String, Integer> frameLayout;
 
   protected UserDefinedFunction(Ident function,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
-      ImmutableList<Statement> statements, SkylarkEnvironment definitionEnv) {
+      ImmutableList<Statement> statements, SkylarkEnvironment definitionEnv,
+      @Nullable ImmutableMap<String, Integer> frameLayout) {
     super(function.getName(), signature, function.getLocation());
 
     this.statements = statements;
     this.definitionEnv = definitionEnv;
+    this.frameLayout = frameLayout;
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -46,6 +52,15 @@ public class UserDefinedFunction extends BaseFunction {
     return location;
   }
 
+  /**
+   * Returns the slots of the local variables of this function, as computed by
+   * {@link LocalVariableResolver}, or null if the body has not been resolved.
+   */
+  @Nullable
+  ImmutableMap<String, Integer> getFrameLayout() {
+    return frameLayout;
+  }
+
 
   @Override
   public Object call(Object[] arguments, FuncallExpression ast, Environment env)
@@ -54,10 +69,12 @@ public class UserDefinedFunction extends BaseFunction {
         env, definitionEnv, this);
     ImmutableList<String> names = signature.getSignature().getNames();
 
-    // Registering the functions's arguments as variables in the local Environment
+    // Registering the functions's arguments as variables in the local Environment. The
+    // parameters always occupy the first slots of the frame, in order.
     int i = 0;
     for (String name : names) {
-      functionEnv.update(name, arguments[i++]);
+      functionEnv.updateSlot(i, name, arguments[i]);
+      i++;
     }
 
     try {
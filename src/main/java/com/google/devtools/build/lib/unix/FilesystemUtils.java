@@ -203,6 +203,22 @@ public final class FilesystemUtils {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX fstatat(2) syscall, for a batch of entries
+   * of the same directory. The directory is opened once and each name is
+   * stat()ed relative to it, all in a single call into native code.
+   *
+   * @param directory the directory containing the files to stat.
+   * @param names the names of the files to stat; each must be a single path
+   *   segment.
+   * @param followSymlinks whether to stat(2) or lstat(2) the files.
+   * @return an ErrnoFileStatus instance for each name, in the same order.
+   *   If the directory could not be opened, each of them has the error of
+   *   opening it.
+   */
+  public static native ErrnoFileStatus[] errnoStatAt(String directory, String[] names,
+      boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -0,0 +1,100 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.UnixJniLoader;
+
+import java.io.IOException;
+
+/**
+ * Native wrappers around the Linux inotify(7) API. All methods throw
+ * {@link UnsupportedOperationException} on platforms without inotify.
+ *
+ * <p>Events are returned as the raw bytes of {@code struct inotify_event}s, in native byte
+ * order: the watch descriptor, the event mask, the cookie and the length of the name, each
+ * a 32-bit integer, followed by the NUL-padded name.
+ */
+public final class Inotify {
+
+  private Inotify() {}
+
+  static {
+    UnixJniLoader.loadJni();
+  }
+
+  // Event masks, from <sys/inotify.h>.
+  public static final int IN_MODIFY = 0x00000002;
+  public static final int IN_ATTRIB = 0x00000004;
+  public static final int IN_CLOSE_WRITE = 0x00000008;
+  public static final int IN_MOVED_FROM = 0x00000040;
+  public static final int IN_MOVED_TO = 0x00000080;
+  public static final int IN_CREATE = 0x00000100;
+  public static final int IN_DELETE = 0x00000200;
+  public static final int IN_DELETE_SELF = 0x00000400;
+  public static final int IN_MOVE_SELF = 0x00000800;
+
+  // Flags only set in returned events.
+  public static final int IN_Q_OVERFLOW = 0x00004000;
+  public static final int IN_IGNORED = 0x00008000;
+  public static final int IN_ISDIR = 0x40000000;
+
+  // Flags only accepted by addWatch.
+  public static final int IN_ONLYDIR = 0x01000000;
+  public static final int IN_DONT_FOLLOW = 0x02000000;
+  public static final int IN_EXCL_UNLINK = 0x04000000;
+
+  /** The size of the fixed part of an event; the name follows it. */
+  public static final int EVENT_HEADER_SIZE = 16;
+
+  /**
+   * Native wrapper around Linux inotify_init1(2). The returned descriptor is non-blocking and
+   * close-on-exec.
+   *
+   * @return the inotify file descriptor.
+   * @throws IOException if the descriptor could not be created.
+   */
+  public static native int init() throws IOException;
+
+  /**
+   * Native wrapper around Linux inotify_add_watch(2). Adding a watch for a path that is
+   * already watched returns the existing watch descriptor and replaces its mask.
+   *
+   * @return the watch descriptor.
+   * @throws InotifyWatchLimitException if the per-user watch limit was reached.
+   * @throws IOException if the watch could not be added for another reason, e.g. because the
+   *     path does not exist.
+   */
+  public static native int addWatch(int fd, String path, int mask) throws IOException;
+
+  /**
+   * Native wrapper around Linux inotify_rm_watch(2).
+   *
+   * @return false if the watch did not exist anymore.
+   */
+  public static native boolean removeWatch(int fd, int wd);
+
+  /**
+   * Reads as many pending events as fit into {@code buffer} without blocking.
+   *
+   * @return the number of bytes read, or 0 if there are no pending events.
+   * @throws IOException if the read failed, e.g. because the buffer is too small for the next
+   *     event.
+   */
+  public static native int read(int fd, byte[] buffer) throws IOException;
+
+  /**
+   * Closes the inotify file descriptor, removing all of its watches.
+   */
+  public static native void close(int fd);
+}
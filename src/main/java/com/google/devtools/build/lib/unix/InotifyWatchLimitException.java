@@ -0,0 +1,33 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import java.io.IOException;
+
+/**
+ * An IOException subclass that is thrown when inotify_add_watch(2) returns an
+ * ENOSPC errno, i.e. when the per-user limit on the number of inotify watches
+ * (fs.inotify.max_user_watches) was reached.
+ */
+public class InotifyWatchLimitException extends IOException {
+  /**
+   * Constructs an <code>InotifyWatchLimitException</code> with the specified
+   * detail message.
+   *
+   * @param s the detail message.
+   */
+  public InotifyWatchLimitException(String s) {
+    super(s);
+  }
+}
@@ -15,18 +15,20 @@
 package com.google.devtools.build.lib.util;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Representation of a set of file dependencies for a given output file. There
@@ -50,9 +52,15 @@ import java.util.regex.Pattern;
  */
 public final class DependencySet {
 
-  private static final Pattern DOTD_MERGED_LINE_SEPARATOR = Pattern.compile("\\\\[\n\r]+");
-  private static final Pattern DOTD_LINE_SEPARATOR = Pattern.compile("[\n\r]+");
-  private static final Pattern DOTD_DEP = Pattern.compile("(?:[^\\s\\\\]++|\\\\ |\\\\)+");
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Parsed dependencies by their spelling in .d files, shared by all instances. The same headers
+   * show up in the .d files of many compiles, so this saves splitting, interning and normalizing
+   * their paths over and over.
+   */
+  private static final Cache<String, PathFragment> pathCache =
+      CacheBuilder.newBuilder().softValues().maximumSize(1 << 17).build();
 
   /**
    * The set of dependent files that this DependencySet embodies. May be
@@ -112,7 +120,23 @@ public final class DependencySet {
    * Reads a dotd file into this DependencySet instance.
    */
   public DependencySet read(Path dotdFile) throws IOException {
-    return process(FileSystemUtils.readContent(dotdFile));
+    try (InputStream in = dotdFile.getInputStream()) {
+      return process(in);
+    }
+  }
+
+  /**
+   * Parses a .d file from a stream, without reading all of it into memory first.
+   */
+  public DependencySet process(InputStream in) throws IOException {
+    Parser parser = new Parser();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      parser.parse(buffer, n);
+    }
+    parser.finish();
+    return this;
   }
 
   /**
@@ -122,74 +146,130 @@ public final class DependencySet {
    * them reach into hundreds of kilobytes.
    */
   public DependencySet process(byte[] content) {
-    // true if there is a CR in the input.
-    boolean cr = content.length > 0 && content[0] == '\r';
-    // true if there is more than one line in the input, not counting \-wrapped lines.
-    boolean multiline = false;
-
-    byte prevByte = ' ';
-    for (int i = 1; i < content.length; i++) {
-      byte b = content[i];
-      if (cr || b == '\r') {
-        // CR found, abort since our little loop here does not deal with CR/LFs.
-        cr = true;
-        break;
-      }
-      if (b == '\n') {
-        // Merge lines wrapped using backslashes.
-        if (prevByte == '\\') {
-          content[i] = ' ';
-          content[i - 1] = ' ';
-        } else {
-          multiline = true;
+    Parser parser = new Parser();
+    parser.parse(content, content.length);
+    parser.finish();
+    return this;
+  }
+
+  /**
+   * Returns the path for a dependency as spelled in a .d file.
+   */
+  private static PathFragment toPathFragment(String token) {
+    PathFragment path = pathCache.getIfPresent(token);
+    if (path == null) {
+      path = new PathFragment(token).normalize();
+      pathCache.put(token, path);
+    }
+    return path;
+  }
+
+  /**
+   * A single-pass tokenizer for .d files that can be fed the file in chunks.
+   *
+   * <p>Every line that contains a colon lists the dependencies of the output file named before
+   * the colon. Lines can be continued with a backslash, dependencies are separated by whitespace,
+   * and a backslash followed by a space is a space within a dependency. Any other backslash is
+   * kept, since it may be a separator of a Windows path.
+   */
+  private final class Parser {
+    private byte[] token = new byte[256];
+    private int tokenLength;
+    /** Whether the colon of the current line has not been seen yet. */
+    private boolean inOutputFileName = true;
+    private boolean pendingBackslash;
+    /** Whether a line feed ends a continuation that was ended by a carriage return. */
+    private boolean skipLineFeed;
+
+    void parse(byte[] content, int length) {
+      for (int i = 0; i < length; i++) {
+        byte b = content[i];
+        if (skipLineFeed) {
+          skipLineFeed = false;
+          if (b == '\n') {
+            continue;
+          }
+        }
+        if (pendingBackslash) {
+          pendingBackslash = false;
+          if (b == '\n' || b == '\r') {
+            // Line continuation.
+            skipLineFeed = b == '\r';
+            endToken();
+            continue;
+          } else if (b == ' ') {
+            append((byte) ' ');
+            continue;
+          }
+          append((byte) '\\');
+        }
+        switch (b) {
+          case '\\':
+            pendingBackslash = true;
+            break;
+          case '\n':
+          case '\r':
+            endLine();
+            break;
+          case ' ':
+          case '\t':
+          case '\f':
+          case 0x0B:  // vertical tab
+            endToken();
+            break;
+          case ':':
+            if (inOutputFileName) {
+              outputFileName = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+              tokenLength = 0;
+              inOutputFileName = false;
+              break;
+            }
+            append(b);
+            break;
+          default:
+            append(b);
         }
       }
-      prevByte = b;
     }
 
-    if (!cr && content.length > 0 && content[content.length - 1] == '\n') {
-      content[content.length - 1] = ' ';
+    void finish() {
+      if (pendingBackslash) {
+        pendingBackslash = false;
+        append((byte) '\\');
+      }
+      endLine();
     }
 
-    String s = new String(content, StandardCharsets.UTF_8);
-    if (cr) {
-      s = DOTD_MERGED_LINE_SEPARATOR.matcher(s).replaceAll(" ").trim();
-      multiline = true;
+    private void append(byte b) {
+      if (tokenLength == token.length) {
+        token = Arrays.copyOf(token, tokenLength * 2);
+      }
+      token[tokenLength++] = b;
     }
-    return process(s, multiline);
-  }
 
-  private DependencySet process(String contents, boolean multiline) {
-    String[] lines;
-    if (!multiline) {
-      // Microoptimization: skip the usually unnecessary expensive-ish splitting step if there is
-      // only one target. This saves about 20% of CPU time.
-      lines = new String[] { contents };
-    } else {
-      lines = DOTD_LINE_SEPARATOR.split(contents);
+    private void endToken() {
+      if (inOutputFileName) {
+        // Keep the whole output file name, spaces included.
+        if (tokenLength > 0) {
+          append((byte) ' ');
+        }
+        return;
+      }
+      if (tokenLength > 0) {
+        dependencies.add(
+            toPathFragment(new String(token, 0, tokenLength, StandardCharsets.UTF_8)));
+        tokenLength = 0;
+      }
     }
 
-    for (String line : lines) {
-      // Split off output file name.
-      int pos = line.indexOf(':');
-      if (pos == -1) {
-        continue;
-      }
-      outputFileName = line.substring(0, pos);
-      
-      String deps = line.substring(pos + 1);
-
-      Matcher m = DOTD_DEP.matcher(deps);
-      while (m.find()) {
-        String token = m.group();
-        // Process escaped spaces.
-        if (token.contains("\\ ")) {
-          token = token.replace("\\ ", " ");
-        }
-        dependencies.add(new PathFragment(token).normalize());
+    private void endLine() {
+      if (!inOutputFileName) {
+        endToken();
       }
+      // A line without a colon lists no dependencies.
+      tokenLength = 0;
+      inOutputFileName = true;
     }
-    return this;
   }
 
   /**
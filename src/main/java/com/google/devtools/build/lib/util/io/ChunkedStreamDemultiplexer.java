@@ -0,0 +1,114 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The dual of {@link ChunkedStreamMultiplexer}: an output stream into which
+ * you can dump the multiplexed stream, and which delegates the de-multiplexed
+ * content back into separate channels (instances of {@link OutputStream}).
+ *
+ * <p>For the format, please see {@link ChunkedStreamMultiplexer}.
+ */
+@ThreadCompatible
+public final class ChunkedStreamDemultiplexer extends OutputStream {
+
+  /**
+   * The output streams, conveniently in an array indexed by the marker byte.
+   * Some of these will be null, most likely.
+   */
+  private final OutputStream[] outputStreams = new OutputStream[Byte.MAX_VALUE + 1];
+
+  private final byte[] header = new byte[ChunkedStreamMultiplexer.HEADER_LENGTH];
+  // The number of header bytes read so far, or -1 while reading a payload.
+  private int headerLength = 0;
+  private int remainingPayload;
+  private OutputStream selectedStream;
+
+  /**
+   * Construct a new demultiplexer. The {@code smallestMarkerByte} indicates
+   * the marker byte we would expect for {@code outputStreams[0]} to be used,
+   * as for {@link StreamDemultiplexer#StreamDemultiplexer}.
+   */
+  public ChunkedStreamDemultiplexer(byte smallestMarkerByte, OutputStream... outputStreams) {
+    for (int i = 0; i < outputStreams.length; i++) {
+      this.outputStreams[smallestMarkerByte + i] = outputStreams[i];
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      if (headerLength >= 0) {
+        header[headerLength++] = b[off++];
+        if (headerLength == header.length) {
+          startPayload();
+        }
+      } else {
+        int n = Math.min(remainingPayload, end - off);
+        selectedStream.write(b, off, n);
+        off += n;
+        remainingPayload -= n;
+        if (remainingPayload == 0) {
+          endPayload();
+        }
+      }
+    }
+  }
+
+  private void startPayload() throws IOException {
+    byte markerByte = header[0];
+    if (markerByte < 0 || outputStreams[markerByte] == null) {
+      throw new IOException("stream " + markerByte + " not registered.");
+    }
+    selectedStream = outputStreams[markerByte];
+    remainingPayload = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16)
+        | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+    if (remainingPayload < 0) {
+      throw new IOException("Illegal frame length " + remainingPayload);
+    }
+    headerLength = -1;
+    if (remainingPayload == 0) {
+      endPayload();
+    }
+  }
+
+  private void endPayload() throws IOException {
+    selectedStream.flush();
+    selectedStream = null;
+    headerLength = 0;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (selectedStream != null) {
+      selectedStream.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A multiplexer like {@link StreamMultiplexer}, but with a binary framing that forwards large
+ * writes as they are instead of scanning them for line breaks and copying them line by line.
+ *
+ * The format of the multiplexed stream is as follows:
+ *
+ * <pre>
+ * combined :: = frame+
+ * frame :: = marker length payload
+ * length :: = the number of payload bytes, as a four-byte big-endian integer
+ * </pre>
+ *
+ * <p>The markers are those of {@link StreamMultiplexer}. Small writes are buffered, and sent
+ * once they contain a newline, once the buffer is full, or on {@link OutputStream#flush}. Writes
+ * of at least {@link #BUFFER_LENGTH} bytes are sent in a frame of their own right away, after any
+ * buffered bytes of the same stream.
+ */
+@ThreadSafe
+public final class ChunkedStreamMultiplexer {
+
+  static final int BUFFER_LENGTH = 8192;
+  static final int HEADER_LENGTH = 5;
+  private static final byte NEWLINE = '\n';
+
+  private final Object mutex = new Object();
+  private final OutputStream multiplexed;
+
+  public ChunkedStreamMultiplexer(OutputStream multiplexed) {
+    this.multiplexed = multiplexed;
+  }
+
+  private class ChunkingStream extends OutputStream {
+
+    private final byte markerByte;
+    // The frame header, followed by the buffered payload, so that a small frame is one write.
+    private final byte[] frame = new byte[HEADER_LENGTH + BUFFER_LENGTH];
+    private int len = 0;
+
+    ChunkingStream(byte markerByte) {
+      this.markerByte = markerByte;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int inlen) throws IOException {
+      if (inlen >= BUFFER_LENGTH) {
+        sendBuffer();
+        byte[] header = new byte[HEADER_LENGTH];
+        putHeader(header, inlen);
+        synchronized (mutex) {
+          multiplexed.write(header);
+          multiplexed.write(b, off, inlen);
+          multiplexed.flush();
+        }
+        return;
+      }
+      if (len + inlen > BUFFER_LENGTH) {
+        sendBuffer();
+      }
+      System.arraycopy(b, off, frame, HEADER_LENGTH + len, inlen);
+      len += inlen;
+      for (int i = off; i < off + inlen; i++) {
+        if (b[i] == NEWLINE) {
+          sendBuffer();
+          break;
+        }
+      }
+    }
+
+    /**
+     * Close is implemented as {@link #flush()}. Client code must close the
+     * underlying output stream itself in case that's desired.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (len > 0) {
+        sendBuffer();
+      } else {
+        synchronized (mutex) {
+          multiplexed.flush();
+        }
+      }
+    }
+
+    private void sendBuffer() throws IOException {
+      if (len == 0) {
+        return;
+      }
+      putHeader(frame, len);
+      synchronized (mutex) {
+        multiplexed.write(frame, 0, HEADER_LENGTH + len);
+        multiplexed.flush();
+      }
+      len = 0;
+    }
+
+    private void putHeader(byte[] header, int length) {
+      header[0] = markerByte;
+      header[1] = (byte) (length >>> 24);
+      header[2] = (byte) (length >>> 16);
+      header[3] = (byte) (length >>> 8);
+      header[4] = (byte) length;
+    }
+  }
+
+  /**
+   * Create a stream that will tag its contributions into the multiplexed stream
+   * with the marker '1', which means 'stdout'. This stream never closes the
+   * underlying stream it delegates to - calling its {@code close()} method is
+   * equivalent to calling {@code flush}.
+   */
+  public OutputStream createStdout() {
+    return new ChunkingStream(StreamMultiplexer.STDOUT_MARKER);
+  }
+
+  /**
+   * Like {@link #createStdout()}, except it tags with the marker '2' to
+   * indicate 'stderr'.
+   */
+  public OutputStream createStderr() {
+    return new ChunkingStream(StreamMultiplexer.STDERR_MARKER);
+  }
+
+  /**
+   * Like {@link #createStdout()}, except it tags with the marker '3' to
+   * indicate control flow.
+   */
+  public OutputStream createControl() {
+    return new ChunkingStream(StreamMultiplexer.CONTROL_MARKER);
+  }
+}
@@ -16,7 +16,9 @@ package com.google.devtools.build.lib.vfs;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharStreams;
@@ -46,12 +48,69 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * The functions that can be used for {@link Path#getDigest}.
+   */
+  public enum DigestFunction {
+    MD5("MD5", Hashing.md5()),
+    SHA1("SHA-1", Hashing.sha1()),
+    SHA256("SHA-256", Hashing.sha256());
+
+    private final String name;
+    private final HashFunction hashFunction;
+
+    private DigestFunction(String name, HashFunction hashFunction) {
+      this.name = name;
+      this.hashFunction = hashFunction;
+    }
+
+    /**
+     * Returns the name of the function, as returned by {@link Path#getFastDigestFunctionType}
+     * for file systems that provide digests of this type.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the length of the digests computed by this function, in bytes. */
+    public int getDigestLength() {
+      return hashFunction.bits() / 8;
+    }
+
+    /** Returns the digest of empty content. */
+    public byte[] getEmptyDigest() {
+      return hashFunction.hashBytes(new byte[0]).asBytes();
+    }
+
+    HashFunction getHashFunction() {
+      return hashFunction;
+    }
+  }
+
   protected final Path rootPath;
 
+  private volatile DigestFunction digestFunction = DigestFunction.MD5;
+
   protected FileSystem() {
     this.rootPath = createRootPath();
   }
 
+  /**
+   * Returns the function used by {@link Path#getDigest} for files of this file system.
+   */
+  public DigestFunction getDigestFunction() {
+    return digestFunction;
+  }
+
+  /**
+   * Sets the function used by {@link Path#getDigest} for files of this file system. Should be
+   * called before any digests are computed, since digests of different functions are not
+   * comparable.
+   */
+  public void setDigestFunction(DigestFunction digestFunction) {
+    this.digestFunction = Preconditions.checkNotNull(digestFunction);
+  }
+
   /**
    * Creates the root of all paths used by this filesystem. This is a hook
    * allowing subclasses to define their own root path class. All other paths
@@ -255,6 +314,24 @@ public abstract class FileSystem {
     }.hash(Hashing.md5()).asBytes();
   }
 
+  /**
+   * Returns the digest of the file denoted by {@code path}, computed with
+   * {@link #getDigestFunction}. See {@link Path#getDigest} for specification.
+   */
+  protected byte[] getDigest(final Path path) throws IOException {
+    DigestFunction function = digestFunction;
+    if (function == DigestFunction.MD5) {
+      // Keep the optimized implementations of subclasses.
+      return getMD5Digest(path);
+    }
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return getInputStream(path);
+      }
+    }.hash(function.getHashFunction()).asBytes();
+  }
+
   /**
    * Returns true if "path" denotes an existing symbolic link. See
    * {@link Path#isSymbolicLink} for specification.
@@ -440,6 +517,22 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Returns the result of {@link #statIfFound} for each of the given children of
+   * {@code directory}, in the same order. See {@link Path#statChildrenIfFound} for specification.
+   *
+   * <p>This implementation stats the children one by one. File systems that can stat several
+   * files in one call should override it.
+   */
+  protected FileStatus[] statChildrenIfFound(Path directory, String[] names,
+      boolean followSymlinks) throws IOException {
+    FileStatus[] result = new FileStatus[names.length];
+    for (int i = 0; i < names.length; i++) {
+      result[i] = statIfFound(directory.getChild(names[i]), followSymlinks);
+    }
+    return result;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
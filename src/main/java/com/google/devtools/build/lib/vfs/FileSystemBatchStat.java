@@ -0,0 +1,82 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BatchStat} that stats the files under a root directory through its file system.
+ *
+ * <p>The paths are grouped by their parent directory and each group is stat()ed with
+ * {@link Path#statChildrenIfFound}, so that file systems with a batched stat call need one
+ * call per directory instead of one per file. Digests are never included.
+ */
+@ThreadSafe
+public final class FileSystemBatchStat implements BatchStat {
+
+  private final Path root;
+
+  public FileSystemBatchStat(Path root) {
+    this.root = root;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(boolean includeDigest, boolean includeLinks,
+      Iterable<PathFragment> paths) throws IOException, InterruptedException {
+    Symlinks symlinks = includeLinks ? Symlinks.NOFOLLOW : Symlinks.FOLLOW;
+    List<Path> files = new ArrayList<>();
+    // Maps each directory to the indices of its children in files.
+    ListMultimap<Path, Integer> childrenByDirectory = ArrayListMultimap.create();
+    for (PathFragment fragment : paths) {
+      Path file = root.getRelative(fragment);
+      Path directory = file.getParentDirectory();
+      if (directory != null) {
+        childrenByDirectory.put(directory, files.size());
+      }
+      files.add(file);
+    }
+
+    FileStatusWithDigest[] result = new FileStatusWithDigest[files.size()];
+    for (Map.Entry<Path, Collection<Integer>> entry : childrenByDirectory.asMap().entrySet()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      List<Integer> indices = (List<Integer>) entry.getValue();
+      String[] names = new String[indices.size()];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = files.get(indices.get(i)).getBaseName();
+      }
+      FileStatus[] stats = entry.getKey().statChildrenIfFound(names, symlinks);
+      for (int i = 0; i < names.length; i++) {
+        result[indices.get(i)] = FileStatusWithDigestAdapter.adapt(stats[i]);
+      }
+    }
+    // The root of the file system has no parent directory to batch it with.
+    for (int i = 0; i < result.length; i++) {
+      if (files.get(i).getParentDirectory() == null) {
+        result[i] = FileStatusWithDigestAdapter.adapt(files.get(i).statIfFound(symlinks));
+      }
+    }
+    return Arrays.asList(result);
+  }
+}
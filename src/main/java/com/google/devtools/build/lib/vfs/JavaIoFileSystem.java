@@ -383,7 +383,8 @@ public class JavaIoFileSystem extends AbstractFileSystem {
   @Override
   protected void setLastModifiedTime(Path path, long newTime) throws IOException {
     File file = getIoFile(path);
-    if (!file.setLastModified(newTime)) {
+    // java.io.File has no way to ask for the kernel's time, so use the JVM's clock for -1.
+    if (!file.setLastModified(newTime == -1L ? System.currentTimeMillis() : newTime)) {
       if (!file.exists()) {
         throw new FileNotFoundException(path + ERR_NO_SUCH_FILE_OR_DIR);
       } else if (!file.getParentFile().canWrite()) {
@@ -479,6 +479,21 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.statIfFound(this, followSymlinks.toBoolean());
   }
 
+  /**
+   * Like {@link #statIfFound(Symlinks)} on each of the given children of this directory, but
+   * possibly with fewer system calls. If this path is not a directory, all the children are
+   * reported as not found.
+   *
+   * @param names the base names of the children to stat
+   * @return the status of each child, in the order of {@code names}; null for the children that
+   *         are not found
+   * @throws IOException if any of the children could not be stat()ed for another reason
+   */
+  public FileStatus[] statChildrenIfFound(String[] names, Symlinks followSymlinks)
+      throws IOException {
+    return fileSystem.statChildrenIfFound(this, names, followSymlinks.toBoolean());
+  }
+
 
   /**
    * Returns true iff this path denotes an existing directory. Follows symbolic
@@ -923,6 +938,21 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.getMD5Digest(this);
   }
 
+  /**
+   * Returns the digest of the file denoted by the current path, following symbolic links,
+   * computed with the digest function of its file system (see
+   * {@link FileSystem#getDigestFunction}).
+   *
+   * <p>This method runs in O(n) time where n is the length of the file, but
+   * certain implementations may be much faster than the worst case.
+   *
+   * @return a new array containing the file's digest
+   * @throws IOException if the digest could not be computed for any reason
+   */
+  public byte[] getDigest() throws IOException {
+    return fileSystem.getDigest(this);
+  }
+
   /**
    * Opens the file denoted by this path, following symbolic links, for reading,
    * and returns an input stream to it.
@@ -219,6 +219,32 @@ public class UnixFileSystem extends AbstractFileSystem {
     }
   }
 
+  @Override
+  protected FileStatus[] statChildrenIfFound(Path directory, String[] names,
+      boolean followSymlinks) throws IOException {
+    String name = directory.getPathString();
+    long startTime = Profiler.nanoTimeMaybe();
+    try {
+      ErrnoFileStatus[] stats = FilesystemUtils.errnoStatAt(name, names, followSymlinks);
+      FileStatus[] result = new FileStatus[names.length];
+      for (int i = 0; i < names.length; i++) {
+        ErrnoFileStatus stat = stats[i];
+        if (!stat.hasError()) {
+          result[i] = new UnixFileStatus(stat);
+          continue;
+        }
+        int errno = stat.getErrno();
+        if (errno != ErrnoFileStatus.ENOENT && errno != ErrnoFileStatus.ENOTDIR) {
+          // As in statIfFound(), stat again just to throw the proper exception.
+          result[i] = stat(directory.getChild(names[i]), followSymlinks);
+        }
+      }
+      return result;
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, name);
+    }
+  }
+
   @Override
   protected boolean isDirectory(Path path, boolean followSymlinks) {
     UnixFileStatus stat = statNullable(path, followSymlinks);
@@ -32,10 +32,16 @@ import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -454,6 +460,24 @@ public final class UnixGlob {
       return globAsyncInternal(base, patterns, excludes, excludeDirectories, pathFilter,
           syscalls.get(), checkForInterrupt, threadPool);
     }
+
+    /**
+     * Executes the glob asynchronously, keeping the matches of each pattern apart. All patterns
+     * are evaluated in one traversal, so the directories they have in common are only read once.
+     *
+     * @param checkForInterrupt if the returned futures may throw
+     *   InterruptedException.
+     * @return a future for the matches of each distinct pattern, in the order the patterns were
+     *   added. The excludes apply to every pattern. Getting any of the futures waits for the
+     *   whole traversal.
+     */
+    public Map<String, Future<List<Path>>> globAsyncByPattern(boolean checkForInterrupt) {
+      GlobVisitor visitor = (threadPool == null)
+          ? new GlobVisitor(checkForInterrupt)
+          : new GlobVisitor(threadPool, checkForInterrupt);
+      return visitor.globAsyncByPattern(base, patterns, excludes, excludeDirectories, pathFilter,
+          syscalls.get());
+    }
   }
 
   /**
@@ -461,11 +485,13 @@ public final class UnixGlob {
    */
   private static class GlobFuture extends AbstractFuture<List<Path>> {
     private final GlobVisitor visitor;
+    private final Collection<Path> results;
     private final boolean checkForInterrupt;
     private final Object completionLock = new Object();
 
-    public GlobFuture(GlobVisitor visitor, boolean checkForInterrupt) {
+    public GlobFuture(GlobVisitor visitor, Collection<Path> results, boolean checkForInterrupt) {
       this.visitor = visitor;
+      this.results = results;
       this.checkForInterrupt = checkForInterrupt;
     }
 
@@ -501,11 +527,11 @@ public final class UnixGlob {
           return getSafe();
         }
 
-        try {
-          visitor.waitForCompletion();
-          super.set(Lists.newArrayList(visitor.results));
-        } catch (Throwable t) {
-          super.setException(t);
+        Throwable failure = visitor.complete();
+        if (failure == null) {
+          super.set(Lists.newArrayList(results));
+        } else {
+          super.setException(failure);
         }
         List<Path> result = getSafe();
         return result;
@@ -548,17 +574,22 @@ public final class UnixGlob {
     private final GlobFuture result;
     private final boolean failFastOnInterrupt;
 
+    // The futures of all patterns of a visitor share the outcome of a single visitation.
+    private final Object completionLock = new Object();
+    private boolean completed;
+    private Throwable failure;
+
     public GlobVisitor(ThreadPoolExecutor executor, boolean failFastOnInterrupt) {
       super(executor, /*shutdownOnCompletion=*/false, /*failFastOnException=*/true,
             /*failFastOnInterrupt=*/failFastOnInterrupt);
-      this.result = new GlobFuture(this, failFastOnInterrupt);
+      this.result = new GlobFuture(this, results, failFastOnInterrupt);
       this.failFastOnInterrupt = failFastOnInterrupt;
     }
 
     public GlobVisitor(boolean failFastOnInterrupt) {
       super(/*concurrent=*/false, 0, 0, 0, null, /*failFastOnException=*/true,
           /*failFastOnInterrupt=*/failFastOnInterrupt, THREAD_NAME);
-      this.result = new GlobFuture(this, failFastOnInterrupt);
+      this.result = new GlobFuture(this, results, failFastOnInterrupt);
       this.failFastOnInterrupt = failFastOnInterrupt;
     }
 
@@ -606,18 +637,71 @@ public final class UnixGlob {
       List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
       List<String[]> splitExcludes = checkAndSplitPatterns(excludePatterns);
 
-      // We do a dumb loop, even though it will likely duplicate work
-      // (e.g., readdir calls). In order to optimize, we would need
-      // to keep track of which patterns shared sub-patterns and which did not
-      // (for example consider the glob [*/*.java, sub/*.java, */*.txt]).
+      List<GlobTask> tasks = Lists.newArrayListWithCapacity(splitPatterns.size());
       for (String[] splitPattern : splitPatterns) {
-        queueGlob(base, baseStat.isDirectory(), splitPattern, 0, excludeDirectories,
-                  splitExcludes, 0, results, cache, dirPred, syscalls);
+        tasks.add(new GlobTask(splitPattern, 0, results));
       }
+      queueGlob(base, baseStat.isDirectory(), tasks, excludeDirectories, splitExcludes, 0, cache,
+          dirPred, syscalls);
 
       return result;
     }
 
+    /**
+     * Like {@link #globAsync}, but returns the matches of each distinct pattern separately.
+     */
+    public Map<String, Future<List<Path>>> globAsyncByPattern(Path base,
+        Collection<String> patterns, Collection<String> excludePatterns,
+        boolean excludeDirectories, Predicate<Path> dirPred, FilesystemCalls syscalls) {
+      Map<String, Future<List<Path>>> futures = new LinkedHashMap<>();
+      FileStatus baseStat = syscalls.statNullable(base, Symlinks.FOLLOW);
+      if (baseStat == null) {
+        for (String pattern : patterns) {
+          futures.put(pattern, Futures.immediateFuture(Collections.<Path>emptyList()));
+        }
+        return futures;
+      }
+
+      List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
+      List<String[]> splitExcludes = checkAndSplitPatterns(excludePatterns);
+
+      List<GlobTask> tasks = Lists.newArrayListWithCapacity(splitPatterns.size());
+      Iterator<String[]> splitPatternIterator = splitPatterns.iterator();
+      for (String pattern : patterns) {
+        String[] splitPattern = splitPatternIterator.next();
+        if (futures.containsKey(pattern)) {
+          continue;
+        }
+        Collection<Path> patternResults = Collections.synchronizedSet(Sets.<Path>newTreeSet());
+        futures.put(pattern, new GlobFuture(this, patternResults, failFastOnInterrupt));
+        tasks.add(new GlobTask(splitPattern, 0, patternResults));
+      }
+      if (!tasks.isEmpty()) {
+        queueGlob(base, baseStat.isDirectory(), tasks, excludeDirectories, splitExcludes, 0,
+            cache, dirPred, syscalls);
+      }
+
+      return futures;
+    }
+
+    /**
+     * Waits for the visitation to complete, and returns the exception it failed with, or null.
+     * Only the first call actually waits; later calls return the same outcome.
+     */
+    private Throwable complete() {
+      synchronized (completionLock) {
+        if (!completed) {
+          completed = true;
+          try {
+            waitForCompletion();
+          } catch (Throwable t) {
+            failure = t;
+          }
+        }
+        return failure;
+      }
+    }
+
     protected void waitForCompletion() throws IOException, InterruptedException {
       try {
         super.work(failFastOnInterrupt);
@@ -641,21 +725,20 @@ public final class UnixGlob {
         throw e.getCauseIOException();
       }
     }
-
     private void queueGlob(final Path base, final boolean baseIsDir,
-        final String[] patternParts, final int idx,
+        final List<GlobTask> tasks,
         final boolean excludeDirectories,
         final List<String[]> excludePatterns,
         final int excludeIdx,
-        final Collection<Path> results, final Cache<String, Pattern> cache,
+        final Cache<String, Pattern> cache,
         final Predicate<Path> dirPred, final FilesystemCalls syscalls) {
       enqueue(new Runnable() {
         @Override
         public void run() {
           Profiler.instance().startTask(ProfilerTask.VFS_GLOB, this);
           try {
-            reallyGlob(base, baseIsDir, patternParts, idx, excludeDirectories,
-                excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
+            reallyGlob(base, baseIsDir, tasks, excludeDirectories,
+                excludePatterns, excludeIdx, cache, dirPred, syscalls);
           } catch (IOException e) {
             throw new IORuntimeException(e);
           } catch (InterruptedException e) {
@@ -672,7 +755,7 @@ public final class UnixGlob {
           return String.format(
               "%s glob(include=[%s], exclude=[%s], exclude_directories=%s)",
               base.getPathString(),
-              "\"" + Joiner.on("\", \"").join(patternParts) + "\"",
+              "\"" + Joiner.on("\", \"").join(tasks) + "\"",
               "\"" + Joiner.on("\", \"").join(excludePatterns) + "\"",
               excludeDirectories);
         }
@@ -681,17 +764,20 @@ public final class UnixGlob {
     }
 
     /**
-     * Expressed in Haskell:
+     * Matches all of {@code tasks} against {@code base}, reading the directory at most once, and
+     * queues a single visitation for each child that some of the tasks continue in.
+     *
+     * <p>For a single task, expressed in Haskell:
      * <pre>
      *  reallyGlob base []     = { base }
      *  reallyGlob base [x:xs] = union { reallyGlob(f, xs) | f results "base/x" }
      * </pre>
      */
-    private void reallyGlob(Path base, boolean baseIsDir, String[] patternParts, int idx,
+    private void reallyGlob(Path base, boolean baseIsDir, List<GlobTask> tasks,
         boolean excludeDirectories,
         List<String[]> excludePatterns,
         int excludeIdx,
-        Collection<Path> results, Cache<String, Pattern> cache,
+        Cache<String, Pattern> cache,
         Predicate<Path> dirPred,
         FilesystemCalls syscalls) throws IOException, InterruptedException {
       if (failFastOnInterrupt && Thread.interrupted()) {
@@ -702,80 +788,157 @@ public final class UnixGlob {
         return;
       }
 
-      if (idx == patternParts.length) { // Base case.
-        if (!(excludeDirectories && baseIsDir) &&
-            !excludedOnMatch(base, excludePatterns, excludeIdx, cache)) {
-          results.add(base);
+      List<String[]> relevantExcludes = null;
+      Collection<Dirent> dents = null;
+      Map<Path, ChildVisit> children = new LinkedHashMap<>();
+      Deque<GlobTask> pending = new ArrayDeque<>(tasks);
+      while (!pending.isEmpty()) {
+        GlobTask task = pending.removeFirst();
+        String[] patternParts = task.patternParts;
+        int idx = task.idx;
+
+        if (idx == patternParts.length) { // Base case.
+          if (!(excludeDirectories && baseIsDir) &&
+              !excludedOnMatch(base, excludePatterns, excludeIdx, cache)) {
+            task.results.add(base);
+          }
+          continue;
         }
 
-        return;
-      }
-
-      if (!baseIsDir) {
-        // Nothing to find here.
-        return;
-      }
-
-      List<String[]> relevantExcludes
-          = getRelevantExcludes(base, excludePatterns, excludeIdx, cache);
-      final String pattern = patternParts[idx];
-
-      // ** is special: it can match nothing at all.
-      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
-      if ("**".equals(pattern)) {
-        queueGlob(base, baseIsDir, patternParts, idx + 1, excludeDirectories,
-            excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
-      }
-
-      if (!pattern.contains("*") && !pattern.contains("?")) {
-        // We do not need to do a readdir in this case, just a stat.
-        Path child = base.getChild(pattern);
-        FileStatus status = syscalls.statNullable(child, Symlinks.FOLLOW);
-        if (status == null || (!status.isDirectory() && !status.isFile())) {
-          // The file is a dangling symlink, fifo, does not exist, etc.
-          return;
+        if (!baseIsDir) {
+          // Nothing to find here.
+          continue;
         }
 
-        boolean childIsDir = status.isDirectory();
+        if (relevantExcludes == null) {
+          relevantExcludes = getRelevantExcludes(base, excludePatterns, excludeIdx, cache);
+        }
+        final String pattern = patternParts[idx];
 
-        queueGlob(child, childIsDir, patternParts, idx + 1, excludeDirectories,
-            relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
-        return;
-      }
+        // ** is special: it can match nothing at all.
+        // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
+        if ("**".equals(pattern)) {
+          pending.addLast(task.next());
+        }
 
-      Collection<Dirent> dents = syscalls.readdir(base, Symlinks.FOLLOW);
+        if (!pattern.contains("*") && !pattern.contains("?")) {
+          // We do not need to do a readdir in this case, just a stat.
+          Path child = base.getChild(pattern);
+          FileStatus status = syscalls.statNullable(child, Symlinks.FOLLOW);
+          if (status == null || (!status.isDirectory() && !status.isFile())) {
+            // The file is a dangling symlink, fifo, does not exist, etc.
+            continue;
+          }
 
-      for (Dirent dent : dents) {
-        Dirent.Type type = dent.getType();
-        if (type == Dirent.Type.UNKNOWN) {
-          // The file is a dangling symlink, fifo, etc.
+          addChildTask(children, child, status.isDirectory(), task.next());
           continue;
         }
-        boolean childIsDir = (type == Dirent.Type.DIRECTORY);
-        String text = dent.getName();
-        Path child = base.getChild(text);
 
-        if ("**".equals(pattern)) {
-          // Recurse without shifting the pattern.
-          if (childIsDir) {
-            queueGlob(child, childIsDir, patternParts, idx, excludeDirectories,
-                relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
-          }
+        if (dents == null) {
+          dents = syscalls.readdir(base, Symlinks.FOLLOW);
         }
-        if (matches(pattern, text, cache)) {
-          // Recurse and consume one segment of the pattern.
-          if (childIsDir) {
-            queueGlob(child, childIsDir, patternParts, idx + 1, excludeDirectories,
-                relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
-          } else {
-            // Instead of using an async call, just repeat the base case above.
-            if (idx + 1 == patternParts.length &&
-                !excludedOnMatch(child, relevantExcludes, excludeIdx + 1, cache)) {
-              results.add(child);
+
+        for (Dirent dent : dents) {
+          Dirent.Type type = dent.getType();
+          if (type == Dirent.Type.UNKNOWN) {
+            // The file is a dangling symlink, fifo, etc.
+            continue;
+          }
+          boolean childIsDir = (type == Dirent.Type.DIRECTORY);
+          String text = dent.getName();
+          Path child = base.getChild(text);
+
+          if ("**".equals(pattern)) {
+            // Recurse without shifting the pattern.
+            if (childIsDir) {
+              addChildTask(children, child, childIsDir, task);
+            }
+          }
+          if (matches(pattern, text, cache)) {
+            // Recurse and consume one segment of the pattern.
+            if (childIsDir) {
+              addChildTask(children, child, childIsDir, task.next());
+            } else {
+              // Instead of using an async call, just repeat the base case above.
+              if (idx + 1 == patternParts.length &&
+                  !excludedOnMatch(child, relevantExcludes, excludeIdx + 1, cache)) {
+                task.results.add(child);
+              }
             }
           }
         }
       }
+
+      for (Map.Entry<Path, ChildVisit> entry : children.entrySet()) {
+        ChildVisit visit = entry.getValue();
+        queueGlob(entry.getKey(), visit.isDir, visit.tasks, excludeDirectories,
+            relevantExcludes, excludeIdx + 1, cache, dirPred, syscalls);
+      }
+    }
+
+    private static void addChildTask(Map<Path, ChildVisit> children, Path child,
+        boolean childIsDir, GlobTask task) {
+      ChildVisit visit = children.get(child);
+      if (visit == null) {
+        visit = new ChildVisit(childIsDir);
+        children.put(child, visit);
+      }
+      // Patterns such as "**/**" reach the same child with the same task along several ways.
+      if (!visit.tasks.contains(task)) {
+        visit.tasks.add(task);
+      }
+    }
+  }
+
+  /**
+   * The part of an include pattern that is still to be matched, starting at some directory, and
+   * the collection its matches are added to.
+   */
+  private static final class GlobTask {
+    private final String[] patternParts;
+    private final int idx;
+    private final Collection<Path> results;
+
+    GlobTask(String[] patternParts, int idx, Collection<Path> results) {
+      this.patternParts = patternParts;
+      this.idx = idx;
+      this.results = results;
+    }
+
+    GlobTask next() {
+      return new GlobTask(patternParts, idx + 1, results);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof GlobTask)) {
+        return false;
+      }
+      GlobTask that = (GlobTask) other;
+      return patternParts == that.patternParts && idx == that.idx && results == that.results;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(patternParts) * 31 + idx;
+    }
+
+    @Override
+    public String toString() {
+      return Joiner.on('/').join(
+          Arrays.asList(patternParts).subList(idx, patternParts.length));
+    }
+  }
+
+  /**
+   * The tasks to continue with in a child of the directory being globbed.
+   */
+  private static final class ChildVisit {
+    private final boolean isDir;
+    private final List<GlobTask> tasks = new ArrayList<>();
+
+    ChildVisit(boolean isDir) {
+      this.isDir = isDir;
     }
   }
 }
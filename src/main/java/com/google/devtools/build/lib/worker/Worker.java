@@ -0,0 +1,102 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A persistent worker process. Requests are written length-delimited to the stdin of the process,
+ * responses are read from its stdout. Whatever the process writes to stderr ends up in its log
+ * file.
+ *
+ * <p>Instances are not thread-safe; the {@link WorkerPool} hands every worker to at most one
+ * thread at a time.
+ */
+final class Worker {
+  private final int workerId;
+  private final Process process;
+  private final Path logFile;
+  private int requestCount;
+
+  private Worker(int workerId, Process process, Path logFile) {
+    this.workerId = workerId;
+    this.process = process;
+    this.logFile = logFile;
+  }
+
+  /**
+   * Starts a new worker process for {@code key}.
+   */
+  static Worker create(int workerId, WorkerKey key, Path logFile) throws IOException {
+    ProcessBuilder processBuilder = new ProcessBuilder(key.getArgs())
+        .directory(key.getWorkDir().getPathFile())
+        .redirectError(ProcessBuilder.Redirect.appendTo(logFile.getPathFile()));
+    processBuilder.environment().clear();
+    processBuilder.environment().putAll(key.getEnv());
+    return new Worker(workerId, processBuilder.start(), logFile);
+  }
+
+  /**
+   * Sends {@code request} to the worker and blocks until its response arrives.
+   *
+   * @throws IOException if the worker could not be talked to, e.g. because it died. The worker
+   *     must not be reused afterwards.
+   */
+  WorkResponse execute(WorkRequest request) throws IOException {
+    requestCount++;
+    OutputStream stdin = process.getOutputStream();
+    request.writeDelimitedTo(stdin);
+    stdin.flush();
+
+    InputStream stdout = process.getInputStream();
+    WorkResponse response = WorkResponse.parseDelimitedFrom(stdout);
+    if (response == null) {
+      throw new IOException("Worker " + workerId + " exited unexpectedly, see " + logFile);
+    }
+    return response;
+  }
+
+  /** Returns the number of requests this worker has been sent so far. */
+  int getRequestCount() {
+    return requestCount;
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  /**
+   * Kills the worker process. Closing stdin first gives a well-behaved worker the chance to
+   * exit on its own.
+   */
+  void destroy() {
+    try {
+      process.getOutputStream().close();
+    } catch (IOException e) {
+      // The process is about to be killed anyway.
+    }
+    process.destroy();
+  }
+
+  @Override
+  public String toString() {
+    return "Worker " + workerId + " (" + logFile + ")";
+  }
+}
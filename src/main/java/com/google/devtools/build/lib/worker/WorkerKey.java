@@ -0,0 +1,80 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.util.Objects;
+
+/**
+ * Data container that uniquely identifies a kind of worker process and is used as the key for the
+ * {@link WorkerPool}. Two spawns can share a worker iff they have equal keys.
+ */
+final class WorkerKey {
+  private final ImmutableList<String> args;
+  private final ImmutableMap<String, String> env;
+  private final Path workDir;
+  private final String mnemonic;
+
+  WorkerKey(ImmutableList<String> args, ImmutableMap<String, String> env, Path workDir,
+      String mnemonic) {
+    this.args = Preconditions.checkNotNull(args);
+    this.env = Preconditions.checkNotNull(env);
+    this.workDir = Preconditions.checkNotNull(workDir);
+    this.mnemonic = Preconditions.checkNotNull(mnemonic);
+  }
+
+  /** Returns the command line used to start the worker process. */
+  ImmutableList<String> getArgs() {
+    return args;
+  }
+
+  ImmutableMap<String, String> getEnv() {
+    return env;
+  }
+
+  Path getWorkDir() {
+    return workDir;
+  }
+
+  String getMnemonic() {
+    return mnemonic;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof WorkerKey)) {
+      return false;
+    }
+    WorkerKey that = (WorkerKey) o;
+    return args.equals(that.args) && env.equals(that.env) && workDir.equals(that.workDir)
+        && mnemonic.equals(that.mnemonic);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(args, env, workDir, mnemonic);
+  }
+
+  @Override
+  public String toString() {
+    return mnemonic + " worker " + args;
+  }
+}
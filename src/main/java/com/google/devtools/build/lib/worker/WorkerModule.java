@@ -0,0 +1,79 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ActionContextConsumer;
+import com.google.devtools.build.lib.actions.ActionContextProvider;
+import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * A module that adds the {@link WorkerSpawnStrategy}. The pool of worker processes outlives
+ * single commands, so that later builds can reuse already warmed-up workers.
+ */
+public class WorkerModule extends BlazeModule {
+  private BlazeRuntime runtime;
+  private BuildRequest buildRequest;
+  private WorkerPool workers;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(WorkerOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Override
+  public void beforeCommand(BlazeRuntime runtime, Command command) {
+    this.runtime = runtime;
+    runtime.getEventBus().register(this);
+  }
+
+  @Subscribe
+  public void buildStarting(BuildStartingEvent event) {
+    buildRequest = event.getRequest();
+    int maxInstances = buildRequest.getOptions(WorkerOptions.class).workerMaxInstances;
+    if (workers != null && workers.getMaxInstancesPerKey() != maxInstances) {
+      workers.close();
+      workers = null;
+    }
+    if (workers == null) {
+      workers = new WorkerPool(maxInstances, runtime.getOutputBase().getRelative("worker-logs"));
+    }
+  }
+
+  @Override
+  public ActionContextProvider getActionContextProvider() {
+    return new WorkerActionContextProvider(runtime, buildRequest, workers);
+  }
+
+  @Override
+  public ActionContextConsumer getActionContextConsumer() {
+    return new WorkerActionContextConsumer(buildRequest.getOptions(WorkerOptions.class));
+  }
+
+  @Override
+  public void blazeShutdown() {
+    if (workers != null) {
+      workers.close();
+      workers = null;
+    }
+  }
+}
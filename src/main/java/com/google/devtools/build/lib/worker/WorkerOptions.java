@@ -0,0 +1,50 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options related to persistent worker processes.
+ */
+public class WorkerOptions extends OptionsBase {
+  @Option(name = "experimental_persistent_javac",
+      defaultValue = "false",
+      category = "strategy",
+      help = "Run Java compilations in persistent JavaBuilder processes instead of starting a "
+          + "new JVM for every compile action.")
+  public boolean experimentalPersistentJavac;
+
+  @Option(name = "worker_max_instances",
+      defaultValue = "4",
+      category = "strategy",
+      help = "How many instances of a worker process (like the persistent Java compiler) may be "
+          + "launched if you use the 'worker' strategy.")
+  public int workerMaxInstances;
+
+  @Option(name = "worker_max_requests",
+      defaultValue = "0",
+      category = "strategy",
+      help = "How many requests a worker process may handle before it is replaced by a fresh "
+          + "one. 0 means no limit.")
+  public int workerMaxRequests;
+
+  @Option(name = "worker_max_heap_mb",
+      defaultValue = "0",
+      category = "strategy",
+      help = "If a worker process reports using more heap than this many megabytes after "
+          + "finishing a request, it is replaced by a fresh one. 0 means no limit.")
+  public int workerMaxHeapMb;
+}
@@ -0,0 +1,132 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A pool of persistent worker processes. At most {@code maxInstancesPerKey} workers exist for
+ * every {@link WorkerKey}; callers of {@link #borrowWorker} block until one becomes available.
+ * Idle workers are kept alive between builds until {@link #close} is called.
+ */
+@ThreadSafe
+final class WorkerPool {
+  private static final Logger LOG = Logger.getLogger(WorkerPool.class.getName());
+
+  private final int maxInstancesPerKey;
+  private final Path logDir;
+  private final AtomicInteger nextWorkerId = new AtomicInteger(1);
+
+  private final Map<WorkerKey, Semaphore> permits = new HashMap<>();
+  private final ListMultimap<WorkerKey, Worker> idleWorkers = ArrayListMultimap.create();
+  private boolean closed = false;
+
+  WorkerPool(int maxInstancesPerKey, Path logDir) {
+    this.maxInstancesPerKey = maxInstancesPerKey;
+    this.logDir = logDir;
+  }
+
+  int getMaxInstancesPerKey() {
+    return maxInstancesPerKey;
+  }
+
+  /**
+   * Returns an idle worker for {@code key}, starting a new one if there is none. Blocks while
+   * {@code maxInstancesPerKey} workers for the key are already in use.
+   */
+  Worker borrowWorker(WorkerKey key) throws IOException, InterruptedException {
+    Semaphore keyPermits = getPermits(key);
+    keyPermits.acquire();
+    Worker worker = null;
+    try {
+      synchronized (this) {
+        List<Worker> idle = idleWorkers.get(key);
+        while (worker == null && !idle.isEmpty()) {
+          Worker candidate = idle.remove(idle.size() - 1);
+          if (candidate.isAlive()) {
+            worker = candidate;
+          } else {
+            LOG.info(candidate + " died while idle");
+          }
+        }
+      }
+      if (worker == null) {
+        int workerId = nextWorkerId.getAndIncrement();
+        FileSystemUtils.createDirectoryAndParents(logDir);
+        Path logFile = logDir.getRelative("worker-" + workerId + "-" + key.getMnemonic() + ".log");
+        worker = Worker.create(workerId, key, logFile);
+        LOG.info("Started " + worker + " for " + key);
+      }
+      return worker;
+    } catch (IOException | RuntimeException e) {
+      keyPermits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Hands a healthy worker back to the pool so that it can be reused.
+   */
+  void returnWorker(WorkerKey key, Worker worker) {
+    synchronized (this) {
+      if (closed) {
+        worker.destroy();
+      } else {
+        idleWorkers.put(key, worker);
+      }
+    }
+    getPermits(key).release();
+  }
+
+  /**
+   * Kills a borrowed worker instead of returning it, e.g. because it failed or has to be recycled.
+   */
+  void invalidateWorker(WorkerKey key, Worker worker) {
+    worker.destroy();
+    getPermits(key).release();
+  }
+
+  /**
+   * Kills all idle workers. Workers that are currently borrowed are killed when they are returned
+   * or invalidated by their users.
+   */
+  synchronized void close() {
+    closed = true;
+    for (Worker worker : idleWorkers.values()) {
+      worker.destroy();
+    }
+    idleWorkers.clear();
+  }
+
+  private synchronized Semaphore getPermits(WorkerKey key) {
+    Semaphore keyPermits = permits.get(key);
+    if (keyPermits == null) {
+      keyPermits = new Semaphore(maxInstancesPerKey, /*fair=*/true);
+      permits.put(key, keyPermits);
+    }
+    return keyPermits;
+  }
+}
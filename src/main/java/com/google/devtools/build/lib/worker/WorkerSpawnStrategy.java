@@ -0,0 +1,162 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.standalone.LocalSpawnStrategy;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.CommandFailureUtils;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Strategy that sends spawns to persistent worker processes instead of starting a new process
+ * for every one of them.
+ *
+ * <p>A spawn can be run by a worker if its execution info contains {@code supports-workers} and
+ * its last argument is a flag file ({@code @file}). Everything before the flag file, plus
+ * {@code --persistent_worker}, is used to start the worker; the flag file is sent as the
+ * request. All other spawns are run by the {@link LocalSpawnStrategy}.
+ */
+@ExecutionStrategy(name = { "worker" }, contextType = SpawnActionContext.class)
+final class WorkerSpawnStrategy implements SpawnActionContext {
+  static final String SUPPORTS_WORKERS = "supports-workers";
+  static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+  private final WorkerPool workers;
+  private final Path execRoot;
+  private final boolean verboseFailures;
+  private final int maxRequestsPerWorker;
+  private final long maxHeapBytesPerWorker;
+  private final LocalSpawnStrategy fallbackStrategy;
+
+  WorkerSpawnStrategy(WorkerPool workers, Path execRoot, boolean verboseFailures,
+      WorkerOptions options) {
+    this.workers = workers;
+    this.execRoot = execRoot;
+    this.verboseFailures = verboseFailures;
+    this.maxRequestsPerWorker = options.workerMaxRequests;
+    this.maxHeapBytesPerWorker = options.workerMaxHeapMb * 1024L * 1024L;
+    this.fallbackStrategy = new LocalSpawnStrategy(execRoot, verboseFailures);
+  }
+
+  @Override
+  public void exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException {
+    List<String> args = spawn.getArguments();
+    if (!"1".equals(spawn.getExecutionInfo().get(SUPPORTS_WORKERS))
+        || args.isEmpty() || !Iterables.getLast(args).startsWith("@")) {
+      fallbackStrategy.exec(spawn, actionExecutionContext);
+      return;
+    }
+
+    Executor executor = actionExecutionContext.getExecutor();
+    if (executor.reportsSubcommands()) {
+      executor.reportSubcommand(Label.print(spawn.getOwner().getLabel()),
+          spawn.asShellCommand(executor.getExecRoot()));
+    }
+
+    WorkerKey key = new WorkerKey(
+        ImmutableList.<String>builder()
+            .addAll(args.subList(0, args.size() - 1))
+            .add(PERSISTENT_WORKER_FLAG)
+            .build(),
+        spawn.getEnvironment(), execRoot, spawn.getMnemonic());
+    WorkRequest request = WorkRequest.newBuilder()
+        .addArguments(Iterables.getLast(args))
+        .build();
+
+    WorkResponse response = execInWorker(key, request);
+
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    try {
+      outErr.getErrorStream().write(response.getOutput().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("Failed to write worker output: " + e.getMessage());
+    }
+
+    if (response.getExitCode() != 0) {
+      String message = CommandFailureUtils.describeCommandFailure(verboseFailures,
+          spawn.getArguments(), spawn.getEnvironment(), execRoot.getPathString());
+      throw new UserExecException(
+          String.format("%s: worker exited with code %d", message, response.getExitCode()));
+    }
+  }
+
+  /**
+   * Sends {@code request} to a worker for {@code key} and returns its response.
+   *
+   * <p>The worker goes back to the pool only after a successful response; after a failed
+   * request, a protocol error, an interrupt or any other exception it is killed, since it may
+   * have been left in a bad state.
+   */
+  @VisibleForTesting
+  WorkResponse execInWorker(WorkerKey key, WorkRequest request)
+      throws ExecException, InterruptedException {
+    Worker worker = null;
+    boolean reuse = false;
+    try {
+      worker = workers.borrowWorker(key);
+      WorkResponse response = worker.execute(request);
+      reuse = response.getExitCode() == 0 && !shouldRecycle(worker, response);
+      return response;
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("Failed to run " + key.getMnemonic()
+          + " in a persistent worker: " + e.getMessage());
+    } finally {
+      if (worker != null) {
+        if (reuse) {
+          workers.returnWorker(key, worker);
+        } else {
+          workers.invalidateWorker(key, worker);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether a worker has handled enough requests or grown large enough to be replaced by
+   * a fresh process.
+   */
+  private boolean shouldRecycle(Worker worker, WorkResponse response) {
+    return (maxRequestsPerWorker > 0 && worker.getRequestCount() >= maxRequestsPerWorker)
+        || (maxHeapBytesPerWorker > 0 && response.getHeapUsedBytes() > maxHeapBytesPerWorker);
+  }
+
+  @Override
+  public String strategyLocality(String mnemonic, boolean remotable) {
+    return "worker";
+  }
+
+  @Override
+  public boolean isRemotable(String mnemonic, boolean remotable) {
+    return false;
+  }
+}
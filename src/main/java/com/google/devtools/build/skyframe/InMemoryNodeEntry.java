@@ -22,9 +22,12 @@ import com.google.devtools.build.lib.util.GroupedList;
 import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
 import com.google.devtools.build.lib.util.Pair;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -94,6 +97,26 @@ public class InMemoryNodeEntry implements NodeEntry {
    */
   private List<SkyKey> reverseDepsToRemove = null;
 
+  /**
+   * Nodes with many reverse deps (for example the build info or the precomputed values) are
+   * requested by a large number of parents concurrently once they are done. To avoid serializing
+   * all those requests on this entry's lock, once a done node has at least
+   * {@link #CONCURRENT_ADD_THRESHOLD} reverse deps we append new reverse deps to this buffer
+   * without locking. The buffer is merged into {@code reverseDeps} lazily, whenever the reverse
+   * deps are accessed under the lock, or once it holds {@link ReverseDepsAppendBuffer#BATCH_SIZE}
+   * elements.
+   *
+   * <p>This is null for most nodes, so that the common case pays only for the field.
+   */
+  private volatile ReverseDepsAppendBuffer reverseDepsToAdd = null;
+
+  /**
+   * Number of reverse deps a done node must have before new reverse deps are added to it without
+   * acquiring its lock. See {@link #reverseDepsToAdd}.
+   */
+  @VisibleForTesting
+  static final int CONCURRENT_ADD_THRESHOLD = 64;
+
   private static final ReverseDepsUtil<InMemoryNodeEntry> REVERSE_DEPS_UTIL =
       new ReverseDepsUtil<InMemoryNodeEntry>() {
     @Override
@@ -130,9 +153,12 @@ public class InMemoryNodeEntry implements NodeEntry {
   /**
    * The transient state of this entry, after it has been created but before it is done. It allows
    * us to keep the current state of the entry across invalidation and successive evaluations.
+   *
+   * <p>This is volatile so that {@link #isDone} and the lock-free path of
+   * {@link #addReverseDepAndCheckIfDone} can read it without holding the lock.
    */
   @VisibleForTesting
-  protected BuildingState buildingState = new BuildingState();
+  protected volatile BuildingState buildingState = new BuildingState();
 
   /**
    * Construct a InMemoryNodeEntry. Use ONLY in Skyframe evaluation and graph implementations.
@@ -146,7 +172,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   }
 
   @Override
-  public synchronized boolean isDone() {
+  public boolean isDone() {
     return buildingState == null;
   }
 
@@ -201,8 +227,10 @@ public class InMemoryNodeEntry implements NodeEntry {
   private synchronized Set<SkyKey> setStateFinishedAndReturnReverseDeps() {
     // Get reverse deps that need to be signaled.
     ImmutableSet<SkyKey> reverseDepsToSignal = buildingState.getReverseDepsToSignal();
+    consolidatePendingReverseDeps();
     REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
     REVERSE_DEPS_UTIL.addReverseDeps(this, reverseDepsToSignal);
+    maybeEnableConcurrentReverseDepAdds();
     this.directDeps = buildingState.getFinishedDirectDeps().compress();
 
     // Set state of entry to done.
@@ -242,16 +270,38 @@ public class InMemoryNodeEntry implements NodeEntry {
     return setStateFinishedAndReturnReverseDeps();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If this node is done and has many reverse deps, the reverse dep is added without acquiring
+   * this entry's lock. This relies on the evaluator never marking nodes dirty while an evaluation
+   * is adding reverse deps, so that a done node stays done for the duration of this call.
+   */
   @Override
-  public synchronized DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+  public DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+    ReverseDepsAppendBuffer buffer = reverseDepsToAdd;
+    if (buffer != null && buildingState == null) {
+      if (reverseDep != null && buffer.add(reverseDep)) {
+        synchronized (this) {
+          consolidatePendingReverseDeps();
+        }
+      }
+      return DependencyState.DONE;
+    }
+    return addReverseDepAndCheckIfDoneLocked(reverseDep);
+  }
+
+  private synchronized DependencyState addReverseDepAndCheckIfDoneLocked(SkyKey reverseDep) {
     if (reverseDep != null) {
       if (keepEdges()) {
+        consolidatePendingReverseDeps();
         REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
         REVERSE_DEPS_UTIL.maybeCheckReverseDepNotPresent(this, reverseDep);
       }
       if (isDone()) {
         if (keepEdges()) {
           REVERSE_DEPS_UTIL.addReverseDeps(this, ImmutableList.of(reverseDep));
+          maybeEnableConcurrentReverseDepAdds();
         }
       } else {
         // Parent should never register itself twice in the same build.
@@ -270,6 +320,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     if (!keepEdges()) {
       return;
     }
+    consolidatePendingReverseDeps();
     REVERSE_DEPS_UTIL.removeReverseDep(this, reverseDep);
     if (!isDone()) {
       // This is currently unnecessary -- the only time we remove a reverse dep that was added this
@@ -285,9 +336,32 @@ public class InMemoryNodeEntry implements NodeEntry {
     Preconditions.checkState(isDone() || buildingState.getReverseDepsToSignal().isEmpty(),
         "Reverse deps should only be queried before the build has begun "
             + "or after the node is done %s", this);
+    consolidatePendingReverseDeps();
     return REVERSE_DEPS_UTIL.getReverseDeps(this);
   }
 
+  /**
+   * Merges the reverse deps added without the lock into {@code reverseDeps}. Must be called while
+   * holding the lock, before any other access to {@code reverseDeps}.
+   */
+  private void consolidatePendingReverseDeps() {
+    ReverseDepsAppendBuffer buffer = reverseDepsToAdd;
+    if (buffer != null) {
+      REVERSE_DEPS_UTIL.consolidateReverseDepsAdditions(this, buffer.drain());
+    }
+  }
+
+  /**
+   * Starts accepting reverse deps without the lock once this node has enough reverse deps that
+   * it is likely to be contended. Must be called while holding the lock.
+   */
+  private void maybeEnableConcurrentReverseDepAdds() {
+    if (keepEdges() && reverseDepsToAdd == null
+        && REVERSE_DEPS_UTIL.getReverseDepsSize(this) >= CONCURRENT_ADD_THRESHOLD) {
+      reverseDepsToAdd = new ReverseDepsAppendBuffer();
+    }
+  }
+
   @Override
   public synchronized boolean signalDep() {
     return signalDep(/*childVersion=*/new IntVersion(Long.MAX_VALUE));
@@ -415,6 +489,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("version", version)
         .add("directDeps", directDeps == null ? null : GroupedList.create(directDeps))
         .add("reverseDeps", REVERSE_DEPS_UTIL.toString(this))
+        .add("reverseDepsToAdd", reverseDepsToAdd)
         .add("buildingState", buildingState).toString();
   }
 
@@ -429,9 +504,50 @@ public class InMemoryNodeEntry implements NodeEntry {
     InMemoryNodeEntry nodeEntry = new InMemoryNodeEntry();
     nodeEntry.value = value;
     nodeEntry.version = this.version;
+    consolidatePendingReverseDeps();
     REVERSE_DEPS_UTIL.addReverseDeps(nodeEntry, REVERSE_DEPS_UTIL.getReverseDeps(this));
+    nodeEntry.maybeEnableConcurrentReverseDepAdds();
     nodeEntry.directDeps = directDeps;
     nodeEntry.buildingState = null;
     return nodeEntry;
   }
+
+  /**
+   * Lock-free append buffer for the reverse deps of a done node. See {@link #reverseDepsToAdd}.
+   */
+  private static final class ReverseDepsAppendBuffer {
+    /** Number of appended reverse deps after which the appending thread merges the buffer. */
+    private static final int BATCH_SIZE = 128;
+
+    private final ConcurrentLinkedQueue<SkyKey> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Appends {@code reverseDep}. Returns true if the buffer is now large enough that the caller
+     * should merge it.
+     */
+    boolean add(SkyKey reverseDep) {
+      queue.add(reverseDep);
+      return size.incrementAndGet() >= BATCH_SIZE;
+    }
+
+    /** Removes and returns all the appended reverse deps, in the order they were appended. */
+    List<SkyKey> drain() {
+      if (size.get() == 0) {
+        return ImmutableList.of();
+      }
+      List<SkyKey> result = new ArrayList<>();
+      SkyKey reverseDep;
+      while ((reverseDep = queue.poll()) != null) {
+        result.add(reverseDep);
+      }
+      size.addAndGet(-result.size());
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return queue.toString();
+    }
+  }
 }
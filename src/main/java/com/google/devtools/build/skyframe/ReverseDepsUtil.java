@@ -87,7 +87,7 @@ abstract class ReverseDepsUtil<T> {
       return;
     }
     Object reverseDeps = getReverseDepsObject(container);
-    int reverseDepsSize = isSingleReverseDep(container) ? 1 : ((List<SkyKey>) reverseDeps).size();
+    int reverseDepsSize = getReverseDepsSize(container);
     int newSize = reverseDepsSize + newReverseDeps.size();
     if (newSize == 1) {
       overwriteReverseDepsWithObject(container, Iterables.getOnlyElement(newReverseDeps));
@@ -103,6 +103,29 @@ abstract class ReverseDepsUtil<T> {
     }
   }
 
+  /**
+   * Returns the number of reverse deps stored in the container, not taking into account the
+   * pending removals.
+   */
+  int getReverseDepsSize(T container) {
+    return isSingleReverseDep(container)
+        ? 1
+        : ((List<?>) getReverseDepsObject(container)).size();
+  }
+
+  /**
+   * Adds reverse deps that were buffered by the container instead of being added directly with
+   * {@code addReverseDeps}. Pending removals are applied first, since they refer to the reverse
+   * deps that were present before the buffered ones.
+   */
+  void consolidateReverseDepsAdditions(T container, Collection<SkyKey> reverseDepsToAdd) {
+    if (reverseDepsToAdd.isEmpty()) {
+      return;
+    }
+    consolidateReverseDepsRemovals(container);
+    addReverseDeps(container, reverseDepsToAdd);
+  }
+
   /**
    * See {@code addReverseDeps} method.
    */
@@ -340,7 +340,7 @@ static jobject NewErrnoFileStatus(JNIEnv *env,
   }
 
   if (saved_errno != 0) {
-    return env->NewObject(errno_file_status_class, errorno_ctor, errno);
+    return env->NewObject(errno_file_status_class, errorno_ctor, saved_errno);
   }
   return env->NewObject(
       errno_file_status_class, no_error_ctor, stat_ref.st_mode,
@@ -454,6 +454,83 @@ Java_com_google_devtools_build_lib_unix_FilesystemUtils_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, ::lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
+ * Method:    errnoStatAt
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;Z)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_FilesystemUtils_errnoStatAt(JNIEnv *env,
+                                                        jclass clazz,
+                                                        jstring directory,
+                                                        jobjectArray names,
+                                                        jboolean follow_symlinks) {
+  static jclass errno_file_status_class = NULL;
+  if (errno_file_status_class == NULL) {  // note: harmless race condition
+    jclass local = env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+    CHECK(local != NULL);
+    errno_file_status_class = static_cast<jclass>(env->NewGlobalRef(local));
+  }
+
+  const char *dir_chars = GetStringLatin1Chars(env, directory);
+  if (dir_chars == NULL) {
+    return NULL;
+  }
+  std::string dir_prefix = std::string(dir_chars) + "/";
+  // If the directory cannot be opened, every name gets the same error, just
+  // like stat() on each child path would report.
+  int dir_fd;
+  while ((dir_fd = ::open(dir_chars, O_RDONLY | O_DIRECTORY)) == -1 &&
+         errno == EINTR) { }
+  int dir_errno = (dir_fd == -1) ? errno : 0;
+  if (dir_fd == -1 && PostRuntimeException(env, dir_errno, dir_chars)) {
+    ::ReleaseStringLatin1Chars(dir_chars);
+    return NULL;
+  }
+  ::ReleaseStringLatin1Chars(dir_chars);
+
+  jsize len = env->GetArrayLength(names);
+  jobjectArray result = env->NewObjectArray(len, errno_file_status_class, NULL);
+  int flags = follow_symlinks ? 0 : AT_SYMLINK_NOFOLLOW;
+  for (jsize i = 0; result != NULL && i < len; ++i) {
+    struct stat statbuf;
+    int saved_errno = dir_errno;
+    if (dir_fd != -1) {
+      jstring name = static_cast<jstring>(env->GetObjectArrayElement(names, i));
+      const char *name_chars = GetStringLatin1Chars(env, name);
+      if (name_chars == NULL) {
+        result = NULL;
+        break;
+      }
+      int r;
+      while ((r = portable_fstatat(dir_fd, const_cast<char *>(name_chars),
+                                   &statbuf, flags)) == -1 && errno == EINTR) { }
+      if (r == -1 && errno == ENOSYS) {
+        // No fstatat(), or no support for the flags; stat the full path.
+        std::string path = dir_prefix + name_chars;
+        while ((r = follow_symlinks ? ::stat(path.c_str(), &statbuf)
+                                    : ::lstat(path.c_str(), &statbuf)) == -1 &&
+               errno == EINTR) { }
+      }
+      saved_errno = (r == -1) ? errno : 0;
+      ::ReleaseStringLatin1Chars(name_chars);
+      env->DeleteLocalRef(name);
+    }
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      result = NULL;
+      break;
+    }
+    env->SetObjectArrayElement(result, i, status);
+    env->DeleteLocalRef(status);
+  }
+
+  if (dir_fd != -1) {
+    ::close(dir_fd);
+  }
+  return result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
  * Method:    utime
@@ -825,3 +902,113 @@ Java_com_google_devtools_build_lib_unix_FilesystemUtils_md5sumAsBytes(
   ReleaseStringLatin1Chars(path_chars);
   return result;
 }
+
+////////////////////////////////////////////////////////////////////////
+// Linux inotify
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    init
+ * Signature: ()I
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_init(JNIEnv *env,
+                                                     jclass clazz) {
+  int fd = portable_inotify_init();
+  if (fd == -1) {
+    ::PostException(env, errno, "inotify_init1: " + ErrorMessage(errno));
+  }
+  return fd;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    addWatch
+ * Signature: (ILjava/lang/String;I)I
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_addWatch(JNIEnv *env,
+                                                         jclass clazz,
+                                                         jint fd,
+                                                         jstring path,
+                                                         jint mask) {
+  const char *path_chars = GetStringLatin1Chars(env, path);
+  if (path_chars == NULL) {
+    return -1;
+  }
+  int wd = portable_inotify_add_watch(fd, path_chars, mask);
+  if (wd == -1) {
+    if (errno == ENOSPC) {
+      // inotify reports the per-user watch limit as ENOSPC.
+      jclass exception_class = env->FindClass(
+          "com/google/devtools/build/lib/unix/InotifyWatchLimitException");
+      if (exception_class != NULL) {
+        env->ThrowNew(exception_class,
+                      (std::string(path_chars) + " (inotify watch limit reached)")
+                          .c_str());
+      }
+    } else {
+      ::PostFileException(env, errno, path_chars);
+    }
+  }
+  ReleaseStringLatin1Chars(path_chars);
+  return wd;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    removeWatch
+ * Signature: (II)Z
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_removeWatch(JNIEnv *env,
+                                                            jclass clazz,
+                                                            jint fd,
+                                                            jint wd) {
+  // EINVAL means that the watch is already gone, e.g. because its directory
+  // was deleted; there is nothing useful to report in that case.
+  return portable_inotify_rm_watch(fd, wd) == 0;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    read
+ * Signature: (I[B)I
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_read(JNIEnv *env,
+                                                     jclass clazz,
+                                                     jint fd,
+                                                     jbyteArray buffer) {
+  jsize size = env->GetArrayLength(buffer);
+  std::vector<jbyte> buf(size);
+  ssize_t len;
+  do {
+    len = ::read(fd, &buf[0], size);
+  } while (len == -1 && errno == EINTR);
+  if (len == -1) {
+    if (errno == EAGAIN) {
+      // The descriptor is non-blocking and there are no pending events.
+      return 0;
+    }
+    ::PostException(env, errno, "inotify read: " + ErrorMessage(errno));
+    return -1;
+  }
+  env->SetByteArrayRegion(buffer, 0, len, &buf[0]);
+  return len;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    close
+ * Signature: (I)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_close(JNIEnv *env,
+                                                      jclass clazz,
+                                                      jint fd) {
+  ::close(fd);
+}
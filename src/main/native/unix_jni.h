@@ -70,4 +70,14 @@ ssize_t portable_getxattr(const char *path, const char *name, void *value,
 ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
                            size_t size);
 
+// Runs inotify_init1(2) with IN_NONBLOCK and IN_CLOEXEC, if available. If not,
+// sets errno to ENOSYS.
+int portable_inotify_init();
+
+// Runs inotify_add_watch(2), if available. If not, sets errno to ENOSYS.
+int portable_inotify_add_watch(int fd, const char *path, unsigned int mask);
+
+// Runs inotify_rm_watch(2), if available. If not, sets errno to ENOSYS.
+int portable_inotify_rm_watch(int fd, int wd);
+
 #endif  // JAVA_COM_GOOGLE_DEVTOOLS_BUILD_LIB_UNIX_UNIX_JNI_H__
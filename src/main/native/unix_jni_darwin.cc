@@ -110,3 +110,18 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
   errno = ENOSYS;
   return -1;
 }
+
+int portable_inotify_init() {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_add_watch(int fd, const char *path, unsigned int mask) {
+  errno = ENOSYS;
+  return -1;
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  errno = ENOSYS;
+  return -1;
+}
@@ -16,6 +16,7 @@
 
 #include <string.h>
 #include <stdlib.h>
+#include <sys/inotify.h>
 #include <sys/stat.h>
 #include <sys/xattr.h>
 
@@ -72,3 +73,15 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
                            size_t size) {
   return ::lgetxattr(path, name, value, size);
 }
+
+int portable_inotify_init() {
+  return ::inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+}
+
+int portable_inotify_add_watch(int fd, const char *path, unsigned int mask) {
+  return ::inotify_add_watch(fd, path, mask);
+}
+
+int portable_inotify_rm_watch(int fd, int wd) {
+  return ::inotify_rm_watch(fd, wd);
+}
@@ -17,6 +17,10 @@
 // from normal termination or timeout, the subprocess (and any of its children)
 // is killed.
 //
+// If --stats <file> is given, the CPU time and peak memory of the subprocess
+// are written to <file> once the subprocess and its children in its process
+// group have terminated.
+//
 // The exit status of this program is whatever the child process returned,
 // unless process-wrapper receives a signal. ie, on SIGTERM this program will
 // die with raise(SIGTERM) even if the child process handles SIGTERM with
@@ -31,12 +35,17 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/resource.h>
 #include <sys/time.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <sys/wait.h>
 #include <unistd.h>
 
+#ifdef __linux__
+#include <sys/prctl.h>
+#endif
+
 // Not in headers on OSX.
 extern char **environ;
 
@@ -144,16 +153,57 @@ static int WaitChild(pid_t pid, const char *name) {
   return status;
 }
 
-// Usage: process-wrapper
+// Kills what is left of the subprocess's process group and reaps the
+// processes that were reparented to us, so that their resource usage is
+// included in RUSAGE_CHILDREN.
+static void KillAndReapProcessGroup(pid_t pgrp) {
+  kill(-pgrp, SIGKILL);
+  int err;
+  do {
+    err = waitpid(-pgrp, NULL, 0);
+  } while (err > 0 || (err == -1 && errno == EINTR));
+}
+
+// Writes "<user seconds> <system seconds> <peak resident KB>" of the
+// terminated subprocess and its reaped descendants to the given file.
+// Failures are ignored, the stats are only used for scheduling.
+static void WriteStats(const char *path) {
+  struct rusage usage;
+  if (getrusage(RUSAGE_CHILDREN, &usage) != 0) {
+    return;
+  }
+  long maxrss_kb = usage.ru_maxrss;
+#ifdef __APPLE__
+  maxrss_kb /= 1024;  // Reported in bytes on OS X.
+#endif
+  FILE *stats = fopen(path, "w");
+  if (stats == NULL) {
+    return;
+  }
+  fprintf(stats, "%ld.%06ld %ld.%06ld %ld\n",
+          (long) usage.ru_utime.tv_sec, (long) usage.ru_utime.tv_usec,
+          (long) usage.ru_stime.tv_sec, (long) usage.ru_stime.tv_usec,
+          maxrss_kb);
+  fclose(stats);
+}
+
+// Usage: process-wrapper [--stats <stats file>]
 //            <timeout_sec> <kill_delay_sec> <stdout file> <stderr file>
 //            [cmdline]
 int main(int argc, char *argv[]) {
-  if (argc <= 5) {
+  argv++;
+  argc--;
+  char *stats_path = NULL;
+  if (argc >= 2 && strcmp(*argv, "--stats") == 0) {
+    stats_path = argv[1];
+    argv += 2;
+    argc -= 2;
+  }
+  if (argc <= 4) {
     DIE("Not enough cmd line arguments to process-wrapper");
   }
 
   // Parse the cmdline args to get the timeout and redirect files.
-  argv++;
   double timeout;
   if (sscanf(*argv++, "%lf", &timeout) != 1) {
     DIE("timeout_sec is not a real number.");
@@ -187,6 +237,15 @@ int main(int argc, char *argv[]) {
     CHECK_CALL(close(fd_err));
   }
 
+  if (stats_path != NULL) {
+#if defined(__linux__) && defined(PR_SET_CHILD_SUBREAPER)
+    // Become the parent of grandchildren orphaned by the subprocess, so that
+    // they can be waited for and counted. Elsewhere only the descendants the
+    // subprocess waited for itself are counted.
+    prctl(PR_SET_CHILD_SUBREAPER, 1);
+#endif
+  }
+
   global_pid = fork();
   if (global_pid < 0) {
     DIE("Fork failed");
@@ -212,7 +271,12 @@ int main(int argc, char *argv[]) {
     int status = WaitChild(global_pid, argv[0]);
 
     // The child is done, but may have grandchildren.
-    kill(-global_pid, SIGKILL);
+    if (stats_path != NULL) {
+      KillAndReapProcessGroup(global_pid);
+      WriteStats(stats_path);
+    } else {
+      kill(-global_pid, SIGKILL);
+    }
     if (global_signal > 0) {
       // Don't trust the exit code if we got a timeout or signal.
       UnHandle(global_signal);
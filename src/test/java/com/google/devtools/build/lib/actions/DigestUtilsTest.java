@@ -13,22 +13,27 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions;
 
-
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.DigestFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -43,6 +48,19 @@ import java.util.concurrent.TimeUnit;
 @RunWith(JUnit4.class)
 public class DigestUtilsTest {
 
+  private long savedDigestBudget;
+
+  @Before
+  public void saveDigestBudget() {
+    savedDigestBudget = DigestUtils.getDigestBudget();
+  }
+
+  @After
+  public void restoreDigestBudget() {
+    // The budget is global, so don't leak the one set by a test into later tests.
+    DigestUtils.setDigestBudget(savedDigestBudget);
+  }
+
   private static void assertMd5CalculationConcurrency(boolean expectConcurrent,
       final boolean fastDigest, final int fileSize1, final int fileSize2) throws Exception {
     final CountDownLatch barrierLatch = new CountDownLatch(2); // Used to block test threads.
@@ -106,20 +124,59 @@ public class DigestUtilsTest {
   }
 
   /**
-   * Ensures that MD5 calculation is synchronized for files
-   * greater than 4096 bytes if MD5 is not available cheaply,
-   * so machines with rotating drives don't become unusable.
+   * Ensures that MD5 calculation for files greater than 4096 bytes is bounded by the digest
+   * budget if MD5 is not available cheaply, so machines with rotating drives don't become
+   * unusable.
    */
   @Test
   public void testMd5CalculationConcurrency() throws Exception {
+    DigestUtils.setDigestBudget(2 << 20);
     assertMd5CalculationConcurrency(true, true, 4096, 4096);
     assertMd5CalculationConcurrency(true, true, 4097, 4097);
     assertMd5CalculationConcurrency(true, false, 4096, 4096);
-    assertMd5CalculationConcurrency(false, false, 4097, 4097);
+    assertMd5CalculationConcurrency(true, false, 4097, 4097);
     assertMd5CalculationConcurrency(true, false, 1024, 4097);
     assertMd5CalculationConcurrency(true, false, 1024, 1024);
   }
 
+  /**
+   * Ensures that files that do not fit into the digest budget together are digested one at a
+   * time.
+   */
+  @Test
+  public void testMd5CalculationConcurrencyExceedingBudget() throws Exception {
+    DigestUtils.setDigestBudget(1 << 20);
+    assertMd5CalculationConcurrency(false, false, 4097, 4097);
+    assertMd5CalculationConcurrency(true, true, 4097, 4097);
+    assertMd5CalculationConcurrency(true, false, 1024, 4097);
+  }
+
+  @Test
+  public void testDigestFunction() throws Exception {
+    FileSystem myFS = new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected String getFastDigestFunctionType(Path path) {
+        return "MD5";
+      }
+
+      @Override
+      protected byte[] getFastDigest(Path path) throws IOException {
+        return getMD5Digest(path);
+      }
+    };
+    myFS.setDigestFunction(DigestFunction.SHA256);
+    Path path = myFS.getPath("/file");
+    String content = Strings.repeat("a", 10000);
+    FileSystemUtils.writeContentAsLatin1(path, content);
+    // The fast digest is ignored, since it was not computed with the right function.
+    assertNull(DigestUtils.getFastDigest(path));
+    assertArrayEquals(Hashing.sha256().hashString(content, ISO_8859_1).asBytes(),
+        DigestUtils.getDigestOrFail(path, content.length()));
+
+    myFS.setDigestFunction(DigestFunction.MD5);
+    assertArrayEquals(path.getMD5Digest(), DigestUtils.getFastDigest(path));
+  }
+
   @Test
   public void testRecoverFromMalformedDigest() throws Exception {
     final byte[] malformed = {0, 0, 0};
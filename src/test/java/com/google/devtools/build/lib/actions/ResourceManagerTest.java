@@ -16,11 +16,13 @@ package com.google.devtools.build.lib.actions;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.testutil.TestThread;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -323,6 +325,80 @@ public class ResourceManagerTest {
     assertFalse(rm.inUse());
   }
 
+  private void fillWaitQueue(TestThread waiter) throws Exception {
+    acquire(900, 0, 0, 0);
+    waiter.start();
+    while (rm.getWaitCount() == 0) {
+      Thread.yield();
+    }
+  }
+
+  @Test
+  public void testSmallRequestsOvertakeWaitingRequest() throws Exception {
+    TestThread waiter = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(900, 0, 0, 0);
+        release(900, 0, 0, 0);
+      }
+    };
+    fillWaitQueue(waiter);
+    for (int i = 0; i < 2 * ResourceManager.MAX_OVERTAKEN_COUNT; i++) {
+      assertTrue(acquireNonblocking(5, 0, 0, 0));
+    }
+    assertEquals(1, rm.getWaitCount());
+    release(900 + 10 * ResourceManager.MAX_OVERTAKEN_COUNT, 0, 0, 0);
+    waiter.joinAndAssertState(10000);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testFairQueueingStopsOvertaking() throws Exception {
+    rm.setFairQueueing(true);
+    TestThread waiter = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(990, 0, 0, 0);
+        validate(1);
+        release(990, 0, 0, 0);
+      }
+    };
+    fillWaitQueue(waiter);
+    for (int i = 0; i < ResourceManager.MAX_OVERTAKEN_COUNT; i++) {
+      assertTrue(acquireNonblocking(5, 0, 0, 0));
+    }
+    // The waiting request was overtaken often enough, later ones have to queue behind it.
+    assertFalse(acquireNonblocking(5, 0, 0, 0));
+    assertEquals(1, rm.getWaitCount());
+
+    release(900, 0, 0, 0);
+    // Not enough RAM left for the waiting request yet, and still no overtaking.
+    assertFalse(acquireNonblocking(5, 0, 0, 0));
+    release(5 * ResourceManager.MAX_OVERTAKEN_COUNT, 0, 0, 0);
+    waiter.joinAndAssertState(10000);
+    validate(2);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testEstimateResourcesUsesHistory() throws Exception {
+    ActionMetadata owner = new ResourceOwnerStub() {
+      @Override
+      public String getMnemonic() {
+        return "Link";
+      }
+    };
+    ResourceSet staticEstimate = ResourceSet.createWithRamCpuIo(250, 0.5, 0);
+    assertSame(staticEstimate, rm.estimateResources(owner, staticEstimate));
+
+    ResourceUsageHistory history = ResourceUsageHistory.load(
+        new InMemoryFileSystem().getPath("/history"));
+    for (int i = 0; i < ResourceUsageHistory.MIN_SAMPLES; i++) {
+      history.record("Link", 1.0, 800);
+    }
+    rm.setResourceUsageHistory(history);
+    assertEquals(800 * ResourceUsageHistory.MEMORY_HEADROOM,
+        rm.estimateResources(owner, staticEstimate).getMemoryMb(), 0.001);
+    assertSame(ResourceSet.ZERO, rm.estimateResources(owner, ResourceSet.ZERO));
+  }
 
   /**
    * Checks that that resource manager
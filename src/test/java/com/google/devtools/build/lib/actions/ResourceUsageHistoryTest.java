@@ -0,0 +1,122 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ResourceUsageHistory}.
+ */
+@RunWith(JUnit4.class)
+public class ResourceUsageHistoryTest {
+
+  private static final ResourceSet STATIC_ESTIMATE = ResourceSet.create(250, 0.5, 0.2, 1);
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = new InMemoryFileSystem().getPath("/output_base/action_resource_usage");
+    file.getParentDirectory().createDirectory();
+  }
+
+  private static void recordSamples(ResourceUsageHistory history, String mnemonic, double cpu,
+      double memoryMb) {
+    for (int i = 0; i < ResourceUsageHistory.MIN_SAMPLES; i++) {
+      history.record(mnemonic, cpu, memoryMb);
+    }
+  }
+
+  @Test
+  public void testStaticEstimateUntilEnoughSamples() throws Exception {
+    ResourceUsageHistory history = ResourceUsageHistory.load(file);
+    assertSame(STATIC_ESTIMATE, history.estimate("CppLink", STATIC_ESTIMATE));
+    for (int i = 0; i < ResourceUsageHistory.MIN_SAMPLES - 1; i++) {
+      history.record("CppLink", 1.0, 2000);
+    }
+    assertSame(STATIC_ESTIMATE, history.estimate("CppLink", STATIC_ESTIMATE));
+    history.record("CppLink", 1.0, 2000);
+
+    ResourceSet estimate = history.estimate("CppLink", STATIC_ESTIMATE);
+    assertEquals(2000 * ResourceUsageHistory.MEMORY_HEADROOM, estimate.getMemoryMb(), 0.001);
+    assertEquals(1.0, estimate.getCpuUsage(), 0.001);
+    assertEquals(0.2, estimate.getIoUsage(), 0.001);
+    assertEquals(1, estimate.getLocalTestCount());
+    assertSame(STATIC_ESTIMATE, history.estimate("CppCompile", STATIC_ESTIMATE));
+  }
+
+  @Test
+  public void testMemoryFollowsPeaksImmediately() throws Exception {
+    ResourceUsageHistory history = ResourceUsageHistory.load(file);
+    recordSamples(history, "CppLink", 1.0, 100);
+    history.record("CppLink", 4.0, 1000);
+    ResourceSet estimate = history.estimate("CppLink", STATIC_ESTIMATE);
+    assertEquals(1000 * ResourceUsageHistory.MEMORY_HEADROOM, estimate.getMemoryMb(), 0.001);
+    // CPU usage is averaged.
+    assertEquals(1.75, estimate.getCpuUsage(), 0.001);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    ResourceUsageHistory history = ResourceUsageHistory.load(file);
+    recordSamples(history, "CppLink", 2.0, 1500);
+    recordSamples(history, "Javac", 1.5, 300);
+    history.save();
+
+    ResourceUsageHistory loaded = ResourceUsageHistory.load(file);
+    ResourceSet estimate = loaded.estimate("CppLink", STATIC_ESTIMATE);
+    assertEquals(1500 * ResourceUsageHistory.MEMORY_HEADROOM, estimate.getMemoryMb(), 0.001);
+    assertEquals(2.0, estimate.getCpuUsage(), 0.001);
+    assertEquals(1.5, loaded.estimate("Javac", STATIC_ESTIMATE).getCpuUsage(), 0.001);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedMnemonicIsEvicted() throws Exception {
+    ResourceUsageHistory history = ResourceUsageHistory.load(file);
+    recordSamples(history, "CppLink", 2.0, 1500);
+    recordSamples(history, "Javac", 1.5, 300);
+    for (int i = 0; i < ResourceUsageHistory.MAX_MNEMONICS - 2; i++) {
+      history.record("Genrule" + i, 1.0, 100);
+    }
+    // Using CppLink makes Javac the least recently used mnemonic.
+    history.estimate("CppLink", STATIC_ESTIMATE);
+    history.record("OneTooMany", 1.0, 100);
+    history.save();
+
+    ResourceUsageHistory loaded = ResourceUsageHistory.load(file);
+    assertSame(STATIC_ESTIMATE, loaded.estimate("Javac", STATIC_ESTIMATE));
+    assertEquals(2.0, loaded.estimate("CppLink", STATIC_ESTIMATE).getCpuUsage(), 0.001);
+  }
+
+  @Test
+  public void testCorruptedFileIsIgnored() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "resource_usage_history v1\nCppLink 1.0 oops 3\n");
+    assertSame(STATIC_ESTIMATE,
+        ResourceUsageHistory.load(file).estimate("CppLink", STATIC_ESTIMATE));
+
+    FileSystemUtils.writeContentAsLatin1(file, "something else\n");
+    assertSame(STATIC_ESTIMATE,
+        ResourceUsageHistory.load(file).estimate("CppLink", STATIC_ESTIMATE));
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FsApparatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Tests for {@link DiskOutputCache}.
+ */
+@RunWith(JUnit4.class)
+public class DiskOutputCacheTest {
+
+  private FsApparatus scratch = FsApparatus.newInMemory();
+  private Path cacheRoot;
+  private DiskOutputCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheRoot = scratch.path("/cache");
+    cache = new DiskOutputCache(cacheRoot, 1024 * 1024);
+  }
+
+  private Map<String, Path> outputs(Path... paths) {
+    ImmutableMap.Builder<String, Path> builder = ImmutableMap.builder();
+    for (Path path : paths) {
+      builder.put(path.getBaseName(), path);
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testComputeKeyDependsOnInputContents() {
+    Metadata a = new Metadata(new byte[] {1, 2, 3, 4});
+    Metadata b = new Metadata(new byte[] {5, 6, 7, 8});
+    String key = DiskOutputCache.computeKey("action", ImmutableMap.of("in", a));
+    assertNotNull(key);
+    assertEquals(key, DiskOutputCache.computeKey("action", ImmutableMap.of("in", a)));
+    assertFalse(key.equals(DiskOutputCache.computeKey("action", ImmutableMap.of("in", b))));
+    assertFalse(key.equals(DiskOutputCache.computeKey("other", ImmutableMap.of("in", a))));
+  }
+
+  @Test
+  public void testComputeKeyRejectsMtimeMetadata() {
+    assertNull(DiskOutputCache.computeKey("action",
+        ImmutableMap.of("dir", new Metadata(12345L))));
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    Path out = scratch.file("/out1/foo", "contents");
+    byte[] digest = out.getMD5Digest();
+    cache.put("key", outputs(out), ImmutableMap.of("foo", digest));
+
+    Path restored = scratch.dir("/out2").getChild("foo");
+    assertTrue(cache.get("key", outputs(restored)));
+    assertEquals("contents",
+        new String(FileSystemUtils.readContentAsLatin1(restored)));
+  }
+
+  @Test
+  public void testGetMissingKey() throws Exception {
+    assertFalse(cache.get("nothere", outputs(scratch.path("/out/foo"))));
+  }
+
+  @Test
+  public void testGetWithDifferentOutputs() throws Exception {
+    Path out = scratch.file("/out1/foo", "contents");
+    cache.put("key", outputs(out), ImmutableMap.of("foo", out.getMD5Digest()));
+    assertFalse(cache.get("key", outputs(scratch.path("/out2/bar"))));
+  }
+
+  @Test
+  public void testEvictionRemovesLeastRecentlyUsed() throws Exception {
+    cache = new DiskOutputCache(cacheRoot, 100);
+    Path old = scratch.file("/out/old", new String(new char[60]));
+    cache.put("old", outputs(old), ImmutableMap.of("old", old.getMD5Digest()));
+    for (Path file : cacheRoot.getRelative("cas").getDirectoryEntries()) {
+      file.setLastModifiedTime(1000L);
+    }
+    for (Path file : cacheRoot.getRelative("ac").getDirectoryEntries()) {
+      file.setLastModifiedTime(1000L);
+    }
+    Path recent = scratch.file("/out/recent", new String(new char[30]));
+    cache.put("recent", outputs(recent), ImmutableMap.of("recent", recent.getMD5Digest()));
+    cache.evict();
+
+    Path restoreDir = scratch.dir("/restored");
+    assertFalse(cache.get("old", outputs(restoreDir.getChild("old"))));
+    assertTrue(cache.get("recent", outputs(restoreDir.getChild("recent"))));
+  }
+
+  @Test
+  public void testGetOnlyTouchesTheEntry() throws Exception {
+    Path out = scratch.file("/out1/foo", "contents");
+    cache.put("key", outputs(out), ImmutableMap.of("foo", out.getMD5Digest()));
+    Path blob = cacheRoot.getRelative("cas").getDirectoryEntries().iterator().next();
+    Path entry = cacheRoot.getRelative("ac/key");
+    blob.setLastModifiedTime(1000L);
+    entry.setLastModifiedTime(1000L);
+
+    assertTrue(cache.get("key", outputs(scratch.dir("/out2").getChild("foo"))));
+    assertEquals(1000L, blob.getLastModifiedTime());
+    assertTrue(entry.getLastModifiedTime() > 1000L);
+  }
+
+  @Test
+  public void testEvictionKeepsBlobsOfRemainingEntries() throws Exception {
+    // Storing "recent" exceeds the limit (the two entry files take 119 bytes), which evicts the
+    // unreferenced orphan blob and then the old entry, but not the blob "recent" still uses.
+    cache = new DiskOutputCache(cacheRoot, 1000);
+    Path orphan = scratch.file("/out/orphan", new String(new char[100]));
+    cache.put("orphan", outputs(orphan), ImmutableMap.of("orphan", orphan.getMD5Digest()));
+    cacheRoot.getRelative("ac/orphan").delete();
+    Path shared = scratch.file("/out/shared", new String(new char[400]));
+    cache.put("old", outputs(shared), ImmutableMap.of("shared", shared.getMD5Digest()));
+    cacheRoot.getRelative("ac/old").setLastModifiedTime(1000L);
+    Path other = scratch.file("/out/other", new String(new char[401]));
+    cache.put("recent", outputs(shared, other), ImmutableMap.of(
+        "shared", shared.getMD5Digest(), "other", other.getMD5Digest()));
+
+    Path restoreDir = scratch.dir("/restored");
+    assertFalse(cache.get("old", outputs(restoreDir.getChild("shared"))));
+    assertTrue(cache.get("recent",
+        outputs(restoreDir.getChild("shared"), restoreDir.getChild("other"))));
+    assertEquals(2, cacheRoot.getRelative("cas").getDirectoryEntries().size());
+  }
+
+  @Test
+  public void testEmptyFiles() throws Exception {
+    Path empty = scratch.file("/in/empty");
+    Metadata emptyMetadata = new Metadata(DiskOutputCache.getEmptyFileDigest(empty));
+    assertArrayEquals(empty.getDigest(), emptyMetadata.digest);
+    assertNotNull(DiskOutputCache.computeKey("action", ImmutableMap.of("empty", emptyMetadata)));
+
+    Path out = scratch.file("/out1/foo");
+    cache.put("key", outputs(out), ImmutableMap.of("foo", emptyMetadata.digest));
+    Path restored = scratch.dir("/out2").getChild("foo");
+    assertTrue(cache.get("key", outputs(restored)));
+    assertEquals(0, restored.getFileSize());
+  }
+
+  @Test
+  public void testPutRejectsChangedOutput() throws Exception {
+    Path out = scratch.file("/out1/foo", "contents");
+    byte[] digest = out.getMD5Digest();
+    FileSystemUtils.writeContentAsLatin1(out, "rewritten");
+    try {
+      cache.put("key", outputs(out), ImmutableMap.of("foo", digest));
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertFalse(cache.get("key", outputs(scratch.dir("/out2").getChild("foo"))));
+    assertEquals(0, cacheRoot.getRelative("cas").getDirectoryEntries().size());
+  }
+
+  @Test
+  public void testPutInBackground() throws Exception {
+    Path out = scratch.file("/out1/foo", "contents");
+    cache.putInBackground("key", outputs(out), ImmutableMap.of("foo", out.getMD5Digest())).get();
+
+    Path restored = scratch.dir("/out2").getChild("foo");
+    assertTrue(cache.get("key", outputs(restored)));
+    assertEquals("contents", new String(FileSystemUtils.readContentAsLatin1(restored)));
+  }
+
+  @Test
+  public void testRestoredOutputDoesNotShareTheBlob() throws Exception {
+    FileSystem fs = new JavaIoFileSystem();
+    Path root = fs.getPath(TestUtils.tmpDir()).getRelative("disk_output_cache");
+    FileSystemUtils.deleteTree(root);
+    FsApparatus nativeScratch = new FsApparatus(fs, root);
+    cache = new DiskOutputCache(nativeScratch.path("cache"), 1024 * 1024);
+    Path out = nativeScratch.file("out1/foo", "contents");
+    cache.put("key", outputs(out), ImmutableMap.of("foo", out.getMD5Digest()));
+
+    Path restored = nativeScratch.dir("out2").getChild("foo");
+    assertTrue(cache.get("key", outputs(restored)));
+    Path blob = nativeScratch.path("cache/cas").getDirectoryEntries().iterator().next();
+    assertFalse(Files.isSameFile(restored.getPathFile().toPath(), blob.getPathFile().toPath()));
+
+    // Writing the restored output in place must not change what the next build gets.
+    FileSystemUtils.writeContentAsLatin1(restored, "modified");
+    Path again = nativeScratch.dir("out3").getChild("foo");
+    assertTrue(cache.get("key", outputs(again)));
+    assertEquals("contents", new String(FileSystemUtils.readContentAsLatin1(again)));
+  }
+}
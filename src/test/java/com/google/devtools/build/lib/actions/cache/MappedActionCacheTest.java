@@ -0,0 +1,162 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FsApparatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link MappedActionCache}.
+ */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+
+  private FsApparatus scratch = FsApparatus.newNative();
+  private Path cacheRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheRoot = scratch.path("cache");
+    cache = new MappedActionCache(cacheRoot);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testPutAndGet() {
+    putKey("key", "foo/bar", "foo/baz");
+    ActionCache.Entry entry = cache.get("key");
+    assertNotNull(entry);
+    assertThat(entry.getPaths()).containsExactly("foo/bar", "foo/baz").inOrder();
+    assertEquals(newEntry("key", "foo/bar", "foo/baz").toString(), entry.toString());
+  }
+
+  @Test
+  public void testPutOverwritesAndRemove() {
+    putKey("key", "a");
+    putKey("key", "b");
+    assertThat(cache.get("key").getPaths()).containsExactly("b");
+    cache.remove("key");
+    assertNull(cache.get("key"));
+    cache.remove("not_a_key");
+  }
+
+  @Test
+  public void testSaveAndReload() throws IOException {
+    for (int i = 0; i < 300; i++) {
+      putKey(Integer.toString(i), "out/" + i);
+    }
+    putKey("replaced", "old");
+    putKey("replaced", "new");
+    putKey("removed", "x");
+    cache.remove("removed");
+    cache.save();
+    // Not saved, so it must not be seen by the next instance.
+    putKey("unsaved", "y");
+
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    for (int i = 0; i < 300; i++) {
+      assertEquals(cache.get(Integer.toString(i)).toString(),
+          newCache.get(Integer.toString(i)).toString());
+    }
+    assertThat(newCache.get("replaced").getPaths()).containsExactly("new");
+    assertNull(newCache.get("removed"));
+    assertNull(newCache.get("unsaved"));
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      putKey("key" + (i % 10), "out/" + i);
+    }
+    long sizeBefore = cache.getLogSize();
+    cache.compact();
+    assertTrue(cache.getLogSize() < sizeBefore);
+    for (int i = 0; i < 10; i++) {
+      assertThat(cache.get("key" + i).getPaths()).containsExactly("out/" + (90 + i));
+    }
+
+    // The compacted log is what the next instance sees, and it can still be appended to.
+    putKey("key0", "after");
+    cache.save();
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    assertThat(newCache.get("key0").getPaths()).containsExactly("after");
+    assertThat(newCache.get("key9").getPaths()).containsExactly("out/99");
+  }
+
+  @Test
+  public void testReloadAfterCompactionWithoutSave() throws IOException {
+    cache.save();
+    for (int i = 0; i < 100; i++) {
+      putKey("key" + (i % 10), "out/" + i);
+    }
+    cache.compact();
+
+    // No save() since the keys were added: the compacted log must not refer to indices that the
+    // next instance does not have.
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    for (int i = 0; i < 10; i++) {
+      assertThat(newCache.get("key" + i).getPaths()).containsExactly("out/" + (90 + i));
+    }
+  }
+
+  @Test
+  public void testCorruptedLogIsRenamed() throws IOException {
+    putKey("key", "a");
+    cache.save();
+    Path logFile = MappedActionCache.logFile(cacheRoot);
+    FileSystemUtils.writeContentAsLatin1(logFile, "garbage garbage garbage");
+    try {
+      new MappedActionCache(cacheRoot);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Failed to load action cache data");
+    }
+    assertTrue(cacheRoot.getChild(logFile.getBaseName() + ".bad").exists());
+    assertNull(new MappedActionCache(cacheRoot).get("key"));
+  }
+
+  private static ActionCache.Entry newEntry(String key, String... paths) {
+    ActionCache.Entry entry = new ActionCache.Entry(key);
+    for (String path : paths) {
+      entry.addFile(new PathFragment(path), Metadata.CONSTANT_METADATA);
+    }
+    entry.getFileDigest();
+    return entry;
+  }
+
+  private void putKey(String key, String... paths) {
+    cache.put(key, newEntry(key, paths));
+  }
+}
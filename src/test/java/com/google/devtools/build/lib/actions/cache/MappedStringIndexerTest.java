@@ -0,0 +1,150 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.TestThread;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FsApparatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link MappedStringIndexer}.
+ */
+@RunWith(JUnit4.class)
+public class MappedStringIndexerTest {
+
+  private FsApparatus scratch = FsApparatus.newNative();
+  private Path stringsFile;
+  private Path indexFile;
+  private MappedStringIndexer indexer;
+
+  @Before
+  public void setUp() throws Exception {
+    stringsFile = scratch.path("cache/strings.dat");
+    indexFile = scratch.path("cache/index.dat");
+    indexer = MappedStringIndexer.newMappedStringIndexer(stringsFile, indexFile);
+  }
+
+  @Test
+  public void testIndexing() {
+    assertEquals(0, indexer.size());
+    assertEquals(-1, indexer.getIndex("abc"));
+    assertEquals(0, indexer.getOrCreateIndex("abc"));
+    assertEquals(1, indexer.getOrCreateIndex("abcdef"));
+    assertEquals(2, indexer.getOrCreateIndex(""));
+    assertEquals(0, indexer.getOrCreateIndex("abc"));
+    assertTrue(indexer.addString("\u00e9t\u00e9"));
+    assertFalse(indexer.addString("abcdef"));
+    assertEquals(4, indexer.size());
+    assertEquals(1, indexer.getIndex("abcdef"));
+    assertEquals("abcdef", indexer.getStringForIndex(1));
+    assertEquals("", indexer.getStringForIndex(2));
+    assertEquals("\u00e9t\u00e9", indexer.getStringForIndex(3));
+    assertNull(indexer.getStringForIndex(4));
+    assertNull(indexer.getStringForIndex(-1));
+  }
+
+  @Test
+  public void testGrowthAndReload() throws IOException {
+    // Enough strings to rebuild the hash table and to grow the string file several times.
+    int count = 50000;
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, indexer.getOrCreateIndex(longString(i)));
+    }
+    indexer.save();
+
+    MappedStringIndexer reloaded = MappedStringIndexer.newMappedStringIndexer(stringsFile,
+        indexFile);
+    assertEquals(count, reloaded.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, reloaded.getIndex(longString(i)));
+      assertEquals(longString(i), reloaded.getStringForIndex(i));
+    }
+    assertEquals(count, reloaded.getOrCreateIndex("new"));
+  }
+
+  @Test
+  public void testClear() throws IOException {
+    indexer.getOrCreateIndex("abc");
+    indexer.clear();
+    assertEquals(0, indexer.size());
+    assertEquals(-1, indexer.getIndex("abc"));
+    assertEquals(0, indexer.getOrCreateIndex("def"));
+    indexer.save();
+    MappedStringIndexer reloaded = MappedStringIndexer.newMappedStringIndexer(stringsFile,
+        indexFile);
+    assertEquals(1, reloaded.size());
+    assertEquals(0, reloaded.getIndex("def"));
+  }
+
+  @Test
+  public void testCorruptedFile() throws IOException {
+    indexer.getOrCreateIndex("abc");
+    indexer.save();
+    FileSystemUtils.writeContentAsLatin1(indexFile, "garbage garbage garbage");
+    try {
+      MappedStringIndexer.newMappedStringIndexer(stringsFile, indexFile);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    final int threadCount = 4;
+    final int stringCount = 5000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<TestThread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      TestThread thread = new TestThread() {
+        @Override
+        public void runTest() throws Exception {
+          start.await();
+          for (int i = 0; i < stringCount; i++) {
+            String s = longString(i);
+            assertEquals(s, indexer.getStringForIndex(indexer.getOrCreateIndex(s)));
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (TestThread thread : threads) {
+      thread.joinAndAssertState(0);
+    }
+    assertEquals(stringCount, indexer.size());
+  }
+
+  private static String longString(int i) {
+    return "some/fairly/long/output/directory/path/file" + i;
+  }
+}
@@ -242,6 +242,34 @@ public abstract class ExpanderTestBase extends TestCase  {
     }
   }
 
+  @Test
+  public void shallowlyEqualSubsetsAreMerged() {
+    NestedSet<String> common = prepareBuilder("c").build();
+    NestedSet<String> first = prepareBuilder("a", "b").addTransitive(common).build();
+    NestedSet<String> second = prepareBuilder("a", "b").addTransitive(common).build();
+    NestedSet<String> other = prepareBuilder("b", "d").build();
+    NestedSet<String> top = prepareBuilder("e")
+        .addTransitive(first).addTransitive(other).addTransitive(second).build();
+
+    assertEquals(2, top.transitiveSets().length);
+    NestedSet<String> unmerged = expanderOrder().factory.manyDirectManyTransitive(
+        new Object[] {"e"}, new NestedSet[] {first, other, second});
+    assertSetContents(unmerged.toList(), top);
+  }
+
+  @Test
+  public void subsetsWithoutSubsetsAreNotMerged() {
+    // Telling these apart would mean hashing all their direct members on every build().
+    NestedSet<String> first = prepareBuilder("a", "b").build();
+    NestedSet<String> second = prepareBuilder("a", "b").build();
+    NestedSet<String> top = prepareBuilder("e").addTransitive(first).addTransitive(second).build();
+
+    assertEquals(2, top.transitiveSets().length);
+    NestedSet<String> unmerged = expanderOrder().factory.manyDirectManyTransitive(
+        new Object[] {"e"}, new NestedSet[] {first, second});
+    assertSetContents(unmerged.toList(), top);
+  }
+
   private NestedSetBuilder<String> prepareBuilder(String... directMembers) {
     NestedSetBuilder<String> builder = new NestedSetBuilder<>(expanderOrder());
     builder.addAll(Lists.newArrayList(directMembers));
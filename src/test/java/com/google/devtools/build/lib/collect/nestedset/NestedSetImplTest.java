@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -243,4 +245,21 @@ public class NestedSetImplTest extends TestCase {
     }
     return builder.build();
   }
+
+  @Test
+  public void largeFlattenedListsAreCached() {
+    MemoizedUniquefierNestedSet.clearFlattenCache();
+    NestedSetBuilder<String> inner = nestedSetBuilder();
+    for (int i = 0; i < MemoizedUniquefierNestedSet.MIN_CACHED_SIZE; i++) {
+      inner.add("e" + i);
+    }
+    NestedSet<String> large = nestedSetBuilder("a").addTransitive(inner.build()).build();
+    assertSame(large.toList(), large.toList());
+    assertEquals(large.toList(), ImmutableList.copyOf(large.toSet()));
+
+    NestedSet<String> small = nestedSetBuilder("a").addTransitive(nestedSetBuilder("b").build())
+        .build();
+    assertNotSame(small.toList(), small.toList());
+    assertEquals(ImmutableList.of("b", "a"), small.toList());
+  }
 }
@@ -0,0 +1,137 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link ParallelCompileOrderExpander}.
+ */
+@RunWith(JUnit4.class)
+public class ParallelCompileOrderExpanderTest {
+
+  private static ImmutableList<String> sequential(NestedSet<String> set) {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    set.getOrder().<String>expander().expandInto(set, new RecordingUniqueifier(), builder);
+    return builder.build();
+  }
+
+  private static Object sequentialMemo(NestedSet<String> set) {
+    RecordingUniqueifier uniqueifier = new RecordingUniqueifier();
+    set.getOrder().<String>expander()
+        .expandInto(set, uniqueifier, ImmutableList.<String>builder());
+    return uniqueifier.getMemo();
+  }
+
+  private static void assertSameAsSequential(NestedSet<String> set, int chunkSize) {
+    ParallelCompileOrderExpander.Result<String> result =
+        ParallelCompileOrderExpander.expand(set, 0, chunkSize);
+    assertEquals(sequential(set), result.elements);
+    Object expectedMemo = sequentialMemo(set);
+    if (expectedMemo instanceof byte[]) {
+      assertTrue(Arrays.equals((byte[]) expectedMemo, (byte[]) result.memo));
+    } else {
+      assertEquals(expectedMemo, result.memo);
+    }
+  }
+
+  @Test
+  public void smallSetsAreLeftToTheSequentialExpander() {
+    NestedSet<String> set = NestedSetBuilder.<String>stableOrder().add("a").add("b").build();
+    assertNull(ParallelCompileOrderExpander.expand(set, 3, 1));
+  }
+
+  @Test
+  public void duplicatesDoNotCountTowardsTheSize() {
+    NestedSet<String> shared = NestedSetBuilder.<String>stableOrder().add("a").add("b").build();
+    NestedSet<String> set = NestedSetBuilder.<String>stableOrder()
+        .addTransitive(NestedSetBuilder.<String>stableOrder().addTransitive(shared).build())
+        .addTransitive(NestedSetBuilder.<String>stableOrder().addTransitive(shared).build())
+        .build();
+    assertNull(ParallelCompileOrderExpander.expand(set, 3, 1));
+  }
+
+  @Test
+  public void sizeCheckStopsEarlyOnManyPaths() {
+    // A chain of diamonds has 2^60 paths to its bottom, which the size check must not follow.
+    NestedSet<String> set = NestedSetBuilder.<String>compileOrder().add("bottom").build();
+    for (int i = 0; i < 60; i++) {
+      NestedSet<String> left = NestedSetBuilder.<String>compileOrder()
+          .add("l" + i).addTransitive(set).build();
+      NestedSet<String> right = NestedSetBuilder.<String>compileOrder()
+          .add("r" + i).addTransitive(set).build();
+      set = NestedSetBuilder.<String>compileOrder().addTransitive(left).addTransitive(right)
+          .build();
+    }
+    assertNull(ParallelCompileOrderExpander.expand(set, 1000, 16));
+    ParallelCompileOrderExpander.Result<String> result =
+        ParallelCompileOrderExpander.expand(set, 100, 16);
+    assertNotNull(result);
+    assertEquals(sequential(set), result.elements);
+  }
+
+  @Test
+  public void sameResultAsSequentialExpansion() {
+    Random random = new Random(0);
+    for (Order order : ImmutableList.of(Order.STABLE_ORDER, Order.COMPILE_ORDER)) {
+      for (int iteration = 0; iteration < 50; iteration++) {
+        List<NestedSet<String>> nodes = new ArrayList<>();
+        for (int n = 0; n < 40; n++) {
+          NestedSetBuilder<String> builder = new NestedSetBuilder<>(order);
+          for (int i = random.nextInt(6); i > 0; i--) {
+            builder.add("e" + random.nextInt(30));
+          }
+          for (int i = n == 0 ? 0 : random.nextInt(4); i > 0; i--) {
+            builder.addTransitive(nodes.get(random.nextInt(n)));
+          }
+          nodes.add(builder.build());
+        }
+        for (NestedSet<String> set : nodes) {
+          for (int chunkSize : new int[] {1, 3, 1000}) {
+            assertSameAsSequential(set, chunkSize);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void deepChain() {
+    NestedSet<String> set = NestedSetBuilder.emptySet(Order.COMPILE_ORDER);
+    ImmutableList.Builder<String> expected = ImmutableList.builder();
+    for (int i = 0; i < 50000; i++) {
+      set = NestedSetBuilder.<String>compileOrder().add("e" + i).addTransitive(set).build();
+      expected.add("e" + i);
+    }
+    ParallelCompileOrderExpander.Result<String> result =
+        ParallelCompileOrderExpander.expand(set, 0, 1024);
+    assertEquals(expected.build(), result.elements);
+    // Every element and every non-empty subset is unique.
+    assertEquals(50000 + 49999, result.memo);
+  }
+}
@@ -0,0 +1,274 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.events;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.util.io.OutErr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the {@link AsynchronousEventHandler} class.
+ */
+@RunWith(JUnit4.class)
+public class AsynchronousEventHandlerTest {
+
+  /** Collects events, optionally waiting for a latch before handling the first one. */
+  private static class BlockingCollector implements EventHandler {
+    private final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release;
+
+    BlockingCollector(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void handle(Event event) {
+      started.countDown();
+      Uninterruptibles.awaitUninterruptibly(release);
+      events.add(event);
+    }
+  }
+
+  @Test
+  public void deliversEventsInOrder() {
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0));
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 16);
+    List<Event> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Event event = Event.info("message " + i);
+      expected.add(event);
+      handler.handle(event);
+    }
+    handler.flush();
+    assertEquals(expected, collector.events);
+    handler.close();
+  }
+
+  @Test
+  public void keepsTheOrderOfEachReportingThread() throws Exception {
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0));
+    final AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 16);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final String prefix = t + ":";
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 500; i++) {
+            handler.handle(Event.info(prefix + i));
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    handler.close();
+
+    assertThat(collector.events).hasSize(2000);
+    int[] next = new int[4];
+    for (Event event : collector.events) {
+      String[] parts = event.getMessage().split(":");
+      int thread = Integer.parseInt(parts[0]);
+      assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  @Test
+  public void coalescesProgressWhenTheConsumerFallsBehind() {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCollector collector = new BlockingCollector(release);
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 8);
+    Event first = Event.info("first");
+    handler.handle(first);
+    Uninterruptibles.awaitUninterruptibly(collector.started);
+
+    List<Event> warnings = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      Event warning = Event.warn("warning " + i);
+      warnings.add(warning);
+      handler.handle(warning);
+    }
+    Event lastProgress = null;
+    for (int i = 0; i < 3; i++) {
+      lastProgress = Event.progress("progress " + i);
+      handler.handle(lastProgress);
+    }
+    release.countDown();
+    handler.close();
+
+    assertEquals(ImmutableList.builder().add(first).addAll(warnings).add(lastProgress).build(),
+        collector.events);
+  }
+
+  @Test
+  public void coalescedProgressFollowsEventsReportedAfterIt() {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCollector collector = new BlockingCollector(release);
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 8);
+    Event first = Event.info("first");
+    handler.handle(first);
+    Uninterruptibles.awaitUninterruptibly(collector.started);
+
+    List<Event> before = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      Event warning = Event.warn("before " + i);
+      before.add(warning);
+      handler.handle(warning);
+    }
+    Event progress = Event.progress("progress");
+    handler.handle(progress);
+    Event after = Event.error("after");
+    handler.handle(after);
+    release.countDown();
+    handler.flush();
+
+    assertEquals(
+        ImmutableList.builder().add(first).addAll(before).add(after).add(progress).build(),
+        collector.events);
+    handler.close();
+  }
+
+  @Test
+  public void newerProgressReplacesCoalescedProgress() {
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final CountDownLatch gateReached = new CountDownLatch(1);
+    final CountDownLatch releaseGate = new CountDownLatch(1);
+    final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(new EventHandler() {
+      @Override
+      public void handle(Event event) {
+        if (event.getMessage().equals("first")) {
+          Uninterruptibles.awaitUninterruptibly(releaseFirst);
+        } else if (event.getMessage().equals("gate")) {
+          gateReached.countDown();
+          Uninterruptibles.awaitUninterruptibly(releaseGate);
+        }
+        events.add(event);
+      }
+    }, 8);
+    List<Event> expected = new ArrayList<>();
+    for (String message : ImmutableList.of("first", "a", "b", "gate", "c")) {
+      Event event = Event.info(message);
+      expected.add(event);
+      handler.handle(event);
+    }
+    // Five events behind: coalesced.
+    handler.handle(Event.progress("old progress"));
+    releaseFirst.countDown();
+    Uninterruptibles.awaitUninterruptibly(gateReached);
+    // Two events behind: queued, and newer than the coalesced one.
+    Event newProgress = Event.progress("new progress");
+    expected.add(newProgress);
+    handler.handle(newProgress);
+    releaseGate.countDown();
+    handler.close();
+
+    assertEquals(expected, events);
+  }
+
+  @Test
+  public void orderedOutErrWritesAfterTheQueuedEvents() throws Exception {
+    final ByteArrayOutputStream terminal = new ByteArrayOutputStream();
+    final OutErr outErr = OutErr.create(terminal, terminal);
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(new EventHandler() {
+      @Override
+      public void handle(Event event) {
+        // A slow terminal.
+        Uninterruptibles.sleepUninterruptibly(20, TimeUnit.MILLISECONDS);
+        outErr.printOut(event.getMessage() + "\n");
+      }
+    }, 8);
+    OutErr ordered = handler.orderedOutErr(outErr);
+    handler.handle(Event.info("first"));
+    handler.handle(Event.info("second"));
+    ordered.printErrLn("direct");
+    handler.handle(Event.info("third"));
+    handler.close();
+    ordered.printOutLn("after close");
+
+    assertEquals("first\nsecond\ndirect\nthird\nafter close\n", terminal.toString());
+  }
+
+  @Test
+  public void progressKeepsItsPlaceWhileTheConsumerKeepsUp() {
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0));
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 8);
+    List<Event> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Event event = i % 2 == 0 ? Event.progress("progress " + i) : Event.info("info " + i);
+      expected.add(event);
+      handler.handle(event);
+      handler.flush();
+    }
+    assertEquals(expected, collector.events);
+    handler.close();
+  }
+
+  @Test
+  public void copiesMessageBytes() {
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCollector collector = new BlockingCollector(release);
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(collector, 8);
+    handler.handle(Event.info("first"));
+    Uninterruptibles.awaitUninterruptibly(collector.started);
+
+    byte[] buffer = "abc".getBytes();
+    handler.handle(new Event(EventKind.STDOUT, null, buffer));
+    buffer[0] = 'x';
+    release.countDown();
+    handler.close();
+
+    assertEquals("abc", collector.events.get(1).getMessage());
+  }
+
+  @Test
+  public void rethrowsFailuresOfTheDelegate() {
+    final RuntimeException failure = new IllegalStateException("broken terminal");
+    AsynchronousEventHandler handler = new AsynchronousEventHandler(new EventHandler() {
+      @Override
+      public void handle(Event event) {
+        throw failure;
+      }
+    }, 8);
+    handler.handle(Event.info("a"));
+    handler.handle(Event.info("b"));
+    try {
+      handler.close();
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.ProfileSummary.CriticalPathComponent;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseSummary;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for reading profiles in a single pass and for {@link ProfileSummary}.
+ */
+@RunWith(JUnit4.class)
+public class ProfileSummaryTest {
+
+  private final ManualClock clock = new ManualClock();
+  private final Profiler profiler = Profiler.instance();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private Path profileFile;
+
+  @Before
+  public void setUp() throws Exception {
+    profileFile = new InMemoryFileSystem().getPath("/profile.dat");
+    profiler.start(ProfiledTaskKinds.ALL, buffer, "test profile", false, clock,
+        clock.nanoTime());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    profiler.stop();
+  }
+
+  private void advance(long millis) {
+    clock.advanceMillis(millis);
+  }
+
+  private long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /** Writes the bytes produced by the profiler so far to the profile file. */
+  private void snapshot() throws Exception {
+    FileSystemUtils.writeContent(profileFile, buffer.toByteArray());
+  }
+
+  private void runAction(String name, long millis) {
+    profiler.startTask(ProfilerTask.ACTION, name);
+    long start = clock.nanoTime();
+    advance(1);
+    // Too short to be recorded: aggregated into the action.
+    profiler.logSimpleTask(start, clock.nanoTime(), ProfilerTask.VFS_STAT, name);
+    advance(millis - 1);
+    profiler.completeTask(ProfilerTask.ACTION);
+  }
+
+  private static class RecordingVisitor implements ProfileInfo.TaskVisitor {
+    String comment;
+    final List<String> descriptions = new ArrayList<>();
+
+    @Override
+    public void visitComment(String comment) {
+      this.comment = comment;
+    }
+
+    @Override
+    public void visitTask(long threadId, int id, int parentId, long startTime, long duration,
+        ProfilerTask type, int descIndex, String description, byte[] stats) {
+      descriptions.add(description);
+    }
+  }
+
+  @Test
+  public void testPartialProfileIsReadable() throws Exception {
+    profiler.markPhase(ProfilePhase.INIT);
+    runAction("first", 10);
+    profiler.save();
+    snapshot();
+
+    RecordingVisitor visitor = new RecordingVisitor();
+    assertFalse(ProfileInfo.processProfile(profileFile, visitor));
+    assertEquals("test profile", visitor.comment);
+    assertThat(visitor.descriptions).containsExactly("Initialize command", "first").inOrder();
+    assertTrue(ProfileInfo.loadProfile(profileFile).isCorruptedOrIncomplete());
+
+    runAction("second", 10);
+    profiler.save();
+    snapshot();
+    visitor = new RecordingVisitor();
+    assertFalse(ProfileInfo.processProfile(profileFile, visitor));
+    assertThat(visitor.descriptions).containsExactly("Initialize command", "first", "second")
+        .inOrder();
+
+    profiler.stop();
+    snapshot();
+    visitor = new RecordingVisitor();
+    assertTrue(ProfileInfo.processProfile(profileFile, visitor));
+    assertThat(visitor.descriptions).contains("second");
+    assertFalse(ProfileInfo.loadProfile(profileFile).isCorruptedOrIncomplete());
+  }
+
+  @Test
+  public void testPartialSummary() throws Exception {
+    profiler.markPhase(ProfilePhase.INIT);
+    runAction("first", 10);
+    profiler.save();
+    snapshot();
+
+    ProfileSummary summary = ProfileSummary.summarize(profileFile);
+    assertTrue(summary.isCorruptedOrIncomplete());
+    assertEquals(2, summary.getTaskCount());
+    PhaseSummary init = summary.getPhase(ProfilePhase.INIT);
+    assertEquals(millis(10), init.getDuration());
+    assertEquals(1, init.getStatsForType(ProfilerTask.ACTION).count);
+    assertNull(summary.getPhase(ProfilePhase.EXECUTE));
+  }
+
+  @Test
+  public void testSummaryMatchesProfileInfo() throws Exception {
+    profiler.markPhase(ProfilePhase.INIT);
+    advance(5);
+    runAction("init action", 20);
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    runAction("first", 10);
+    runAction("second", 30);
+    long start = clock.nanoTime();
+    advance(7);
+    profiler.logSimpleTask(start, clock.nanoTime(), ProfilerTask.SPAWN, "spawn");
+
+    profiler.startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
+    profiler.logSimpleTaskDuration(start, millis(10), ProfilerTask.CRITICAL_PATH_COMPONENT,
+        "first");
+    profiler.logSimpleTaskDuration(start, millis(30), ProfilerTask.CRITICAL_PATH_COMPONENT,
+        "second");
+    profiler.completeTask(ProfilerTask.CRITICAL_PATH);
+    profiler.stop();
+    snapshot();
+
+    ProfileSummary summary = ProfileSummary.summarize(profileFile);
+    assertFalse(summary.isCorruptedOrIncomplete());
+    assertEquals("test profile", summary.getComment());
+
+    ProfileInfo info = ProfileInfo.loadProfile(profileFile);
+    info.calculateStats();
+    assertEquals(info.allTasksById.size(), summary.getTaskCount());
+    assertEquals(2, summary.getPhases().size());
+    for (PhaseSummary phase : summary.getPhases()) {
+      ProfileInfo.Task phaseTask = info.getPhaseTask(phase.phase);
+      assertEquals(info.getPhaseDuration(phaseTask), phase.getDuration());
+      List<ProfileInfo.Task> tasks = info.getTasksForPhase(phaseTask);
+      for (ProfilerTask type : ProfilerTask.values()) {
+        ProfileInfo.AggregateAttr expected = info.getStatsForType(type, tasks);
+        ProfileInfo.AggregateAttr actual = phase.getStatsForType(type);
+        assertEquals(type.toString(), expected.count, actual.count);
+        assertEquals(type.toString(), expected.totalTime, actual.totalTime);
+      }
+    }
+    assertEquals(millis(25), summary.getPhase(ProfilePhase.INIT).getDuration());
+    assertEquals(2, summary.getPhase(ProfilePhase.EXECUTE)
+        .getStatsForType(ProfilerTask.VFS_STAT).count);
+
+    List<String> path = new ArrayList<>();
+    for (CriticalPathComponent component : summary.getCriticalPath()) {
+      path.add(component.description);
+    }
+    assertThat(path).containsExactly("first", "second").inOrder();
+    assertEquals(millis(40), summary.getCriticalPathDuration());
+  }
+}
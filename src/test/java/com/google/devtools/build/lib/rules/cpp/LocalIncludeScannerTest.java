@@ -0,0 +1,285 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.cpp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactOwner;
+import com.google.devtools.build.lib.actions.ArtifactResolver;
+import com.google.devtools.build.lib.actions.PackageRootResolver;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.rules.cpp.IncludeScanner.IncludeScannerSupplier;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link LocalIncludeScanner}.
+ */
+@RunWith(JUnit4.class)
+public class LocalIncludeScannerTest {
+
+  /** A file system that counts how often each file is read. */
+  private static final class CountingFileSystem extends InMemoryFileSystem {
+    private final Map<String, Integer> reads = new HashMap<>();
+
+    @Override
+    protected synchronized InputStream getInputStream(Path path) throws IOException {
+      Integer count = reads.get(path.getPathString());
+      reads.put(path.getPathString(), count == null ? 1 : count + 1);
+      return super.getInputStream(path);
+    }
+
+    int reads(Path path) {
+      Integer count = reads.get(path.getPathString());
+      return count == null ? 0 : count;
+    }
+  }
+
+  /** Resolves every path outside of the output directory to a source artifact. */
+  private final class SourceResolver implements ArtifactResolver {
+    private final Map<PathFragment, Artifact> artifacts = new HashMap<>();
+
+    @Override
+    public Artifact getSourceArtifact(PathFragment execPath, Root root, ArtifactOwner owner) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Artifact getSourceArtifact(PathFragment execPath, Root root) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Artifact resolveSourceArtifact(PathFragment execPath) {
+      if (execPath.startsWith(new PathFragment("out"))) {
+        return null;
+      }
+      Artifact artifact = artifacts.get(execPath);
+      if (artifact == null) {
+        artifact = new Artifact(execRoot.getRelative(execPath), sourceRoot);
+        artifacts.put(execPath, artifact);
+      }
+      return artifact;
+    }
+
+    @Override
+    public Map<PathFragment, Artifact> resolveSourceArtifacts(Iterable<PathFragment> execPaths,
+        PackageRootResolver resolver) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private CountingFileSystem fileSystem;
+  private Path execRoot;
+  private Root sourceRoot;
+  private Root outputRoot;
+  private SourceResolver resolver;
+  private LocalIncludeScanner.ScannerSupplier supplier;
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = new CountingFileSystem();
+    execRoot = fileSystem.getPath("/exec");
+    execRoot.createDirectory();
+    sourceRoot = Root.asSourceRoot(execRoot);
+    outputRoot = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    resolver = new SourceResolver();
+    supplier = new LocalIncludeScanner.ScannerSupplier(null);
+  }
+
+  private Artifact file(String execPath, String... lines) throws IOException {
+    Path path = execRoot.getRelative(execPath);
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    StringBuilder content = new StringBuilder();
+    for (String line : lines) {
+      content.append(line).append('\n');
+    }
+    FileSystemUtils.writeContentAsLatin1(path, content.toString());
+    return resolver.resolveSourceArtifact(new PathFragment(execPath));
+  }
+
+  private Artifact generatedFile(String execPath, String... lines) throws IOException {
+    file(execPath, lines);
+    return new Artifact(execRoot.getRelative(execPath), outputRoot);
+  }
+
+  private List<Path> paths(String... execPaths) {
+    ImmutableList.Builder<Path> paths = ImmutableList.builder();
+    for (String execPath : execPaths) {
+      paths.add(execRoot.getRelative(execPath));
+    }
+    return paths.build();
+  }
+
+  private Set<String> scan(IncludeScannerSupplier scannerSupplier, List<Path> quoteIncludePaths,
+      List<Path> includePaths, Artifact source, Map<Artifact, Path> legalOutputPaths,
+      List<String> cmdlineIncludes) throws Exception {
+    LocalIncludeScanner scanner =
+        (LocalIncludeScanner) scannerSupplier.scannerFor(quoteIncludePaths, includePaths);
+    Set<Artifact> includes = new HashSet<>();
+    scanner.process(execRoot, resolver, source, ImmutableList.of(source), legalOutputPaths,
+        cmdlineIncludes, includes, null);
+    Set<String> result = new HashSet<>();
+    for (Artifact include : includes) {
+      result.add(include.getExecPathString());
+    }
+    return result;
+  }
+
+  private Set<String> scan(List<Path> quoteIncludePaths, List<Path> includePaths,
+      Artifact source) throws Exception {
+    return scan(supplier, quoteIncludePaths, includePaths, source,
+        ImmutableMap.<Artifact, Path>of(), ImmutableList.<String>of());
+  }
+
+  @Test
+  public void quoteIncludesSearchTheIncludingDirectoryFirst() throws Exception {
+    Artifact main = file("a/main.cc",
+        "#include \"x.h\"",
+        "#include \"y.h\"",
+        "#include <z.h>");
+    file("a/x.h");
+    file("q/x.h");
+    file("q/y.h");
+    file("i/y.h");
+    file("a/z.h");
+    file("q/z.h");
+    file("i/z.h");
+    assertThat(scan(paths("q"), paths("i"), main))
+        .containsExactly("a/main.cc", "a/x.h", "q/y.h", "i/z.h");
+  }
+
+  @Test
+  public void includeNextContinuesAfterTheDirectoryOfTheIncludingFile() throws Exception {
+    Artifact main = file("a/main.cc", "#include <n.h>");
+    file("i1/n.h", "#include_next <n.h>");
+    file("i2/other.h");
+    file("i3/n.h", "#include_next <n.h>");
+    file("i4/n.h", "#include_next \"n.h\"");
+    file("i5/n.h");
+    assertThat(scan(ImmutableList.<Path>of(), paths("i1", "i2", "i3", "i4", "i5"), main))
+        .containsExactly("a/main.cc", "i1/n.h", "i3/n.h", "i4/n.h", "i5/n.h");
+  }
+
+  @Test
+  public void includeNextInAFileNotOnTheSearchPathIsAPlainInclude() throws Exception {
+    Artifact main = file("a/main.cc", "#include_next \"n.h\"");
+    file("a/n.h");
+    file("i/n.h");
+    assertThat(scan(ImmutableList.<Path>of(), paths("i"), main))
+        .containsExactly("a/main.cc", "a/n.h");
+  }
+
+  @Test
+  public void onlyLegalGeneratedHeadersAreScanned() throws Exception {
+    Artifact main = file("a/main.cc",
+        "#include \"out/legal.h\"",
+        "#include \"out/illegal.h\"");
+    Artifact legal = generatedFile("out/legal.h", "#include \"a/lib.h\"");
+    generatedFile("out/illegal.h", "#include \"a/hidden.h\"");
+    file("a/lib.h");
+    file("a/hidden.h");
+    Map<Artifact, Path> legalOutputPaths = new HashMap<>();
+    legalOutputPaths.put(legal, null);
+    assertThat(scan(supplier, ImmutableList.of(execRoot), ImmutableList.<Path>of(), main, legalOutputPaths,
+        ImmutableList.<String>of()))
+        .containsExactly("a/main.cc", "out/legal.h", "a/lib.h");
+  }
+
+  @Test
+  public void generatedHeaderIsReadFromItsGreppedFile() throws Exception {
+    Artifact main = file("a/main.cc", "#include \"out/gen.h\"");
+    Artifact generated = generatedFile("out/gen.h", "#include \"a/not_grepped.h\"");
+    file("out/gen.h.includes", "\"a/grepped.h");
+    file("a/grepped.h");
+    file("a/not_grepped.h");
+    assertThat(scan(supplier, ImmutableList.of(execRoot), ImmutableList.<Path>of(), main,
+        ImmutableMap.of(generated, execRoot.getRelative("out/gen.h.includes")),
+        ImmutableList.<String>of()))
+        .containsExactly("a/main.cc", "out/gen.h", "a/grepped.h");
+  }
+
+  @Test
+  public void cmdlineIncludesAreScanned() throws Exception {
+    Artifact main = file("a/main.cc");
+    file("a/pre.h", "#include <dep.h>");
+    file("i/dep.h");
+    assertThat(scan(supplier, ImmutableList.<Path>of(), paths("i"), main,
+        ImmutableMap.<Artifact, Path>of(), ImmutableList.of("pre.h")))
+        .containsExactly("a/main.cc", "a/pre.h", "i/dep.h");
+  }
+
+  @Test
+  public void fileEndingInABackslash() throws Exception {
+    Artifact main = file("a/main.cc");
+    FileSystemUtils.writeContentAsLatin1(main.getPath(), "#include \"x.h\"\n#define X \\");
+    file("a/x.h");
+    assertThat(scan(ImmutableList.<Path>of(), ImmutableList.<Path>of(), main))
+        .containsExactly("a/main.cc", "a/x.h");
+  }
+
+  @Test
+  public void computedIncludesFallBackToTheGivenHeaders() throws Exception {
+    Artifact main = file("a/main.cc",
+        "#include \"x.h\"",
+        "#include HEADER");
+    file("a/x.h");
+    Artifact declared = file("b/declared.h");
+    assertThat(scan(ImmutableList.<Path>of(), ImmutableList.<Path>of(), main))
+        .containsExactly("a/main.cc", "a/x.h");
+    assertThat(scan(supplier.withFallback(ImmutableList.of(declared)), ImmutableList.<Path>of(),
+        ImmutableList.<Path>of(), main, ImmutableMap.<Artifact, Path>of(),
+        ImmutableList.<String>of()))
+        .containsExactly("a/main.cc", "a/x.h", "b/declared.h");
+  }
+
+  @Test
+  public void inclusionsAreCachedUntilTheFileChanges() throws Exception {
+    Artifact main = file("a/main.cc", "#include \"x.h\"");
+    Artifact header = file("a/x.h", "#include \"old.h\"");
+    file("a/old.h");
+    file("a/new.h");
+    header.getPath().setLastModifiedTime(1000);
+    assertThat(scan(ImmutableList.<Path>of(), ImmutableList.<Path>of(), main))
+        .containsExactly("a/main.cc", "a/x.h", "a/old.h");
+    assertThat(scan(ImmutableList.<Path>of(), ImmutableList.<Path>of(), main))
+        .containsExactly("a/main.cc", "a/x.h", "a/old.h");
+    assertEquals(1, fileSystem.reads(header.getPath()));
+
+    FileSystemUtils.writeContentAsLatin1(header.getPath(), "#include \"new.h\"\n");
+    header.getPath().setLastModifiedTime(2000);
+    assertThat(scan(ImmutableList.<Path>of(), ImmutableList.<Path>of(), main))
+        .containsExactly("a/main.cc", "a/x.h", "a/new.h");
+    assertEquals(2, fileSystem.reads(header.getPath()));
+  }
+}
@@ -0,0 +1,264 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.Differencer;
+import com.google.devtools.build.skyframe.ErrorInfo;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.Version;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link FilesystemValueChecker}.
+ */
+@RunWith(JUnit4.class)
+public class FilesystemValueCheckerTest {
+
+  /** An evaluator that only knows the values the test put in it. */
+  private static final class FakeEvaluator implements MemoizingEvaluator {
+    private final Map<SkyKey, SkyValue> values = new HashMap<>();
+
+    @Override
+    public <T extends SkyValue> EvaluationResult<T> evaluate(Iterable<SkyKey> roots,
+        Version version, boolean keepGoing, int numThreads, EventHandler reporter) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(Predicate<SkyKey> pred) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteDirty(long versionAgeLimit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<SkyKey, SkyValue> getValues() {
+      return values;
+    }
+
+    @Override
+    public Map<SkyKey, SkyValue> getDoneValues() {
+      return values;
+    }
+
+    @Override
+    public SkyValue getExistingValueForTesting(SkyKey key) {
+      return values.get(key);
+    }
+
+    @Override
+    public ErrorInfo getExistingErrorForTesting(SkyKey key) {
+      return null;
+    }
+
+    @Override
+    public void dump(boolean summarize, PrintStream out) {
+    }
+  }
+
+  /**
+   * A file system that makes the directories passed to {@link #awaitEachOther} wait until all of
+   * them are being checked at the same time.
+   */
+  private static final class RendezvousFileSystem extends InMemoryFileSystem {
+    private Set<Path> directories = Collections.emptySet();
+    private CountDownLatch rendezvous;
+    private final AtomicBoolean timedOut = new AtomicBoolean();
+    private final Set<String> threadNames =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    void awaitEachOther(Set<Path> directories) {
+      this.directories = directories;
+      this.rendezvous = new CountDownLatch(directories.size());
+    }
+
+    @Override
+    protected FileStatus[] statChildrenIfFound(Path directory, String[] names,
+        boolean followSymlinks) throws IOException {
+      threadNames.add(Thread.currentThread().getName());
+      if (directories.contains(directory)) {
+        rendezvous.countDown();
+        try {
+          if (!rendezvous.await(5, TimeUnit.SECONDS)) {
+            timedOut.set(true);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return super.statChildrenIfFound(directory, names, followSymlinks);
+    }
+  }
+
+  private final TimestampGranularityMonitor tsgm =
+      new TimestampGranularityMonitor(BlazeClock.instance());
+  private RendezvousFileSystem fileSystem;
+  private FakeEvaluator evaluator;
+  private Path mainRoot;
+  private Path otherRoot;
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = new RendezvousFileSystem();
+    evaluator = new FakeEvaluator();
+    mainRoot = fileSystem.getPath("/workspace");
+    otherRoot = fileSystem.getPath("/other");
+    FileSystemUtils.createDirectoryAndParents(mainRoot.getRelative("pkg"));
+    FileSystemUtils.createDirectoryAndParents(otherRoot.getRelative("pkg"));
+  }
+
+  /** Creates the file and puts its current file state into the graph. */
+  private SkyKey addFile(Path root, String relativePath) throws Exception {
+    Path path = root.getRelative(relativePath);
+    FileSystemUtils.writeContentAsLatin1(path, "content");
+    RootedPath rootedPath = RootedPath.toRootedPath(root, path);
+    SkyKey key = FileStateValue.key(rootedPath);
+    evaluator.values.put(key, FileStateValue.create(rootedPath, tsgm));
+    return key;
+  }
+
+  private Differencer.Diff getDirtyFilesystemSkyKeys() throws InterruptedException {
+    return new FilesystemValueChecker(evaluator, tsgm, null).getDirtyFilesystemSkyKeys();
+  }
+
+  @Test
+  public void testNothingChanged() throws Exception {
+    addFile(mainRoot, "pkg/BUILD");
+    addFile(otherRoot, "pkg/BUILD");
+    Differencer.Diff diff = getDirtyFilesystemSkyKeys();
+    assertThat(diff.changedKeysWithNewValues()).isEmpty();
+    assertThat(diff.changedKeysWithoutNewValues()).isEmpty();
+  }
+
+  @Test
+  public void testChangesInAllRootsAreFound() throws Exception {
+    SkyKey mainBuild = addFile(mainRoot, "pkg/BUILD");
+    addFile(mainRoot, "pkg/unchanged");
+    SkyKey otherBuild = addFile(otherRoot, "pkg/BUILD");
+    SkyKey deleted = addFile(otherRoot, "pkg/deleted");
+    FileSystemUtils.writeContentAsLatin1(mainRoot.getRelative("pkg/BUILD"), "changed content");
+    FileSystemUtils.writeContentAsLatin1(otherRoot.getRelative("pkg/BUILD"), "new");
+    otherRoot.getRelative("pkg/deleted").delete();
+
+    Differencer.Diff diff = getDirtyFilesystemSkyKeys();
+    assertThat(diff.changedKeysWithNewValues().keySet())
+        .containsExactly(mainBuild, otherBuild, deleted);
+    assertThat(diff.changedKeysWithNewValues().get(deleted))
+        .isEqualTo(FileStateValue.NONEXISTENT_FILE_STATE_NODE);
+  }
+
+  @Test
+  public void testValuesInErrorAreDirty() throws Exception {
+    SkyKey key = addFile(mainRoot, "pkg/BUILD");
+    evaluator.values.put(key, null);
+    assertThat(getDirtyFilesystemSkyKeys().changedKeysWithoutNewValues()).containsExactly(key);
+  }
+
+  @Test
+  public void testRootsAreCheckedConcurrently() throws Exception {
+    addFile(mainRoot, "pkg/BUILD");
+    addFile(otherRoot, "pkg/BUILD");
+    // If the roots were checked one after the other, the first would wait for the second in vain.
+    fileSystem.awaitEachOther(
+        ImmutableSet.of(mainRoot.getRelative("pkg"), otherRoot.getRelative("pkg")));
+    getDirtyFilesystemSkyKeys();
+    assertThat(fileSystem.timedOut.get()).isFalse();
+  }
+
+  @Test
+  public void testChecksShareThePool() throws Exception {
+    addFile(mainRoot, "pkg/BUILD");
+    addFile(otherRoot, "pkg/BUILD");
+    getDirtyFilesystemSkyKeys();
+    // The pool outlives a check, so the next one can still use it.
+    getDirtyFilesystemSkyKeys();
+    assertThat(fileSystem.threadNames).isNotEmpty();
+    for (String threadName : fileSystem.threadNames) {
+      assertThat(threadName).startsWith("FileSystem Value Checker");
+    }
+  }
+
+  @Test
+  public void testEveryRootIsProfiled() throws Exception {
+    addFile(mainRoot, "pkg/BUILD");
+    addFile(otherRoot, "pkg/BUILD");
+    addFile(otherRoot, "pkg/other");
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    Profiler.instance().start(ProfiledTaskKinds.ALL, buffer, "dirtiness check", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    try {
+      getDirtyFilesystemSkyKeys();
+    } finally {
+      Profiler.instance().stop();
+    }
+
+    Path profileFile = fileSystem.getPath("/profile.dat");
+    FileSystemUtils.writeContent(profileFile, buffer.toByteArray());
+    final List<String> checkedRoots = new ArrayList<>();
+    ProfileInfo.processProfile(profileFile, new ProfileInfo.TaskVisitor() {
+      @Override
+      public void visitComment(String comment) {
+      }
+
+      @Override
+      public void visitTask(long threadId, int id, int parentId, long startTime, long duration,
+          ProfilerTask type, int descIndex, String description, byte[] stats) {
+        if (type == ProfilerTask.FS_DIRTINESS_CHECK) {
+          checkedRoots.add(description);
+        }
+      }
+    });
+    assertThat(checkedRoots).containsExactly("/workspace", "/other");
+  }
+}
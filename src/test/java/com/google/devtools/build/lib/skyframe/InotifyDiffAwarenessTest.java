@@ -0,0 +1,260 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.HashBiMap;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.unix.Inotify;
+import com.google.devtools.build.lib.unix.InotifyWatchLimitException;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for {@link InotifyDiffAwareness}, with a fake in place of the kernel.
+ */
+@RunWith(JUnit4.class)
+public class InotifyDiffAwarenessTest {
+
+  /** Keeps the watches of a single descriptor and hands out the events queued by the test. */
+  private static final class FakeEventSource implements InotifyDiffAwareness.EventSource {
+    private final HashBiMap<Integer, String> watches = HashBiMap.create();
+    private final ByteArrayOutputStream pendingEvents = new ByteArrayOutputStream();
+    private final Set<Integer> openDescriptors = new HashSet<>();
+    private int watchLimit = Integer.MAX_VALUE;
+    private int nextFd = 3;
+    private int nextWd = 1;
+    private int addWatchCalls;
+
+    @Override
+    public int init() {
+      openDescriptors.add(nextFd);
+      return nextFd++;
+    }
+
+    @Override
+    public int addWatch(int fd, String path, int mask) throws IOException {
+      assertTrue(openDescriptors.contains(fd));
+      addWatchCalls++;
+      Integer wd = watches.inverse().get(path);
+      if (wd != null) {
+        return wd;
+      }
+      if (watches.size() >= watchLimit) {
+        throw new InotifyWatchLimitException(path + " (inotify watch limit reached)");
+      }
+      watches.put(nextWd, path);
+      return nextWd++;
+    }
+
+    @Override
+    public boolean removeWatch(int fd, int wd) {
+      return watches.remove(wd) != null;
+    }
+
+    @Override
+    public int read(int fd, byte[] buffer) {
+      byte[] events = pendingEvents.toByteArray();
+      pendingEvents.reset();
+      System.arraycopy(events, 0, buffer, 0, events.length);
+      return events.length;
+    }
+
+    @Override
+    public void close(int fd) {
+      assertTrue(openDescriptors.remove(fd));
+      watches.clear();
+    }
+
+    /** Queues an event for the watch of the given directory, or for no watch if it is null. */
+    void queue(String dir, int mask, String name) {
+      int wd = dir == null ? -1 : watches.inverse().get(dir);
+      // The name is NUL-terminated and padded to a multiple of four bytes.
+      int nameLength = name.isEmpty() ? 0 : (name.length() / 4 + 1) * 4;
+      ByteBuffer event = ByteBuffer.allocate(Inotify.EVENT_HEADER_SIZE + nameLength)
+          .order(ByteOrder.nativeOrder());
+      event.putInt(wd).putInt(mask).putInt(0).putInt(nameLength);
+      event.put(name.getBytes(ISO_8859_1));
+      pendingEvents.write(event.array(), 0, event.capacity());
+    }
+  }
+
+  private FakeEventSource eventSource;
+  private InotifyDiffAwareness.Factory factory;
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    eventSource = new FakeEventSource();
+    factory = new InotifyDiffAwareness.Factory(eventSource);
+    root = new InMemoryFileSystem().getPath("/workspace");
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    FileSystemUtils.createEmptyFile(root.getRelative("a/file"));
+    FileSystemUtils.createEmptyFile(root.getRelative("top"));
+  }
+
+  private static ModifiedFileSet modified(String... paths) {
+    ModifiedFileSet.Builder builder = ModifiedFileSet.builder();
+    for (String path : paths) {
+      builder.modify(new PathFragment(path));
+    }
+    return builder.build();
+  }
+
+  private static ModifiedFileSet getDiff(DiffAwareness diffAwareness, View oldView)
+      throws Exception {
+    return diffAwareness.getDiff(oldView, diffAwareness.getCurrentView());
+  }
+
+  @Test
+  public void testFirstViewWatchesAllDirectories() throws Exception {
+    factory.create(root).getCurrentView();
+    assertThat(eventSource.watches.values())
+        .containsExactly("/workspace", "/workspace/a", "/workspace/a/b");
+  }
+
+  @Test
+  public void testChangedFilesAreReported() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    eventSource.queue("/workspace/a", Inotify.IN_MODIFY, "file");
+    eventSource.queue("/workspace", Inotify.IN_DELETE, "top");
+    assertEquals(modified("a/file", "top"), getDiff(diffAwareness, view));
+  }
+
+  @Test
+  public void testNothingModified() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    assertEquals(modified(), getDiff(diffAwareness, view));
+  }
+
+  @Test
+  public void testViewsOutOfSequence() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    diffAwareness.getCurrentView();
+    assertTrue(getDiff(diffAwareness, view).treatEverythingAsModified());
+  }
+
+  @Test
+  public void testNewDirectoryIsWatchedAndItsContentsReported() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("new/sub"));
+    FileSystemUtils.createEmptyFile(root.getRelative("new/sub/file"));
+    eventSource.queue("/workspace", Inotify.IN_CREATE | Inotify.IN_ISDIR, "new");
+    assertEquals(modified("new", "new/sub", "new/sub/file"), getDiff(diffAwareness, view));
+    assertThat(eventSource.watches.values())
+        .containsAllOf("/workspace/new", "/workspace/new/sub");
+  }
+
+  @Test
+  public void testMovedAwayDirectoryIsNoLongerWatched() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    eventSource.queue("/workspace", Inotify.IN_MOVED_FROM | Inotify.IN_ISDIR, "a");
+    assertEquals(modified("a"), getDiff(diffAwareness, view));
+    assertThat(eventSource.watches.values()).containsExactly("/workspace");
+  }
+
+  @Test
+  public void testOverflowWatchesEverythingAgain() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    eventSource.queue("/workspace/a", Inotify.IN_MODIFY, "file");
+    eventSource.queue(null, Inotify.IN_Q_OVERFLOW, "");
+    view = diffAwareness.getCurrentView();
+    // The old descriptor was replaced by a fresh one.
+    assertThat(eventSource.openDescriptors).containsExactly(4);
+    assertThat(eventSource.watches.values())
+        .containsExactly("/workspace", "/workspace/a", "/workspace/a/b");
+
+    eventSource.queue("/workspace/a/b", Inotify.IN_CREATE, "new");
+    assertEquals(modified("a/b/new"), getDiff(diffAwareness, view));
+  }
+
+  @Test
+  public void testOverflowIsReportedAsEverythingModified() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    eventSource.queue(null, Inotify.IN_Q_OVERFLOW, "");
+    assertTrue(getDiff(diffAwareness, view).treatEverythingAsModified());
+  }
+
+  @Test
+  public void testDeletedRootBreaksTheWatcher() throws Exception {
+    DiffAwareness diffAwareness = factory.create(root);
+    diffAwareness.getCurrentView();
+    eventSource.queue("/workspace", Inotify.IN_DELETE_SELF, "");
+    try {
+      diffAwareness.getCurrentView();
+      fail();
+    } catch (BrokenDiffAwarenessException e) {
+      assertThat(e.getMessage()).contains("deleted or moved");
+    }
+    assertThat(eventSource.openDescriptors).isEmpty();
+  }
+
+  @Test
+  public void testRootOverWatchLimitIsNotWatchedAgain() throws Exception {
+    eventSource.watchLimit = 2;
+    try {
+      factory.create(root).getCurrentView();
+      fail();
+    } catch (BrokenDiffAwarenessException e) {
+      assertThat(e.getMessage()).contains("fs.inotify.max_user_watches");
+    }
+    assertThat(eventSource.openDescriptors).isEmpty();
+    int addWatchCalls = eventSource.addWatchCalls;
+
+    // The next builds check every file instead of trying to register all watches again.
+    DiffAwareness diffAwareness = factory.create(root);
+    View view = diffAwareness.getCurrentView();
+    assertTrue(getDiff(diffAwareness, view).treatEverythingAsModified());
+    assertEquals(addWatchCalls, eventSource.addWatchCalls);
+    assertThat(eventSource.openDescriptors).isEmpty();
+
+    // Other roots are still watched.
+    Path otherRoot = root.getRelative("a");
+    eventSource.watchLimit = Integer.MAX_VALUE;
+    diffAwareness = factory.create(otherRoot);
+    view = diffAwareness.getCurrentView();
+    eventSource.queue("/workspace/a", Inotify.IN_MODIFY, "file");
+    ModifiedFileSet diff = getDiff(diffAwareness, view);
+    assertFalse(diff.treatEverythingAsModified());
+    assertEquals(modified("file"), diff);
+  }
+}
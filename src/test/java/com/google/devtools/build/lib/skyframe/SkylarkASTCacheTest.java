@@ -0,0 +1,136 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.events.EventCollector;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.rules.SkylarkModules;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ValidationEnvironment;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link SkylarkASTCache}.
+ */
+@RunWith(JUnit4.class)
+public class SkylarkASTCacheTest {
+
+  /** A file system that can change a file right after its digest has been computed. */
+  private static final class ChangingFileSystem extends InMemoryFileSystem {
+    private String contentAfterNextDigest;
+
+    @Override
+    protected synchronized byte[] getDigest(Path path) throws IOException {
+      byte[] digest = super.getDigest(path);
+      if (contentAfterNextDigest != null) {
+        FileSystemUtils.writeContentAsLatin1(path, contentAfterNextDigest);
+        contentAfterNextDigest = null;
+      }
+      return digest;
+    }
+  }
+
+  private ChangingFileSystem fileSystem;
+  private Path file;
+  private SkylarkASTCache cache;
+  private ValidationEnvironment validationEnvironment;
+  private EventCollector events;
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = new ChangingFileSystem();
+    file = fileSystem.getPath("/workspace/ext.bzl");
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    cache = new SkylarkASTCache();
+    validationEnvironment = SkylarkModules.getValidationEnvironment();
+    events = new EventCollector(EventKind.ALL_EVENTS);
+  }
+
+  private BuildFileAST parse() throws IOException {
+    return cache.parseSkylarkFile(file, events, null, validationEnvironment);
+  }
+
+  @Test
+  public void testUnchangedFileIsNotParsedAgain() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "a = 1\n");
+    BuildFileAST ast = parse();
+    assertFalse(ast.containsErrors());
+    file.setLastModifiedTime(file.getLastModifiedTime() + 1000);
+    assertSame(ast, parse());
+  }
+
+  @Test
+  public void testChangedFileIsParsedAgain() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "a = 1\n");
+    BuildFileAST ast = parse();
+    FileSystemUtils.writeContentAsLatin1(file, "a = 2\n");
+    BuildFileAST changed = parse();
+    assertNotSame(ast, changed);
+    assertThat(changed.getStatements().get(0).toString()).contains("2");
+    assertSame(changed, parse());
+  }
+
+  @Test
+  public void testOtherValidationEnvironmentIsAMiss() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "a = 1\n");
+    BuildFileAST ast = parse();
+    validationEnvironment = SkylarkModules.getValidationEnvironment();
+    assertNotSame(ast, parse());
+  }
+
+  @Test
+  public void testEventsAreReplayedOnHit() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "a = (1\n");
+    BuildFileAST ast = parse();
+    assertTrue(ast.containsErrors());
+    assertThat(events.count()).isGreaterThan(0);
+    String firstMessage = events.iterator().next().getMessage();
+
+    int count = events.count();
+    events = new EventCollector(EventKind.ALL_EVENTS);
+    assertSame(ast, parse());
+    assertEquals(count, events.count());
+    assertEquals(firstMessage, events.iterator().next().getMessage());
+  }
+
+  @Test
+  public void testFileChangedWhileReadingIsNotCached() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "a = 1\n");
+    fileSystem.contentAfterNextDigest = "a = 2\n";
+    BuildFileAST changed = parse();
+    assertThat(changed.getStatements().get(0).toString()).contains("2");
+
+    // The AST must not have been cached under the digest of the old content.
+    FileSystemUtils.writeContentAsLatin1(file, "a = 1\n");
+    BuildFileAST reverted = parse();
+    assertThat(reverted.getStatements().get(0).toString()).contains("1");
+    assertSame(reverted, parse());
+  }
+}
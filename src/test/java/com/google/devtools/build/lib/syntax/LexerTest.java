@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.devtools.build.lib.events.Event;
@@ -421,4 +422,28 @@ public class LexerTest {
     assertEquals(s.length(), lastErrorLocation.getEndOffset());
     assertEquals("STRING(unterminated) NEWLINE EOF", values(tokens(s)));
   }
+
+  @Test
+  public void testIdentifiersAndStringsAreInterned() throws Exception {
+    Token[] tokens = tokens("foo(foo, 'foo', \"foo\", 'fo' + 'o')");
+    assertEquals("IDENTIFIER(foo) LPAREN IDENTIFIER(foo) COMMA STRING(foo) COMMA STRING(foo) "
+        + "COMMA STRING(fo) PLUS STRING(o) RPAREN NEWLINE EOF", values(tokens));
+    assertSame(tokens[0].value, tokens[2].value);
+    assertSame(tokens[0].value, tokens[4].value);
+    assertSame(tokens[0].value, tokens[6].value);
+  }
+
+  @Test
+  public void testManyTokens() throws Exception {
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      input.append("x").append(i).append(",");
+      expected.append("IDENTIFIER(x").append(i).append(") COMMA ");
+    }
+    Token[] tokens = tokens(input.toString());
+    assertEquals(expected + "NEWLINE EOF", values(tokens));
+    assertEquals(input.length() - 1, tokens[1999].left);
+    assertEquals(input.length(), tokens[1999].right);
+  }
 }
@@ -0,0 +1,170 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.rules.SkylarkModules;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests for {@link LocalVariableResolver} and the evaluation of functions against resolved frames.
+ */
+@RunWith(JUnit4.class)
+public class LocalVariableResolverTest extends AbstractEvaluationTestCase {
+
+  private SkylarkEnvironment env;
+
+  @Before
+  public void setUp() throws Exception {
+    env = new SkylarkEnvironment(syntaxEvents.collector());
+  }
+
+  private List<Statement> parse(String... lines) {
+    return parseFileForSkylark(Joiner.on("\n").join(lines) + "\n");
+  }
+
+  private static ListMultimap<String, Integer> getSlots(List<Statement> statements) {
+    final ListMultimap<String, Integer> slots = ArrayListMultimap.create();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Ident node) {
+        slots.put(node.getName(), node.getSlot());
+      }
+    }.visitAll(statements);
+    return slots;
+  }
+
+  @Test
+  public void testParametersComeFirst() throws Exception {
+    exec(parse(
+        "def func(a, b):",
+        "  c = a",
+        "  for d in b:",
+        "    c = d",
+        "  return [e for e in b]"), env);
+    UserDefinedFunction func = (UserDefinedFunction) env.lookup("func");
+    assertEquals(ImmutableMap.of("a", 0, "b", 1, "c", 2, "d", 3, "e", 4), func.getFrameLayout());
+  }
+
+  @Test
+  public void testGlobalsAreNotResolved() throws Exception {
+    ListMultimap<String, Integer> slots = getSlots(parse(
+        "g = 1",
+        "def func(a):",
+        "  return a + g"));
+    assertThat(slots.get("a")).containsExactly(0);
+    assertThat(slots.get("g")).containsExactly(-1, -1);
+  }
+
+  @Test
+  public void testMethodAndFieldNamesAreNotResolved() throws Exception {
+    ListMultimap<String, Integer> slots = getSlots(parse(
+        "def func(x):",
+        "  append = x.append",
+        "  x.append(append)"));
+    assertThat(slots.get("x")).containsExactly(0, 0);
+    assertThat(slots.get("append")).containsExactly(1, -1, -1, 1).inOrder();
+  }
+
+  @Test
+  public void testLocalShadowsGlobal() throws Exception {
+    exec(parse(
+        "a = 1",
+        "def func():",
+        "  a = 2",
+        "  return a",
+        "b = func()"), env);
+    assertEquals(1, env.lookup("a"));
+    assertEquals(2, env.lookup("b"));
+  }
+
+  @Test
+  public void testLoopAndComprehensionVariables() throws Exception {
+    exec(parse(
+        "def func(l):",
+        "  s = 0",
+        "  for x in l:",
+        "    s = s + x",
+        "  return [y * s for y in l]",
+        "r = func([1, 2])"), env);
+    assertThat((Iterable<?>) env.lookup("r")).containsExactly(3, 6).inOrder();
+  }
+
+  @Test
+  public void testReadGlobalThenAssign() throws Exception {
+    checkError("Variable 'a' is referenced before assignment."
+        + "The variable is defined in the global scope.",
+        "a = 1",
+        "def func():",
+        "  b = a",
+        "  a = 2",
+        "func()");
+  }
+
+  @Test
+  public void testFramesAreNotShared() throws Exception {
+    checkError("name 'b' is not defined",
+        "def func(a):",
+        "  if a:",
+        "    b = a",
+        "  return b",
+        "func(1)",
+        "func(0)");
+  }
+
+  @Test
+  public void testResolvingAgainIsIdempotent() throws Exception {
+    // ASTs can be cached across builds, so validating one again must not change its slots.
+    List<Statement> statements = parse(
+        "g = 1",
+        "def func(a):",
+        "  b = [x + g for x in a]",
+        "  return b",
+        "r = func([1, 2])");
+    ListMultimap<String, Integer> slots = getSlots(statements);
+    ValidationEnvironment validationEnv = SkylarkModules.getValidationEnvironment();
+    for (Statement statement : statements) {
+      statement.validate(validationEnv);
+    }
+    assertEquals(slots, getSlots(statements));
+
+    exec(statements, env);
+    assertThat((Iterable<?>) env.lookup("r")).containsExactly(2, 3).inOrder();
+    SkylarkEnvironment otherEnv = new SkylarkEnvironment(syntaxEvents.collector());
+    exec(statements, otherEnv);
+    assertThat((Iterable<?>) otherEnv.lookup("r")).containsExactly(2, 3).inOrder();
+  }
+
+  private void checkError(String msg, String... lines) throws Exception {
+    try {
+      exec(parse(lines), env);
+      fail();
+    } catch (EvalException e) {
+      assertThat(e).hasMessage(msg);
+    }
+  }
+}
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.util;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.testutil.MoreAsserts;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -27,6 +28,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 
 @RunWith(JUnit4.class)
@@ -177,6 +181,35 @@ public class DependencySetTest {
                        newDependencySet().read(dotd).getDependencies());
   }
 
+  @Test
+  public void dotDParser_escapedSpaces() throws Exception {
+    Path dotd = scratch.file("/tmp/foo.d",
+        "hello.o: dir\\ with\\ spaces/hello.h \\",
+        " other.h");
+    MoreAsserts.assertSameContents(
+        Sets.newHashSet(new PathFragment("dir with spaces/hello.h"), new PathFragment("other.h")),
+        newDependencySet().read(dotd).getDependencies());
+  }
+
+  @Test
+  public void dotDParser_byteAtATime() throws Exception {
+    byte[] content = ("hello.o: \\\r\n /usr/include/a.h \\\r\n"
+        + " dir\\ x/b.h\nhello2.o: c.h\n").getBytes(StandardCharsets.UTF_8);
+    InputStream in = new ByteArrayInputStream(content) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+    DependencySet depset = newDependencySet().process(in);
+    assertEquals(
+        ImmutableList.of(new PathFragment("/usr/include/a.h"), new PathFragment("dir x/b.h"),
+            new PathFragment("c.h")),
+        ImmutableList.copyOf(depset.getDependencies()));
+    assertEquals(depset, newDependencySet().process(content));
+    assertEquals("hello2.o", depset.getOutputFileName());
+  }
+
   @Test
   public void writeSet() throws Exception {
     PathFragment file1 = new PathFragment("/usr/local/blah/blah/genhello/hello.cc");
@@ -0,0 +1,112 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests {@link ChunkedStreamMultiplexer} and {@link ChunkedStreamDemultiplexer}.
+ */
+@RunWith(JUnit4.class)
+public class ChunkedStreamMultiplexerTest {
+
+  private final ByteArrayOutputStream multiplexed = new ByteArrayOutputStream();
+  private final ChunkedStreamMultiplexer multiplexer = new ChunkedStreamMultiplexer(multiplexed);
+  private final OutputStream out = multiplexer.createStdout();
+  private final OutputStream err = multiplexer.createStderr();
+  private final OutputStream ctl = multiplexer.createControl();
+
+  private static byte[] frame(char marker, String payload) throws Exception {
+    byte[] bytes = payload.getBytes("ISO-8859-1");
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write(new byte[] {(byte) marker, 0, 0, (byte) (bytes.length >> 8), (byte) bytes.length});
+    frame.write(bytes);
+    return frame.toByteArray();
+  }
+
+  @Test
+  public void testCompleteLinesAreSentRightAway() throws Exception {
+    out.write("Hello, ".getBytes("ISO-8859-1"));
+    assertEquals(0, multiplexed.size());
+    out.write("world.\n".getBytes("ISO-8859-1"));
+    assertArrayEquals(frame('1', "Hello, world.\n"), multiplexed.toByteArray());
+  }
+
+  @Test
+  public void testFlushSendsIncompleteLines() throws Exception {
+    err.write('x');
+    err.flush();
+    ctl.write("0\n".getBytes("ISO-8859-1"));
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(frame('2', "x"));
+    expected.write(frame('3', "0\n"));
+    assertArrayEquals(expected.toByteArray(), multiplexed.toByteArray());
+  }
+
+  @Test
+  public void testLargeWritesAreSentAsOneFrame() throws Exception {
+    out.write('a');
+    byte[] large = new byte[3 * ChunkedStreamMultiplexer.BUFFER_LENGTH];
+    new Random(0).nextBytes(large);
+    out.write(large);
+
+    byte[] bytes = multiplexed.toByteArray();
+    assertEquals(2 * ChunkedStreamMultiplexer.HEADER_LENGTH + 1 + large.length, bytes.length);
+    // The buffered byte goes first, in a frame of its own.
+    assertArrayEquals(frame('1', "a"), Arrays.copyOf(bytes, 6));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random random = new Random(42);
+    ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream expectedErr = new ByteArrayOutputStream();
+    for (int i = 0; i < 200; i++) {
+      byte[] data = new byte[random.nextInt(3 * ChunkedStreamMultiplexer.BUFFER_LENGTH)];
+      random.nextBytes(data);
+      if (random.nextBoolean()) {
+        out.write(data);
+        expectedOut.write(data);
+      } else {
+        err.write(data);
+        expectedErr.write(data);
+      }
+    }
+    out.flush();
+    err.flush();
+
+    ByteArrayOutputStream demuxedOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream demuxedErr = new ByteArrayOutputStream();
+    try (ChunkedStreamDemultiplexer demux =
+        new ChunkedStreamDemultiplexer((byte) '1', demuxedOut, demuxedErr)) {
+      // Feed the demultiplexer in pieces that do not line up with the frames.
+      byte[] bytes = multiplexed.toByteArray();
+      for (int off = 0; off < bytes.length; off += 1000) {
+        demux.write(bytes, off, Math.min(1000, bytes.length - off));
+      }
+    }
+    assertArrayEquals(expectedOut.toByteArray(), demuxedOut.toByteArray());
+    assertArrayEquals(expectedErr.toByteArray(), demuxedErr.toByteArray());
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests for {@link FileSystemBatchStat}.
+ */
+@RunWith(JUnit4.class)
+public class FileSystemBatchStatTest {
+
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fs = new InMemoryFileSystem();
+    root = fs.getPath("/exec");
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("a/b"));
+    FileSystemUtils.createEmptyFile(root.getRelative("a/file1"));
+    FileSystemUtils.createEmptyFile(root.getRelative("a/b/file2"));
+    root.getRelative("a/link").createSymbolicLink(new PathFragment("file1"));
+  }
+
+  @Test
+  public void testResultsAreInInputOrder() throws Exception {
+    List<FileStatusWithDigest> stats = new FileSystemBatchStat(root).batchStat(
+        /*includeDigest=*/true, /*includeLinks=*/true,
+        ImmutableList.of(new PathFragment("a/file1"), new PathFragment("a/b/file2"),
+            new PathFragment("a/missing"), new PathFragment("a/b"),
+            new PathFragment("a/link"), new PathFragment("a/file1/child")));
+    assertEquals(6, stats.size());
+    assertTrue(stats.get(0).isFile());
+    assertEquals(root.getRelative("a/file1").stat().getNodeId(), stats.get(0).getNodeId());
+    assertNull(stats.get(0).getDigest());
+    assertTrue(stats.get(1).isFile());
+    assertNull(stats.get(2));
+    assertTrue(stats.get(3).isDirectory());
+    assertTrue(stats.get(4).isSymbolicLink());
+    assertNull(stats.get(5));
+  }
+
+  @Test
+  public void testFollowsLinksUnlessIncluded() throws Exception {
+    List<FileStatusWithDigest> stats = new FileSystemBatchStat(root).batchStat(
+        /*includeDigest=*/false, /*includeLinks=*/false,
+        ImmutableList.of(new PathFragment("a/link"), new PathFragment("/")));
+    assertTrue(stats.get(0).isFile());
+    assertTrue(stats.get(1).isDirectory());
+  }
+}
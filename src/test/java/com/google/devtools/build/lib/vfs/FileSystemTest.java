@@ -14,6 +14,8 @@
 package com.google.devtools.build.lib.vfs;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -22,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.testutil.MoreAsserts;
 import com.google.devtools.build.lib.testutil.TestUtils;
@@ -298,6 +301,27 @@ public abstract class FileSystemTest {
     assertNull(nonDir.getRelative("file").statIfFound());
   }
 
+  @Test
+  public void testStatChildrenIfFound() throws Exception {
+    Path subdir = xNonEmptyDirectory.getChild("subdir");
+    subdir.createDirectory();
+    FileStatus[] stats = xNonEmptyDirectory.statChildrenIfFound(
+        new String[] {"subdir", "missing", "foo"}, Symlinks.NOFOLLOW);
+    assertEquals(3, stats.length);
+    assertTrue(stats[0].isDirectory());
+    assertNull(stats[1]);
+    assertTrue(stats[2].isFile());
+    assertEquals(xNonEmptyDirectoryFoo.stat().getNodeId(), stats[2].getNodeId());
+  }
+
+  @Test
+  public void testStatChildrenIfFoundReturnsNullForChildrenOfNonDir() throws Exception {
+    FileStatus[] stats = xFile.statChildrenIfFound(new String[] {"a", "b"}, Symlinks.FOLLOW);
+    assertNull(stats[0]);
+    assertNull(stats[1]);
+    assertNull(xNothing.statChildrenIfFound(new String[] {"a"}, Symlinks.FOLLOW)[0]);
+  }
+
   // The following tests check the handling of the current working directory.
   @Test
   public void testCreatePathRelativeToWorkingDirectory() {
@@ -1319,6 +1343,15 @@ public abstract class FileSystemTest {
         fp.hexDigestAndReset());
   }
 
+  @Test
+  public void testGetDigestUsesDigestFunction() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(xFile, "some content");
+    assertArrayEquals(xFile.getMD5Digest(), xFile.getDigest());
+    testFS.setDigestFunction(FileSystem.DigestFunction.SHA1);
+    assertArrayEquals(Hashing.sha1().hashString("some content", ISO_8859_1).asBytes(),
+        xFile.getDigest());
+  }
+
   @Test
   public void testStatFailsFastOnNonExistingFiles() throws Exception {
     try {
@@ -19,8 +19,10 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Ordering;
 import com.google.devtools.build.lib.testutil.MoreAsserts;
 import com.google.devtools.build.lib.testutil.TestUtils;
@@ -31,13 +33,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -312,6 +317,51 @@ public class GlobTest {
 
   }
 
+  @Test
+  public void testGlobAsyncByPattern() throws Exception {
+    FileSystemUtils.createEmptyFile(tmpPath.getRelative("foo/barnacle/wiz/other"));
+    Map<String, Future<List<Path>>> results = new UnixGlob.Builder(tmpPath)
+        .addPatterns("**/file", "foo/*/wiz/*", "**/file", "nothing/*")
+        .addExcludes("foo/barnacle/*/other")
+        .globAsyncByPattern(true);
+    assertThat(results.keySet()).containsExactly("**/file", "foo/*/wiz/*", "nothing/*").inOrder();
+    assertThat(results.get("**/file").get()).containsExactlyElementsIn(
+        resolvePaths("foo/bar/wiz/file"));
+    assertThat(results.get("foo/*/wiz/*").get()).containsExactlyElementsIn(
+        resolvePaths("foo/bar/wiz/file"));
+    assertThat(results.get("nothing/*").get()).isEmpty();
+  }
+
+  @Test
+  public void testMultiplePatternsReadEachDirectoryOnce() throws Exception {
+    final Multiset<Path> readdirs = ConcurrentHashMultiset.create();
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+
+    Map<String, Future<List<Path>>> results = new UnixGlob.Builder(tmpPath)
+        .addPatterns("**/file", "**/wiz", "*/bar*/**")
+        .setFilesystemCalls(new AtomicReference<>(syscalls))
+        .globAsyncByPattern(true);
+    for (Map.Entry<String, Future<List<Path>>> entry : results.entrySet()) {
+      assertThat(entry.getValue().get()).containsExactlyElementsIn(
+          new UnixGlob.Builder(tmpPath).addPattern(entry.getKey()).glob()).inOrder();
+    }
+    assertThat(results.get("**/wiz").get()).containsExactlyElementsIn(
+        resolvePaths("foo/bar/wiz", "foo/barnacle/wiz", "food/barnacle/wiz",
+            "fool/barnacle/wiz"));
+    assertThat(readdirs.size()).isEqualTo(readdirs.elementSet().size());
+  }
+
   private void assertGlobMatchesAnyOrder(ArrayList<String> patterns,
                                          String... paths) throws Exception {
     assertThat(resolvePaths(paths)).containsExactlyElementsIn(
@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -114,6 +115,21 @@ public abstract class SymlinkAwareFileSystemTest extends FileSystemTest {
       getDirectoryEntries()).containsExactly(newPath, linkPath);
   }
 
+  @Test
+  public void testStatChildrenIfFoundOfSymlinks() throws IOException {
+    createSymbolicLink(xEmptyDirectory.getChild("file-link"), xFile);
+    createSymbolicLink(xEmptyDirectory.getChild("dangling-link"), xNothing);
+    String[] names = {"file-link", "dangling-link"};
+
+    FileStatus[] noFollow = xEmptyDirectory.statChildrenIfFound(names, Symlinks.NOFOLLOW);
+    assertTrue(noFollow[0].isSymbolicLink());
+    assertTrue(noFollow[1].isSymbolicLink());
+
+    FileStatus[] follow = xEmptyDirectory.statChildrenIfFound(names, Symlinks.FOLLOW);
+    assertTrue(follow[0].isFile());
+    assertNull(follow[1]);
+  }
+
   @Test
   public void testFileCanonicalPath() throws IOException {
     Path newPath = absolutize("new-file");
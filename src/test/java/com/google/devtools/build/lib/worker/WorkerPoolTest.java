@@ -0,0 +1,149 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@link WorkerPool}. The workers are {@code cat} processes, which live until their
+ * stdin is closed.
+ */
+@RunWith(JUnit4.class)
+public class WorkerPoolTest {
+  private Path workDir;
+  private WorkerPool pool;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    workDir = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getPath());
+    pool = new WorkerPool(1, workDir.getRelative("logs"));
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+    executor.shutdownNow();
+  }
+
+  private WorkerKey key(String mnemonic) {
+    return new WorkerKey(ImmutableList.of("/bin/cat"), ImmutableMap.<String, String>of(),
+        workDir, mnemonic);
+  }
+
+  private static void awaitDeath(Worker worker) throws InterruptedException {
+    for (int i = 0; i < 500 && worker.isAlive(); i++) {
+      Thread.sleep(10);
+    }
+    assertFalse(worker.isAlive());
+  }
+
+  @Test
+  public void returnedWorkerIsReused() throws Exception {
+    WorkerKey key = key("Cat");
+    Worker worker = pool.borrowWorker(key);
+    assertTrue(worker.isAlive());
+    pool.returnWorker(key, worker);
+    assertSame(worker, pool.borrowWorker(key));
+  }
+
+  @Test
+  public void invalidatedWorkerIsKilledAndReplaced() throws Exception {
+    WorkerKey key = key("Cat");
+    Worker worker = pool.borrowWorker(key);
+    pool.invalidateWorker(key, worker);
+    awaitDeath(worker);
+    Worker replacement = pool.borrowWorker(key);
+    assertNotSame(worker, replacement);
+    assertTrue(replacement.isAlive());
+  }
+
+  @Test
+  public void workersAreKeptPerKey() throws Exception {
+    WorkerKey first = key("First");
+    WorkerKey second = key("Second");
+    Worker worker = pool.borrowWorker(first);
+    pool.returnWorker(first, worker);
+    // The limit of one instance applies to every key on its own.
+    Worker other = pool.borrowWorker(second);
+    assertNotSame(worker, other);
+    assertSame(worker, pool.borrowWorker(first));
+  }
+
+  @Test
+  public void borrowBlocksWhileAllInstancesAreInUse() throws Exception {
+    final WorkerKey key = key("Cat");
+    Worker worker = pool.borrowWorker(key);
+    Future<Worker> next = executor.submit(new Callable<Worker>() {
+      @Override
+      public Worker call() throws Exception {
+        return pool.borrowWorker(key);
+      }
+    });
+    try {
+      next.get(100, TimeUnit.MILLISECONDS);
+      throw new AssertionError("a second worker was handed out");
+    } catch (TimeoutException expected) {
+    }
+    pool.returnWorker(key, worker);
+    assertSame(worker, next.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void deadIdleWorkerIsReplaced() throws Exception {
+    WorkerKey key = key("Cat");
+    Worker worker = pool.borrowWorker(key);
+    pool.returnWorker(key, worker);
+    worker.destroy();
+    awaitDeath(worker);
+    assertNotSame(worker, pool.borrowWorker(key));
+  }
+
+  @Test
+  public void closeKillsIdleAndLaterReturnedWorkers() throws Exception {
+    WorkerKey idleKey = key("Idle");
+    WorkerKey busyKey = key("Busy");
+    Worker idle = pool.borrowWorker(idleKey);
+    pool.returnWorker(idleKey, idle);
+    Worker busy = pool.borrowWorker(busyKey);
+    pool.close();
+    awaitDeath(idle);
+    assertTrue(busy.isAlive());
+    pool.returnWorker(busyKey, busy);
+    awaitDeath(busy);
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import com.google.devtools.common.options.Options;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for how {@link WorkerSpawnStrategy} uses and recycles workers. The workers are JVMs
+ * running {@link FakeWorker}.
+ */
+@RunWith(JUnit4.class)
+public class WorkerSpawnStrategyTest {
+
+  /**
+   * A worker that answers "ok" with exit code 0 and "fail" with exit code 1, and exits without an
+   * answer on "die". The output of every response is the number of requests the process got.
+   */
+  public static final class FakeWorker {
+    public static void main(String[] args) throws IOException {
+      int requestCount = 0;
+      WorkRequest request;
+      while ((request = WorkRequest.parseDelimitedFrom(System.in)) != null) {
+        requestCount++;
+        String command = request.getArguments(0);
+        if (command.equals("die")) {
+          System.exit(1);
+        }
+        WorkResponse.newBuilder()
+            .setExitCode(command.equals("ok") ? 0 : 1)
+            .setOutput(Integer.toString(requestCount))
+            .build()
+            .writeDelimitedTo(System.out);
+        System.out.flush();
+      }
+    }
+  }
+
+  private Path workDir;
+  private WorkerPool pool;
+  private WorkerOptions options;
+  private WorkerKey key;
+
+  @Before
+  public void setUp() throws Exception {
+    workDir = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getPath());
+    pool = new WorkerPool(1, workDir.getRelative("logs"));
+    options = Options.getDefaults(WorkerOptions.class);
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    // Workers run in workDir, so the class path must not be relative to the test's directory.
+    List<String> classPath = new ArrayList<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      classPath.add(new File(entry).getAbsolutePath());
+    }
+    key = new WorkerKey(
+        ImmutableList.of(java, "-cp", Joiner.on(File.pathSeparator).join(classPath),
+            FakeWorker.class.getName()),
+        ImmutableMap.<String, String>of(), workDir, "Fake");
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  /** Sends {@code command} and returns how many requests the worker that answered has seen. */
+  private int exec(String command) throws Exception {
+    WorkResponse response = new WorkerSpawnStrategy(pool, workDir, false, options)
+        .execInWorker(key, WorkRequest.newBuilder().addArguments(command).build());
+    assertEquals(command.equals("ok") ? 0 : 1, response.getExitCode());
+    return Integer.parseInt(response.getOutput());
+  }
+
+  @Test
+  public void workerIsReusedAfterSuccess() throws Exception {
+    assertEquals(1, exec("ok"));
+    assertEquals(2, exec("ok"));
+    assertEquals(3, exec("ok"));
+  }
+
+  @Test
+  public void workerIsRecycledAfterNonZeroExitCode() throws Exception {
+    assertEquals(1, exec("ok"));
+    assertEquals(2, exec("fail"));
+    assertEquals(1, exec("ok"));
+  }
+
+  @Test
+  public void workerIsRecycledAfterProtocolError() throws Exception {
+    assertEquals(1, exec("ok"));
+    try {
+      exec("die");
+      fail();
+    } catch (EnvironmentalExecException e) {
+      assertThat(e.getMessage()).contains("exited unexpectedly");
+    }
+    assertEquals(1, exec("ok"));
+  }
+
+  @Test
+  public void workerIsRecycledAfterMaxRequests() throws Exception {
+    options.workerMaxRequests = 2;
+    assertEquals(1, exec("ok"));
+    assertEquals(2, exec("ok"));
+    assertEquals(1, exec("ok"));
+  }
+}
@@ -38,6 +38,8 @@ import org.junit.runners.JUnit4;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -332,6 +334,49 @@ public class InMemoryNodeEntryTest {
     }
   }
 
+  @Test
+  public void concurrentReverseDepsAfterDone() throws Exception {
+    final NodeEntry entry = new InMemoryNodeEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
+    final int numThreads = 8;
+    final int depsPerThread = InMemoryNodeEntry.CONCURRENT_ADD_THRESHOLD * 10;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      final int threadNum = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < depsPerThread; j++) {
+              assertEquals(DependencyState.DONE,
+                  entry.addReverseDepAndCheckIfDone(key("parent-" + threadNum + "-" + j)));
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    assertThat(entry.getReverseDeps()).hasSize(numThreads * depsPerThread);
+    entry.removeReverseDep(key("parent-0-0"));
+    assertEquals(DependencyState.DONE, entry.addReverseDepAndCheckIfDone(key("late")));
+    Set<SkyKey> reverseDeps = ImmutableSet.copyOf(entry.getReverseDeps());
+    assertThat(reverseDeps).hasSize(numThreads * depsPerThread);
+    assertThat(reverseDeps).contains(key("late"));
+    assertFalse(reverseDeps.contains(key("parent-0-0")));
+  }
+
   @Test
   public void crashOnAddReverseDepBeforeAfterDone() {
     NodeEntry entry = new InMemoryNodeEntry();